@@ -0,0 +1,124 @@
+package com.daasuu.mp4compose.composer;
+
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Composes the same clip with the polling loop and with {@link Mp4Composer#eventDriven} and
+ * logs the median wall time and process CPU time of each. The video is always re-encoded, as
+ * the passthrough copy does not run the codec loop. The clip is given on the command line:
+ * {@code adb shell am instrument -w -e benchmarkSource /sdcard/clip.mp4
+ * -e class com.daasuu.mp4compose.composer.EventDrivenBenchmarkTest com.daasuu.mp4compose.test/androidx.test.runner.AndroidJUnitRunner}.
+ * The engines also log the wall and thread CPU time of their loop ("Pipelines finished").
+ */
+@RunWith(AndroidJUnit4.class)
+public class EventDrivenBenchmarkTest {
+
+    private static final String TAG = "EventDrivenBenchmark";
+    private static final String ARGUMENT_SOURCE = "benchmarkSource";
+    private static final int RUNS = 3;
+    private static final long TIMEOUT_MINUTES = 30;
+
+    private String source;
+    private File output;
+
+    @Before
+    public void setUp() {
+        final Bundle arguments = InstrumentationRegistry.getArguments();
+        source = arguments.getString(ARGUMENT_SOURCE);
+        assumeTrue("No -e " + ARGUMENT_SOURCE + " given", source != null);
+        output = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "benchmark.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        if (output != null) {
+            output.delete();
+        }
+    }
+
+    @Test
+    public void compareEventDrivenWithPolling() throws InterruptedException {
+        final long[] pollingMs = new long[RUNS];
+        final long[] pollingCpuMs = new long[RUNS];
+        final long[] eventDrivenMs = new long[RUNS];
+        final long[] eventDrivenCpuMs = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            // 交互に測って端末の温度の影響を均す
+            compose(false, pollingMs, pollingCpuMs, i);
+            compose(true, eventDrivenMs, eventDrivenCpuMs, i);
+        }
+        Log.i(TAG, source + ": polling " + median(pollingMs) + " ms (CPU " + median(pollingCpuMs)
+                + " ms), event driven " + median(eventDrivenMs) + " ms (CPU " + median(eventDrivenCpuMs)
+                + " ms), runs " + Arrays.toString(pollingMs) + " / " + Arrays.toString(eventDrivenMs)
+                + ", CPU " + Arrays.toString(pollingCpuMs) + " / " + Arrays.toString(eventDrivenCpuMs));
+    }
+
+    /**
+     * Store the time from start to completion and the CPU time the process used meanwhile, in
+     * milliseconds. The codecs themselves run in the media server and are not counted.
+     */
+    private void compose(boolean eventDriven, long[] wallMs, long[] cpuMs, int run) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] failure = new Exception[1];
+        final long start = SystemClock.elapsedRealtime();
+        final long startCpu = Process.getElapsedCpuTime();
+        new Mp4Composer(source, output.getPath())
+                .videoPassthrough(false)
+                .eventDriven(eventDriven)
+                .listener(new Mp4Composer.Listener() {
+                    @Override
+                    public void onProgress(double progress) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onCanceled() {
+                        failure[0] = new IllegalStateException("Canceled");
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailed(Exception exception) {
+                        failure[0] = exception;
+                        done.countDown();
+                    }
+                })
+                .start();
+        assertTrue("Timed out", done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES));
+        wallMs[run] = SystemClock.elapsedRealtime() - start;
+        cpuMs[run] = Process.getElapsedCpuTime() - startCpu;
+        assertNull(failure[0]);
+        assertTrue(output.length() > 0);
+        output.delete();
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,136 @@
+package com.daasuu.mp4compose.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the same synthetic AVC + AAC stream through MediaMuxer and {@link Mp4Muxer} and logs
+ * the median time of each, so the two can be compared on a device:
+ * {@code adb logcat -s MuxerBenchmark}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MuxerBenchmarkTest {
+
+    private static final String TAG = "MuxerBenchmark";
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AAC_CONFIG = {0x12, 0x10};
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int SAMPLE_RATE = 44100;
+    private static final long FRAME_US = 1000000 / 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final int FRAME_COUNT = 30 * 60;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final int KEY_FRAME_SIZE = 120 * 1024;
+    private static final int FRAME_SIZE = 30 * 1024;
+    private static final int AUDIO_FRAME_SIZE = 372;
+    private static final int WARM_UP_RUNS = 1;
+    private static final int RUNS = 5;
+
+    private File output;
+    private ByteBuffer keyFrame;
+    private ByteBuffer frame;
+    private ByteBuffer audioFrame;
+
+    @Before
+    public void setUp() {
+        output = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "benchmark.mp4");
+        keyFrame = createFrame(0x65, KEY_FRAME_SIZE);
+        frame = createFrame(0x41, FRAME_SIZE);
+        audioFrame = ByteBuffer.allocateDirect(AUDIO_FRAME_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Test
+    public void compareWithMediaMuxer() throws IOException {
+        final long[] mediaMuxerMs = new long[RUNS];
+        final long[] mp4MuxerMs = new long[RUNS];
+        for (int i = -WARM_UP_RUNS; i < RUNS; i++) {
+            // 交互に測ってキャッシュや温度の影響を均す
+            long mediaMuxer = measure(new AndroidMediaMuxer(
+                    new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)));
+            long mp4Muxer = measure(new Mp4Muxer(output.getPath()));
+            if (i >= 0) {
+                mediaMuxerMs[i] = mediaMuxer;
+                mp4MuxerMs[i] = mp4Muxer;
+            }
+        }
+        Log.i(TAG, FRAME_COUNT + " frames: MediaMuxer " + median(mediaMuxerMs) + " ms, Mp4Muxer "
+                + median(mp4MuxerMs) + " ms, runs " + Arrays.toString(mediaMuxerMs) + " / " + Arrays.toString(mp4MuxerMs));
+    }
+
+    /**
+     * @return The time to write and close the stream in milliseconds.
+     */
+    private long measure(Muxer muxer) {
+        final long start = SystemClock.elapsedRealtime();
+        final MediaFormat videoFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT);
+        videoFormat.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+        videoFormat.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+        final MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 2);
+        audioFormat.setByteBuffer("csd-0", ByteBuffer.wrap(AAC_CONFIG));
+        final int video = muxer.addTrack(videoFormat);
+        final int audio = muxer.addTrack(audioFormat);
+        muxer.start();
+
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long audioUs = 0;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            final boolean sync = i % KEY_FRAME_INTERVAL == 0;
+            final ByteBuffer sample = sync ? keyFrame : frame;
+            info.set(0, sample.limit(), i * FRAME_US, sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+            while (audioUs <= i * FRAME_US) {
+                info.set(0, AUDIO_FRAME_SIZE, audioUs, 0);
+                muxer.writeSampleData(audio, audioFrame, info);
+                audioUs += AUDIO_FRAME_US;
+            }
+        }
+        muxer.stop();
+        muxer.release();
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        assertTrue(output.length() > (long) FRAME_COUNT * FRAME_SIZE);
+        output.delete();
+        return elapsed;
+    }
+
+    private static ByteBuffer createFrame(int nalHeader, int size) {
+        final ByteBuffer sample = ByteBuffer.allocateDirect(size);
+        sample.put(new byte[]{0, 0, 0, 1, (byte) nalHeader});
+        while (sample.hasRemaining()) {
+            // 開始コードに見えない中身
+            sample.put((byte) (sample.position() % 250 + 1));
+        }
+        sample.flip();
+        return sample;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
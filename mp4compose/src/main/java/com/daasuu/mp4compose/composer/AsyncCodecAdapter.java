@@ -0,0 +1,164 @@
+package com.daasuu.mp4compose.composer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Runs a {@link MediaCodec} in asynchronous mode while keeping the dequeue style API of the
+ * synchronous mode, so the drain loops of the composers can stay as they are.
+ * <p>
+ * The codec callbacks are delivered on the given {@link Handler}, the available buffers are
+ * queued here and the {@link PipelineSignal} is raised to wake up the composing thread.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class AsyncCodecAdapter extends MediaCodec.Callback {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final PipelineSignal signal;
+
+    private int[] inputIndices = new int[INITIAL_CAPACITY];
+    private int inputHead;
+    private int inputCount;
+
+    // 出力はフォーマット変更も含めて到着順に返す
+    private int[] outputIndices = new int[INITIAL_CAPACITY];
+    private int[] outputOffsets = new int[INITIAL_CAPACITY];
+    private int[] outputSizes = new int[INITIAL_CAPACITY];
+    private long[] outputTimesUs = new long[INITIAL_CAPACITY];
+    private int[] outputFlags = new int[INITIAL_CAPACITY];
+    private int outputHead;
+    private int outputCount;
+
+    private MediaCodec.CodecException error;
+
+    AsyncCodecAdapter(@NonNull MediaCodec codec, @NonNull Handler handler, @NonNull PipelineSignal signal) {
+        this.signal = signal;
+        // must be called before configure()
+        codec.setCallback(this, handler);
+    }
+
+    /**
+     * Same contract as {@link MediaCodec#dequeueInputBuffer(long)} with a zero timeout.
+     */
+    synchronized int dequeueInputBuffer() {
+        throwIfError();
+        if (inputCount == 0) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        int index = inputIndices[inputHead];
+        inputHead = (inputHead + 1) % inputIndices.length;
+        inputCount--;
+        return index;
+    }
+
+    /**
+     * Same contract as {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)} with
+     * a zero timeout.
+     */
+    synchronized int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo bufferInfo) {
+        throwIfError();
+        if (outputCount == 0) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        int i = outputHead;
+        int index = outputIndices[i];
+        bufferInfo.set(outputOffsets[i], outputSizes[i], outputTimesUs[i], outputFlags[i]);
+        outputHead = (outputHead + 1) % outputIndices.length;
+        outputCount--;
+        return index;
+    }
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        synchronized (this) {
+            if (inputCount == inputIndices.length) {
+                growInput();
+            }
+            inputIndices[(inputHead + inputCount) % inputIndices.length] = index;
+            inputCount++;
+        }
+        signal.signal();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        synchronized (this) {
+            queueOutput(index, info.offset, info.size, info.presentationTimeUs, info.flags);
+        }
+        signal.signal();
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        synchronized (this) {
+            // the new format is read through codec.getOutputFormat() like in synchronous mode
+            queueOutput(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 0, 0, 0);
+        }
+        signal.signal();
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        synchronized (this) {
+            error = e;
+        }
+        signal.signal();
+    }
+
+    private void queueOutput(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (outputCount == outputIndices.length) {
+            growOutput();
+        }
+        int i = (outputHead + outputCount) % outputIndices.length;
+        outputIndices[i] = index;
+        outputOffsets[i] = offset;
+        outputSizes[i] = size;
+        outputTimesUs[i] = presentationTimeUs;
+        outputFlags[i] = flags;
+        outputCount++;
+    }
+
+    private void throwIfError() {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void growInput() {
+        int[] indices = new int[inputIndices.length * 2];
+        for (int i = 0; i < inputCount; i++) {
+            indices[i] = inputIndices[(inputHead + i) % inputIndices.length];
+        }
+        inputIndices = indices;
+        inputHead = 0;
+    }
+
+    private void growOutput() {
+        int capacity = outputIndices.length * 2;
+        int[] indices = new int[capacity];
+        int[] offsets = new int[capacity];
+        int[] sizes = new int[capacity];
+        long[] timesUs = new long[capacity];
+        int[] flags = new int[capacity];
+        for (int i = 0; i < outputCount; i++) {
+            int from = (outputHead + i) % outputIndices.length;
+            indices[i] = outputIndices[from];
+            offsets[i] = outputOffsets[from];
+            sizes[i] = outputSizes[from];
+            timesUs[i] = outputTimesUs[from];
+            flags[i] = outputFlags[from];
+        }
+        outputIndices = indices;
+        outputOffsets = offsets;
+        outputSizes = sizes;
+        outputTimesUs = timesUs;
+        outputFlags = flags;
+        outputHead = 0;
+    }
+}
@@ -0,0 +1,210 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.Stage;
+import com.daasuu.mp4compose.muxer.Muxer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link Muxer} handing the samples to a writer thread, so a slow storage write does not stall
+ * the codec that produced the sample. The samples are copied into the buffers of a ring of
+ * slots that are reused for the whole composition, and passed through a lock-free single
+ * producer / single consumer queue; {@link MuxRender} serializes the producing threads. The
+ * writer writes everything queued in one pass before it waits again. When the queue is full
+ * the producer waits, which slows the codecs down to the speed of the storage.
+ */
+class AsyncMuxer implements Muxer {
+
+    private static final String TAG = "AsyncMuxer";
+    private static final int INITIAL_SLOT_SIZE = 64 * 1024;
+    private static final long FULL_WAIT_NS = 100000;
+    private static final long IDLE_WAIT_NS = 1000000;
+
+    private static class Slot {
+        private ByteBuffer data;
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        private int trackIndex;
+    }
+
+    private final Muxer muxer;
+    private final MetricsRecorder metrics;
+    private final Logger logger;
+    private final Slot[] slots;
+    private final int mask;
+    // 次に書き出す位置、書き込みスレッドだけが進める
+    private final AtomicLong head = new AtomicLong();
+    // 次に積む位置、積む側だけが進める
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+    private volatile boolean aborted;
+    private volatile Throwable error;
+    private Thread writerThread;
+
+    /**
+     * @param queueDepth The number of samples queued before the producer waits, rounded up to a
+     *                   power of two.
+     */
+    AsyncMuxer(@NonNull Muxer muxer, int queueDepth, @NonNull MetricsRecorder metrics, @NonNull Logger logger) {
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("queueDepth must be positive: " + queueDepth);
+        }
+        this.muxer = muxer;
+        this.metrics = metrics;
+        this.logger = logger;
+        final int capacity = Integer.highestOneBit(queueDepth - 1) << 1;
+        slots = new Slot[Math.max(capacity, 1)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+        mask = slots.length - 1;
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        muxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "mp4compose-mux-writer");
+        writerThread.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, @NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        throwIfFailed();
+        final long t = tail.get();
+        if (t - head.get() == slots.length) {
+            // 書き込みが追いつくまで待つ
+            metrics.countMuxQueueFull();
+            do {
+                LockSupport.parkNanos(this, FULL_WAIT_NS);
+                throwIfFailed();
+            } while (t - head.get() == slots.length);
+        }
+        final Slot slot = slots[(int) (t & mask)];
+        final int size = bufferInfo.size;
+        if (slot.data == null || slot.data.capacity() < size) {
+            slot.data = ByteBuffer.allocateDirect(Math.max(size, INITIAL_SLOT_SIZE));
+        }
+        final int position = byteBuf.position();
+        final int limit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + size);
+        byteBuf.position(bufferInfo.offset);
+        slot.data.clear();
+        slot.data.put(byteBuf);
+        slot.data.flip();
+        byteBuf.limit(limit);
+        byteBuf.position(position);
+        slot.bufferInfo.set(0, size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        slot.trackIndex = trackIndex;
+
+        tail.lazySet(t + 1);
+        metrics.recordMuxQueueDepth((int) (t + 1 - head.get()));
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (!aborted) {
+                long h = head.get();
+                final long t = tail.get();
+                if (h == t) {
+                    // closed を見た後にもう一度 tail を読む、その間に積まれたサンプルも書く
+                    if (closed && tail.get() == h) {
+                        break;
+                    }
+                    if (closed) {
+                        continue;
+                    }
+                    // 起こし損ねても時間を区切って待つので止まらない
+                    writerWaiting = true;
+                    if (tail.get() == h && !closed) {
+                        LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                    }
+                    writerWaiting = false;
+                    continue;
+                }
+                // 積まれている分をまとめて書く
+                for (; h < t && !aborted; h++) {
+                    final Slot slot = slots[(int) (h & mask)];
+                    final long startNs = metrics.now();
+                    muxer.writeSampleData(slot.trackIndex, slot.data, slot.bufferInfo);
+                    metrics.record(Stage.ASYNC_MUX_WRITE, startNs);
+                    head.lazySet(h + 1);
+                }
+            }
+        } catch (Throwable e) {
+            logger.error(TAG, "Mux writer failed.", e);
+            error = e;
+        }
+    }
+
+    private void throwIfFailed() {
+        if (error != null) {
+            throw new IllegalStateException("Mux writer failed", error);
+        }
+    }
+
+    /**
+     * Wait for the queued samples to be written, then stop the muxer.
+     */
+    @Override
+    public void stop() {
+        if (writerThread != null) {
+            closed = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while flushing the mux writer", e);
+            }
+            writerThread = null;
+        }
+        throwIfFailed();
+        muxer.stop();
+    }
+
+    /**
+     * Stop the writer without writing the queued samples, then release the muxer.
+     */
+    @Override
+    public void release() {
+        if (writerThread != null) {
+            aborted = true;
+            closed = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+        muxer.release();
+    }
+}
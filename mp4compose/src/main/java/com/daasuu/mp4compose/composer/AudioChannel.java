@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Queue;
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/AudioChannel.java
@@ -21,6 +22,35 @@ class AudioChannel {
         int bufferIndex;
         long presentationTimeUs;
         ShortBuffer data;
+        // data のうち有効なサンプルの範囲
+        int start;
+        int end;
+    }
+
+    /**
+     * Keeps one ShortBuffer view per codec buffer index, so the frame loop does not create a
+     * view for every buffer. The views cover the whole codec buffer.
+     */
+    private static class ShortViewCache {
+        private ByteBuffer[] sources = new ByteBuffer[0];
+        private ShortBuffer[] views = new ShortBuffer[0];
+
+        ShortBuffer get(final int index, final ByteBuffer source) {
+            if (index >= views.length) {
+                sources = Arrays.copyOf(sources, index + 1);
+                views = Arrays.copyOf(views, index + 1);
+            }
+            if (sources[index] != source) {
+                final int position = source.position();
+                final int limit = source.limit();
+                source.clear();
+                views[index] = source.asShortBuffer();
+                source.limit(limit);
+                source.position(position);
+                sources[index] = source;
+            }
+            return views[index];
+        }
     }
 
     static final int BUFFER_INDEX_END_OF_STREAM = -1;
@@ -31,36 +61,46 @@ class AudioChannel {
     private final Queue<AudioBuffer> emptyBuffers = new ArrayDeque<>();
     private final Queue<AudioBuffer> filledBuffers = new ArrayDeque<>();
 
-    private final MediaCodec decoder;
-    private final MediaCodec encoder;
-    private final MediaFormat encodeFormat;
+    private final CodecBuffers decoder;
+    private final CodecBuffers encoder;
+    private final int outputSampleRate;
+    private final int outputChannelCount;
 
+    // 0 の場合はデコード後のフォーマットがまだ来ていない
     private int inputSampleRate;
     private int inputChannelCount;
-    private int outputChannelCount;
 
     private final AudioBuffer overflowBuffer = new AudioBuffer();
+    private final ShortViewCache decoderViews = new ShortViewCache();
+    private final ShortViewCache encoderViews = new ShortViewCache();
 
-    private MediaFormat actualDecodedFormat;
 
 
-    AudioChannel(final MediaCodec decoder,
-                 final MediaCodec encoder, final MediaFormat encodeFormat) {
+    AudioChannel(final CodecBuffers decoder,
+                 final CodecBuffers encoder, final MediaFormat encodeFormat) {
+        this(decoder, encoder, encodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                encodeFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+    }
+
+    AudioChannel(final CodecBuffers decoder, final CodecBuffers encoder,
+                 final int outputSampleRate, final int outputChannelCount) {
         this.decoder = decoder;
         this.encoder = encoder;
-        this.encodeFormat = encodeFormat;
+        this.outputSampleRate = outputSampleRate;
+        this.outputChannelCount = outputChannelCount;
     }
 
     void setActualDecodedFormat(final MediaFormat decodedFormat) {
-        actualDecodedFormat = decodedFormat;
+        setActualDecodedFormat(decodedFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                decodedFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+    }
 
-        inputSampleRate = actualDecodedFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        if (inputSampleRate != encodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)) {
+    void setActualDecodedFormat(final int sampleRate, final int channelCount) {
+        if (sampleRate != outputSampleRate) {
             throw new UnsupportedOperationException("Audio sample rate conversion not supported yet.");
         }
-
-        inputChannelCount = actualDecodedFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        outputChannelCount = encodeFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        inputSampleRate = sampleRate;
+        inputChannelCount = channelCount;
 
         if (inputChannelCount != 1 && inputChannelCount != 2) {
             throw new UnsupportedOperationException("Input channel count (" + inputChannelCount + ") not supported.");
@@ -74,7 +114,7 @@ class AudioChannel {
     }
 
     void drainDecoderBufferAndQueue(final int bufferIndex, final long presentationTimeUs) {
-        if (actualDecodedFormat == null) {
+        if (inputSampleRate == 0) {
             throw new RuntimeException("Buffer received before format!");
         }
 
@@ -89,7 +129,13 @@ class AudioChannel {
 
         buffer.bufferIndex = bufferIndex;
         buffer.presentationTimeUs = presentationTimeUs;
-        buffer.data = data == null ? null : data.asShortBuffer();
+        if (data == null) {
+            buffer.data = null;
+        } else {
+            buffer.data = decoderViews.get(bufferIndex, data);
+            buffer.start = data.position() / BYTES_PER_SHORT;
+            buffer.end = data.limit() / BYTES_PER_SHORT;
+        }
 
         if (overflowBuffer.data == null) {
             overflowBuffer.data = ByteBuffer
@@ -116,7 +162,7 @@ class AudioChannel {
         }
 
         // Drain overflow first
-        final ShortBuffer outBuffer = encoder.getInputBuffer(encoderInBuffIndex).asShortBuffer();
+        final ShortBuffer outBuffer = encoderViews.get(encoderInBuffIndex, encoder.getInputBuffer(encoderInBuffIndex));
         if (hasOverflow) {
             final long presentationTimeUs = drainOverflow(outBuffer);
             encoder.queueInputBuffer(encoderInBuffIndex,
@@ -181,22 +227,23 @@ class AudioChannel {
 
         outBuff.clear();
 
-        // Reset position to 0, and set limit to capacity (Since MediaCodec doesn't do that for us)
-        inBuff.clear();
+        // Reset position and limit to the valid samples (Since MediaCodec doesn't do that for us)
+        inBuff.limit(input.end);
+        inBuff.position(input.start);
 
         if (inBuff.remaining() > outBuff.remaining()) {
             // Overflow
             // Limit inBuff to outBuff's capacity
-            inBuff.limit(outBuff.capacity());
+            inBuff.limit(input.start + outBuff.capacity());
             outBuff.put(inBuff);
 
-            // Reset limit to its own capacity & Keep position
-            inBuff.limit(inBuff.capacity());
+            // Reset limit to the end of the valid samples & Keep position
+            inBuff.limit(input.end);
 
             // Remix the rest onto overflowBuffer
             // NOTE: We should only reach this point when overflow buffer is empty
             final long consumedDurationUs =
-                    sampleCountToDurationUs(inBuff.position(), inputSampleRate, inputChannelCount);
+                    sampleCountToDurationUs(inBuff.position() - input.start, inputSampleRate, inputChannelCount);
             overflowBuff.put(inBuff);
 
             // Seal off overflowBuff & mark limit
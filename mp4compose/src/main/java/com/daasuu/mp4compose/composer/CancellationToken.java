@@ -0,0 +1,46 @@
+package com.daasuu.mp4compose.composer;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Set by {@link Mp4Composer#cancel()} and checked by the composing loop, every pipeline step
+ * and every blocking wait, so a cancelled job stops within one wait slice instead of running
+ * into the next codec or frame timeout.
+ */
+class CancellationToken {
+
+    /**
+     * Longest time a blocking wait may go without checking the token.
+     */
+    static final long CHECK_INTERVAL_MS = 50;
+
+    private volatile boolean cancelled;
+    private volatile long cancelRequestedNs;
+
+    void cancel() {
+        if (!cancelled) {
+            cancelRequestedNs = System.nanoTime();
+            cancelled = true;
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException When {@link #cancel()} was called.
+     */
+    void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Composition cancelled.");
+        }
+    }
+
+    /**
+     * @return The time since {@link #cancel()} was called in milliseconds, -1 if it was not.
+     */
+    long getElapsedSinceCancelMs() {
+        return cancelled ? (System.nanoTime() - cancelRequestedNs) / 1000000 : -1;
+    }
+}
@@ -0,0 +1,190 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGLContext;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.FillMode;
+import com.daasuu.mp4compose.FillModeCustomItem;
+import com.daasuu.mp4compose.Rotation;
+import com.daasuu.mp4compose.filter.GlFilter;
+import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.muxer.AndroidMediaMuxer;
+import com.daasuu.mp4compose.source.DataSource;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Transcodes the video of one time range of the source into a video only MP4 fragment. Every
+ * chunk has its own extractor, codecs and EGL context, so several chunks can run at the same
+ * time on separate threads. The encoded key frames carry their SPS/PPS so the fragments can be
+ * joined by {@link FragmentJoiner} even when the encoder instances chose different parameter
+ * sets.
+ */
+class ChunkTranscoder {
+
+    private static final String TAG = "ChunkTranscoder";
+    private static final String VIDEO_PREFIX = "video/";
+    private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
+
+    private final DataSource srcDataSource;
+    private final long startUs;
+    private final long endUs;
+    private final File output;
+    private final MediaFormat outputFormat;
+    private final Logger logger;
+
+    private GlFilter filter;
+    private Rotation rotation;
+    private Size outputResolution;
+    private Size inputResolution;
+    private FillMode fillMode;
+    private FillModeCustomItem fillModeCustomItem;
+    private boolean flipVertical;
+    private boolean flipHorizontal;
+    private EGLContext shareContext;
+    private int frameRate;
+    private CancellationToken cancellationToken;
+    private MetricsRecorder metricsRecorder = MetricsRecorder.DISABLED;
+
+    private long elapsedNs;
+
+    /**
+     * @param endUs The end of the range (exclusive), -1 for the end of the source.
+     */
+    ChunkTranscoder(@NonNull DataSource srcDataSource, long startUs, long endUs, @NonNull File output,
+                    @NonNull MediaFormat outputFormat, @NonNull Logger logger) {
+        this.srcDataSource = srcDataSource;
+        this.startUs = startUs;
+        this.endUs = endUs;
+        this.output = output;
+        this.outputFormat = outputFormat;
+        this.logger = logger;
+    }
+
+    /**
+     * Same parameters as {@link VideoComposer}. The filter must not be shared with another chunk
+     * running at the same time, because its GL objects belong to the EGL context of the chunk.
+     */
+    void setRenderParams(GlFilter filter, Rotation rotation, Size outputResolution, Size inputResolution,
+                         FillMode fillMode, FillModeCustomItem fillModeCustomItem,
+                         boolean flipVertical, boolean flipHorizontal, EGLContext shareContext) {
+        this.filter = filter;
+        this.rotation = rotation;
+        this.outputResolution = outputResolution;
+        this.inputResolution = inputResolution;
+        this.fillMode = fillMode;
+        this.fillModeCustomItem = fillModeCustomItem;
+        this.flipVertical = flipVertical;
+        this.flipHorizontal = flipHorizontal;
+        this.shareContext = shareContext;
+    }
+
+    /**
+     * @param frameRate The largest output frame rate, 0 or less for no cap.
+     */
+    void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    void setMetricsRecorder(@NonNull MetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder;
+    }
+
+    File getOutput() {
+        return output;
+    }
+
+    long getDurationUs(long sourceEndUs) {
+        return (endUs == -1 ? sourceEndUs : endUs) - startUs;
+    }
+
+    /**
+     * @return The wall time the last {@link #run()} took, in nanoseconds.
+     */
+    long getElapsedNs() {
+        return elapsedNs;
+    }
+
+    void run() throws IOException {
+        long startNs = System.nanoTime();
+        MediaExtractor mediaExtractor = null;
+        MediaMuxer mediaMuxer = null;
+        MuxRender muxRender = null;
+        VideoComposer videoComposer = null;
+        try {
+            mediaExtractor = new MediaExtractor();
+            if (srcDataSource.getFilePath() != null) {
+                mediaExtractor.setDataSource(srcDataSource.getFilePath());
+            } else {
+                mediaExtractor.setDataSource(srcDataSource.getFileDescriptor());
+            }
+            int videoTrackIndex = -1;
+            for (int i = 0; i < mediaExtractor.getTrackCount(); i++) {
+                if (mediaExtractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME).startsWith(VIDEO_PREFIX)) {
+                    videoTrackIndex = i;
+                    break;
+                }
+            }
+            if (videoTrackIndex < 0) {
+                throw new IOException("No video track in " + srcDataSource);
+            }
+            mediaMuxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxRender = new MuxRender(new AndroidMediaMuxer(mediaMuxer), logger);
+            muxRender.setMetricsRecorder(metricsRecorder);
+
+            videoComposer = new VideoComposer(mediaExtractor, videoTrackIndex, outputFormat, muxRender,
+                    1, 0, -1, 0, true, true, logger);
+            videoComposer.setTrimRangeUs(startUs, endUs);
+            videoComposer.setInlineCodecConfig(true);
+            videoComposer.setFrameRate(frameRate);
+            videoComposer.setCancellationToken(cancellationToken);
+            videoComposer.setUp(filter, rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem,
+                    flipVertical, flipHorizontal, shareContext);
+
+            while (!videoComposer.isFinished()) {
+                // 他の区間が失敗するとエンジンが割り込むので、忙しくてもすぐに止める
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Chunk transcoding interrupted.");
+                }
+                if (!videoComposer.stepPipeline()) {
+                    try {
+                        Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Chunk transcoding interrupted.", e);
+                    }
+                }
+            }
+            mediaMuxer.stop();
+        } finally {
+            try {
+                if (videoComposer != null) {
+                    videoComposer.release();
+                }
+                if (mediaExtractor != null) {
+                    mediaExtractor.release();
+                }
+                if (muxRender != null) {
+                    muxRender.release();
+                }
+                if (mediaMuxer != null) {
+                    mediaMuxer.release();
+                }
+            } catch (RuntimeException e) {
+                logger.error(TAG, "Could not shutdown the chunk pipeline.", e);
+            }
+            elapsedNs = System.nanoTime() - startNs;
+        }
+        logger.debug(TAG, "Chunk " + startUs + "-" + endUs + " us done in " + elapsedNs / 1000000 + " ms");
+    }
+}
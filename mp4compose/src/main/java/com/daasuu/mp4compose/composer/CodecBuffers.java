@@ -0,0 +1,33 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The buffer calls the per-frame loops make on a codec, with the contracts of the
+ * {@link MediaCodec} methods of the same names. {@link MediaCodecBuffers} forwards them to a
+ * codec; the loops can be driven by a fake on the JVM.
+ * <p>
+ * The {@link MediaCodec.BufferInfo} given to {@link #dequeueOutputBuffer} is owned and reused
+ * by the caller.
+ */
+interface CodecBuffers {
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+}
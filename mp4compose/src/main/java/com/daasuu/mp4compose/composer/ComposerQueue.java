@@ -0,0 +1,269 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide queue that runs the compositions of {@link Mp4Composer} and
+ * {@link Mp4ComposerEx}. Transcoding jobs need hardware codec instances and the GPU, so only as
+ * many of them run at once as the device supports; jobs that only copy samples have their own
+ * limit. The next job is the one with the highest priority, where waiting jobs gain priority
+ * over time so low priority jobs are not starved, and jobs of the same priority run in the
+ * order they were started. A running job may take the free slots of its kind for extra codec
+ * instances, e.g. for parallel chunks, so the running jobs never use more than the limit.
+ */
+public class ComposerQueue {
+
+    /**
+     * The kind of work of a job, each kind has its own concurrency limit.
+     */
+    public enum JobType {
+        /**
+         * Decodes, renders and encodes the video.
+         */
+        TRANSCODE,
+        /**
+         * Only copies the compressed samples.
+         */
+        COPY
+    }
+
+    // 待ち時間がこの間隔を過ぎるごとに優先度を1つ上げる
+    private static final long AGING_INTERVAL_MS = 10000;
+    private static final int MAX_DEFAULT_TRANSCODE_JOBS = 4;
+
+    private static ComposerQueue instance;
+
+    private final List<Job> pendingJobs = new ArrayList<>();
+    private final int[] runningJobs = new int[JobType.values().length];
+    private final int[] maxConcurrentJobs = new int[JobType.values().length];
+    // 実行中のジョブが追加で使っている枠
+    private final int[] extraSlots = new int[JobType.values().length];
+    private final ExecutorService executor;
+    private long sequence;
+
+    private int startedJobs;
+    private long totalWaitTimeMs;
+    private long maxWaitTimeMs;
+    private int maxQueueDepth;
+
+    /**
+     * A composition waiting in or running on the queue.
+     */
+    static class Job {
+        private final Runnable task;
+        private final JobType type;
+        private final int priority;
+        private final long sequence;
+        private final long enqueuedMs;
+
+        private Job(Runnable task, JobType type, int priority, long sequence) {
+            this.task = task;
+            this.type = type;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.enqueuedMs = System.currentTimeMillis();
+        }
+
+        private long effectivePriority(long nowMs) {
+            return priority + (nowMs - enqueuedMs) / AGING_INTERVAL_MS;
+        }
+    }
+
+    private ComposerQueue() {
+        maxConcurrentJobs[JobType.TRANSCODE.ordinal()] = getDefaultTranscodeJobs();
+        maxConcurrentJobs[JobType.COPY.ordinal()] = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                return new Thread(runnable, "ComposerQueue-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    public static synchronized ComposerQueue getInstance() {
+        if (instance == null) {
+            instance = new ComposerQueue();
+        }
+        return instance;
+    }
+
+    /**
+     * Set how many jobs of a kind may run at the same time. The default for transcoding is the
+     * number of H.264 decoder and encoder instances the device supports (at most 4, 1 before
+     * Android 6.0), the default for copying is half the CPU cores.
+     *
+     * @param type          The kind of job.
+     * @param maxConcurrent The limit, at least 1.
+     */
+    public synchronized void setMaxConcurrentJobs(@NonNull JobType type, int maxConcurrent) {
+        maxConcurrentJobs[type.ordinal()] = Math.max(1, maxConcurrent);
+        schedule();
+    }
+
+    public synchronized int getMaxConcurrentJobs(@NonNull JobType type) {
+        return maxConcurrentJobs[type.ordinal()];
+    }
+
+    /**
+     * @return The number of jobs waiting to start.
+     */
+    public synchronized int getQueueDepth() {
+        return pendingJobs.size();
+    }
+
+    /**
+     * @return The largest number of jobs that were waiting at the same time.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return The number of jobs of a kind that are running.
+     */
+    public synchronized int getRunningJobs(@NonNull JobType type) {
+        return runningJobs[type.ordinal()];
+    }
+
+    /**
+     * @return The average time the started jobs waited in the queue, in milliseconds.
+     */
+    public synchronized long getAverageWaitTimeMs() {
+        return startedJobs == 0 ? 0 : totalWaitTimeMs / startedJobs;
+    }
+
+    /**
+     * @return The longest time a started job waited in the queue, in milliseconds.
+     */
+    public synchronized long getMaxWaitTimeMs() {
+        return maxWaitTimeMs;
+    }
+
+    /**
+     * Let a running job use up to {@code count} more slots of its kind. Only free slots are
+     * taken; they are free only when no job of the kind is waiting.
+     *
+     * @return The number of slots taken, to be given back with {@link #releaseSlots}.
+     */
+    synchronized int acquireSlots(@NonNull JobType type, int count) {
+        int free = maxConcurrentJobs[type.ordinal()] - runningJobs[type.ordinal()] - extraSlots[type.ordinal()];
+        int taken = Math.max(0, Math.min(count, free));
+        extraSlots[type.ordinal()] += taken;
+        return taken;
+    }
+
+    synchronized void releaseSlots(@NonNull JobType type, int count) {
+        extraSlots[type.ordinal()] -= count;
+        schedule();
+    }
+
+    synchronized Job submit(@NonNull Runnable task, @NonNull JobType type, int priority) {
+        Job job = new Job(task, type, priority, sequence++);
+        pendingJobs.add(job);
+        maxQueueDepth = Math.max(maxQueueDepth, pendingJobs.size());
+        schedule();
+        return job;
+    }
+
+    /**
+     * Remove the job if it is still waiting. A running job is stopped through its
+     * {@link CancellationToken} instead, so it can release its codecs before it ends.
+     *
+     * @return true when the job was waiting and will not run.
+     */
+    synchronized boolean cancel(@NonNull Job job) {
+        return pendingJobs.remove(job);
+    }
+
+    private void schedule() {
+        while (true) {
+            Job next = pollNext();
+            if (next == null) {
+                return;
+            }
+            start(next);
+        }
+    }
+
+    private Job pollNext() {
+        long nowMs = System.currentTimeMillis();
+        Job best = null;
+        for (Job job : pendingJobs) {
+            if (runningJobs[job.type.ordinal()] + extraSlots[job.type.ordinal()] >= maxConcurrentJobs[job.type.ordinal()]) {
+                // 枠の空いていない種類のジョブは他の種類の邪魔をしない
+                continue;
+            }
+            if (best == null) {
+                best = job;
+                continue;
+            }
+            long priority = job.effectivePriority(nowMs);
+            long bestPriority = best.effectivePriority(nowMs);
+            if (priority > bestPriority || (priority == bestPriority && job.sequence < best.sequence)) {
+                best = job;
+            }
+        }
+        if (best != null) {
+            pendingJobs.remove(best);
+        }
+        return best;
+    }
+
+    private void start(final Job job) {
+        long waitTimeMs = System.currentTimeMillis() - job.enqueuedMs;
+        startedJobs++;
+        totalWaitTimeMs += waitTimeMs;
+        maxWaitTimeMs = Math.max(maxWaitTimeMs, waitTimeMs);
+        runningJobs[job.type.ordinal()]++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.task.run();
+                } finally {
+                    synchronized (ComposerQueue.this) {
+                        runningJobs[job.type.ordinal()]--;
+                        schedule();
+                    }
+                }
+            }
+        });
+    }
+
+    private static int getDefaultTranscodeJobs() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 1;
+        }
+        int decoders = 0;
+        int encoders = 0;
+        MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : mediaCodecList.getCodecInfos()) {
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+                    continue;
+                }
+                int instances = info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                if (info.isEncoder()) {
+                    encoders = Math.max(encoders, instances);
+                } else {
+                    decoders = Math.max(decoders, instances);
+                }
+            }
+        }
+        return Math.max(1, Math.min(MAX_DEFAULT_TRANSCODE_JOBS, Math.min(decoders, encoders)));
+    }
+}
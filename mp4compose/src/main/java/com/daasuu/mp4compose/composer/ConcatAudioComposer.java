@@ -0,0 +1,205 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.daasuu.mp4compose.SampleType;
+import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.source.DataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the audio of each clip of a timeline one after the other, shifting the presentation
+ * times the same way as the video of the clip. All clips must have the same audio format, see
+ * {@link #canConcat(VideoTrack[], Logger)}.
+ */
+class ConcatAudioComposer implements IAudioComposer {
+
+    private static final String TAG = "ConcatAudioComposer";
+    private static final String AUDIO_PREFIX = "audio/";
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+    private final VideoTrack[] videoTracks;
+    private final MuxRender muxRender;
+    private final Logger logger;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer buffer;
+
+    private int currentIndex = -1;
+    private MediaExtractor mediaExtractor;
+    private int trackIndex;
+    private long trimEndUs;
+    private long outputOffsetUs;
+    private boolean isEOS;
+    private long writtenPresentationTimeUs;
+
+    ConcatAudioComposer(@NonNull VideoTrack[] videoTracks, @NonNull MuxRender muxRender, @NonNull Logger logger) {
+        this.videoTracks = videoTracks;
+        this.muxRender = muxRender;
+        this.logger = logger;
+    }
+
+    /**
+     * @return true when every clip has an audio track with the same codec, sample rate, channel
+     * count and codec config as the first one.
+     */
+    static boolean canConcat(@NonNull VideoTrack[] videoTracks, @NonNull Logger logger) {
+        MediaFormat reference = null;
+        for (VideoTrack track : videoTracks) {
+            MediaExtractor extractor = null;
+            try {
+                extractor = openExtractor(track.getDataSource());
+                int index = findAudioTrack(extractor);
+                if (index < 0) {
+                    return false;
+                }
+                MediaFormat format = extractor.getTrackFormat(index);
+                if (reference == null) {
+                    reference = format;
+                } else if (!isSameFormat(reference, format)) {
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.error(TAG, "Could not read the audio format of " + track.getDataSource(), e);
+                return false;
+            } finally {
+                if (extractor != null) {
+                    extractor.release();
+                }
+            }
+        }
+        return reference != null;
+    }
+
+    private static boolean isSameFormat(MediaFormat a, MediaFormat b) {
+        return a.getString(MediaFormat.KEY_MIME).equals(b.getString(MediaFormat.KEY_MIME))
+                && a.getInteger(MediaFormat.KEY_SAMPLE_RATE) == b.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                && a.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == b.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                && equalBuffers(a.containsKey("csd-0") ? a.getByteBuffer("csd-0") : null,
+                b.containsKey("csd-0") ? b.getByteBuffer("csd-0") : null);
+    }
+
+    private static boolean equalBuffers(@Nullable ByteBuffer a, @Nullable ByteBuffer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static MediaExtractor openExtractor(DataSource dataSource) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        if (dataSource.getFilePath() != null) {
+            extractor.setDataSource(dataSource.getFilePath());
+        } else {
+            extractor.setDataSource(dataSource.getFileDescriptor());
+        }
+        return extractor;
+    }
+
+    private static int findAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            if (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME).startsWith(AUDIO_PREFIX)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void setup() {
+        openClip(0);
+        MediaFormat format = mediaExtractor.getTrackFormat(trackIndex);
+        muxRender.setOutputFormat(SampleType.AUDIO, format);
+    }
+
+    private void openClip(int index) {
+        releaseExtractor();
+        currentIndex = index;
+        VideoTrack track = videoTracks[index];
+        try {
+            mediaExtractor = openExtractor(track.getDataSource());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        trackIndex = findAudioTrack(mediaExtractor);
+        mediaExtractor.selectTrack(trackIndex);
+        allocateBuffer(mediaExtractor.getTrackFormat(trackIndex));
+        long trimStartUs = TimeUnit.MILLISECONDS.toMicros(track.getTrimStartMs());
+        trimEndUs = track.getTrimEndMs() == -1 ? -1 : TimeUnit.MILLISECONDS.toMicros(track.getTrimEndMs());
+        outputOffsetUs = TimeUnit.MILLISECONDS.toMicros(track.getOutputStartMs()) - trimStartUs;
+        mediaExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        // 区切りより前のサンプルは書かない
+        while (mediaExtractor.getSampleTrackIndex() >= 0 && mediaExtractor.getSampleTime() < trimStartUs) {
+            mediaExtractor.advance();
+        }
+    }
+
+    /**
+     * Make the buffer large enough for the largest sample of the clip, readSampleData() throws
+     * instead of returning a larger size. Only done when a clip is opened.
+     */
+    private void allocateBuffer(MediaFormat format) {
+        int bufferSize = MIN_BUFFER_SIZE;
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        }
+        if (buffer == null || buffer.capacity() < bufferSize) {
+            logger.debug(TAG, "Sample buffer size: " + bufferSize);
+            buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        if (isEOS) return false;
+        int trackIndex = mediaExtractor.getSampleTrackIndex();
+        if (trackIndex < 0 || (trimEndUs != -1 && mediaExtractor.getSampleTime() >= trimEndUs)) {
+            if (currentIndex + 1 < videoTracks.length) {
+                openClip(currentIndex + 1);
+                return true;
+            }
+            buffer.clear();
+            bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            muxRender.writeSampleData(SampleType.AUDIO, buffer, bufferInfo);
+            isEOS = true;
+            return true;
+        }
+
+        buffer.clear();
+        int sampleSize = mediaExtractor.readSampleData(buffer, 0);
+        boolean isKeyFrame = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        bufferInfo.set(0, sampleSize, outputOffsetUs + mediaExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxRender.writeSampleData(SampleType.AUDIO, buffer, bufferInfo);
+
+        writtenPresentationTimeUs = bufferInfo.presentationTimeUs;
+        mediaExtractor.advance();
+        return true;
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isEOS;
+    }
+
+    @Override
+    public void release() {
+        releaseExtractor();
+    }
+
+    private void releaseExtractor() {
+        if (mediaExtractor != null) {
+            mediaExtractor.release();
+            mediaExtractor = null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.EGLContext;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.FillMode;
+import com.daasuu.mp4compose.Rotation;
+import com.daasuu.mp4compose.SampleType;
+import com.daasuu.mp4compose.filter.GlFilter;
+import com.daasuu.mp4compose.logger.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins the video tracks of a timeline without re-encoding the clips that are compatible with
+ * the first one (same codec, size, rotation and SPS/PPS). Those are copied with
+ * {@link SmartCutVideoComposer}, so only their partial GOPs at the trim points are encoded.
+ * The other clips are re-encoded to match the first one and carry their own SPS/PPS in-band,
+ * which is why the first clip must be AVC or HEVC. Every copied clip after the first writes its
+ * own csd-0/csd-1 again in front of its first sync sample.
+ */
+class ConcatVideoComposer implements IVideoComposer {
+
+    private static final String TAG = "ConcatVideoComposer";
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final VideoTrack[] videoTracks;
+    private final MuxRender muxRender;
+    private final EGLContext shareContext;
+    private final Logger logger;
+    private final MediaFormat referenceFormat;
+    private final Size referenceSize;
+    private final int referenceRotation;
+    private final boolean[] copyable;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private int currentIndex = -1;
+    private IVideoComposer currentComposer;
+    private boolean formatRegistered;
+    private boolean waitForAudioFormat;
+    private boolean isEOS;
+    private long writtenPresentationTimeUs;
+    private CancellationToken cancellationToken;
+
+    ConcatVideoComposer(@NonNull VideoTrack[] videoTracks, @NonNull MuxRender muxRender,
+                        EGLContext shareContext, @NonNull Logger logger) {
+        this.videoTracks = videoTracks;
+        this.muxRender = muxRender;
+        this.shareContext = shareContext;
+        this.logger = logger;
+
+        referenceFormat = videoTracks[0].getTrackFormat();
+        if (referenceFormat.containsKey("rotation-degrees")) {
+            // 回転は MediaMuxer#setOrientationHint で書く
+            referenceFormat.setInteger("rotation-degrees", 0);
+        }
+        referenceSize = new Size(referenceFormat.getInteger(MediaFormat.KEY_WIDTH), referenceFormat.getInteger(MediaFormat.KEY_HEIGHT));
+        referenceRotation = videoTracks[0].getRotation();
+        copyable = new boolean[videoTracks.length];
+        for (int i = 0; i < videoTracks.length; i++) {
+            copyable[i] = isCompatible(videoTracks[i]);
+            logger.debug(TAG, "Track " + i + (copyable[i] ? " is copied" : " is re-encoded"));
+        }
+    }
+
+    /**
+     * @return true when the re-encoded pieces may carry their own SPS/PPS, i.e. the first clip is
+     * AVC or HEVC.
+     */
+    boolean isSupported() {
+        String mime = referenceFormat.getString(MediaFormat.KEY_MIME);
+        return MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+    }
+
+    /**
+     * @return The rotation of the first clip, written as the orientation hint of the output.
+     */
+    int getOrientationHint() {
+        return referenceRotation;
+    }
+
+    /**
+     * Pass the token to the {@link VideoComposer}s created here, see
+     * {@link VideoComposer#setCancellationToken(CancellationToken)}.
+     */
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Hold back the muxer start until the audio composer has set its output format. Must be
+     * set when an audio track will be written.
+     */
+    void setWaitForAudioFormat(boolean waitForAudioFormat) {
+        this.waitForAudioFormat = waitForAudioFormat;
+    }
+
+    private boolean isCompatible(VideoTrack track) {
+        MediaFormat format = track.getTrackFormat();
+        return format.getString(MediaFormat.KEY_MIME).equals(referenceFormat.getString(MediaFormat.KEY_MIME))
+                && format.getInteger(MediaFormat.KEY_WIDTH) == referenceSize.getWidth()
+                && format.getInteger(MediaFormat.KEY_HEIGHT) == referenceSize.getHeight()
+                && track.getRotation() == referenceRotation
+                && sameBuffer(format, referenceFormat, "csd-0")
+                && sameBuffer(format, referenceFormat, "csd-1");
+    }
+
+    private static boolean sameBuffer(MediaFormat a, MediaFormat b, String key) {
+        ByteBuffer bufferA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+        ByteBuffer bufferB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+        if (bufferA == null || bufferB == null) {
+            return bufferA == bufferB;
+        }
+        return bufferA.equals(bufferB);
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        if (isEOS) return false;
+        if (!formatRegistered) {
+            if (waitForAudioFormat && !muxRender.hasOutputFormat(SampleType.AUDIO)) {
+                return false;
+            }
+            muxRender.setOutputFormat(SampleType.VIDEO, referenceFormat);
+            muxRender.onSetOutputFormat();
+            formatRegistered = true;
+        }
+        if (currentComposer == null) {
+            if (currentIndex + 1 >= videoTracks.length) {
+                bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                muxRender.writeSampleData(SampleType.VIDEO, EMPTY_BUFFER, bufferInfo);
+                isEOS = true;
+                return true;
+            }
+            currentIndex++;
+            currentComposer = createComposer(currentIndex);
+        }
+        boolean busy = currentComposer.stepPipeline();
+        writtenPresentationTimeUs = Math.max(writtenPresentationTimeUs, currentComposer.getWrittenPresentationTimeUs());
+        if (currentComposer.isFinished()) {
+            currentComposer.release();
+            currentComposer = null;
+            videoTracks[currentIndex].release();
+            return true;
+        }
+        return busy;
+    }
+
+    private IVideoComposer createComposer(int index) {
+        VideoTrack track = videoTracks[index];
+        // 元の時間から出力の時間へのずれ
+        long outputOffsetMs = track.getOutputStartMs() - track.getTrimStartMs();
+        if (copyable[index]) {
+            SmartCutVideoComposer composer = new SmartCutVideoComposer(track.getMediaExtractor(), track.getTrackIndex(), muxRender,
+                    track.getTrimStartMs(), track.getTrimEndMs(), shareContext, logger);
+            composer.setSegment(TimeUnit.MILLISECONDS.toMicros(outputOffsetMs));
+            // 前のクリップのSPS/PPSがデコーダーに残っているので、このクリップのものを入れ直す
+            composer.setInlineSourceConfig(index > 0);
+            composer.setCancellationToken(cancellationToken);
+            return composer;
+        }
+        MediaFormat encoderFormat = SmartCutVideoComposer.createMatchingEncoderFormat(referenceFormat, referenceSize);
+        VideoComposer composer = new VideoComposer(track.getMediaExtractor(), track.getTrackIndex(), encoderFormat, muxRender,
+                1, track.getTrimStartMs(), track.getTrimEndMs(), outputOffsetMs, false, false, logger);
+        composer.setInlineCodecConfig(true);
+        composer.setCancellationToken(cancellationToken);
+        composer.setUp(new GlFilter(), Rotation.fromInt((track.getRotation() - referenceRotation + 360) % 360),
+                referenceSize, track.getInputResolution(), FillMode.PRESERVE_ASPECT_FIT, null,
+                false, false, shareContext);
+        return composer;
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isEOS;
+    }
+
+    @Override
+    public void release() {
+        if (currentComposer != null) {
+            currentComposer.release();
+            currentComposer = null;
+            videoTracks[currentIndex].release();
+        }
+    }
+}
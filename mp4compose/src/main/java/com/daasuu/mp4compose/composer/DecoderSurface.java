@@ -72,6 +72,8 @@ class DecoderSurface implements SurfaceTexture.OnFrameAvailableListener {
     private float[] MMatrix = new float[16];
     private float[] VMatrix = new float[16];
     private float[] STMatrix = new float[16];
+    // 毎フレーム計算しないように、設定が変わるまで使い回す
+    private float[] cachedScale;
 
 
     private Rotation rotation = Rotation.NORMAL;
@@ -197,19 +199,34 @@ class DecoderSurface implements SurfaceTexture.OnFrameAvailableListener {
      * data is available.
      */
     void awaitNewImage() {
+        awaitNewImage(null);
+    }
+
+    /**
+     * Same as {@link #awaitNewImage()}, but gives up within
+     * {@link CancellationToken#CHECK_INTERVAL_MS} once the token is cancelled.
+     */
+    void awaitNewImage(CancellationToken cancellationToken) {
         final int TIMEOUT_MS = 10000;
+        final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
         synchronized (frameSyncObject) {
             while (!frameAvailable) {
+                if (cancellationToken != null) {
+                    cancellationToken.throwIfCancelled();
+                }
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    throw new RuntimeException("Surface frame wait timed out");
+                }
                 try {
                     // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
                     // stalling the test if it doesn't arrive.
-                    frameSyncObject.wait(TIMEOUT_MS);
-                    if (!frameAvailable) {
-                        // TODO: if "spurious wakeup", continue while loop
-                        throw new RuntimeException("Surface frame wait timed out");
-                    }
+                    // キャンセルを確認するため短い間隔で起きる
+                    frameSyncObject.wait(cancellationToken != null ? Math.min(remainingMs, CancellationToken.CHECK_INTERVAL_MS) : remainingMs);
                 } catch (InterruptedException ie) {
-                    // shouldn't happen
+                    if (cancellationToken != null) {
+                        cancellationToken.throwIfCancelled();
+                    }
                     throw new RuntimeException(ie);
                 }
             }
@@ -248,7 +265,7 @@ class DecoderSurface implements SurfaceTexture.OnFrameAvailableListener {
         float scale[];
         switch (fillMode) {
             case PRESERVE_ASPECT_FIT:
-                scale = FillMode.getScaleAspectFit(rotation.getRotation(), inputResolution.getWidth(), inputResolution.getHeight(), outputResolution.getWidth(), outputResolution.getHeight());
+                scale = getScale();
 
                 // Log.d(TAG, "scale[0] = " + scale[0] + " scale[1] = " + scale[1]);
 
@@ -258,7 +275,7 @@ class DecoderSurface implements SurfaceTexture.OnFrameAvailableListener {
                 }
                 break;
             case PRESERVE_ASPECT_CROP:
-                scale = FillMode.getScaleAspectCrop(rotation.getRotation(), inputResolution.getWidth(), inputResolution.getHeight(), outputResolution.getWidth(), outputResolution.getHeight());
+                scale = getScale();
                 Matrix.scaleM(MVPMatrix, 0, scale[0] * scaleDirectionX, scale[1] * scaleDirectionY, 1);
                 if (rotation != Rotation.NORMAL) {
                     Matrix.rotateM(MVPMatrix, 0, -rotation.getRotation(), 0.f, 0.f, 1.f);
@@ -267,7 +284,7 @@ class DecoderSurface implements SurfaceTexture.OnFrameAvailableListener {
             case CUSTOM:
                 if (fillModeCustomItem != null) {
                     Matrix.translateM(MVPMatrix, 0, fillModeCustomItem.getTranslateX(), -fillModeCustomItem.getTranslateY(), 0f);
-                    scale = FillMode.getScaleAspectCrop(rotation.getRotation(), inputResolution.getWidth(), inputResolution.getHeight(), outputResolution.getWidth(), outputResolution.getHeight());
+                    scale = getScale();
 
                     if (fillModeCustomItem.getRotate() == 0 || fillModeCustomItem.getRotate() == 180) {
                         Matrix.scaleM(MVPMatrix,
@@ -328,21 +345,36 @@ class DecoderSurface implements SurfaceTexture.OnFrameAvailableListener {
         }
     }
 
+    private float[] getScale() {
+        if (cachedScale == null) {
+            if (fillMode == FillMode.PRESERVE_ASPECT_FIT) {
+                cachedScale = FillMode.getScaleAspectFit(rotation.getRotation(), inputResolution.getWidth(), inputResolution.getHeight(), outputResolution.getWidth(), outputResolution.getHeight());
+            } else {
+                cachedScale = FillMode.getScaleAspectCrop(rotation.getRotation(), inputResolution.getWidth(), inputResolution.getHeight(), outputResolution.getWidth(), outputResolution.getHeight());
+            }
+        }
+        return cachedScale;
+    }
+
     void setRotation(Rotation rotation) {
         this.rotation = rotation;
+        this.cachedScale = null;
     }
 
 
     void setOutputResolution(Size resolution) {
         this.outputResolution = resolution;
+        this.cachedScale = null;
     }
 
     void setFillMode(FillMode fillMode) {
         this.fillMode = fillMode;
+        this.cachedScale = null;
     }
 
     void setInputResolution(Size resolution) {
         this.inputResolution = resolution;
+        this.cachedScale = null;
     }
 
     void setFillModeCustomItem(FillModeCustomItem fillModeCustomItem) {
@@ -0,0 +1,199 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.SampleType;
+import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.Stage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves the output of a video encoder to the {@link MuxRender}, shared by {@link VideoComposer}
+ * and {@link EncoderSession}. The encoder times are shifted by the output start time before
+ * they are written, the encoder's own buffer info is left untouched.
+ */
+class EncoderDrain {
+    private static final String TAG = "EncoderDrain";
+    static final int DRAIN_STATE_NONE = 0;
+    static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
+    static final int DRAIN_STATE_CONSUMED = 2;
+
+    private final CodecBuffers encoder;
+    private final MuxRender muxRender;
+    private final MetricsRecorder metrics;
+    private final Logger logger;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    // MuxRenderはバッファリング時に値をコピーするので使い回せる
+    private final MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
+    private MediaFormat actualOutputFormat;
+    private volatile boolean isEncoderEOS;
+    private volatile long writtenPresentationTimeUs;
+
+    private long outputStartUs;
+    // 出力フォーマットをMuxRenderに登録する (先頭の区間だけ)
+    private boolean registerFormat = true;
+    // EOSを出力するフラグ
+    private boolean writeEndOfStream = true;
+
+    // SPS/PPSを同期フレームの前に埋め込む (コピーした区間とつなぐ場合)
+    private boolean inlineCodecConfig;
+    private ByteBuffer codecConfig;
+    private ByteBuffer inlineBuffer;
+
+    EncoderDrain(@NonNull CodecBuffers encoder, @NonNull MuxRender muxRender, @NonNull Logger logger) {
+        this.encoder = encoder;
+        this.muxRender = muxRender;
+        this.metrics = muxRender.getMetricsRecorder();
+        this.logger = logger;
+    }
+
+    /**
+     * Shift the written presentation times by {@code outputStartUs}.
+     */
+    void setOutputStartUs(long outputStartUs) {
+        this.outputStartUs = outputStartUs;
+    }
+
+    /**
+     * Whether the output format of the encoder is registered to the {@link MuxRender}. Only
+     * the first of several composers writing into the same track registers it.
+     */
+    void setRegisterFormat(boolean registerFormat) {
+        this.registerFormat = registerFormat;
+    }
+
+    /**
+     * Whether the end of stream of the encoder is written to the {@link MuxRender}. Only the
+     * last of several composers writing into the same track writes it.
+     */
+    void setWriteEndOfStream(boolean writeEndOfStream) {
+        this.writeEndOfStream = writeEndOfStream;
+    }
+
+    /**
+     * Write the codec config (SPS/PPS) produced by the encoder in front of every key frame
+     * instead of dropping it.
+     */
+    void setInlineCodecConfig(boolean inlineCodecConfig) {
+        this.inlineCodecConfig = inlineCodecConfig;
+    }
+
+    /**
+     * Handle one output of the encoder.
+     *
+     * @param timeoutUs The dequeue timeout.
+     * @return One of the {@code DRAIN_STATE_} constants.
+     */
+    int drain(long timeoutUs) {
+        if (isEncoderEOS) return DRAIN_STATE_NONE;
+        long startNs = metrics.now();
+        int result = encoder.dequeueOutputBuffer(bufferInfo, timeoutUs);
+        if (result >= 0) {
+            metrics.record(Stage.ENCODER_DRAIN, startNs);
+        }
+        switch (result) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (actualOutputFormat != null) {
+                    throw new RuntimeException("Video output format changed twice.");
+                }
+                actualOutputFormat = encoder.getOutputFormat();
+                if (registerFormat) {
+                    muxRender.setOutputFormat(SampleType.VIDEO, actualOutputFormat);
+                    muxRender.onSetOutputFormat();
+                }
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if (result < 0) {
+            // getOutputBuffer() を使うので出力バッファの入れ替えは気にしなくてよい
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if (actualOutputFormat == null) {
+            throw new RuntimeException("Could not determine actual output format.");
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isEncoderEOS = true;
+            set(outputBufferInfo, 0, 0, 0, bufferInfo.flags);
+        } else {
+            // bufferInfoを直接上書きするとDecodeが狂う
+            set(outputBufferInfo, bufferInfo.offset, bufferInfo.size, outputStartUs + bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (inlineCodecConfig) {
+                ByteBuffer config = encoder.getOutputBuffer(result);
+                config.limit(bufferInfo.offset + bufferInfo.size);
+                config.position(bufferInfo.offset);
+                codecConfig = ByteBuffer.allocateDirect(bufferInfo.size);
+                codecConfig.put(config);
+                codecConfig.flip();
+            }
+            // SPS or PPS, which should be passed by MediaFormat.
+            encoder.releaseOutputBuffer(result, false);
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if (!isEncoderEOS || writeEndOfStream) {
+            ByteBuffer outputBuffer = encoder.getOutputBuffer(result);
+            if (codecConfig != null && outputBufferInfo.size > 0 && (outputBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                outputBuffer = prependCodecConfig(outputBuffer, outputBufferInfo);
+            }
+            muxRender.writeSampleData(SampleType.VIDEO, outputBuffer, outputBufferInfo);
+            if (outputBufferInfo.size > 0) {
+                metrics.countEncoded();
+            }
+        }
+        if (!isEncoderEOS) {
+            writtenPresentationTimeUs = bufferInfo.presentationTimeUs;
+        }
+        if (logger.isDebugEnabled()) {
+            // フレームごとに呼ばれるので、無効な時は文字列をつくらない
+            logger.debug(TAG, String.format("出力時間 %f s", (double) writtenPresentationTimeUs / 1000000));
+        }
+        encoder.releaseOutputBuffer(result, false);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private ByteBuffer prependCodecConfig(ByteBuffer frame, MediaCodec.BufferInfo info) {
+        int size = codecConfig.remaining() + info.size;
+        if (inlineBuffer == null || inlineBuffer.capacity() < size) {
+            inlineBuffer = ByteBuffer.allocateDirect(size * 2);
+        }
+        inlineBuffer.clear();
+        // duplicate() をつくらずに位置を戻す
+        inlineBuffer.put(codecConfig);
+        codecConfig.rewind();
+        frame.limit(info.offset + info.size);
+        frame.position(info.offset);
+        inlineBuffer.put(frame);
+        inlineBuffer.flip();
+        set(info, 0, size, info.presentationTimeUs, info.flags);
+        return inlineBuffer;
+    }
+
+    /**
+     * Same as {@link MediaCodec.BufferInfo#set}, on the public fields so that the JVM tests do
+     * not depend on the framework implementation.
+     */
+    private static void set(MediaCodec.BufferInfo info, int offset, int size, long presentationTimeUs, int flags) {
+        info.offset = offset;
+        info.size = size;
+        info.presentationTimeUs = presentationTimeUs;
+        info.flags = flags;
+    }
+
+    /**
+     * @return The encoder time of the last written frame, before the output start shift.
+     */
+    long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    boolean isEndOfStream() {
+        return isEncoderEOS;
+    }
+}
@@ -0,0 +1,159 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.EGLContext;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.FillMode;
+import com.daasuu.mp4compose.FillModeCustomItem;
+import com.daasuu.mp4compose.filter.GlFilter;
+import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.Stage;
+
+import java.io.IOException;
+
+/**
+ * Owns the video encoder, its EGL context and the compiled filter chain for a whole timeline,
+ * so that the segments of a {@link VideoComposerSet} only have to swap their extractor and
+ * decoder. The presentation times handed in by the segments are already on the output
+ * timeline and are written to the muxer as they are.
+ */
+class EncoderSession {
+    private static final String TAG = "EncoderSession";
+
+    private final MediaFormat outputFormat;
+    private final MuxRender muxRender;
+    private final MetricsRecorder metrics;
+    private final Logger logger;
+    private MediaCodec encoder;
+    private boolean encoderStarted;
+    private EncoderDrain encoderDrain;
+    private EncoderSurface encoderSurface;
+    private DecoderSurface decoderSurface;
+    private HandlerThread codecCallbackThread;
+    private AsyncCodecAdapter encoderAdapter;
+    private boolean isInputEOS;
+    private long lastInputPresentationTimeUs = -1;
+
+    EncoderSession(@NonNull MediaFormat outputFormat, @NonNull MuxRender muxRender, @NonNull Logger logger) {
+        this.outputFormat = outputFormat;
+        this.muxRender = muxRender;
+        this.metrics = muxRender.getMetricsRecorder();
+        this.logger = logger;
+    }
+
+    void setUp(GlFilter filter,
+               Size outputResolution,
+               FillMode fillMode,
+               FillModeCustomItem fillModeCustomItem,
+               final boolean flipVertical,
+               final boolean flipHorizontal,
+               final EGLContext shareContext,
+               final PipelineSignal pipelineSignal) {
+        metrics.begin("encoder session start");
+        try {
+            encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (pipelineSignal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codecCallbackThread = new HandlerThread(TAG);
+            codecCallbackThread.start();
+            encoderAdapter = new AsyncCodecAdapter(encoder, new Handler(codecCallbackThread.getLooper()), pipelineSignal);
+        }
+        encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        encoderSurface = new EncoderSurface(encoder.createInputSurface(), shareContext);
+        encoderSurface.makeCurrent();
+        encoder.start();
+        encoderStarted = true;
+        metrics.end("encoder session start");
+        encoderDrain = new EncoderDrain(new MediaCodecBuffers(encoder, encoderAdapter), muxRender, logger);
+
+        // フィルタはタイムライン全体で一度だけコンパイルする
+        decoderSurface = new DecoderSurface(filter, logger);
+        decoderSurface.setOutputResolution(outputResolution);
+        decoderSurface.setFillMode(fillMode);
+        decoderSurface.setFillModeCustomItem(fillModeCustomItem);
+        decoderSurface.setFlipHorizontal(flipHorizontal);
+        decoderSurface.setFlipVertical(flipVertical);
+        logger.debug(TAG, "Encoder session started with " + outputFormat.getString(MediaFormat.KEY_MIME));
+    }
+
+    MediaFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * The decoder surface is shared by all segments. A segment sets its rotation and input
+     * resolution and calls {@link DecoderSurface#completeParams()} before configuring its decoder.
+     */
+    DecoderSurface getDecoderSurface() {
+        return decoderSurface;
+    }
+
+    /**
+     * Publishes the frame drawn on the decoder surface to the encoder.
+     *
+     * @param presentationTimeUs The presentation time on the output timeline.
+     */
+    void swapBuffers(long presentationTimeUs) {
+        // 区切りをまたいでも時間が戻らないようにする
+        if (presentationTimeUs <= lastInputPresentationTimeUs) {
+            presentationTimeUs = lastInputPresentationTimeUs + 1;
+        }
+        lastInputPresentationTimeUs = presentationTimeUs;
+        encoderSurface.setPresentationTime(presentationTimeUs * 1000);
+        long startNs = metrics.now();
+        encoderSurface.swapBuffers();
+        metrics.record(Stage.SWAP_BUFFERS, startNs);
+        metrics.countRendered();
+    }
+
+    void signalEndOfInputStream() {
+        if (!isInputEOS) {
+            encoder.signalEndOfInputStream();
+            isInputEOS = true;
+        }
+    }
+
+    int drainEncoder() {
+        return encoderDrain.drain(0);
+    }
+
+    long getWrittenPresentationTimeUs() {
+        return encoderDrain.getWrittenPresentationTimeUs();
+    }
+
+    boolean isFinished() {
+        return encoderDrain.isEndOfStream();
+    }
+
+    void release() {
+        if (decoderSurface != null) {
+            decoderSurface.release();
+            decoderSurface = null;
+        }
+        if (encoderSurface != null) {
+            encoderSurface.release();
+            encoderSurface = null;
+        }
+        if (encoder != null) {
+            metrics.begin("encoder session release");
+            if (encoderStarted) encoder.stop();
+            encoder.release();
+            encoder = null;
+            metrics.end("encoder session release");
+        }
+        if (codecCallbackThread != null) {
+            codecCallbackThread.quitSafely();
+            codecCallbackThread = null;
+        }
+    }
+}
@@ -115,6 +115,17 @@ class EncoderSurface {
         }
     }
 
+    /**
+     * Detaches our EGL context from the calling thread, so that another thread can make it
+     * current.
+     */
+    void releaseCurrent() {
+        if (!EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT)) {
+            throw new RuntimeException("eglMakeCurrent failed");
+        }
+    }
+
     /**
      * Calls eglSwapBuffers.  Use this to "publish" the current frame.
      */
@@ -0,0 +1,167 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.SampleType;
+import com.daasuu.mp4compose.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Writes the video samples of MP4 fragments one after the other as the video track of the
+ * output. Every fragment starts at 0, so its samples are shifted to where its range starts in
+ * the source. The output keeps the source time like the other video composers and the audio
+ * composers, so a trimmed start is not moved to 0. The sample description is taken from the first
+ * fragment, the other fragments are expected to carry their SPS/PPS in-band (see
+ * {@link VideoComposer#setInlineCodecConfig(boolean)}).
+ */
+class FragmentJoiner implements IVideoComposer {
+
+    private static final String TAG = "FragmentJoiner";
+    private static final int MIN_BUFFER_SIZE = 256 * 1024;
+
+    private final File[] fragments;
+    private final List<Long> boundaries;
+    private final MuxRender muxRender;
+    private final Logger logger;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer buffer;
+
+    private int currentIndex = -1;
+    private MediaExtractor mediaExtractor;
+    private long fragmentOffsetUs;
+    private boolean formatRegistered;
+    private boolean waitForAudioFormat;
+    private boolean isEOS;
+    private long writtenPresentationTimeUs;
+
+    /**
+     * @param boundaries The start of the range of each fragment in the source, followed by the
+     *                   end of the last one.
+     */
+    FragmentJoiner(@NonNull File[] fragments, @NonNull List<Long> boundaries, @NonNull MuxRender muxRender,
+                   @NonNull Logger logger) {
+        if (boundaries.size() < fragments.length) {
+            throw new IllegalArgumentException("No boundary for each fragment: " + boundaries);
+        }
+        this.fragments = fragments;
+        this.boundaries = boundaries;
+        this.muxRender = muxRender;
+        this.logger = logger;
+    }
+
+    /**
+     * Hold back the muxer start until the audio composer has set its output format. Must be
+     * set when an audio track will be written.
+     */
+    void setWaitForAudioFormat(boolean waitForAudioFormat) {
+        this.waitForAudioFormat = waitForAudioFormat;
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        if (isEOS) return false;
+        if (!formatRegistered) {
+            if (waitForAudioFormat && !muxRender.hasOutputFormat(SampleType.AUDIO)) {
+                return false;
+            }
+            openFragment(0);
+            MediaFormat format = mediaExtractor.getTrackFormat(0);
+            muxRender.setOutputFormat(SampleType.VIDEO, format);
+            muxRender.onSetOutputFormat();
+            formatRegistered = true;
+        }
+        if (mediaExtractor.getSampleTrackIndex() < 0) {
+            if (currentIndex + 1 < fragments.length) {
+                openFragment(currentIndex + 1);
+                return true;
+            }
+            buffer.clear();
+            bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            muxRender.writeSampleData(SampleType.VIDEO, buffer, bufferInfo);
+            isEOS = true;
+            return true;
+        }
+
+        buffer.clear();
+        int sampleSize = mediaExtractor.readSampleData(buffer, 0);
+        boolean isKeyFrame = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        long presentationTimeUs = fragmentOffsetUs + mediaExtractor.getSampleTime();
+        bufferInfo.set(0, sampleSize, presentationTimeUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxRender.writeSampleData(SampleType.VIDEO, buffer, bufferInfo);
+
+        writtenPresentationTimeUs = Math.max(writtenPresentationTimeUs, presentationTimeUs);
+        mediaExtractor.advance();
+        return true;
+    }
+
+    private void openFragment(int index) {
+        releaseExtractor();
+        currentIndex = index;
+        mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(fragments[index].getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open fragment " + fragments[index], e);
+        }
+        // 断片には映像トラックしかない
+        mediaExtractor.selectTrack(0);
+        allocateBuffer(mediaExtractor.getTrackFormat(0));
+        fragmentOffsetUs = getFragmentOffsetUs(boundaries.get(index), mediaExtractor.getSampleTime());
+    }
+
+    /**
+     * Make the buffer large enough for the largest sample of the fragment, readSampleData()
+     * throws instead of returning a larger size. Only done when a fragment is opened.
+     */
+    private void allocateBuffer(MediaFormat format) {
+        int bufferSize = MIN_BUFFER_SIZE;
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        }
+        if (buffer == null || buffer.capacity() < bufferSize) {
+            logger.debug(TAG, "Sample buffer size: " + bufferSize);
+            buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * @param fragmentStartUs   The start of the range of the fragment in the source.
+     * @param firstSampleTimeUs The presentation time of the first sample in the fragment.
+     * @return The shift from the presentation times in the fragment to the output.
+     */
+    static long getFragmentOffsetUs(long fragmentStartUs, long firstSampleTimeUs) {
+        // 断片は0から始まるので、元の動画での位置へずらす
+        return fragmentStartUs - Math.max(0, firstSampleTimeUs);
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isEOS;
+    }
+
+    @Override
+    public void release() {
+        releaseExtractor();
+    }
+
+    private void releaseExtractor() {
+        if (mediaExtractor != null) {
+            mediaExtractor.release();
+            mediaExtractor = null;
+        }
+    }
+}
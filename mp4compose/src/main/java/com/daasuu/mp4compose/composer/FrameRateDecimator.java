@@ -0,0 +1,85 @@
+package com.daasuu.mp4compose.composer;
+
+/**
+ * Picks the decoded frames to keep for a given output frame rate. Time is divided into slots of
+ * one output frame starting at the first kept frame; the first frame of each slot is kept and
+ * moved to the start of its slot, so the kept frames are evenly spaced. When gaps are filled
+ * (slow motion), the empty slots before a kept frame are reported so the previous frame can be
+ * repeated in them.
+ */
+class FrameRateDecimator {
+
+    private final long intervalUs;
+    private final boolean fillGaps;
+    private long anchorUs = -1;
+    private long lastSlot = -1;
+    private int repeatSlots;
+    private int droppedFrames;
+    private int repeatedFrames;
+
+    FrameRateDecimator(int frameRate, boolean fillGaps) {
+        this.intervalUs = 1000000L / frameRate;
+        this.fillGaps = fillGaps;
+    }
+
+    /**
+     * @param presentationTimeUs The presentation time of a decoded frame that would be rendered.
+     * @return The presentation time to render the frame at, or -1 to drop it.
+     */
+    long accept(long presentationTimeUs) {
+        if (anchorUs < 0) {
+            anchorUs = presentationTimeUs;
+        }
+        long slot = slotOf(presentationTimeUs);
+        if (slot <= lastSlot) {
+            droppedFrames++;
+            repeatSlots = 0;
+            return -1;
+        }
+        repeatSlots = fillGaps && lastSlot >= 0 ? (int) (slot - lastSlot - 1) : 0;
+        repeatedFrames += repeatSlots;
+        lastSlot = slot;
+        return anchorUs + slot * intervalUs;
+    }
+
+    /**
+     * @return The number of empty slots right before the frame last kept by {@link #accept},
+     * always 0 unless gaps are filled.
+     */
+    int getRepeatSlots() {
+        return repeatSlots;
+    }
+
+    long getIntervalUs() {
+        return intervalUs;
+    }
+
+    /**
+     * @return true when a frame at the given time will be dropped for sure because another
+     * frame already took its slot, false when unknown.
+     */
+    boolean isSlotTaken(long presentationTimeUs) {
+        return anchorUs >= 0 && presentationTimeUs >= anchorUs && slotOf(presentationTimeUs) <= lastSlot;
+    }
+
+    /**
+     * @return true when frames at the two times fall into the same slot, false when unknown.
+     */
+    boolean isSameSlot(long presentationTimeUs, long otherPresentationTimeUs) {
+        return anchorUs >= 0 && presentationTimeUs >= anchorUs && otherPresentationTimeUs >= anchorUs
+                && slotOf(presentationTimeUs) == slotOf(otherPresentationTimeUs);
+    }
+
+    private long slotOf(long presentationTimeUs) {
+        // 元のタイムスタンプの揺らぎで次の枠に入り損ねないように 1/4 枠の余裕を持たせる
+        return (presentationTimeUs - anchorUs + intervalUs / 4) / intervalUs;
+    }
+
+    int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    int getRepeatedFrames() {
+        return repeatedFrames;
+    }
+}
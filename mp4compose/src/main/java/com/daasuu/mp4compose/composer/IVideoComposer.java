@@ -0,0 +1,15 @@
+package com.daasuu.mp4compose.composer;
+
+/**
+ * Common interface of the composers producing the video track of the output.
+ */
+interface IVideoComposer {
+
+    boolean stepPipeline();
+
+    long getWrittenPresentationTimeUs();
+
+    boolean isFinished();
+
+    void release();
+}
@@ -0,0 +1,70 @@
+package com.daasuu.mp4compose.composer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides which track to step next so that the written presentation times of video and audio
+ * stay close to each other. The muxer then receives both tracks well interleaved and does not
+ * have to hold a large backlog of one track while waiting for the other.
+ */
+class InterleaveScheduler {
+
+    static final long DEFAULT_INTERLEAVE_WINDOW_US = 500000;
+
+    private final IVideoComposer videoComposer;
+    private final IAudioComposer audioComposer;
+    private final long interleaveWindowUs;
+    private long maxSkewUs;
+
+    InterleaveScheduler(@NonNull IVideoComposer videoComposer,
+                        @NonNull IAudioComposer audioComposer,
+                        long interleaveWindowUs) {
+        this.videoComposer = videoComposer;
+        this.audioComposer = audioComposer;
+        this.interleaveWindowUs = interleaveWindowUs;
+    }
+
+    /**
+     * Steps the track which is furthest behind. Both tracks are stepped while they are within
+     * the interleave window, and the leading track is also stepped when the lagging one could
+     * not make progress (e.g. because the shared extractor points at the other track).
+     *
+     * @return true if any of the tracks made progress.
+     */
+    boolean step() {
+        final boolean videoFinished = videoComposer.isFinished();
+        final boolean audioFinished = audioComposer.isFinished();
+        if (videoFinished) {
+            return audioComposer.stepPipeline();
+        }
+        if (audioFinished) {
+            return videoComposer.stepPipeline();
+        }
+
+        final long skewUs = videoComposer.getWrittenPresentationTimeUs() - audioComposer.getWrittenPresentationTimeUs();
+        final long absSkewUs = Math.abs(skewUs);
+        if (absSkewUs > maxSkewUs) {
+            maxSkewUs = absSkewUs;
+        }
+
+        if (absSkewUs <= interleaveWindowUs) {
+            boolean stepped = videoComposer.stepPipeline();
+            stepped |= audioComposer.stepPipeline();
+            return stepped;
+        }
+        if (skewUs < 0) {
+            // video is behind
+            return videoComposer.stepPipeline() || audioComposer.stepPipeline();
+        }
+        // audio is behind
+        return audioComposer.stepPipeline() || videoComposer.stepPipeline();
+    }
+
+    /**
+     * @return The largest difference between the written video and audio presentation times seen
+     * while both tracks were running, in microseconds.
+     */
+    long getMaxSkewUs() {
+        return maxSkewUs;
+    }
+}
@@ -0,0 +1,62 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CodecBuffers} of a {@link MediaCodec}, dequeuing through its
+ * {@link AsyncCodecAdapter} when the codec runs in asynchronous mode.
+ */
+class MediaCodecBuffers implements CodecBuffers {
+
+    private final MediaCodec codec;
+    private final AsyncCodecAdapter adapter;
+
+    /**
+     * @param adapter The adapter of the codec in asynchronous mode, null to dequeue from the
+     *                codec directly. The timeouts are ignored in asynchronous mode.
+     */
+    MediaCodecBuffers(@NonNull MediaCodec codec, AsyncCodecAdapter adapter) {
+        this.codec = codec;
+        this.adapter = adapter;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return adapter != null ? adapter.dequeueInputBuffer() : codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        return adapter != null ? adapter.dequeueOutputBuffer(info) : codec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return codec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        codec.releaseOutputBuffer(index, render);
+    }
+}
@@ -17,14 +17,16 @@ import com.daasuu.mp4compose.Rotation;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.AndroidLogger;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.ComposerMetrics;
+import com.daasuu.mp4compose.metrics.TraceRecorder;
+import com.daasuu.mp4compose.muxer.DataSink;
 import com.daasuu.mp4compose.source.DataSource;
 import com.daasuu.mp4compose.source.FileDescriptorDataSource;
 import com.daasuu.mp4compose.source.FilePathDataSource;
 import com.daasuu.mp4compose.source.UriDataSource;
 
 import java.io.FileDescriptor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
 
 /**
  * Created by sudamasayuki on 2017/11/15.
@@ -33,11 +35,14 @@ import java.util.concurrent.Executors;
 public class Mp4Composer {
 
     private final static String TAG = Mp4Composer.class.getSimpleName();
+    private static final float MIN_SPEED = 0.25f;
+    private static final float MAX_SPEED = 16f;
 
     private final DataSource srcDataSource;
     private final DataSource srcAudioSource;
     private final String destPath;
     private FileDescriptor destFileDescriptor;
+    private DataSink destSink;
     private GlFilter filter;
     private Size outputResolution;
     private int bitrate = -1;
@@ -46,14 +51,34 @@ public class Mp4Composer {
     private Listener listener;
     private FillMode fillMode = FillMode.PRESERVE_ASPECT_FIT;
     private FillModeCustomItem fillModeCustomItem;
-    private int timeScale = 1;
+    private float timeScale = 1;
     private boolean flipVertical = false;
     private boolean flipHorizontal = false;
     private long trimStartMs = 0;
     private long trimEndMs = -1;
     private EGLContext shareContext;
-
-    private ExecutorService executorService;
+    private boolean eventDriven = false;
+    private long interleaveWindowMs = InterleaveScheduler.DEFAULT_INTERLEAVE_WINDOW_US / 1000;
+    private volatile long maxAvSkewUs;
+    private int pipelineQueueDepth = 0;
+    private boolean videoPassthrough = true;
+    private boolean smartCut = false;
+    private int parallelChunks = 0;
+    private volatile int chunkThreadLimit = Integer.MAX_VALUE;
+    private boolean resumable = false;
+    private int frameRate = 0;
+
+    private int priority = 0;
+    private ComposerMetrics metrics;
+    private TraceRecorder trace;
+    private boolean javaMuxer = false;
+    private long fragmentDurationMs = -1;
+    private long pendingBufferLimit = PendingSampleBuffer.DEFAULT_MEMORY_LIMIT;
+    private int asyncMuxQueueDepth = 0;
+    private boolean faststart = false;
+    private ComposerQueue.Job job;
+    private final CancellationToken cancellationToken = new CancellationToken();
+    private volatile long cancelLatencyMs = -1;
 
     private Logger logger;
 
@@ -110,6 +135,32 @@ public class Mp4Composer {
         this.destFileDescriptor = destFileDescriptor;
     }
 
+    /**
+     * Stream the output to a sink, such as a socket or an upload, instead of a file. The output
+     * is a fragmented MP4 written front to back with the built-in MP4 writer, see
+     * {@link #fragmentDuration(long)}, the fragments are 2 seconds long unless set.
+     */
+    public Mp4Composer(@NonNull final String srcPath, @NonNull final DataSink destSink) {
+        this.srcDataSource = new FilePathDataSource(srcPath, logger, errorDataSource);
+        this.srcAudioSource = null;
+        this.destPath = null;
+        this.destSink = destSink;
+    }
+
+    public Mp4Composer(@NonNull final FileDescriptor srcFileDescriptor, @NonNull final DataSink destSink) {
+        this.srcDataSource = new FileDescriptorDataSource(srcFileDescriptor);
+        this.srcAudioSource = null;
+        this.destPath = null;
+        this.destSink = destSink;
+    }
+
+    public Mp4Composer(@NonNull final Uri srcUri, @NonNull final DataSink destSink, @NonNull final Context context) {
+        this.srcDataSource = new UriDataSource(srcUri, context, logger, errorDataSource);
+        this.srcAudioSource = null;
+        this.destPath = null;
+        this.destSink = destSink;
+    }
+
     public Mp4Composer filter(@NonNull GlFilter filter) {
         this.filter = filter;
         return this;
@@ -163,7 +214,21 @@ public class Mp4Composer {
     }
 
     public Mp4Composer timeScale(final int timeScale) {
-        this.timeScale = timeScale;
+        this.timeScale = timeScale < 2 ? 1 : timeScale;
+        return this;
+    }
+
+    /**
+     * Change the playback speed by a fractional factor. The video keeps the output frame rate
+     * (see {@link #frameRate(int)}, 30 if not set): when speeding up only the frames that are
+     * kept are rendered and encoded, and frames the decoder does not need are not decoded
+     * either; in slow motion frames are repeated.
+     *
+     * @param speed The speed factor, from 0.25 to 16. 2.0 plays twice as fast.
+     * @return The composer instance.
+     */
+    public Mp4Composer speed(final float speed) {
+        this.timeScale = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
         return this;
     }
 
@@ -196,22 +261,272 @@ public class Mp4Composer {
         return this;
     }
 
-    private ExecutorService getExecutorService() {
-        if (executorService == null) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        return executorService;
+    /**
+     * Wake up the composing loop from the codec callbacks instead of polling the codecs and
+     * sleeping while they are busy. Only effective on Android 6.0 and above.
+     *
+     * @param eventDriven true to use the codec callbacks.
+     * @return The composer instance.
+     */
+    public Mp4Composer eventDriven(final boolean eventDriven) {
+        this.eventDriven = eventDriven;
+        return this;
+    }
+
+    /**
+     * Run the video track on three threads (extract/decode, render, encode/mux) so the decoder,
+     * the GPU and the encoder can work at the same time. The utilisation of each stage is logged
+     * when the composition finishes and reported by {@link #metrics(ComposerMetrics)}.
+     *
+     * @param queueDepth How many decoded frames may wait for the render stage, 0 to disable.
+     * @return The composer instance.
+     */
+    public Mp4Composer pipelined(final int queueDepth) {
+        this.pipelineQueueDepth = queueDepth;
+        return this;
+    }
+
+    /**
+     * Allow copying the video samples without re-encoding when the job does not change the
+     * pixels: no filter, no size change, no flip, no speed change and no bitrate given. The
+     * rotation is then written as an orientation hint and trimming snaps to the previous key
+     * frame. Default is true.
+     *
+     * @param videoPassthrough false to always re-encode the video.
+     * @return The composer instance.
+     */
+    public Mp4Composer videoPassthrough(final boolean videoPassthrough) {
+        this.videoPassthrough = videoPassthrough;
+        return this;
+    }
+
+    /**
+     * Make the trim frame accurate while still copying most of the video: only the frames from
+     * the trim start to the next key frame and from the last key frame to the trim end are
+     * re-encoded. Applies when the video could otherwise be copied (see
+     * {@link #videoPassthrough(boolean)}) and is H.264 or H.265, otherwise the whole video is
+     * re-encoded. Default is false.
+     *
+     * @param smartCut true to re-encode only the trim boundaries.
+     * @return The composer instance.
+     */
+    public Mp4Composer smartCut(final boolean smartCut) {
+        this.smartCut = smartCut;
+        return this;
+    }
+
+    /**
+     * Transcode the video in pieces split at key frames, several pieces at the same time with
+     * their own codecs, and join them without re-encoding. The number of pieces running at once
+     * is also limited by the codec instances the device supports, the CPU cores, the speedup
+     * measured on the previous jobs of this composer and the transcoding slots of the {@link ComposerQueue} that
+     * no other job uses. Only applies to H.264/H.265 output on Android 6.0+ without
+     * a custom filter or speed change. Default is 0 (disabled).
+     *
+     * @param maxChunks The largest number of pieces transcoded at the same time.
+     * @return The composer instance.
+     */
+    public Mp4Composer parallel(final int maxChunks) {
+        this.parallelChunks = maxChunks;
+        return this;
+    }
+
+    /**
+     * Write the transcoded video as fragments of about 10 seconds into a work directory next to
+     * the output ({@code <output>.parts}) with a checkpoint of the completed ones. When the
+     * process dies, starting the same composition again continues at the first missing fragment
+     * instead of starting over. The fragments are only reused when the source file, the options
+     * and {@link GlFilter#getParameterState()} are unchanged. The work directory is removed once
+     * the output is complete or the composition is cancelled. Only applies to file path outputs
+     * with H.264/H.265 on Android 6.0+ without a speed change, and takes precedence over
+     * {@link #parallel(int)}. Default is false.
+     *
+     * @param resumable true to keep the progress across runs.
+     * @return The composer instance.
+     */
+    public Mp4Composer resumable(final boolean resumable) {
+        this.resumable = resumable;
+        return this;
+    }
+
+    /**
+     * Cap the output frame rate. Decoded frames above the cap are dropped before they are
+     * rendered, the kept frames are evenly spaced and the encoder is configured with the same
+     * frame rate. The video is then always re-encoded. Default is 0 (no cap).
+     *
+     * @param frameRate The largest output frame rate in frames per second, 0 for no cap.
+     * @return The composer instance.
+     */
+    public Mp4Composer frameRate(final int frameRate) {
+        this.frameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * Set how far apart the written video and audio presentation times may drift before the
+     * composer only advances the lagging track. Default is 500 ms.
+     *
+     * @param interleaveWindowMs The interleave window in milliseconds.
+     * @return The composer instance.
+     */
+    public Mp4Composer interleaveWindow(final long interleaveWindowMs) {
+        this.interleaveWindowMs = interleaveWindowMs;
+        return this;
+    }
+
+    /**
+     * @return The largest A/V skew of the written presentation times seen during the last
+     * composition, in microseconds.
+     */
+    public long getMaxAvSkewUs() {
+        return maxAvSkewUs;
+    }
+
+    /**
+     * Measure where the time goes inside the composition. The listener gets the time of every
+     * extractor read, decoder dequeue, wait for the decoded image, filter draw, buffer swap,
+     * encoder dequeue and muxer write as it happens, and at the end latency histograms of each
+     * stage, the decoded, rendered, dropped and encoded frame counts and the achieved fps.
+     * Nothing is measured without a listener. Default is null.
+     *
+     * @param metrics The listener, called on the composing threads.
+     * @return The composer instance.
+     */
+    public Mp4Composer metrics(@Nullable final ComposerMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Record begin / end events of the pipeline stages, segment switches and codec lifecycle
+     * calls into the given recorder, to be exported with {@link TraceRecorder#writeJson} and
+     * viewed in Perfetto or about:tracing. Recording does not allocate, so it can be enabled for
+     * a sample of production jobs. Default is null (no trace).
+     *
+     * @param trace The recorder, may be shared by several compositions.
+     * @return The composer instance.
+     */
+    public Mp4Composer trace(@Nullable final TraceRecorder trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    /**
+     * Write the output with the built-in MP4 writer instead of MediaMuxer. It batches the file
+     * writes into large blocks, interleaves the tracks in chunks of about one second and keeps
+     * the sample tables in primitive arrays. H.264, H.265 and AAC tracks only. Default is false.
+     *
+     * @param javaMuxer true to use the built-in MP4 writer.
+     * @return The composer instance.
+     */
+    public Mp4Composer javaMuxer(final boolean javaMuxer) {
+        this.javaMuxer = javaMuxer;
+        return this;
+    }
+
+    /**
+     * Write a fragmented MP4 (moov first, then moof / mdat fragments) with the built-in MP4
+     * writer. Each fragment starts at a video key frame and is flushed to the file when
+     * complete, so the output is playable and can be uploaded while the composition is still
+     * running, the muxer memory does not grow with the length and a crash keeps the written
+     * fragments. Default is -1 (regular MP4).
+     *
+     * @param fragmentDurationMs The shortest fragment duration in milliseconds, 0 to start a
+     *                           fragment at every key frame, -1 to disable.
+     * @return The composer instance.
+     */
+    public Mp4Composer fragmentDuration(final long fragmentDurationMs) {
+        this.fragmentDurationMs = fragmentDurationMs;
+        return this;
+    }
+
+    /**
+     * Set how much of the samples encoded before the muxer starts is kept in memory. The muxer
+     * starts once the output format of every track is known, until then the samples are kept
+     * in pooled off-heap blocks and the ones beyond this limit are spilled to a temp file.
+     * Default is 8 MB.
+     *
+     * @param pendingBufferLimit The limit in bytes, 0 to spill every sample.
+     * @return The composer instance.
+     */
+    public Mp4Composer pendingBufferLimit(final long pendingBufferLimit) {
+        this.pendingBufferLimit = pendingBufferLimit;
+        return this;
+    }
+
+    /**
+     * Write the encoded samples to the muxer on a separate writer thread. The samples are copied
+     * into reused buffers and queued, so a slow storage write (a slow SD card, another app
+     * syncing) does not stall the encoders; the writer writes everything queued in one pass.
+     * When the queue is full the encoders wait for the writer. Default is 0 (write on the
+     * codec thread).
+     *
+     * @param queueDepth The number of samples that can be queued, 0 to disable.
+     * @return The composer instance.
+     */
+    public Mp4Composer asyncMuxWriter(final int queueDepth) {
+        this.asyncMuxQueueDepth = queueDepth;
+        return this;
+    }
+
+    /**
+     * Write the moov box in front of the media data, so the output can be played while it is
+     * downloaded, with the built-in MP4 writer. The space for the moov box is reserved when
+     * writing starts, estimated from the duration, so no second pass over the file is needed;
+     * only if the estimate was too small is the media data moved once. Ignored for a fragmented
+     * output. Default is false.
+     *
+     * @param faststart true to write the moov box first.
+     * @return The composer instance.
+     */
+    public Mp4Composer faststart(final boolean faststart) {
+        this.faststart = faststart;
+        return this;
+    }
+
+    /**
+     * @return The time from {@link #cancel()} until the codecs and the GL state of the running
+     * composition were released, in milliseconds, or -1 when it was not cancelled while running.
+     */
+    public long getCancelLatencyMs() {
+        return cancelLatencyMs;
+    }
+
+    /**
+     * Set the priority of this composition on the {@link ComposerQueue}. Jobs with a higher
+     * priority start first, jobs of the same priority in the order they were started.
+     * Default is 0.
+     *
+     * @param priority The priority of the job.
+     * @return The composer instance.
+     */
+    public Mp4Composer priority(final int priority) {
+        this.priority = priority;
+        return this;
     }
 
 
     public Mp4Composer start() {
-        getExecutorService().execute(new Runnable() {
+        job = ComposerQueue.getInstance().submit(new Runnable() {
             @Override
             public void run() {
                 if (logger == null) {
                     logger = new AndroidLogger();
                 }
                 Mp4ComposerEngine engine = new Mp4ComposerEngine(logger);
+                engine.setEventDriven(eventDriven);
+                engine.setInterleaveWindowUs(interleaveWindowMs * 1000);
+                engine.setFrameRate(frameRate);
+                engine.setCancellationToken(cancellationToken);
+                engine.setMetrics(metrics);
+                engine.setTrace(trace);
+                engine.setJavaMuxer(javaMuxer);
+                engine.setFragmentDurationUs(fragmentDurationMs < 0 ? -1 : fragmentDurationMs * 1000);
+                engine.setDataSink(destSink);
+                engine.setPendingMemoryLimit(pendingBufferLimit);
+                engine.setAsyncMuxQueueDepth(asyncMuxQueueDepth);
+                engine.setFaststart(faststart);
+                engine.setPipelineQueueDepth(pipelineQueueDepth);
 
                 engine.setProgressCallback(new Mp4ComposerEngine.ProgressCallback() {
                     @Override
@@ -259,9 +574,28 @@ public class Mp4Composer {
                     }
                 }
 
-                if (timeScale < 2) {
-                    timeScale = 1;
+                final Size sourceOutputResolution;
+                final Rotation sourceRotate = Rotation.fromInt(rotation.getRotation() + videoRotate);
+                if (sourceRotate == Rotation.ROTATION_90 || sourceRotate == Rotation.ROTATION_270) {
+                    sourceOutputResolution = new Size(srcVideoResolution.getHeight(), srcVideoResolution.getWidth());
+                } else {
+                    sourceOutputResolution = srcVideoResolution;
                 }
+                // 画素を変えない場合は映像をそのままコピーできる
+                engine.setVideoPassthrough(videoPassthrough
+                        && filter.getClass() == GlFilter.class
+                        && fillMode != FillMode.CUSTOM
+                        && outputResolution.equals(sourceOutputResolution)
+                        && !flipVertical
+                        && !flipHorizontal
+                        && timeScale == 1
+                        && bitrate < 0
+                        && frameRate <= 0);
+                engine.setSmartCut(smartCut);
+                // フィルタはEGLコンテキストごとに作り直せないので標準のものに限る
+                engine.setParallelChunks(filter.getClass() == GlFilter.class ? parallelChunks : 0);
+                engine.setChunkThreadLimit(chunkThreadLimit);
+                engine.setResumable(resumable);
 
                 if (shareContext == null) {
                     shareContext = EGL14.EGL_NO_CONTEXT;
@@ -297,7 +631,16 @@ public class Mp4Composer {
                             trimEndMs,
                             shareContext
                     );
-
+                    maxAvSkewUs = engine.getMaxAvSkewUs();
+                    chunkThreadLimit = engine.getChunkThreadLimit();
+
+                } catch (CancellationException e) {
+                    cancelLatencyMs = engine.getCancelLatencyMs();
+                    logger.debug(TAG, "Cancelled in (ms): " + cancelLatencyMs);
+                    if (listener != null) {
+                        listener.onCanceled();
+                    }
+                    return;
                 } catch (Exception e) {
                     if (e instanceof MediaCodec.CodecException) {
                         logger.error(TAG, "This devicel cannot codec with that setting. Check width, height, bitrate and video format.", e);
@@ -313,24 +656,43 @@ public class Mp4Composer {
                 if (listener != null) {
                     listener.onCompleted();
                 }
-                executorService.shutdown();
             }
-        });
+        }, getJobType(), priority);
 
         return this;
     }
 
+    // 元の動画を開く前に決める必要があるので、設定だけでコピーになりそうかを見積もる
+    private ComposerQueue.JobType getJobType() {
+        boolean copy = videoPassthrough
+                && !smartCut
+                && (filter == null || filter.getClass() == GlFilter.class)
+                && fillMode != FillMode.CUSTOM
+                && outputResolution == null
+                && !flipVertical
+                && !flipHorizontal
+                && timeScale == 1
+                && bitrate < 0
+                && frameRate <= 0;
+        return copy ? ComposerQueue.JobType.COPY : ComposerQueue.JobType.TRANSCODE;
+    }
+
     private void notifyListenerOfFailureAndShutdown(final Exception failure) {
         if (listener != null) {
             listener.onFailed(failure);
         }
-        if (executorService != null) {
-            executorService.shutdown();
-        }
     }
 
+    /**
+     * Stop the composition. A waiting one is removed from the {@link ComposerQueue}, a running one
+     * stops at its next pipeline step or wait, releases its codecs and deletes the partial output
+     * file. {@link Listener#onCanceled()} is called in both cases.
+     */
     public void cancel() {
-        getExecutorService().shutdownNow();
+        cancellationToken.cancel();
+        if (job != null && ComposerQueue.getInstance().cancel(job) && listener != null) {
+            listener.onCanceled();
+        }
     }
 
 
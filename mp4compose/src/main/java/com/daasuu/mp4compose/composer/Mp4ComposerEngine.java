@@ -1,19 +1,42 @@
 package com.daasuu.mp4compose.composer;
 
+import android.annotation.TargetApi;
 import android.media.*;
 import android.opengl.EGLContext;
 import android.os.Build;
+import android.os.Debug;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Size;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import com.daasuu.mp4compose.FillMode;
 import com.daasuu.mp4compose.FillModeCustomItem;
 import com.daasuu.mp4compose.Rotation;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.ComposerMetrics;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.TraceRecorder;
+import com.daasuu.mp4compose.muxer.DataSink;
+import com.daasuu.mp4compose.muxer.Muxer;
 import com.daasuu.mp4compose.source.DataSource;
+import com.daasuu.mp4compose.source.UriDataSource;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/MediaTranscoderEngine.java
@@ -28,16 +51,50 @@ class Mp4ComposerEngine {
     private static final double PROGRESS_UNKNOWN = -1.0;
     private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
     private static final long PROGRESS_INTERVAL_STEPS = 10;
-    private VideoComposer videoComposer;
+    // 並列変換の間に進捗に割り当てる割合、残りは結合
+    private static final double CHUNK_PROGRESS_RATIO = 0.9;
+    // 再開できる変換で1つの断片に入れる長さの目安
+    private static final long RESUME_FRAGMENT_US = 10000000;
+    // 割り込まれた区間の変換がコーデックを解放して終わるまで待つ時間
+    private static final long CHUNK_STOP_TIMEOUT_MS = 2000;
+    private IVideoComposer videoComposer;
     private IAudioComposer audioComposer;
     private MediaExtractor mediaExtractor;
     private MediaExtractor audioMediaExtractor;
-    private MediaMuxer mediaMuxer;
+    private Muxer muxer;
+    private MuxRender muxRender;
+    private long pendingMemoryLimit = PendingSampleBuffer.DEFAULT_MEMORY_LIMIT;
+    private int asyncMuxQueueDepth;
+    private final MuxerFactory muxerFactory = new MuxerFactory();
     private ProgressCallback progressCallback;
     private long durationUs;
     private MediaMetadataRetriever mediaMetadataRetriever;
     private MediaMetadataRetriever audioMediaMetadataRetriever;
     private final Logger logger;
+    private PipelineSignal pipelineSignal;
+    private long interleaveWindowUs = InterleaveScheduler.DEFAULT_INTERLEAVE_WINDOW_US;
+    private long maxAvSkewUs;
+    private int frameRate;
+    private int pipelineQueueDepth;
+    private boolean videoPassthrough;
+    private boolean smartCut;
+    private int parallelChunks;
+    // 前回までに並列変換で実際に得られた並列度から決めたスレッド数の上限
+    private int chunkThreadLimit = Integer.MAX_VALUE;
+    private boolean resumable;
+    // 並列変換のために ComposerQueue から借りた枠
+    private int chunkSlots;
+    private File[] fragments;
+    // 各断片の変換元での開始位置
+    private List<Long> fragmentBoundaries;
+    private ResumeCheckpoint resumeCheckpoint;
+    private double progressOffset = 0;
+    private double progressScale = 1;
+    private CancellationToken cancellationToken;
+    private ComposerMetrics metrics;
+    private TraceRecorder trace;
+    private MetricsRecorder metricsRecorder;
+    private long cancelLatencyMs = -1;
 
     Mp4ComposerEngine(@NonNull final Logger logger) {
         this.logger = logger;
@@ -47,6 +104,14 @@ class Mp4ComposerEngine {
         this.progressCallback = progressCallback;
     }
 
+    /**
+     * Let codec buffer availability wake up the pipeline loop instead of sleeping a fixed
+     * interval whenever no track made progress. Requires Android 6.0, older devices keep polling.
+     */
+    void setEventDriven(boolean eventDriven) {
+        this.pipelineSignal = eventDriven ? new PipelineSignal() : null;
+    }
+
     void compose(
             final DataSource srcDataSource,
             final DataSource srcAudioSource,
@@ -60,23 +125,20 @@ class Mp4ComposerEngine {
             final Size inputResolution,
             final FillMode fillMode,
             final FillModeCustomItem fillModeCustomItem,
-            final int timeScale,
+            final float timeScale,
             final boolean flipVertical,
             final boolean flipHorizontal,
             final long trimStartMs,
             final long trimEndMs,
             final EGLContext shareContext
     ) throws IOException {
+        metricsRecorder = new MetricsRecorder(metrics, trace);
+        metricsRecorder.begin("compose");
 
-
+        boolean completed = false;
         try {
             mediaExtractor = new MediaExtractor();
             mediaExtractor.setDataSource(srcDataSource.getFileDescriptor());
-            if (Build.VERSION.SDK_INT >= 26 && destSrc == null) {
-                mediaMuxer = new MediaMuxer(destFileDescriptor, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            } else {
-                mediaMuxer = new MediaMuxer(destSrc, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            }
             mediaMetadataRetriever = new MediaMetadataRetriever();
             mediaMetadataRetriever.setDataSource(srcDataSource.getFileDescriptor());
             try {
@@ -86,7 +148,15 @@ class Mp4ComposerEngine {
             }
             logger.debug(TAG, "Duration (us): " + durationUs);
 
-            MuxRender muxRender = new MuxRender(mediaMuxer, logger);
+            muxerFactory.setExpectedDurationUs(durationUs > 0 ? (long) (durationUs / timeScale) : -1);
+            muxer = muxerFactory.create(destSrc, destFileDescriptor);
+            if (asyncMuxQueueDepth > 0) {
+                muxer = new AsyncMuxer(muxer, asyncMuxQueueDepth, metricsRecorder, logger);
+            }
+
+            muxRender = new MuxRender(muxer, logger);
+            muxRender.setMetricsRecorder(metricsRecorder);
+            muxRender.setPendingMemoryLimit(pendingMemoryLimit);
 
             // identify track indices
             MediaFormat format = mediaExtractor.getTrackFormat(0);
@@ -103,7 +173,18 @@ class Mp4ComposerEngine {
                 audioTrackIndex = 0;
             }
 
-            if (srcAudioSource == null) {
+            final MediaFormat sourceVideoFormat = mediaExtractor.getTrackFormat(videoTrackIndex);
+            final boolean smartCutVideo = videoPassthrough && smartCut && canSmartCut(sourceVideoFormat);
+            final boolean copyVideo = smartCutVideo || (videoPassthrough && !smartCut && canPassthrough(sourceVideoFormat));
+
+            if (srcAudioSource == null && (pipelineQueueDepth > 0 || copyVideo)) {
+                // MediaExtractor is not thread safe, the video track is read on its own thread.
+                // Smart cut also seeks the video track back and forth, and the copying composers
+                // stop reading the video track at the trim end, which would block the audio.
+                audioMediaExtractor = new MediaExtractor();
+                audioMediaExtractor.setDataSource(srcDataSource.getFileDescriptor());
+                audioMediaMetadataRetriever = mediaMetadataRetriever;
+            } else if (srcAudioSource == null) {
                 audioMediaExtractor = mediaExtractor;
                 audioMediaMetadataRetriever = mediaMetadataRetriever;
             } else {
@@ -114,23 +195,82 @@ class Mp4ComposerEngine {
                 audioTrackIndex = 0;
             }
 
-            final MediaFormat actualVideoOutputFormat = createVideoOutputFormatWithAvailableEncoders(bitrate, outputResolution);
+            final boolean hasAudio = audioMediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_AUDIO) != null && !mute;
+
+            if (smartCutVideo) {
+                // 区切りの半端なGOPだけをエンコードし直す
+                logger.debug(TAG, "Trimming the video track with smart cut.");
+                muxer.setOrientationHint(rotation.getRotation());
+                SmartCutVideoComposer smartCutVideoComposer = new SmartCutVideoComposer(mediaExtractor, videoTrackIndex, muxRender,
+                        trimStartMs, trimEndMs, shareContext, logger);
+                smartCutVideoComposer.setWaitForAudioFormat(hasAudio);
+                smartCutVideoComposer.setCancellationToken(cancellationToken);
+                videoComposer = smartCutVideoComposer;
+            } else if (copyVideo) {
+                // 再描画が不要なのでサンプルをそのままコピーする
+                logger.debug(TAG, "Copying the video track without re-encoding.");
+                muxer.setOrientationHint(rotation.getRotation());
+                PassthroughVideoComposer passthroughVideoComposer = new PassthroughVideoComposer(mediaExtractor, videoTrackIndex, muxRender,
+                        trimStartMs, trimEndMs, logger);
+                passthroughVideoComposer.setWaitForAudioFormat(hasAudio);
+                videoComposer = passthroughVideoComposer;
+            } else {
+                final MediaFormat actualVideoOutputFormat = createVideoOutputFormatWithAvailableEncoders(bitrate, outputResolution, frameRate);
+                final long chunkEndUs = trimEndMs == -1 ? durationUs : TimeUnit.MILLISECONDS.toMicros(trimEndMs);
+                final boolean canChunk = timeScale == 1 && pipelineQueueDepth == 0 && chunkEndUs > 0
+                        && canJoinFragments(actualVideoOutputFormat);
+                final boolean resume = canChunk && resumable && destSrc != null;
+                final int chunkThreads = canChunk && !resume
+                        ? pickChunkThreads(sourceVideoFormat, actualVideoOutputFormat) : 1;
 
-            // setup video composer
-            videoComposer = new VideoComposer(mediaExtractor, videoTrackIndex, actualVideoOutputFormat, muxRender,
-                    timeScale, trimStartMs, trimEndMs, 0, true, true,
-                    logger);
-            videoComposer.setUp(filter, rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem, flipVertical, flipHorizontal, shareContext);
-            mediaExtractor.selectTrack(videoTrackIndex);
+                if (resume || chunkThreads > 1) {
+                    if (resume) {
+                        // 途中で止まっても続きから変換できるように、断片ごとに書き出して記録する
+                        final String fingerprint = getResumeFingerprint(srcDataSource, sourceVideoFormat, actualVideoOutputFormat,
+                                trimStartMs, trimEndMs, filter, rotation, outputResolution, fillMode,
+                                flipVertical, flipHorizontal);
+                        fragments = transcodeResumable(srcDataSource, videoTrackIndex, actualVideoOutputFormat,
+                                TimeUnit.MILLISECONDS.toMicros(trimStartMs), chunkEndUs, trimEndMs == -1,
+                                filter, rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem,
+                                flipVertical, flipHorizontal, shareContext,
+                                ResumeCheckpoint.getDirectory(destSrc), fingerprint);
+                    } else {
+                        // 区間ごとに別々のコーデックで同時に変換し、あとでコピーで結合する
+                        fragments = transcodeChunks(srcDataSource, videoTrackIndex, chunkThreads, actualVideoOutputFormat,
+                                TimeUnit.MILLISECONDS.toMicros(trimStartMs), chunkEndUs, trimEndMs == -1,
+                                rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem,
+                                flipVertical, flipHorizontal, shareContext,
+                                getChunkDirectory(destSrc));
+                    }
+                    progressOffset = CHUNK_PROGRESS_RATIO;
+                    progressScale = 1 - CHUNK_PROGRESS_RATIO;
+                    FragmentJoiner fragmentJoiner = new FragmentJoiner(fragments, fragmentBoundaries, muxRender, logger);
+                    fragmentJoiner.setWaitForAudioFormat(hasAudio);
+                    videoComposer = fragmentJoiner;
+                } else {
+                    // setup video composer
+                    VideoComposer transcodingVideoComposer = new VideoComposer(mediaExtractor, videoTrackIndex, actualVideoOutputFormat, muxRender,
+                            timeScale, trimStartMs, trimEndMs, 0, true, true,
+                            logger);
+                    transcodingVideoComposer.setPipelineSignal(pipelineSignal);
+                    transcodingVideoComposer.setPipelined(pipelineQueueDepth);
+                    transcodingVideoComposer.setFrameRate(frameRate);
+                    transcodingVideoComposer.setCancellationToken(cancellationToken);
+                    // パイプラインのスレッドは setUp で読み始めるので、先にトラックを選んでおく
+                    mediaExtractor.selectTrack(videoTrackIndex);
+                    transcodingVideoComposer.setUp(filter, rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem, flipVertical, flipHorizontal, shareContext);
+                    videoComposer = transcodingVideoComposer;
+                }
+            }
 
 
             // setup audio if present and not muted
-            if (audioMediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_AUDIO) != null && !mute) {
+            if (hasAudio) {
                 // has Audio video
                 final MediaFormat inputMediaFormat = audioMediaExtractor.getTrackFormat(audioTrackIndex);
                 final MediaFormat outputMediaFormat = createAudioOutputFormat(inputMediaFormat);
 
-                if (timeScale < 2 && outputMediaFormat.equals(inputMediaFormat)) {
+                if (timeScale == 1 && outputMediaFormat.equals(inputMediaFormat)) {
                     audioComposer = new AudioComposer(audioMediaExtractor, audioTrackIndex, muxRender, trimStartMs, trimEndMs, logger);
                 } else {
                     audioComposer = new RemixAudioComposer(audioMediaExtractor, audioTrackIndex, outputMediaFormat, muxRender, timeScale, trimStartMs, trimEndMs);
@@ -140,14 +280,24 @@ class Mp4ComposerEngine {
 
                 audioMediaExtractor.selectTrack(audioTrackIndex);
 
+                long startNs = System.nanoTime();
+                long startCpuNs = Debug.threadCpuTimeNanos();
                 runPipelines();
+                logPipelineTime(startNs, startCpuNs);
+                logger.debug(TAG, "Max A/V skew (us): " + maxAvSkewUs);
             } else {
                 // no audio video
+                long startNs = System.nanoTime();
+                long startCpuNs = Debug.threadCpuTimeNanos();
                 runPipelinesNoAudio();
+                logPipelineTime(startNs, startCpuNs);
             }
 
 
-            mediaMuxer.stop();
+            muxer.stop();
+            completed = true;
+        } catch (CancellationException e) {
+            throw e;
         } catch(Exception e) {
             e.printStackTrace();
         } finally {
@@ -160,26 +310,31 @@ class Mp4ComposerEngine {
                     audioComposer.release();
                     audioComposer = null;
                 }
+                if (audioMediaExtractor == mediaExtractor) {
+                    audioMediaExtractor = null;
+                }
                 if (mediaExtractor != null) {
                     mediaExtractor.release();
                     mediaExtractor = null;
                 }
-                if (srcAudioSource != null) {
-                    if(audioMediaExtractor != null) {
-                        audioMediaExtractor.release();
-                        audioMediaExtractor = null;
-                    }
+                if (audioMediaExtractor != null) {
+                    audioMediaExtractor.release();
+                    audioMediaExtractor = null;
                 }
             } catch (RuntimeException e) {
                 logger.error(TAG, "Could not shutdown mediaExtractor, codecs and mediaMuxer pipeline.", e);
             }
+            if (muxRender != null) {
+                muxRender.release();
+                muxRender = null;
+            }
             try {
-                if (mediaMuxer != null) {
-                    mediaMuxer.release();
-                    mediaMuxer = null;
+                if (muxer != null) {
+                    muxer.release();
+                    muxer = null;
                 }
             } catch (RuntimeException e) {
-                logger.error(TAG, "Failed to release mediaMuxer.", e);
+                logger.error(TAG, "Failed to release muxer.", e);
             }
             try {
                 if (mediaMetadataRetriever != null) {
@@ -195,34 +350,413 @@ class Mp4ComposerEngine {
             } catch (RuntimeException e) {
                 logger.error(TAG, "Failed to release mediaMetadataRetriever.", e);
             }
+            if (fragments != null && resumeCheckpoint == null) {
+                for (File fragment : fragments) {
+                    if (fragment != null && !fragment.delete()) {
+                        logger.warning(TAG, "Could not delete " + fragment);
+                    }
+                }
+            }
+            fragments = null;
+            fragmentBoundaries = null;
+            releaseChunkSlots();
+            final boolean cancelled = cancellationToken != null && cancellationToken.isCancelled();
+            if (resumeCheckpoint != null) {
+                // 失敗した場合は次の実行で続きから変換できるように断片を残す
+                if (completed || cancelled) {
+                    resumeCheckpoint.clear();
+                }
+                resumeCheckpoint = null;
+            }
+            if (cancelled) {
+                deletePartialOutput(destSrc);
+                cancelLatencyMs = cancellationToken.getElapsedSinceCancelMs();
+                logger.debug(TAG, "Cancelled, resources released in (ms): " + cancelLatencyMs);
+            }
+            if (metricsRecorder != null) {
+                metricsRecorder.end("compose");
+                metricsRecorder.finish();
+                metricsRecorder = null;
+            }
+        }
+
+
+    }
+
+    private void deletePartialOutput(final String destSrc) {
+        if (destSrc == null) {
+            // ファイルディスクリプタの出力は呼び出し元が後始末する
+            return;
+        }
+        File output = new File(destSrc);
+        if (output.exists() && !output.delete()) {
+            logger.warning(TAG, "Could not delete the partial output " + destSrc);
+        }
+    }
+
+    private static boolean canPassthrough(@NonNull final MediaFormat inputFormat) {
+        // Older MediaMuxer rejects the decreasing timestamps of B-frames
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N_MR1) {
+            return false;
+        }
+        final String mime = inputFormat.getString(MediaFormat.KEY_MIME);
+        return MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)
+                || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)
+                || MediaFormat.MIMETYPE_VIDEO_MPEG4.equals(mime)
+                || MediaFormat.MIMETYPE_VIDEO_H263.equals(mime);
+    }
+
+    private static boolean canSmartCut(@NonNull final MediaFormat inputFormat) {
+        // SPS/PPS can only be carried in-band by AVC and HEVC
+        final String mime = inputFormat.getString(MediaFormat.KEY_MIME);
+        return canPassthrough(inputFormat)
+                && (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime));
+    }
+
+    private static boolean canJoinFragments(@NonNull final MediaFormat outputFormat) {
+        // 断片ごとにSPS/PPSを持たせられるのはAVCとHEVCだけ
+        final String mime = outputFormat.getString(MediaFormat.KEY_MIME);
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime));
+    }
+
+    private int pickChunkThreads(@NonNull final MediaFormat inputFormat, @NonNull final MediaFormat outputFormat) {
+        int threads = Math.min(parallelChunks, Runtime.getRuntime().availableProcessors());
+        threads = Math.min(threads, chunkThreadLimit);
+        if (threads < 2) {
+            return 1;
+        }
+        final MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        threads = Math.min(threads, getMaxSupportedInstances(mediaCodecList, inputFormat.getString(MediaFormat.KEY_MIME), false));
+        threads = Math.min(threads, getMaxSupportedInstances(mediaCodecList, outputFormat.getString(MediaFormat.KEY_MIME), true));
+        // 他のジョブとコーデックを取り合わないよう、このジョブの枠に加えて空いている枠の数までにする
+        chunkSlots = ComposerQueue.getInstance().acquireSlots(ComposerQueue.JobType.TRANSCODE, threads - 1);
+        threads = 1 + chunkSlots;
+        logger.debug(TAG, "Parallel chunk threads: " + threads + " (limit from previous jobs: " + chunkThreadLimit + ")");
+        return threads;
+    }
+
+    private void releaseChunkSlots() {
+        if (chunkSlots > 0) {
+            ComposerQueue.getInstance().releaseSlots(ComposerQueue.JobType.TRANSCODE, chunkSlots);
+            chunkSlots = 0;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int getMaxSupportedInstances(@NonNull final MediaCodecList mediaCodecList,
+                                                @NonNull final String mime, final boolean encoder) {
+        int maxInstances = 1;
+        for (MediaCodecInfo info : mediaCodecList.getCodecInfos()) {
+            if (info.isEncoder() != encoder) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    maxInstances = Math.max(maxInstances, info.getCapabilitiesForType(type).getMaxSupportedInstances());
+                }
+            }
+        }
+        return maxInstances;
+    }
+
+    @NonNull
+    private static File getChunkDirectory(final String destSrc) {
+        if (destSrc != null) {
+            File parent = new File(destSrc).getAbsoluteFile().getParentFile();
+            if (parent != null && parent.canWrite()) {
+                return parent;
+            }
+        }
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    @NonNull
+    private File[] transcodeChunks(@NonNull final DataSource srcDataSource,
+                                   final int videoTrackIndex,
+                                   final int threads,
+                                   @NonNull final MediaFormat outputFormat,
+                                   final long startUs,
+                                   final long endUs,
+                                   final boolean toSourceEnd,
+                                   final Rotation rotation,
+                                   final Size outputResolution,
+                                   final Size inputResolution,
+                                   final FillMode fillMode,
+                                   final FillModeCustomItem fillModeCustomItem,
+                                   final boolean flipVertical,
+                                   final boolean flipHorizontal,
+                                   final EGLContext shareContext,
+                                   @NonNull final File directory) throws IOException {
+        // スレッドの数より多めに分けて、遅い区間があっても他のスレッドが次に進めるようにする
+        final List<Long> boundaries = findChunkBoundaries(videoTrackIndex, startUs, endUs, threads * 2);
+        fragmentBoundaries = boundaries;
+        final int chunkCount = boundaries.size() - 1;
+        final ChunkTranscoder[] chunks = new ChunkTranscoder[chunkCount];
+        final File[] files = new File[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            files[i] = File.createTempFile("mp4compose-chunk", ".mp4", directory);
+            // 長さはメタデータの値なので、最後の区間は元の動画の終わりまで変換する
+            long chunkEndUs = i == chunkCount - 1 && toSourceEnd ? -1 : boundaries.get(i + 1);
+            chunks[i] = new ChunkTranscoder(srcDataSource, boundaries.get(i), chunkEndUs, files[i], outputFormat, logger);
+            chunks[i].setFrameRate(frameRate);
+            chunks[i].setCancellationToken(cancellationToken);
+            chunks[i].setMetricsRecorder(metricsRecorder);
+            chunks[i].setRenderParams(new GlFilter(), rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem,
+                    flipVertical, flipHorizontal, shareContext);
+        }
+        logger.debug(TAG, "Transcoding " + chunkCount + " chunks on " + threads + " threads: " + boundaries);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Void>> futures = new ArrayList<>();
+        final long startNs = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            for (final ChunkTranscoder chunk : chunks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        chunk.run();
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                while (true) {
+                    try {
+                        futures.get(i).get(SLEEP_TO_WAIT_TRACK_TRANSCODERS * PROGRESS_INTERVAL_STEPS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        throwIfCancelled();
+                        notifyChunkProgress(futures, chunks, startUs, endUs);
+                    }
+                }
+                notifyChunkProgress(futures, chunks, startUs, endUs);
+            }
+            succeeded = true;
+        } catch (InterruptedException e) {
+            throw new IOException("Chunk transcoding interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new IOException("Could not transcode a chunk.", e.getCause());
+        } finally {
+            // 失敗した場合は断片を返さないので、ここで消す
+            stopChunkThreads(executor, succeeded ? null : files);
         }
 
+        // 実際に得られた並列度を次回のスレッド数の上限にする
+        long wallNs = System.nanoTime() - startNs;
+        long busyNs = 0;
+        for (ChunkTranscoder chunk : chunks) {
+            busyNs += chunk.getElapsedNs();
+        }
+        double speedup = wallNs > 0 ? (double) busyNs / wallNs : 1;
+        chunkThreadLimit = Math.max(2, (int) Math.round(speedup) + 1);
+        logger.debug(TAG, "Chunks finished, wall time (ms): " + wallNs / 1000000
+                + ", busy time (ms): " + busyNs / 1000000
+                + ", measured parallelism: " + speedup);
+        return files;
+    }
 
+    /**
+     * Interrupt the chunk threads and release the chunk slots and delete the given files once
+     * they have exited. If they do not exit within {@link #CHUNK_STOP_TIMEOUT_MS}, that happens
+     * on another thread when they do, so the job does not wait for a stuck codec.
+     */
+    private void stopChunkThreads(@NonNull final ExecutorService executor, @Nullable final File[] files) {
+        executor.shutdownNow();
+        final int slots = chunkSlots;
+        chunkSlots = 0;
+        final Runnable cleanUp = new Runnable() {
+            @Override
+            public void run() {
+                if (slots > 0) {
+                    ComposerQueue.getInstance().releaseSlots(ComposerQueue.JobType.TRANSCODE, slots);
+                }
+                if (files != null) {
+                    for (File file : files) {
+                        if (file != null && !file.delete()) {
+                            logger.warning(TAG, "Could not delete " + file);
+                        }
+                    }
+                }
+            }
+        };
+        boolean interrupted = false;
+        try {
+            if (executor.awaitTermination(CHUNK_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                cleanUp.run();
+                return;
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        logger.warning(TAG, "Chunk threads did not stop in " + CHUNK_STOP_TIMEOUT_MS + " ms, releasing their slots when they do.");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    cleanUp.run();
+                } catch (InterruptedException e) {
+                    logger.error(TAG, "Interrupted while waiting for the chunk threads.", e);
+                }
+            }
+        }, TAG + "-chunk-cleanup").start();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @NonNull
+    private File[] transcodeResumable(@NonNull final DataSource srcDataSource,
+                                      final int videoTrackIndex,
+                                      @NonNull final MediaFormat outputFormat,
+                                      final long startUs,
+                                      final long endUs,
+                                      final boolean toSourceEnd,
+                                      final GlFilter filter,
+                                      final Rotation rotation,
+                                      final Size outputResolution,
+                                      final Size inputResolution,
+                                      final FillMode fillMode,
+                                      final FillModeCustomItem fillModeCustomItem,
+                                      final boolean flipVertical,
+                                      final boolean flipHorizontal,
+                                      final EGLContext shareContext,
+                                      @NonNull final File directory,
+                                      @NonNull final String fingerprint) throws IOException {
+        resumeCheckpoint = new ResumeCheckpoint(directory, logger);
+        if (!resumeCheckpoint.load(fingerprint)) {
+            final int fragmentCount = (int) Math.max(1, (endUs - startUs + RESUME_FRAGMENT_US - 1) / RESUME_FRAGMENT_US);
+            resumeCheckpoint.setBoundaries(findChunkBoundaries(videoTrackIndex, startUs, endUs, fragmentCount));
+        }
+        fragmentBoundaries = resumeCheckpoint.getBoundaries();
+        final int fragmentCount = resumeCheckpoint.getFragmentCount();
+        return resumeCheckpoint.transcodeRemaining(toSourceEnd, new ResumeCheckpoint.FragmentTranscoder() {
+            @Override
+            public void transcode(long startUs, long endUs, @NonNull File output) throws IOException {
+                throwIfCancelled();
+                ChunkTranscoder chunk = new ChunkTranscoder(srcDataSource, startUs, endUs, output, outputFormat, logger);
+                chunk.setFrameRate(frameRate);
+                chunk.setCancellationToken(cancellationToken);
+                chunk.setMetricsRecorder(metricsRecorder);
+                chunk.setRenderParams(filter, rotation, outputResolution, inputResolution, fillMode, fillModeCustomItem,
+                        flipVertical, flipHorizontal, shareContext);
+                chunk.run();
+                if (progressCallback != null) {
+                    // 完了した断片の数で進捗を出す
+                    progressCallback.onProgress(CHUNK_PROGRESS_RATIO * (resumeCheckpoint.getCompletedFragments() + 1) / fragmentCount);
+                }
+            }
+        });
+    }
+
+    @NonNull
+    private String getResumeFingerprint(@NonNull final DataSource srcDataSource,
+                                        @NonNull final MediaFormat sourceVideoFormat,
+                                        @NonNull final MediaFormat outputFormat,
+                                        final long trimStartMs,
+                                        final long trimEndMs,
+                                        final GlFilter filter,
+                                        final Rotation rotation,
+                                        final Size outputResolution,
+                                        final FillMode fillMode,
+                                        final boolean flipVertical,
+                                        final boolean flipHorizontal) {
+        return getSourceIdentity(srcDataSource)
+                + "/" + sourceVideoFormat.getString(MediaFormat.KEY_MIME)
+                + "/" + sourceVideoFormat.getInteger(MediaFormat.KEY_WIDTH)
+                + "x" + sourceVideoFormat.getInteger(MediaFormat.KEY_HEIGHT)
+                + "/" + durationUs
+                + "/" + outputFormat.getString(MediaFormat.KEY_MIME)
+                + "/" + outputResolution.getWidth() + "x" + outputResolution.getHeight()
+                + "/" + outputFormat.getInteger(MediaFormat.KEY_BIT_RATE)
+                + "/" + frameRate
+                + "/" + trimStartMs + "-" + trimEndMs
+                + "/" + (filter == null ? null : Integer.toHexString(filter.getParameterState().hashCode()))
+                + "/" + rotation + "/" + fillMode + "/" + flipVertical + "/" + flipHorizontal;
+    }
+
+    @NonNull
+    private String getSourceIdentity(@NonNull final DataSource srcDataSource) {
+        if (srcDataSource.getFilePath() != null) {
+            return ResumeCheckpoint.getFileIdentity(new File(srcDataSource.getFilePath()));
+        }
+        final String name = srcDataSource instanceof UriDataSource
+                ? ((UriDataSource) srcDataSource).getUri().toString() : "fd";
+        try {
+            // パスが分からないので、開いているファイルそのものの大きさと更新時刻を使う
+            final StructStat stat = Os.fstat(srcDataSource.getFileDescriptor());
+            return name + "/" + stat.st_dev + ":" + stat.st_ino + "/" + stat.st_size + "/" + stat.st_mtime;
+        } catch (ErrnoException e) {
+            logger.warning(TAG, "Could not stat the source: " + e);
+            return name;
+        }
+    }
+
+    private List<Long> findChunkBoundaries(final int videoTrackIndex, final long startUs, final long endUs, final int chunkCount) {
+        final List<Long> boundaries = new ArrayList<>();
+        boundaries.add(startUs);
+        // 区間の境目はキーフレームに合わせる
+        mediaExtractor.selectTrack(videoTrackIndex);
+        final long stepUs = (endUs - startUs) / chunkCount;
+        for (int i = 1; i < chunkCount; i++) {
+            mediaExtractor.seekTo(startUs + stepUs * i, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long syncUs = mediaExtractor.getSampleTime();
+            if (syncUs > boundaries.get(boundaries.size() - 1) && syncUs < endUs) {
+                boundaries.add(syncUs);
+            }
+        }
+        mediaExtractor.unselectTrack(videoTrackIndex);
+        boundaries.add(endUs);
+        return boundaries;
+    }
+
+    private void notifyChunkProgress(List<Future<Void>> futures, ChunkTranscoder[] chunks, long startUs, long endUs) {
+        long doneUs = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            if (futures.get(i).isDone()) {
+                doneUs += chunks[i].getDurationUs(endUs);
+            }
+        }
+        if (progressCallback != null) {
+            progressCallback.onProgress(CHUNK_PROGRESS_RATIO * Math.min(1.0, (double) doneUs / (endUs - startUs)));
+        }
+    }
+
+    private void notifyProgress(double progress) {
+        if (progressCallback != null) {
+            progressCallback.onProgress(progressOffset + progressScale * progress);
+        }
     }
 
     @NonNull
     private static MediaFormat createVideoOutputFormatWithAvailableEncoders(final int bitrate,
-                                                                            @NonNull final Size outputResolution) {
+                                                                            @NonNull final Size outputResolution,
+                                                                            final int frameRate) {
         final MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
 
         /*
-        final MediaFormat hevcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, bitrate, outputResolution);
+        final MediaFormat hevcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, bitrate, outputResolution, frameRate);
         if (mediaCodecList.findEncoderForFormat(hevcMediaFormat) != null) {
             return hevcMediaFormat;
         }
          */
 
-        final MediaFormat avcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, bitrate, outputResolution);
+        final MediaFormat avcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, bitrate, outputResolution, frameRate);
         if (mediaCodecList.findEncoderForFormat(avcMediaFormat) != null) {
             return avcMediaFormat;
         }
 
-        final MediaFormat mp4vesMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_MPEG4, bitrate, outputResolution);
+        final MediaFormat mp4vesMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_MPEG4, bitrate, outputResolution, frameRate);
         if (mediaCodecList.findEncoderForFormat(mp4vesMediaFormat) != null) {
             return mp4vesMediaFormat;
         }
 
-        return createVideoFormat(MediaFormat.MIMETYPE_VIDEO_H263, bitrate, outputResolution);
+        return createVideoFormat(MediaFormat.MIMETYPE_VIDEO_H263, bitrate, outputResolution, frameRate);
     }
 
     @NonNull
@@ -247,15 +781,16 @@ class Mp4ComposerEngine {
     @NonNull
     private static MediaFormat createVideoFormat(@NonNull final String mimeType,
                                                  final int bitrate,
-                                                 @NonNull final Size outputResolution) {
+                                                 @NonNull final Size outputResolution,
+                                                 final int frameRate) {
         final MediaFormat outputFormat =
                 MediaFormat.createVideoFormat(mimeType,
                         outputResolution.getWidth(),
                         outputResolution.getHeight());
 
         outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        // Required but ignored by the encoder
-        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        // Required, used by the encoder for rate control when the frame rate is capped
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate > 0 ? frameRate : 30);
         outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
         outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -264,6 +799,195 @@ class Mp4ComposerEngine {
     }
 
 
+    /**
+     * Run the video track on three threads (extract/decode, render, encode/mux) connected by
+     * queues of the given depth. 0 runs the video track on the composing thread.
+     */
+    void setPipelineQueueDepth(int pipelineQueueDepth) {
+        this.pipelineQueueDepth = pipelineQueueDepth;
+    }
+
+    /**
+     * Copy the compressed video samples instead of decoding, rendering and encoding them. Only
+     * set this when the job does not change the pixels: the caller is responsible for checking
+     * the filter, size, flips, speed and bitrate. Falls back to transcoding for containers the
+     * muxer cannot take as they are.
+     */
+    void setVideoPassthrough(boolean videoPassthrough) {
+        this.videoPassthrough = videoPassthrough;
+    }
+
+    /**
+     * Split the video at key frames and transcode the pieces at the same time, each with its own
+     * codecs and EGL context, then join them without re-encoding. The filter is not used for the
+     * pieces, only set this when the job uses the plain {@link GlFilter}.
+     *
+     * @param parallelChunks The largest number of pieces transcoded at the same time, 0 or 1 to
+     *                       disable. Also limited by the codec instances and CPU cores.
+     */
+    void setParallelChunks(int parallelChunks) {
+        this.parallelChunks = parallelChunks;
+    }
+
+    /**
+     * @param chunkThreadLimit The limit on the parallel chunk threads measured by the previous
+     *                         jobs of the composer, see {@link #getChunkThreadLimit()}.
+     */
+    void setChunkThreadLimit(int chunkThreadLimit) {
+        this.chunkThreadLimit = chunkThreadLimit;
+    }
+
+    /**
+     * @return The limit on the parallel chunk threads, lowered to the parallelism the chunks
+     * actually reached when this job transcoded in parallel.
+     */
+    int getChunkThreadLimit() {
+        return chunkThreadLimit;
+    }
+
+    /**
+     * Transcode the video into fragments that start at key frames and record the completed ones
+     * next to the output, so a run that died can be continued by composing again with the same
+     * source and options. Only used for file outputs in the cases {@link #setParallelChunks}
+     * could split, the fragments are transcoded one after another with the given filter.
+     */
+    void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Trim frame accurately by re-encoding only the partial GOPs at the trim boundaries and
+     * copying the rest. Only used together with {@link #setVideoPassthrough}, otherwise the
+     * whole video is re-encoded anyway.
+     */
+    void setSmartCut(boolean smartCut) {
+        this.smartCut = smartCut;
+    }
+
+    /**
+     * Cap the output frame rate by dropping decoded frames before they are rendered.
+     *
+     * @param frameRate The largest output frame rate, 0 or less for no cap.
+     */
+    void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Stop the job with a {@link CancellationException} once the token is cancelled. The codecs
+     * and the GL state are released and a partial output file is deleted before it is thrown.
+     */
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * @return The time from the cancel request until the resources of the last job were
+     * released in milliseconds, -1 when it was not cancelled.
+     */
+    long getCancelLatencyMs() {
+        return cancelLatencyMs;
+    }
+
+    /**
+     * Report the stage timings and frame counters of the next job to the listener.
+     */
+    void setMetrics(ComposerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Record the pipeline stages, segment switches and codec lifecycle calls of the next job.
+     */
+    void setTrace(TraceRecorder trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Write the output with the pure Java MP4 writer instead of MediaMuxer.
+     */
+    void setJavaMuxer(boolean javaMuxer) {
+        muxerFactory.setJavaMuxer(javaMuxer);
+    }
+
+    /**
+     * Write a fragmented MP4 with fragments of at least this duration, -1 for a regular MP4.
+     */
+    void setFragmentDurationUs(long fragmentDurationUs) {
+        muxerFactory.setFragmentDurationUs(fragmentDurationUs);
+    }
+
+    /**
+     * @param pendingMemoryLimit The bytes of the samples encoded before the muxer started kept in
+     *                           memory, the samples beyond are spilled to a temp file.
+     */
+    void setPendingMemoryLimit(long pendingMemoryLimit) {
+        this.pendingMemoryLimit = pendingMemoryLimit;
+    }
+
+    /**
+     * Write the samples to the muxer on a separate thread through a queue of this many samples,
+     * 0 to write them on the thread that drained the codec.
+     */
+    void setAsyncMuxQueueDepth(int asyncMuxQueueDepth) {
+        this.asyncMuxQueueDepth = asyncMuxQueueDepth;
+    }
+
+    /**
+     * Write the moov box in front of the media data with the pure Java MP4 writer.
+     */
+    void setFaststart(boolean faststart) {
+        muxerFactory.setFaststart(faststart);
+    }
+
+    /**
+     * Stream the output to a sink as a fragmented MP4 instead of writing a file.
+     */
+    void setDataSink(DataSink dataSink) {
+        muxerFactory.setDataSink(dataSink);
+    }
+
+    private void throwIfCancelled() {
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+        }
+    }
+
+    /**
+     * @param interleaveWindowUs How far the written presentation times of video and audio may
+     *                           drift apart before only the lagging track is stepped.
+     */
+    void setInterleaveWindowUs(long interleaveWindowUs) {
+        this.interleaveWindowUs = interleaveWindowUs;
+    }
+
+    /**
+     * @return The largest A/V skew of the written presentation times seen during the last job.
+     */
+    long getMaxAvSkewUs() {
+        return maxAvSkewUs;
+    }
+
+    private void waitForPipelines() {
+        throwIfCancelled();
+        try {
+            if (pipelineSignal != null) {
+                pipelineSignal.await(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+            } else {
+                Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+            }
+        } catch (InterruptedException e) {
+            // nothing to do
+        }
+    }
+
+    // 待ち方の比較用に処理時間とCPU時間を出力する
+    private void logPipelineTime(long startNs, long startCpuNs) {
+        logger.debug(TAG, "Pipelines finished (event driven: " + (pipelineSignal != null) + "), wall time (ms): "
+                + (System.nanoTime() - startNs) / 1000000
+                + ", cpu time (ms): " + (Debug.threadCpuTimeNanos() - startCpuNs) / 1000000);
+    }
+
     private void runPipelines() {
         long loopCount = 0;
         if (durationUs <= 0) {
@@ -271,24 +995,20 @@ class Mp4ComposerEngine {
                 progressCallback.onProgress(PROGRESS_UNKNOWN);
             }// unknown
         }
+        InterleaveScheduler scheduler = new InterleaveScheduler(videoComposer, audioComposer, interleaveWindowUs);
         while (!(videoComposer.isFinished() && audioComposer.isFinished())) {
-            boolean stepped = videoComposer.stepPipeline()
-                    || audioComposer.stepPipeline();
+            throwIfCancelled();
+            boolean stepped = scheduler.step();
+            maxAvSkewUs = scheduler.getMaxSkewUs();
             loopCount++;
             if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
                 double videoProgress = videoComposer.isFinished() ? 1.0 : Math.min(1.0, (double) videoComposer.getWrittenPresentationTimeUs() / durationUs);
                 double audioProgress = audioComposer.isFinished() ? 1.0 : Math.min(1.0, (double) audioComposer.getWrittenPresentationTimeUs() / durationUs);
                 double progress = (videoProgress + audioProgress) / 2.0;
-                if (progressCallback != null) {
-                    progressCallback.onProgress(progress);
-                }
+                notifyProgress(progress);
             }
             if (!stepped) {
-                try {
-                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
-                } catch (InterruptedException e) {
-                    // nothing to do
-                }
+                waitForPipelines();
             }
         }
     }
@@ -301,20 +1021,15 @@ class Mp4ComposerEngine {
             } // unknown
         }
         while (!videoComposer.isFinished()) {
+            throwIfCancelled();
             boolean stepped = videoComposer.stepPipeline();
             loopCount++;
             if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
                 double videoProgress = videoComposer.isFinished() ? 1.0 : Math.min(1.0, (double) videoComposer.getWrittenPresentationTimeUs() / durationUs);
-                if (progressCallback != null) {
-                    progressCallback.onProgress(videoProgress);
-                }
+                notifyProgress(videoProgress);
             }
             if (!stepped) {
-                try {
-                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
-                } catch (InterruptedException e) {
-                    // nothing to do
-                }
+                waitForPipelines();
             }
         }
 
@@ -3,7 +3,7 @@ package com.daasuu.mp4compose.composer;
 import android.media.*;
 import android.opengl.EGLContext;
 import android.os.Build;
-import android.util.Log;
+import android.os.Debug;
 import android.util.Size;
 import androidx.annotation.NonNull;
 import com.daasuu.mp4compose.FillMode;
@@ -11,11 +11,18 @@ import com.daasuu.mp4compose.FillModeCustomItem;
 import com.daasuu.mp4compose.Rotation;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.ComposerMetrics;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.TraceRecorder;
+import com.daasuu.mp4compose.muxer.DataSink;
+import com.daasuu.mp4compose.muxer.Muxer;
 import com.daasuu.mp4compose.source.AudioSource;
 import com.daasuu.mp4compose.source.DataSource;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/MediaTranscoderEngine.java
@@ -30,16 +37,34 @@ class Mp4ComposerEngineEx {
     private static final double PROGRESS_UNKNOWN = -1.0;
     private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
     private static final long PROGRESS_INTERVAL_STEPS = 10;
-    private VideoComposerSet videoComposer;
+    private IVideoComposer videoComposer;
+    private VideoComposerSet videoComposerSet;
     private IAudioComposer audioComposer;
     private MediaExtractor mediaExtractor;
     private MediaExtractor audioMediaExtractor;
-    private MediaMuxer mediaMuxer;
+    private Muxer muxer;
+    private MuxRender muxRender;
+    private long pendingMemoryLimit = PendingSampleBuffer.DEFAULT_MEMORY_LIMIT;
+    private int asyncMuxQueueDepth;
+    private final MuxerFactory muxerFactory = new MuxerFactory();
     private Mp4ComposerEngine.ProgressCallback progressCallback;
     private long durationUs;
     private MediaMetadataRetriever mediaMetadataRetriever;
     private MediaMetadataRetriever audioMediaMetadataRetriever;
     private final Logger logger;
+    private PipelineSignal pipelineSignal;
+    private boolean reuseEncoder;
+    private int prefetchSegments = 1;
+    private long[] cutOverGapsUs;
+    private boolean concatCopy;
+    private long interleaveWindowUs = InterleaveScheduler.DEFAULT_INTERLEAVE_WINDOW_US;
+    private long maxAvSkewUs;
+    private int frameRate;
+    private CancellationToken cancellationToken;
+    private ComposerMetrics metrics;
+    private TraceRecorder trace;
+    private MetricsRecorder metricsRecorder;
+    private long cancelLatencyMs = -1;
 
     private long totalDurationUs;
 
@@ -51,6 +76,47 @@ class Mp4ComposerEngineEx {
         this.progressCallback = progressCallback;
     }
 
+    /**
+     * Let codec buffer availability wake up the pipeline loop instead of sleeping a fixed
+     * interval whenever no track made progress. Requires Android 6.0, older devices keep polling.
+     */
+    void setEventDriven(boolean eventDriven) {
+        this.pipelineSignal = eventDriven ? new PipelineSignal() : null;
+    }
+
+    /**
+     * Keep one video encoder and EGL context for all the video tracks instead of tearing them
+     * down at every track boundary.
+     */
+    void setReuseEncoder(boolean reuseEncoder) {
+        this.reuseEncoder = reuseEncoder;
+    }
+
+    /**
+     * Set how many following video tracks get their extractor and decoder prepared in the
+     * background while the current one is composing. 0 prepares each track at its cut.
+     */
+    void setPrefetchSegments(int prefetchSegments) {
+        this.prefetchSegments = prefetchSegments;
+    }
+
+    /**
+     * @return The gap between the last frame of a video track and the first frame of the next
+     * one, per boundary, in microseconds, or null before {@link #compose} ran.
+     */
+    long[] getCutOverGapsUs() {
+        return cutOverGapsUs;
+    }
+
+    /**
+     * Join the clips that are compatible with the first one by copying their samples, and only
+     * re-encode the others. Only set this when the job does not change the pixels: the caller is
+     * responsible for checking the filter, size, flips, speed and bitrate.
+     */
+    void setConcatCopy(boolean concatCopy) {
+        this.concatCopy = concatCopy;
+    }
+
     void compose(
             final VideoTrack[] videoTracks,
             final AudioSource srcAudioSource,
@@ -64,13 +130,15 @@ class Mp4ComposerEngineEx {
             final Size inputResolution,
             final FillMode fillMode,
             final FillModeCustomItem fillModeCustomItem,
-            final int timeScale,
+            final float timeScale,
             final boolean flipVertical,
             final boolean flipHorizontal,
             final long trimStartMs,
             final long trimEndMs,
             final EGLContext shareContext
     ) throws IOException {
+        metricsRecorder = new MetricsRecorder(metrics, trace);
+        metricsRecorder.begin("compose");
 
 
         try {
@@ -83,10 +151,10 @@ class Mp4ComposerEngineEx {
             } else {
                 mediaExtractor.setDataSource(srcDataSource.getFileDescriptor());
             }
-            if (Build.VERSION.SDK_INT >= 26 && destSrc == null) {
-                mediaMuxer = new MediaMuxer(destFileDescriptor, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            } else {
-                mediaMuxer = new MediaMuxer(destSrc, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxerFactory.setExpectedDurationUs((long) (videoTracks[videoTracks.length - 1].getTotalDurationMs() * 1000 / timeScale));
+            muxer = muxerFactory.create(destSrc, destFileDescriptor);
+            if (asyncMuxQueueDepth > 0) {
+                muxer = new AsyncMuxer(muxer, asyncMuxQueueDepth, metricsRecorder, logger);
             }
             mediaMetadataRetriever = new MediaMetadataRetriever();
             if(srcDataSource.getFilePath() != null) {
@@ -101,7 +169,9 @@ class Mp4ComposerEngineEx {
             }
             logger.debug(TAG, "Duration (us): " + durationUs);
 
-            MuxRender muxRender = new MuxRender(mediaMuxer, logger);
+            muxRender = new MuxRender(muxer, logger);
+            muxRender.setMetricsRecorder(metricsRecorder);
+            muxRender.setPendingMemoryLimit(pendingMemoryLimit);
 
             // identify track indices
             MediaFormat format = mediaExtractor.getTrackFormat(0);
@@ -124,30 +194,55 @@ class Mp4ComposerEngineEx {
             } else {
                 audioMediaExtractor = new MediaExtractor();
                 String path = srcAudioSource.getAudioPath();
-                Log.d(TAG, "オーディオファイルを別で設定する。" + path);
+                logger.debug(TAG, "オーディオファイルを別で設定する。" + path);
                 audioMediaExtractor.setDataSource(path);
-                Log.d(TAG, "オーディオファイルを別で設定できた。");
+                logger.debug(TAG, "オーディオファイルを別で設定できた。");
                 audioMediaMetadataRetriever = new MediaMetadataRetriever();
                 audioMediaMetadataRetriever.setDataSource(path);
                 audioTrackIndex = 0;
             }
 
-            final MediaFormat actualVideoOutputFormat = createVideoOutputFormatWithAvailableEncoders(bitrate, outputResolution);
+            final boolean hasAudio = audioMediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_AUDIO) != null && !mute;
 
-            // VideoTracksからVideoComposerSetをつくる
-            videoComposer = new VideoComposerSet(
-                    muxRender,
-                    actualVideoOutputFormat,
-                    timeScale,
-                    outputResolution,
-                    filter,
-                    shareContext
-            );
-            videoComposer.setVideoTracks(videoTracks);
+            ConcatVideoComposer concatVideoComposer = null;
+            if (concatCopy && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+                concatVideoComposer = new ConcatVideoComposer(videoTracks, muxRender, shareContext, logger);
+                if (!concatVideoComposer.isSupported()) {
+                    concatVideoComposer = null;
+                }
+            }
+            if (concatVideoComposer != null) {
+                // 互換性のあるクリップはそのままつなぐ
+                logger.debug(TAG, "Joining the video tracks by copying compatible clips.");
+                muxer.setOrientationHint(concatVideoComposer.getOrientationHint());
+                concatVideoComposer.setWaitForAudioFormat(hasAudio);
+                concatVideoComposer.setCancellationToken(cancellationToken);
+                videoComposer = concatVideoComposer;
+            } else {
+                final MediaFormat actualVideoOutputFormat = createVideoOutputFormatWithAvailableEncoders(bitrate, outputResolution, frameRate);
+
+                // VideoTracksからVideoComposerSetをつくる
+                videoComposerSet = new VideoComposerSet(
+                        muxRender,
+                        actualVideoOutputFormat,
+                        timeScale,
+                        outputResolution,
+                        filter,
+                        shareContext
+                );
+                videoComposerSet.setPipelineSignal(pipelineSignal);
+                videoComposerSet.setLogger(logger);
+                videoComposerSet.setReuseEncoder(reuseEncoder);
+                videoComposerSet.setPrefetchSegments(prefetchSegments);
+                videoComposerSet.setFrameRate(frameRate);
+                videoComposerSet.setCancellationToken(cancellationToken);
+                videoComposerSet.setVideoTracks(videoTracks);
+                videoComposer = videoComposerSet;
+            }
 
             // 総出力時間を得る
             totalDurationUs = videoTracks[videoTracks.length-1].getTotalDurationMs() * 1000;
-            Log.d(TAG, String.format("作業進捗用 total:%d", totalDurationUs));
+            logger.debug(TAG, "作業進捗用 total:" + totalDurationUs);
 
             /*
 
@@ -161,12 +256,15 @@ class Mp4ComposerEngineEx {
 
 
             // setup audio if present and not muted
-            if (audioMediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_AUDIO) != null && !mute) {
+            if (hasAudio) {
                 // has Audio video
                 final MediaFormat inputMediaFormat = audioMediaExtractor.getTrackFormat(audioTrackIndex);
                 final MediaFormat outputMediaFormat = createAudioOutputFormat(inputMediaFormat);
 
-                if (timeScale < 2 && outputMediaFormat.equals(inputMediaFormat)) {
+                if (concatVideoComposer != null && srcAudioSource == null && ConcatAudioComposer.canConcat(videoTracks, logger)) {
+                    // 各クリップの音声も同じようにつなぐ
+                    audioComposer = new ConcatAudioComposer(videoTracks, muxRender, logger);
+                } else if (timeScale == 1 && outputMediaFormat.equals(inputMediaFormat)) {
                     audioComposer = new AudioComposer(audioMediaExtractor, audioTrackIndex, muxRender, trimStartMs, trimEndMs, logger);
                 } else {
                     audioComposer = new RemixAudioComposer(audioMediaExtractor, audioTrackIndex, outputMediaFormat, muxRender, timeScale, trimStartMs, trimEndMs);
@@ -176,18 +274,31 @@ class Mp4ComposerEngineEx {
 
                 audioMediaExtractor.selectTrack(audioTrackIndex);
 
+                long startNs = System.nanoTime();
+                long startCpuNs = Debug.threadCpuTimeNanos();
                 runPipelines();
+                logPipelineTime(startNs, startCpuNs);
+                logger.debug(TAG, "Max A/V skew (us): " + maxAvSkewUs);
             } else {
                 // no audio video
+                long startNs = System.nanoTime();
+                long startCpuNs = Debug.threadCpuTimeNanos();
                 runPipelinesNoAudio();
+                logPipelineTime(startNs, startCpuNs);
             }
 
 
-            mediaMuxer.stop();
+            muxer.stop();
+        } catch (CancellationException e) {
+            throw e;
         } catch(Exception e) {
             e.printStackTrace();
         } finally {
             try {
+                if (videoComposerSet != null) {
+                    cutOverGapsUs = videoComposerSet.getCutOverGapsUs();
+                    videoComposerSet = null;
+                }
                 if (videoComposer != null) {
                     videoComposer.release();
                     videoComposer = null;
@@ -209,13 +320,17 @@ class Mp4ComposerEngineEx {
             } catch (RuntimeException e) {
                 logger.error(TAG, "Could not shutdown mediaExtractor, codecs and mediaMuxer pipeline.", e);
             }
+            if (muxRender != null) {
+                muxRender.release();
+                muxRender = null;
+            }
             try {
-                if (mediaMuxer != null) {
-                    mediaMuxer.release();
-                    mediaMuxer = null;
+                if (muxer != null) {
+                    muxer.release();
+                    muxer = null;
                 }
             } catch (RuntimeException e) {
-                logger.error(TAG, "Failed to release mediaMuxer.", e);
+                logger.error(TAG, "Failed to release muxer.", e);
             }
             try {
                 if (mediaMetadataRetriever != null) {
@@ -231,6 +346,16 @@ class Mp4ComposerEngineEx {
             } catch (RuntimeException e) {
                 logger.error(TAG, "Failed to release mediaMetadataRetriever.", e);
             }
+            if (cancellationToken != null && cancellationToken.isCancelled()) {
+                deletePartialOutput(destSrc);
+                cancelLatencyMs = cancellationToken.getElapsedSinceCancelMs();
+                logger.debug(TAG, "Cancelled, resources released in (ms): " + cancelLatencyMs);
+            }
+            if (metricsRecorder != null) {
+                metricsRecorder.end("compose");
+                metricsRecorder.finish();
+                metricsRecorder = null;
+            }
         }
 
 
@@ -238,28 +363,29 @@ class Mp4ComposerEngineEx {
 
     @NonNull
     private static MediaFormat createVideoOutputFormatWithAvailableEncoders(final int bitrate,
-                                                                            @NonNull final Size outputResolution) {
+                                                                            @NonNull final Size outputResolution,
+                                                                            final int frameRate) {
         final MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
 
         /*
-        final MediaFormat hevcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, bitrate, outputResolution);
+        final MediaFormat hevcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, bitrate, outputResolution, frameRate);
         if (mediaCodecList.findEncoderForFormat(hevcMediaFormat) != null) {
             return hevcMediaFormat;
         }
 
          */
 
-        final MediaFormat avcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, bitrate, outputResolution);
+        final MediaFormat avcMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, bitrate, outputResolution, frameRate);
         if (mediaCodecList.findEncoderForFormat(avcMediaFormat) != null) {
             return avcMediaFormat;
         }
 
-        final MediaFormat mp4vesMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_MPEG4, bitrate, outputResolution);
+        final MediaFormat mp4vesMediaFormat = createVideoFormat(MediaFormat.MIMETYPE_VIDEO_MPEG4, bitrate, outputResolution, frameRate);
         if (mediaCodecList.findEncoderForFormat(mp4vesMediaFormat) != null) {
             return mp4vesMediaFormat;
         }
 
-        return createVideoFormat(MediaFormat.MIMETYPE_VIDEO_H263, bitrate, outputResolution);
+        return createVideoFormat(MediaFormat.MIMETYPE_VIDEO_H263, bitrate, outputResolution, frameRate);
     }
 
     @NonNull
@@ -284,15 +410,16 @@ class Mp4ComposerEngineEx {
     @NonNull
     private static MediaFormat createVideoFormat(@NonNull final String mimeType,
                                                  final int bitrate,
-                                                 @NonNull final Size outputResolution) {
+                                                 @NonNull final Size outputResolution,
+                                                 final int frameRate) {
         final MediaFormat outputFormat =
                 MediaFormat.createVideoFormat(mimeType,
                         outputResolution.getWidth(),
                         outputResolution.getHeight());
 
         outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        // Required but ignored by the encoder
-        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        // Required, used by the encoder for rate control when the frame rate is capped
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate > 0 ? frameRate : 30);
         outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
         outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -301,6 +428,141 @@ class Mp4ComposerEngineEx {
     }
 
 
+    /**
+     * Cap the output frame rate by dropping decoded frames before they are rendered.
+     *
+     * @param frameRate The largest output frame rate, 0 or less for no cap.
+     */
+    void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Stop the job with a {@link CancellationException} once the token is cancelled. The codecs
+     * and the GL state are released and a partial output file is deleted before it is thrown.
+     */
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * @return The time from the cancel request until the resources of the last job were
+     * released in milliseconds, -1 when it was not cancelled.
+     */
+    long getCancelLatencyMs() {
+        return cancelLatencyMs;
+    }
+
+    /**
+     * Report the stage timings and frame counters of the next job to the listener.
+     */
+    void setMetrics(ComposerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Record the pipeline stages, segment switches and codec lifecycle calls of the next job.
+     */
+    void setTrace(TraceRecorder trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Write the output with the pure Java MP4 writer instead of MediaMuxer.
+     */
+    void setJavaMuxer(boolean javaMuxer) {
+        muxerFactory.setJavaMuxer(javaMuxer);
+    }
+
+    /**
+     * Write a fragmented MP4 with fragments of at least this duration, -1 for a regular MP4.
+     */
+    void setFragmentDurationUs(long fragmentDurationUs) {
+        muxerFactory.setFragmentDurationUs(fragmentDurationUs);
+    }
+
+    /**
+     * @param pendingMemoryLimit The bytes of the samples encoded before the muxer started kept in
+     *                           memory, the samples beyond are spilled to a temp file.
+     */
+    void setPendingMemoryLimit(long pendingMemoryLimit) {
+        this.pendingMemoryLimit = pendingMemoryLimit;
+    }
+
+    /**
+     * Write the samples to the muxer on a separate thread through a queue of this many samples,
+     * 0 to write them on the thread that drained the codec.
+     */
+    void setAsyncMuxQueueDepth(int asyncMuxQueueDepth) {
+        this.asyncMuxQueueDepth = asyncMuxQueueDepth;
+    }
+
+    /**
+     * Write the moov box in front of the media data with the pure Java MP4 writer.
+     */
+    void setFaststart(boolean faststart) {
+        muxerFactory.setFaststart(faststart);
+    }
+
+    /**
+     * Stream the output to a sink as a fragmented MP4 instead of writing a file.
+     */
+    void setDataSink(DataSink dataSink) {
+        muxerFactory.setDataSink(dataSink);
+    }
+
+    private void throwIfCancelled() {
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+        }
+    }
+
+    private void deletePartialOutput(final String destSrc) {
+        if (destSrc == null) {
+            // ファイルディスクリプタの出力は呼び出し元が後始末する
+            return;
+        }
+        File output = new File(destSrc);
+        if (output.exists() && !output.delete()) {
+            logger.warning(TAG, "Could not delete the partial output " + destSrc);
+        }
+    }
+
+    /**
+     * @param interleaveWindowUs How far the written presentation times of video and audio may
+     *                           drift apart before only the lagging track is stepped.
+     */
+    void setInterleaveWindowUs(long interleaveWindowUs) {
+        this.interleaveWindowUs = interleaveWindowUs;
+    }
+
+    /**
+     * @return The largest A/V skew of the written presentation times seen during the last job.
+     */
+    long getMaxAvSkewUs() {
+        return maxAvSkewUs;
+    }
+
+    private void waitForPipelines() {
+        throwIfCancelled();
+        try {
+            if (pipelineSignal != null) {
+                pipelineSignal.await(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+            } else {
+                Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+            }
+        } catch (InterruptedException e) {
+            // nothing to do
+        }
+    }
+
+    // 待ち方の比較用に処理時間とCPU時間を出力する
+    private void logPipelineTime(long startNs, long startCpuNs) {
+        logger.debug(TAG, "Pipelines finished (event driven: " + (pipelineSignal != null) + "), wall time (ms): "
+                + (System.nanoTime() - startNs) / 1000000
+                + ", cpu time (ms): " + (Debug.threadCpuTimeNanos() - startCpuNs) / 1000000);
+    }
+
     private void runPipelines() {
         long loopCount = 0;
         if (durationUs <= 0) {
@@ -308,27 +570,29 @@ class Mp4ComposerEngineEx {
                 progressCallback.onProgress(PROGRESS_UNKNOWN);
             }// unknown
         }
+        InterleaveScheduler scheduler = new InterleaveScheduler(videoComposer, audioComposer, interleaveWindowUs);
         while (!(videoComposer.isFinished() && audioComposer.isFinished())) {
-            boolean stepped = videoComposer.stepPipeline()
-                    || audioComposer.stepPipeline();
+            throwIfCancelled();
+            boolean stepped = scheduler.step();
+            maxAvSkewUs = scheduler.getMaxSkewUs();
             loopCount++;
             if (totalDurationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
-                double videoProgress = videoComposer.isFinished() ? 1.0 : Math.min(1.0, (double) videoComposer.getWrittenPresentationTimeUs() / totalDurationUs);
-                Log.d(TAG, String.format("作業進捗 (video) %d / %d (%f)", videoComposer.getWrittenPresentationTimeUs(), totalDurationUs, (double) videoComposer.getWrittenPresentationTimeUs() / totalDurationUs));
-                double audioProgress = audioComposer.isFinished() ? 1.0 : Math.min(1.0, (double) audioComposer.getWrittenPresentationTimeUs() / totalDurationUs);
-                Log.d(TAG, String.format("作業進捗 (audio) %d / %d (%f)", audioComposer.getWrittenPresentationTimeUs(), totalDurationUs, (double) audioComposer.getWrittenPresentationTimeUs() / totalDurationUs));
+                final long videoWrittenUs = videoComposer.getWrittenPresentationTimeUs();
+                final long audioWrittenUs = audioComposer.getWrittenPresentationTimeUs();
+                double videoProgress = videoComposer.isFinished() ? 1.0 : Math.min(1.0, (double) videoWrittenUs / totalDurationUs);
+                double audioProgress = audioComposer.isFinished() ? 1.0 : Math.min(1.0, (double) audioWrittenUs / totalDurationUs);
                 double progress = (videoProgress + audioProgress) / 2.0;
-                Log.d(TAG, String.format("作業進捗 (total) %f", progress));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(TAG, String.format("作業進捗 (video) %d / %d (%f)", videoWrittenUs, totalDurationUs, (double) videoWrittenUs / totalDurationUs));
+                    logger.debug(TAG, String.format("作業進捗 (audio) %d / %d (%f)", audioWrittenUs, totalDurationUs, (double) audioWrittenUs / totalDurationUs));
+                    logger.debug(TAG, String.format("作業進捗 (total) %f", progress));
+                }
                 if (progressCallback != null) {
                     progressCallback.onProgress(progress);
                 }
             }
             if (!stepped) {
-                try {
-                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
-                } catch (InterruptedException e) {
-                    // nothing to do
-                }
+                waitForPipelines();
             }
         }
     }
@@ -341,6 +605,7 @@ class Mp4ComposerEngineEx {
             } // unknown
         }
         while (!videoComposer.isFinished()) {
+            throwIfCancelled();
             boolean stepped = videoComposer.stepPipeline();
             loopCount++;
             if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
@@ -350,11 +615,7 @@ class Mp4ComposerEngineEx {
                 }
             }
             if (!stepped) {
-                try {
-                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
-                } catch (InterruptedException e) {
-                    // nothing to do
-                }
+                waitForPipelines();
             }
         }
 
@@ -17,6 +17,9 @@ import com.daasuu.mp4compose.Rotation;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.AndroidLogger;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.ComposerMetrics;
+import com.daasuu.mp4compose.metrics.TraceRecorder;
+import com.daasuu.mp4compose.muxer.DataSink;
 import com.daasuu.mp4compose.source.AudioSource;
 import com.daasuu.mp4compose.source.DataSource;
 import com.daasuu.mp4compose.source.FileDescriptorDataSource;
@@ -25,8 +28,7 @@ import com.daasuu.mp4compose.source.UriDataSource;
 
 import java.io.FileDescriptor;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
 
 /**
  * Created by sudamasayuki on 2017/11/15.
@@ -35,11 +37,14 @@ import java.util.concurrent.Executors;
 public class Mp4ComposerEx {
 
     private final static String TAG = Mp4Composer.class.getSimpleName();
+    private static final float MIN_SPEED = 0.25f;
+    private static final float MAX_SPEED = 16f;
     //private DataSource srcDataSource = null;
     private ArrayList<VideoEntry> srcDataSource = new ArrayList<VideoEntry>();
     private AudioSource srcAudioSource = null;
     private final String destPath;
     private FileDescriptor destFileDescriptor;
+    private DataSink destSink;
     private GlFilter filter;
     private Size outputResolution;
     private int bitrate = -1;
@@ -48,14 +53,32 @@ public class Mp4ComposerEx {
     private Mp4Composer.Listener listener;
     private FillMode fillMode = FillMode.PRESERVE_ASPECT_FIT;
     private FillModeCustomItem fillModeCustomItem;
-    private int timeScale = 1;
+    private float timeScale = 1;
     private boolean flipVertical = false;
     private boolean flipHorizontal = false;
     private long trimStartMs = 0;
     private long trimEndMs = -1;
     private EGLContext shareContext;
-
-    private ExecutorService executorService;
+    private boolean eventDriven = false;
+    private boolean reuseEncoder = false;
+    private int prefetchSegments = 1;
+    private boolean concatCopy = true;
+    private int frameRate = 0;
+    private volatile long[] cutOverGapsUs;
+    private long interleaveWindowMs = InterleaveScheduler.DEFAULT_INTERLEAVE_WINDOW_US / 1000;
+    private volatile long maxAvSkewUs;
+
+    private int priority = 0;
+    private ComposerMetrics metrics;
+    private TraceRecorder trace;
+    private boolean javaMuxer = false;
+    private long fragmentDurationMs = -1;
+    private long pendingBufferLimit = PendingSampleBuffer.DEFAULT_MEMORY_LIMIT;
+    private int asyncMuxQueueDepth = 0;
+    private boolean faststart = false;
+    private ComposerQueue.Job job;
+    private final CancellationToken cancellationToken = new CancellationToken();
+    private volatile long cancelLatencyMs = -1;
 
     private Logger logger;
 
@@ -108,6 +131,32 @@ public class Mp4ComposerEx {
         this.destFileDescriptor = destFileDescriptor;
     }
 
+    /**
+     * Stream the output to a sink, such as a socket or an upload, instead of a file. The output
+     * is a fragmented MP4 written front to back with the built-in MP4 writer, see
+     * {@link #fragmentDuration(long)}, the fragments are 2 seconds long unless set.
+     */
+    public Mp4ComposerEx(@NonNull final String srcPath, @NonNull final DataSink destSink, final long trimStartMs, final long trimEndMs, final long outputStartMs) {
+        VideoEntry entry = VideoEntry.create(srcPath, trimStartMs, trimEndMs, outputStartMs, logger, errorDataSource);
+        this.srcDataSource.add(entry);
+        this.destPath = null;
+        this.destSink = destSink;
+    }
+
+    public Mp4ComposerEx(@NonNull final FileDescriptor srcFileDescriptor, @NonNull final DataSink destSink, final long trimStartMs, final long trimEndMs, final long outputStartMs) {
+        VideoEntry entry = VideoEntry.create(srcFileDescriptor, trimStartMs, trimEndMs, outputStartMs);
+        this.srcDataSource.add(entry);
+        this.destPath = null;
+        this.destSink = destSink;
+    }
+
+    public Mp4ComposerEx(@NonNull final Uri srcUri, @NonNull final DataSink destSink, @NonNull final Context context, final long trimStartMs, final long trimEndMs, final long outputStartMs) {
+        VideoEntry entry = VideoEntry.create(srcUri, trimStartMs, trimEndMs, outputStartMs, context, logger, errorDataSource);
+        this.srcDataSource.add(entry);
+        this.destPath = null;
+        this.destSink = destSink;
+    }
+
     public Mp4ComposerEx video(final VideoEntry entry) {
         this.srcDataSource.add(entry);
         return this;
@@ -191,7 +240,21 @@ public class Mp4ComposerEx {
     }
 
     public Mp4ComposerEx timeScale(final int timeScale) {
-        this.timeScale = timeScale;
+        this.timeScale = timeScale < 2 ? 1 : timeScale;
+        return this;
+    }
+
+    /**
+     * Change the playback speed by a fractional factor. The video keeps the output frame rate
+     * (see {@link #frameRate(int)}, 30 if not set): when speeding up only the frames that are
+     * kept are rendered and encoded, and frames the decoder does not need are not decoded
+     * either; in slow motion frames are repeated.
+     *
+     * @param speed The speed factor, from 0.25 to 16. 2.0 plays twice as fast.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx speed(final float speed) {
+        this.timeScale = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
         return this;
     }
 
@@ -224,22 +287,246 @@ public class Mp4ComposerEx {
         return this;
     }
 
-    private ExecutorService getExecutorService() {
-        if (executorService == null) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        return executorService;
+    /**
+     * Wake up the composing loop from the codec callbacks instead of polling the codecs and
+     * sleeping while they are busy. Only effective on Android 6.0 and above.
+     *
+     * @param eventDriven true to use the codec callbacks.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx eventDriven(final boolean eventDriven) {
+        this.eventDriven = eventDriven;
+        return this;
+    }
+
+    /**
+     * Keep one video encoder, EGL context and compiled filter for the whole timeline and only
+     * swap the extractor and decoder at every clip boundary. Output timestamps stay continuous.
+     *
+     * @param reuseEncoder true to share the encoder between the clips.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx reuseEncoder(final boolean reuseEncoder) {
+        this.reuseEncoder = reuseEncoder;
+        return this;
+    }
+
+    /**
+     * Set how many following clips get their extractor seeked and their decoder created in the
+     * background while the current clip is composing, so the encoder does not sit idle at the
+     * cuts. Default is 1, 0 disables the look-ahead.
+     *
+     * @param prefetchSegments The number of clips to prepare ahead.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx prefetchSegments(final int prefetchSegments) {
+        this.prefetchSegments = prefetchSegments;
+        return this;
+    }
+
+    /**
+     * Allow joining the clips without re-encoding when the job does not change the pixels: no
+     * filter, no rotation, no size change, no flip, no speed change and no bitrate given. Clips with the same
+     * codec, size, rotation and SPS/PPS as the first one are copied, with only the partial GOPs
+     * at their trim points re-encoded, and their audio is joined the same way when all clips
+     * share one audio format. The other clips are re-encoded. Needs H.264 or H.265 and
+     * Android 7.1. Default is true.
+     *
+     * @param concatCopy false to always re-encode the clips.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx concatCopy(final boolean concatCopy) {
+        this.concatCopy = concatCopy;
+        return this;
+    }
+
+    /**
+     * Cap the output frame rate. Decoded frames above the cap are dropped before they are
+     * rendered, the kept frames are evenly spaced and the encoder is configured with the same
+     * frame rate. The video is then always re-encoded. Default is 0 (no cap).
+     *
+     * @param frameRate The largest output frame rate in frames per second, 0 for no cap.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx frameRate(final int frameRate) {
+        this.frameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * Set how far apart the written video and audio presentation times may drift before the
+     * composer only advances the lagging track. Default is 500 ms.
+     *
+     * @param interleaveWindowMs The interleave window in milliseconds.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx interleaveWindow(final long interleaveWindowMs) {
+        this.interleaveWindowMs = interleaveWindowMs;
+        return this;
+    }
+
+    /**
+     * @return The largest A/V skew of the written presentation times seen during the last
+     * composition, in microseconds.
+     */
+    public long getMaxAvSkewUs() {
+        return maxAvSkewUs;
+    }
+
+    /**
+     * Measure where the time goes inside the composition. The listener gets the time of every
+     * extractor read, decoder dequeue, wait for the decoded image, filter draw, buffer swap,
+     * encoder dequeue and muxer write as it happens, and at the end latency histograms of each
+     * stage, the decoded, rendered, dropped and encoded frame counts and the achieved fps.
+     * Nothing is measured without a listener. Default is null.
+     *
+     * @param metrics The listener, called on the composing threads.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx metrics(@Nullable final ComposerMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Record begin / end events of the pipeline stages, segment switches and codec lifecycle
+     * calls into the given recorder, to be exported with {@link TraceRecorder#writeJson} and
+     * viewed in Perfetto or about:tracing. Recording does not allocate, so it can be enabled for
+     * a sample of production jobs. Default is null (no trace).
+     *
+     * @param trace The recorder, may be shared by several compositions.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx trace(@Nullable final TraceRecorder trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    /**
+     * Write the output with the built-in MP4 writer instead of MediaMuxer. It batches the file
+     * writes into large blocks, interleaves the tracks in chunks of about one second and keeps
+     * the sample tables in primitive arrays. H.264, H.265 and AAC tracks only. Default is false.
+     *
+     * @param javaMuxer true to use the built-in MP4 writer.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx javaMuxer(final boolean javaMuxer) {
+        this.javaMuxer = javaMuxer;
+        return this;
+    }
+
+    /**
+     * Write a fragmented MP4 (moov first, then moof / mdat fragments) with the built-in MP4
+     * writer. Each fragment starts at a video key frame and is flushed to the file when
+     * complete, so the output is playable and can be uploaded while the composition is still
+     * running, the muxer memory does not grow with the length and a crash keeps the written
+     * fragments. Default is -1 (regular MP4).
+     *
+     * @param fragmentDurationMs The shortest fragment duration in milliseconds, 0 to start a
+     *                           fragment at every key frame, -1 to disable.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx fragmentDuration(final long fragmentDurationMs) {
+        this.fragmentDurationMs = fragmentDurationMs;
+        return this;
+    }
+
+    /**
+     * Set how much of the samples encoded before the muxer starts is kept in memory. The muxer
+     * starts once the output format of every track is known, until then the samples are kept
+     * in pooled off-heap blocks and the ones beyond this limit are spilled to a temp file.
+     * Default is 8 MB.
+     *
+     * @param pendingBufferLimit The limit in bytes, 0 to spill every sample.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx pendingBufferLimit(final long pendingBufferLimit) {
+        this.pendingBufferLimit = pendingBufferLimit;
+        return this;
+    }
+
+    /**
+     * Write the encoded samples to the muxer on a separate writer thread. The samples are copied
+     * into reused buffers and queued, so a slow storage write (a slow SD card, another app
+     * syncing) does not stall the encoders; the writer writes everything queued in one pass.
+     * When the queue is full the encoders wait for the writer. Default is 0 (write on the
+     * codec thread).
+     *
+     * @param queueDepth The number of samples that can be queued, 0 to disable.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx asyncMuxWriter(final int queueDepth) {
+        this.asyncMuxQueueDepth = queueDepth;
+        return this;
+    }
+
+    /**
+     * Write the moov box in front of the media data, so the output can be played while it is
+     * downloaded, with the built-in MP4 writer. The space for the moov box is reserved when
+     * writing starts, estimated from the duration, so no second pass over the file is needed;
+     * only if the estimate was too small is the media data moved once. Ignored for a fragmented
+     * output. Default is false.
+     *
+     * @param faststart true to write the moov box first.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx faststart(final boolean faststart) {
+        this.faststart = faststart;
+        return this;
+    }
+
+    /**
+     * @return The time from {@link #cancel()} until the codecs and the GL state of the running
+     * composition were released, in milliseconds, or -1 when it was not cancelled while running.
+     */
+    public long getCancelLatencyMs() {
+        return cancelLatencyMs;
+    }
+
+    /**
+     * @return The time between the last rendered frame of a clip and the first rendered frame of
+     * the next one during the last composition, per boundary, in microseconds.
+     */
+    public long[] getCutOverGapsUs() {
+        return cutOverGapsUs;
+    }
+
+    /**
+     * Set the priority of this composition on the {@link ComposerQueue}. Jobs with a higher
+     * priority start first, jobs of the same priority in the order they were started.
+     * Default is 0.
+     *
+     * @param priority The priority of the job.
+     * @return The composer instance.
+     */
+    public Mp4ComposerEx priority(final int priority) {
+        this.priority = priority;
+        return this;
     }
 
 
     public Mp4ComposerEx start() {
-        getExecutorService().execute(new Runnable() {
+        job = ComposerQueue.getInstance().submit(new Runnable() {
             @Override
             public void run() {
                 if (logger == null) {
                     logger = new AndroidLogger();
                 }
                 Mp4ComposerEngineEx engine = new Mp4ComposerEngineEx(logger);
+                engine.setEventDriven(eventDriven);
+                engine.setReuseEncoder(reuseEncoder);
+                engine.setPrefetchSegments(prefetchSegments);
+                engine.setInterleaveWindowUs(interleaveWindowMs * 1000);
+                engine.setFrameRate(frameRate);
+                engine.setCancellationToken(cancellationToken);
+                engine.setMetrics(metrics);
+                engine.setTrace(trace);
+                engine.setJavaMuxer(javaMuxer);
+                engine.setFragmentDurationUs(fragmentDurationMs < 0 ? -1 : fragmentDurationMs * 1000);
+                engine.setDataSink(destSink);
+                engine.setPendingMemoryLimit(pendingBufferLimit);
+                engine.setAsyncMuxQueueDepth(asyncMuxQueueDepth);
+                engine.setFaststart(faststart);
 
                 engine.setProgressCallback(new Mp4ComposerEngine.ProgressCallback() {
                     @Override
@@ -287,9 +574,24 @@ public class Mp4ComposerEx {
                     }
                 }
 
-                if (timeScale < 2) {
-                    timeScale = 1;
+                final Size sourceOutputResolution;
+                final Rotation sourceRotate = Rotation.fromInt(rotation.getRotation() + videoRotate);
+                if (sourceRotate == Rotation.ROTATION_90 || sourceRotate == Rotation.ROTATION_270) {
+                    sourceOutputResolution = new Size(srcVideoResolution.getHeight(), srcVideoResolution.getWidth());
+                } else {
+                    sourceOutputResolution = srcVideoResolution;
                 }
+                // 画素を変えない場合はクリップをそのままつなげる
+                engine.setConcatCopy(concatCopy
+                        && rotation == Rotation.NORMAL
+                        && filter.getClass() == GlFilter.class
+                        && fillMode != FillMode.CUSTOM
+                        && outputResolution.equals(sourceOutputResolution)
+                        && !flipVertical
+                        && !flipHorizontal
+                        && timeScale == 1
+                        && bitrate < 0
+                        && frameRate <= 0);
 
                 if (shareContext == null) {
                     shareContext = EGL14.EGL_NO_CONTEXT;
@@ -333,7 +635,16 @@ public class Mp4ComposerEx {
                             trimEndMs,
                             shareContext
                     );
-
+                    maxAvSkewUs = engine.getMaxAvSkewUs();
+                    cutOverGapsUs = engine.getCutOverGapsUs();
+
+                } catch (CancellationException e) {
+                    cancelLatencyMs = engine.getCancelLatencyMs();
+                    logger.debug(TAG, "Cancelled in (ms): " + cancelLatencyMs);
+                    if (listener != null) {
+                        listener.onCanceled();
+                    }
+                    return;
                 } catch (Exception e) {
                     if (e instanceof MediaCodec.CodecException) {
                         logger.error(TAG, "This devicel cannot codec with that setting. Check width, height, bitrate and video format.", e);
@@ -349,24 +660,33 @@ public class Mp4ComposerEx {
                 if (listener != null) {
                     listener.onCompleted();
                 }
-                executorService.shutdown();
             }
-        });
+        }, getJobType(), priority);
 
         return this;
     }
 
+    // クリップをつなぐ場合も境目はエンコードし直すので常にエンコードとして扱う
+    private ComposerQueue.JobType getJobType() {
+        return ComposerQueue.JobType.TRANSCODE;
+    }
+
     private void notifyListenerOfFailureAndShutdown(final Exception failure) {
         if (listener != null) {
             listener.onFailed(failure);
         }
-        if (executorService != null) {
-            executorService.shutdown();
-        }
     }
 
+    /**
+     * Stop the composition. A waiting one is removed from the {@link ComposerQueue}, a running one
+     * stops at its next pipeline step or wait, releases its codecs and deletes the partial output
+     * file. {@link Listener#onCanceled()} is called in both cases.
+     */
     public void cancel() {
-        getExecutorService().shutdownNow();
+        cancellationToken.cancel();
+        if (job != null && ComposerQueue.getInstance().cancel(job) && listener != null) {
+            listener.onCanceled();
+        }
     }
 
 
@@ -2,41 +2,63 @@ package com.daasuu.mp4compose.composer;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 
 import androidx.annotation.NonNull;
 
 import com.daasuu.mp4compose.SampleType;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.Stage;
+import com.daasuu.mp4compose.muxer.Muxer;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/QueuedMuxer.java
 
+// The video track may be written from its own thread (see VideoComposer#setPipelined), so the
+// public entry points are synchronized.
 class MuxRender {
 
     private static final String TAG = "MuxRender";
-    private static final int BUFFER_SIZE = 64 * 1024; // I have no idea whether this value is appropriate or not...
-    private final MediaMuxer muxer;
+    private final Muxer muxer;
     private MediaFormat videoFormat;
     private MediaFormat audioFormat;
     private int videoTrackIndex;
     private int audioTrackIndex;
-    private ByteBuffer byteBuffer;
-    private final List<SampleInfo> sampleInfoList;
+    private PendingSampleBuffer pendingSamples;
+    private long pendingMemoryLimit = PendingSampleBuffer.DEFAULT_MEMORY_LIMIT;
     private boolean started;
     private final Logger logger;
+    private MetricsRecorder metrics = MetricsRecorder.DISABLED;
 
-    MuxRender(@NonNull MediaMuxer muxer, @NonNull Logger logger) {
+    MuxRender(@NonNull Muxer muxer, @NonNull Logger logger) {
         this.muxer = muxer;
         this.logger = logger;
-        sampleInfoList = new ArrayList<>();
     }
 
-    void setOutputFormat(SampleType sampleType, MediaFormat format) {
+    /**
+     * @param pendingMemoryLimit The bytes of the samples written before the muxer started kept
+     *                           in memory, the samples beyond are spilled to a temp file.
+     */
+    void setPendingMemoryLimit(long pendingMemoryLimit) {
+        this.pendingMemoryLimit = pendingMemoryLimit;
+    }
+
+    /**
+     * Every composer of a job writes through the same MuxRender, so the composers take the
+     * recorder of the job from here. Must be set before the composers are created.
+     */
+    void setMetricsRecorder(@NonNull MetricsRecorder metrics) {
+        this.metrics = metrics;
+    }
+
+    @NonNull
+    MetricsRecorder getMetricsRecorder() {
+        return metrics;
+    }
+
+    synchronized void setOutputFormat(SampleType sampleType, MediaFormat format) {
         switch (sampleType) {
             case VIDEO:
                 videoFormat = format;
@@ -49,7 +71,18 @@ class MuxRender {
         }
     }
 
-    void onSetOutputFormat() {
+    synchronized boolean hasOutputFormat(SampleType sampleType) {
+        switch (sampleType) {
+            case VIDEO:
+                return videoFormat != null;
+            case AUDIO:
+                return audioFormat != null;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    synchronized void onSetOutputFormat() {
 
         if (videoFormat != null && audioFormat != null) {
 
@@ -68,37 +101,56 @@ class MuxRender {
         muxer.start();
         started = true;
 
-        if (byteBuffer == null) {
-            byteBuffer = ByteBuffer.allocate(0);
+        if (pendingSamples == null) {
+            return;
         }
-        byteBuffer.flip();
-        logger.debug(TAG, "Output format determined, writing " + sampleInfoList.size() +
-                " samples / " + byteBuffer.limit() + " bytes to muxer.");
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int offset = 0;
-        for (SampleInfo sampleInfo : sampleInfoList) {
-            sampleInfo.writeToBufferInfo(bufferInfo, offset);
-            muxer.writeSampleData(getTrackIndexForSampleType(sampleInfo.sampleType), byteBuffer, bufferInfo);
-            offset += sampleInfo.size;
+        logger.debug(TAG, "Output format determined, writing " + pendingSamples.getSampleCount() +
+                " samples / " + pendingSamples.getBytes() + " bytes (" + pendingSamples.getSpilledBytes() +
+                " spilled) to muxer.");
+        metrics.recordPendingSamples(pendingSamples.getSampleCount(), pendingSamples.getBytes(),
+                pendingSamples.getSpilledBytes());
+        try {
+            pendingSamples.drain(new PendingSampleBuffer.SampleWriter() {
+                @Override
+                public void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+                    muxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the samples written before start", e);
+        } finally {
+            pendingSamples.release();
+            pendingSamples = null;
         }
-        sampleInfoList.clear();
-        byteBuffer = null;
-
+    }
 
+    /**
+     * Drop the samples still waiting for the muxer to start, when the composition failed.
+     */
+    synchronized void release() {
+        if (pendingSamples != null) {
+            pendingSamples.release();
+            pendingSamples = null;
+        }
     }
 
-    void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+    synchronized void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
         if (started) {
+            long startNs = metrics.now();
             muxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
+            metrics.record(Stage.MUX_WRITE, startNs);
             return;
         }
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
         byteBuf.position(bufferInfo.offset);
-        if (byteBuffer == null) {
-            byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        if (pendingSamples == null) {
+            pendingSamples = new PendingSampleBuffer(pendingMemoryLimit);
+        }
+        try {
+            pendingSamples.add(sampleType, byteBuf, bufferInfo);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not spill a sample written before start", e);
         }
-        byteBuffer.put(byteBuf);
-        sampleInfoList.add(new SampleInfo(sampleType, bufferInfo.size, bufferInfo));
     }
 
     private int getTrackIndexForSampleType(SampleType sampleType) {
@@ -112,22 +164,4 @@ class MuxRender {
         }
     }
 
-    private static class SampleInfo {
-        private final SampleType sampleType;
-        private final int size;
-        private final long presentationTimeUs;
-        private final int flags;
-
-        private SampleInfo(SampleType sampleType, int size, MediaCodec.BufferInfo bufferInfo) {
-            this.sampleType = sampleType;
-            this.size = size;
-            presentationTimeUs = bufferInfo.presentationTimeUs;
-            flags = bufferInfo.flags;
-        }
-
-        private void writeToBufferInfo(MediaCodec.BufferInfo bufferInfo, int offset) {
-            bufferInfo.set(offset, size, presentationTimeUs, flags);
-        }
-    }
-
 }
@@ -0,0 +1,90 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.muxer.AndroidMediaMuxer;
+import com.daasuu.mp4compose.muxer.DataSink;
+import com.daasuu.mp4compose.muxer.Mp4Muxer;
+import com.daasuu.mp4compose.muxer.Muxer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Creates the muxer of the output according to the options of the composition.
+ */
+class MuxerFactory {
+
+    // シークできない出力の断片の長さの既定値
+    private static final long DEFAULT_SINK_FRAGMENT_DURATION_US = 2000000;
+
+    private boolean javaMuxer;
+    private long fragmentDurationUs = -1;
+    private DataSink dataSink;
+    private boolean faststart;
+    private long expectedDurationUs = -1;
+
+    /**
+     * Write the output with {@link Mp4Muxer} instead of MediaMuxer.
+     */
+    void setJavaMuxer(boolean javaMuxer) {
+        this.javaMuxer = javaMuxer;
+    }
+
+    /**
+     * Write a fragmented MP4 with {@link Mp4Muxer}, a new fragment starting at the first key
+     * frame after this duration. -1 for a regular MP4.
+     */
+    void setFragmentDurationUs(long fragmentDurationUs) {
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Write the moov box in front of the media data with {@link Mp4Muxer}, into space reserved
+     * for it when writing starts.
+     */
+    void setFaststart(boolean faststart) {
+        this.faststart = faststart;
+    }
+
+    /**
+     * The expected duration of the output, to estimate the space of the moov box for
+     * faststart. -1 if unknown.
+     */
+    void setExpectedDurationUs(long expectedDurationUs) {
+        this.expectedDurationUs = expectedDurationUs;
+    }
+
+    /**
+     * Stream the output to a sink instead of a file. It is always fragmented, with fragments of
+     * 2 seconds unless {@link #setFragmentDurationUs(long)} is set.
+     */
+    void setDataSink(DataSink dataSink) {
+        this.dataSink = dataSink;
+    }
+
+    @NonNull
+    Muxer create(String destSrc, FileDescriptor destFileDescriptor) throws IOException {
+        if (dataSink != null) {
+            Mp4Muxer muxer = new Mp4Muxer(dataSink);
+            muxer.setFragmentDuration(fragmentDurationUs >= 0 ? fragmentDurationUs : DEFAULT_SINK_FRAGMENT_DURATION_US);
+            return muxer;
+        }
+        if (javaMuxer || fragmentDurationUs >= 0 || faststart) {
+            Mp4Muxer muxer = destSrc != null ? new Mp4Muxer(destSrc) : new Mp4Muxer(destFileDescriptor);
+            if (fragmentDurationUs >= 0) {
+                muxer.setFragmentDuration(fragmentDurationUs);
+            } else if (faststart) {
+                muxer.setFaststart(expectedDurationUs);
+            }
+            return muxer;
+        }
+        if (Build.VERSION.SDK_INT >= 26 && destSrc == null) {
+            return new AndroidMediaMuxer(new MediaMuxer(destFileDescriptor, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+        }
+        return new AndroidMediaMuxer(new MediaMuxer(destSrc, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+    }
+}
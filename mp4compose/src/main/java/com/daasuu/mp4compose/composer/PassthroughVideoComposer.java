@@ -0,0 +1,123 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.SampleType;
+import com.daasuu.mp4compose.logger.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+// 映像を再エンコードせずにそのままコピーする
+// Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/PassThroughTrackTranscoder.java
+class PassthroughVideoComposer implements IVideoComposer {
+
+    private static final String TAG = "PassthroughVideoComposer";
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+    private final MediaExtractor mediaExtractor;
+    private final int trackIndex;
+    private final MuxRender muxRender;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final ByteBuffer buffer;
+    private boolean formatRegistered;
+    private boolean waitForAudioFormat;
+    private boolean isEOS;
+    private long writtenPresentationTimeUs;
+
+    private final long trimEndUs;
+
+    private final Logger logger;
+
+    /**
+     * Copies the compressed samples of the video track. The copy starts at the sync sample at
+     * or before the trim start and stops at the first sample, in decoding order, at or after the
+     * trim end, so the output always starts with a key frame.
+     */
+    PassthroughVideoComposer(@NonNull MediaExtractor mediaExtractor, int trackIndex,
+                             @NonNull MuxRender muxRender, long trimStartMs, long trimEndMs,
+                             @NonNull Logger logger) {
+        this.mediaExtractor = mediaExtractor;
+        this.trackIndex = trackIndex;
+        this.muxRender = muxRender;
+        this.trimEndUs = trimEndMs == -1 ? trimEndMs : TimeUnit.MILLISECONDS.toMicros(trimEndMs);
+        this.logger = logger;
+
+        final MediaFormat format = mediaExtractor.getTrackFormat(trackIndex);
+        if (format.containsKey("rotation-degrees")) {
+            // 回転は MediaMuxer#setOrientationHint で書く
+            format.setInteger("rotation-degrees", 0);
+        }
+        muxRender.setOutputFormat(SampleType.VIDEO, format);
+        // 大きすぎるサンプルは readSampleData が例外にするので、最大のサンプルに合わせて確保する
+        final int bufferSize;
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufferSize = Math.max(MIN_BUFFER_SIZE, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        } else {
+            bufferSize = Math.max(MIN_BUFFER_SIZE, format.getInteger(MediaFormat.KEY_WIDTH) * format.getInteger(MediaFormat.KEY_HEIGHT));
+        }
+        logger.debug(TAG, "Sample buffer size: " + bufferSize);
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        mediaExtractor.selectTrack(trackIndex);
+        mediaExtractor.seekTo(TimeUnit.MILLISECONDS.toMicros(trimStartMs), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    /**
+     * Hold back the muxer start until the audio composer has set its output format. Must be
+     * set when an audio track will be written.
+     */
+    void setWaitForAudioFormat(boolean waitForAudioFormat) {
+        this.waitForAudioFormat = waitForAudioFormat;
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        if (isEOS) return false;
+        if (!formatRegistered) {
+            if (waitForAudioFormat && !muxRender.hasOutputFormat(SampleType.AUDIO)) {
+                return false;
+            }
+            muxRender.onSetOutputFormat();
+            formatRegistered = true;
+        }
+        int trackIndex = mediaExtractor.getSampleTrackIndex();
+        if (trackIndex < 0 || (trackIndex == this.trackIndex && trimEndUs != -1 && mediaExtractor.getSampleTime() >= trimEndUs)) {
+            buffer.clear();
+            bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            muxRender.writeSampleData(SampleType.VIDEO, buffer, bufferInfo);
+            isEOS = true;
+            return true;
+        }
+        if (trackIndex != this.trackIndex) return false;
+
+        buffer.clear();
+        int sampleSize = mediaExtractor.readSampleData(buffer, 0);
+        boolean isKeyFrame = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        bufferInfo.set(0, sampleSize, mediaExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxRender.writeSampleData(SampleType.VIDEO, buffer, bufferInfo);
+
+        writtenPresentationTimeUs = mediaExtractor.getSampleTime();
+        mediaExtractor.advance();
+        return true;
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isEOS;
+    }
+
+    @Override
+    public void release() {
+        // do nothing
+    }
+}
@@ -0,0 +1,224 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.SampleType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The samples written before the muxer started, while the output format of a track is still
+ * unknown. The data is kept off-heap in blocks taken from a pool shared by all compositions,
+ * up to a memory limit; the samples beyond it are spilled to a temp file. The sample metadata
+ * is kept in arrays that grow by doubling, so nothing is allocated per sample.
+ */
+class PendingSampleBuffer {
+
+    static final long DEFAULT_MEMORY_LIMIT = 8 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BLOCKS = 32;
+    private static final int INITIAL_SAMPLES = 64;
+
+    // 変換をまたいで使い回すブロック
+    private static final ConcurrentLinkedQueue<ByteBuffer> blockPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBlocks = new AtomicInteger();
+
+    interface SampleWriter {
+        void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+    }
+
+    private final long memoryLimit;
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    private long memoryBytes;
+
+    private SampleType[] sampleTypes = new SampleType[INITIAL_SAMPLES];
+    private int[] sizes = new int[INITIAL_SAMPLES];
+    private long[] timesUs = new long[INITIAL_SAMPLES];
+    private int[] flags = new int[INITIAL_SAMPLES];
+    private int sampleCount;
+
+    // 上限を超えた後のサンプルはすべてファイルに書く
+    private int firstSpilledSample = -1;
+    private File spillFile;
+    private FileChannel spillChannel;
+    private long spilledBytes;
+    private ByteBuffer scratch;
+
+    /**
+     * @param memoryLimit The bytes kept in memory, the samples beyond are spilled to a file.
+     */
+    PendingSampleBuffer(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Copy a sample, from the position to the limit of the buffer.
+     */
+    void add(@NonNull SampleType sampleType, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+        final int size = data.remaining();
+        if (firstSpilledSample < 0 && memoryBytes + size > memoryLimit) {
+            spillFile = File.createTempFile("mp4compose-pending", ".tmp");
+            spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            firstSpilledSample = sampleCount;
+        }
+        if (firstSpilledSample < 0) {
+            putInMemory(data);
+        } else {
+            while (data.hasRemaining()) {
+                spillChannel.write(data);
+            }
+            spilledBytes += size;
+        }
+
+        if (sampleCount == sizes.length) {
+            int capacity = sampleCount * 2;
+            sampleTypes = Arrays.copyOf(sampleTypes, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            timesUs = Arrays.copyOf(timesUs, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        sampleTypes[sampleCount] = sampleType;
+        sizes[sampleCount] = size;
+        timesUs[sampleCount] = bufferInfo.presentationTimeUs;
+        flags[sampleCount] = bufferInfo.flags;
+        sampleCount++;
+    }
+
+    private void putInMemory(ByteBuffer data) {
+        final int limit = data.limit();
+        while (data.hasRemaining()) {
+            ByteBuffer block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            if (block == null || !block.hasRemaining()) {
+                block = obtainBlock();
+                blocks.add(block);
+            }
+            final int length = Math.min(block.remaining(), data.remaining());
+            data.limit(data.position() + length);
+            block.put(data);
+            data.limit(limit);
+            memoryBytes += length;
+        }
+    }
+
+    /**
+     * Write the samples in the order they were added. A sample within one block is written
+     * straight from the block, the others are gathered into one reused buffer.
+     */
+    void drain(@NonNull SampleWriter writer) throws IOException {
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        long memoryPosition = 0;
+        long spillPosition = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            final int size = sizes[i];
+            final ByteBuffer sample;
+            final int offset;
+            if (firstSpilledSample < 0 || i < firstSpilledSample) {
+                final int blockIndex = (int) (memoryPosition / BLOCK_SIZE);
+                final int blockOffset = (int) (memoryPosition % BLOCK_SIZE);
+                if (blockOffset + size <= BLOCK_SIZE) {
+                    sample = blocks.get(blockIndex);
+                    sample.clear();
+                    offset = blockOffset;
+                } else {
+                    sample = gather(blockIndex, blockOffset, size);
+                    offset = 0;
+                }
+                memoryPosition += size;
+            } else {
+                sample = obtainScratch(size);
+                while (sample.hasRemaining()) {
+                    if (spillChannel.read(sample, spillPosition + sample.position()) < 0) {
+                        throw new IOException("Pending samples file is truncated");
+                    }
+                }
+                sample.flip();
+                offset = 0;
+                spillPosition += size;
+            }
+            bufferInfo.set(offset, size, timesUs[i], flags[i]);
+            writer.writeSampleData(sampleTypes[i], sample, bufferInfo);
+        }
+    }
+
+    private ByteBuffer gather(int blockIndex, int blockOffset, int size) {
+        final ByteBuffer sample = obtainScratch(size);
+        while (sample.hasRemaining()) {
+            final ByteBuffer block = blocks.get(blockIndex++);
+            block.limit(Math.min(BLOCK_SIZE, blockOffset + sample.remaining())).position(blockOffset);
+            sample.put(block);
+            blockOffset = 0;
+        }
+        sample.flip();
+        return sample;
+    }
+
+    private ByteBuffer obtainScratch(int size) {
+        if (scratch == null || scratch.capacity() < size) {
+            scratch = ByteBuffer.allocateDirect(Math.max(size, BLOCK_SIZE));
+        }
+        scratch.clear().limit(size);
+        return scratch;
+    }
+
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return The bytes of all samples, in memory and spilled.
+     */
+    long getBytes() {
+        return memoryBytes + spilledBytes;
+    }
+
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Give the blocks back to the pool and delete the spill file.
+     */
+    void release() {
+        for (ByteBuffer block : blocks) {
+            if (pooledBlocks.incrementAndGet() <= MAX_POOLED_BLOCKS) {
+                block.clear();
+                blockPool.offer(block);
+            } else {
+                pooledBlocks.decrementAndGet();
+            }
+        }
+        blocks.clear();
+        scratch = null;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException ignored) {
+            }
+            spillChannel = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    private static ByteBuffer obtainBlock() {
+        final ByteBuffer block = blockPool.poll();
+        if (block == null) {
+            return ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        pooledBlocks.decrementAndGet();
+        return block;
+    }
+}
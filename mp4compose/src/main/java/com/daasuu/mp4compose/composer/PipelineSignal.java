@@ -0,0 +1,35 @@
+package com.daasuu.mp4compose.composer;
+
+/**
+ * Wakes up the composing thread as soon as one of the codecs reports that it has work
+ * available, so the pipeline loop does not have to sleep a fixed interval while idle.
+ */
+class PipelineSignal {
+
+    private final Object lock = new Object();
+    private boolean signaled;
+
+    /**
+     * Called from the codec callback thread when an input or output buffer became available.
+     */
+    void signal() {
+        synchronized (lock) {
+            signaled = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until {@link #signal()} is called or the timeout elapses, whichever comes first.
+     *
+     * @param timeoutMs Upper bound of the wait in milliseconds.
+     */
+    void await(long timeoutMs) throws InterruptedException {
+        synchronized (lock) {
+            if (!signaled) {
+                lock.wait(timeoutMs);
+            }
+            signaled = false;
+        }
+    }
+}
@@ -21,13 +21,16 @@ class RemixAudioComposer implements IAudioComposer {
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
+    private static final int AAC_FRAME_SAMPLES = 1024;
 
     private final MediaExtractor extractor;
     private final MuxRender muxer;
     private long writtenPresentationTimeUs;
 
     private final int trackIndex;
-    private int muxCount = 1;
+    // 速度に合わせて書き出すパケットの数 (倍速では間引き、スローでは繰り返す)
+    private double muxBudget;
+    private final MediaCodec.BufferInfo repeatBufferInfo = new MediaCodec.BufferInfo();
 
     private final MediaFormat outputFormat;
 
@@ -43,7 +46,7 @@ class RemixAudioComposer implements IAudioComposer {
     private boolean encoderStarted;
 
     private AudioChannel audioChannel;
-    private final int timeScale;
+    private final float timeScale;
 
     private final long trimStartUs;
     private final long trimEndUs;
@@ -54,13 +57,14 @@ class RemixAudioComposer implements IAudioComposer {
     private long primingDelay;
 
     public RemixAudioComposer(MediaExtractor extractor, int trackIndex,
-                              MediaFormat outputFormat, MuxRender muxer, int timeScale,
+                              MediaFormat outputFormat, MuxRender muxer, float timeScale,
                               long trimStartMs, long trimEndMs) {
         this.extractor = extractor;
         this.trackIndex = trackIndex;
         this.outputFormat = outputFormat;
         this.muxer = muxer;
         this.timeScale = timeScale;
+        this.muxBudget = Math.max(0, 1 - 1.0 / timeScale);
         this.trimStartUs = TimeUnit.MILLISECONDS.toMicros(trimStartMs);
         this.trimEndUs = trimEndMs == -1 ? trimEndMs : TimeUnit.MILLISECONDS.toMicros(trimEndMs);
     }
@@ -68,6 +72,7 @@ class RemixAudioComposer implements IAudioComposer {
     @Override
     public void setup() {
         extractor.selectTrack(trackIndex);
+        muxer.getMetricsRecorder().begin("audio codecs start");
         try {
             encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
@@ -86,8 +91,9 @@ class RemixAudioComposer implements IAudioComposer {
         decoder.configure(inputFormat, null, null, 0);
         decoder.start();
         decoderStarted = true;
+        muxer.getMetricsRecorder().end("audio codecs start");
 
-        audioChannel = new AudioChannel(decoder, encoder, outputFormat);
+        audioChannel = new AudioChannel(new MediaCodecBuffers(decoder, null), new MediaCodecBuffers(encoder, null), outputFormat);
     }
 
     @Override
@@ -147,7 +153,7 @@ class RemixAudioComposer implements IAudioComposer {
             isDecoderEOS = true;
             audioChannel.drainDecoderBufferAndQueue(AudioChannel.BUFFER_INDEX_END_OF_STREAM, 0);
         } else if (bufferInfo.size > 0) {
-            audioChannel.drainDecoderBufferAndQueue(result, bufferInfo.presentationTimeUs / timeScale);
+            audioChannel.drainDecoderBufferAndQueue(result, (long) (bufferInfo.presentationTimeUs / timeScale));
         }
 
         return DRAIN_STATE_CONSUMED;
@@ -186,13 +192,16 @@ class RemixAudioComposer implements IAudioComposer {
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
 
-        if (muxCount == 1) {
+        if (isEncoderEOS) {
             muxer.writeSampleData(SAMPLE_TYPE, encoder.getOutputBuffer(result), bufferInfo);
-        }
-        if (muxCount < timeScale) {
-            muxCount++;
         } else {
-            muxCount = 1;
+            muxBudget += 1.0 / timeScale;
+            long frameDurationUs = AAC_FRAME_SAMPLES * 1000000L / actualOutputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            for (int i = 0; muxBudget >= 1; i++, muxBudget--) {
+                // 繰り返す分は1フレームずつずらす
+                repeatBufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs + i * frameDurationUs, bufferInfo.flags);
+                muxer.writeSampleData(SAMPLE_TYPE, encoder.getOutputBuffer(result), repeatBufferInfo);
+            }
         }
 
         writtenPresentationTimeUs = bufferInfo.presentationTimeUs;
@@ -213,6 +222,7 @@ class RemixAudioComposer implements IAudioComposer {
 
     @Override
     public void release() {
+        muxer.getMetricsRecorder().begin("audio codecs release");
         if (decoder != null) {
             if (decoderStarted) decoder.stop();
             decoder.release();
@@ -223,6 +233,7 @@ class RemixAudioComposer implements IAudioComposer {
             encoder.release();
             encoder = null;
         }
+        muxer.getMetricsRecorder().end("audio codecs release");
     }
 
 
@@ -0,0 +1,255 @@
+package com.daasuu.mp4compose.composer;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.logger.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The work directory of a resumable composition. The video is transcoded into fragments that
+ * start at key frames of the source, and a small checkpoint file records how many of them are
+ * complete and the source presentation time the next one starts at. When the process dies, the
+ * next run with the same options only transcodes the remaining fragments.
+ */
+class ResumeCheckpoint {
+
+    private static final String TAG = "ResumeCheckpoint";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_BOUNDARIES = "boundaries";
+    private static final String KEY_COMPLETED = "completed";
+    private static final String KEY_NEXT_US = "nextUs";
+
+    /**
+     * Transcodes one fragment of the source into a file.
+     */
+    interface FragmentTranscoder {
+        /**
+         * @param endUs The end of the source range (exclusive), -1 for the end of the source.
+         */
+        void transcode(long startUs, long endUs, @NonNull File output) throws IOException;
+    }
+
+    private final File directory;
+    private final Logger logger;
+    private String fingerprint;
+    private List<Long> boundaries;
+    private int completedFragments;
+
+    ResumeCheckpoint(@NonNull File directory, @NonNull Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+    }
+
+    /**
+     * @return The work directory of the output file.
+     */
+    @NonNull
+    static File getDirectory(@NonNull String destSrc) {
+        return new File(destSrc + ".parts");
+    }
+
+    /**
+     * @return The path, length and modification time of a source file, so a checkpoint is not
+     * used for a file that was replaced or edited in between.
+     */
+    @NonNull
+    static String getFileIdentity(@NonNull File file) {
+        return file.getAbsolutePath() + "/" + file.length() + "/" + file.lastModified();
+    }
+
+    /**
+     * Read the checkpoint of a previous run. It is only used when it was written for the same
+     * source and options, otherwise the work directory is cleared.
+     *
+     * @param fingerprint Identifies the source and the options of the composition.
+     * @return true when a previous run can be continued.
+     */
+    boolean load(@NonNull String fingerprint) {
+        this.fingerprint = fingerprint;
+        final File file = new File(directory, CHECKPOINT_FILE);
+        if (file.exists()) {
+            final Properties properties = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+                if (fingerprint.equals(properties.getProperty(KEY_FINGERPRINT))) {
+                    boundaries = parseBoundaries(properties.getProperty(KEY_BOUNDARIES));
+                    completedFragments = Integer.parseInt(properties.getProperty(KEY_COMPLETED));
+                    if (completedFragments >= 0 && completedFragments < boundaries.size()) {
+                        logger.debug(TAG, "Resuming at fragment " + completedFragments
+                                + ", source time (us): " + properties.getProperty(KEY_NEXT_US));
+                        return true;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warning(TAG, "Could not read the checkpoint, starting over. " + e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        clear();
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            logger.warning(TAG, "Could not create " + directory);
+        }
+        boundaries = null;
+        completedFragments = 0;
+        return false;
+    }
+
+    /**
+     * @return The key frame times the fragments start at followed by the end of the range, or
+     * null when no run was checkpointed yet.
+     */
+    List<Long> getBoundaries() {
+        return boundaries;
+    }
+
+    void setBoundaries(@NonNull List<Long> boundaries) throws IOException {
+        this.boundaries = boundaries;
+        this.completedFragments = 0;
+        save();
+    }
+
+    int getFragmentCount() {
+        return boundaries.size() - 1;
+    }
+
+    int getCompletedFragments() {
+        return completedFragments;
+    }
+
+    @NonNull
+    File getFragment(int index) {
+        return new File(directory, "fragment-" + index + ".mp4");
+    }
+
+    /**
+     * Record that the fragment was completely written. The checkpoint is replaced by a rename,
+     * so a crash while saving leaves the previous one intact.
+     */
+    void markCompleted(int index) throws IOException {
+        completedFragments = index + 1;
+        save();
+    }
+
+    /**
+     * Transcode the fragments that are not complete yet, in order, and record each one as it
+     * completes. A fragment left half written by a previous run is deleted before it is
+     * transcoded again.
+     *
+     * @param toSourceEnd true to transcode the last fragment to the end of the source instead
+     *                    of the last boundary.
+     * @return The files of all fragments.
+     */
+    @NonNull
+    File[] transcodeRemaining(boolean toSourceEnd, @NonNull FragmentTranscoder transcoder) throws IOException {
+        final int fragmentCount = getFragmentCount();
+        final File[] files = new File[fragmentCount];
+        for (int i = 0; i < fragmentCount; i++) {
+            files[i] = getFragment(i);
+            if (i < completedFragments) {
+                continue;
+            }
+            if (files[i].exists() && !files[i].delete()) {
+                throw new IOException("Could not delete the incomplete fragment " + files[i]);
+            }
+            // 断片はキーフレームから始まるので、そこへシークして続きを変換できる
+            final long endUs = i == fragmentCount - 1 && toSourceEnd ? -1 : boundaries.get(i + 1);
+            transcoder.transcode(boundaries.get(i), endUs, files[i]);
+            markCompleted(i);
+        }
+        return files;
+    }
+
+    /**
+     * Delete the fragments and the checkpoint.
+     */
+    void clear() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warning(TAG, "Could not delete " + file);
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            logger.warning(TAG, "Could not delete " + directory);
+        }
+    }
+
+    private void save() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(KEY_FINGERPRINT, fingerprint);
+        properties.setProperty(KEY_BOUNDARIES, formatBoundaries(boundaries));
+        properties.setProperty(KEY_COMPLETED, String.valueOf(completedFragments));
+        properties.setProperty(KEY_NEXT_US, String.valueOf(boundaries.get(completedFragments)));
+        final File temp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            closeQuietly(out);
+        }
+        if (!temp.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException("Could not write the checkpoint in " + directory);
+        }
+    }
+
+    @NonNull
+    private static String formatBoundaries(@NonNull List<Long> boundaries) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < boundaries.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(boundaries.get(i));
+        }
+        return builder.toString();
+    }
+
+    @NonNull
+    private static List<Long> parseBoundaries(String value) {
+        final List<Long> boundaries = new ArrayList<>();
+        for (String boundary : value.split(",")) {
+            boundaries.add(Long.parseLong(boundary));
+        }
+        if (boundaries.size() < 2) {
+            throw new IllegalArgumentException("Too few boundaries: " + value);
+        }
+        return boundaries;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.daasuu.mp4compose.composer;
+
+/**
+ * Converts between the presentation times of the source and the times the decoder is fed
+ * with when the speed is changed ({@code timeScale != 1}). The trim range is given in source
+ * time, so the decoded times are converted back before they are compared with it.
+ */
+class ScaledTime {
+
+    private ScaledTime() {
+    }
+
+    /**
+     * @return The time a source sample is queued to the decoder with.
+     */
+    static long toDecoderUs(long sourceUs, float timeScale) {
+        return (long) (sourceUs / timeScale);
+    }
+
+    /**
+     * @return The source time of a decoded frame. When several source times map to the same
+     * decoder time, the latest one, so a frame exactly at the trim start is never taken for a
+     * frame before it.
+     */
+    static long toSourceUs(long decoderUs, float timeScale) {
+        if (timeScale == 1) {
+            return decoderUs;
+        }
+        long sourceUs = (long) Math.ceil((decoderUs + 1) * (double) timeScale) - 1;
+        // 浮動小数点の誤差を toDecoderUs と同じ丸めで直す
+        while (sourceUs > 0 && toDecoderUs(sourceUs, timeScale) > decoderUs) {
+            sourceUs--;
+        }
+        while (toDecoderUs(sourceUs + 1, timeScale) == decoderUs) {
+            sourceUs++;
+        }
+        return sourceUs;
+    }
+
+    /**
+     * @param startUs The start of the trim range in source time.
+     * @param endUs   The end of the trim range in source time (exclusive), -1 for no end.
+     */
+    static boolean isInRange(long sourceUs, long startUs, long endUs) {
+        return sourceUs >= startUs && (endUs == -1 || sourceUs < endUs);
+    }
+}
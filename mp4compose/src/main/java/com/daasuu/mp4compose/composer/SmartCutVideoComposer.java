@@ -0,0 +1,336 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.EGLContext;
+import android.os.Build;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import com.daasuu.mp4compose.FillMode;
+import com.daasuu.mp4compose.Rotation;
+import com.daasuu.mp4compose.SampleType;
+import com.daasuu.mp4compose.filter.GlFilter;
+import com.daasuu.mp4compose.logger.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame accurate trimming which only re-encodes the partial GOPs at the trim boundaries.
+ * <p>
+ * The frames from the trim start to the next sync sample and from the last sync sample to the
+ * trim end are re-encoded by a {@link VideoComposer} whose encoder is configured like the
+ * source (codec, size, profile, level, bitrate). Everything in between is copied as it is. The
+ * sample description of the output is the one of the source, the re-encoded pieces carry their
+ * own SPS/PPS in front of their key frames, so only AVC and HEVC are supported. Those replace
+ * the parameter sets of the source in the decoder, so the source csd-0/csd-1 are written again
+ * in front of the first copied sync sample after a re-encoded piece.
+ */
+class SmartCutVideoComposer implements IVideoComposer {
+
+    private static final String TAG = "SmartCutVideoComposer";
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int PHASE_HEAD = 0;
+    private static final int PHASE_COPY = 1;
+    private static final int PHASE_TAIL = 2;
+    private static final int PHASE_DONE = 3;
+
+    private final MediaExtractor mediaExtractor;
+    private final int trackIndex;
+    private final MuxRender muxRender;
+    private final MediaFormat sourceFormat;
+    private final MediaFormat encoderFormat;
+    // 元のSPS/PPS (csd-0, csd-1)
+    private final ByteBuffer sourceCodecConfig;
+    private final Size frameSize;
+    private final EGLContext shareContext;
+    private final Logger logger;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final ByteBuffer buffer;
+
+    private final long trimStartUs;
+    private final long trimEndUs;
+    // コピーする区間 (同期フレームから同期フレームまで)
+    private final long copyStartUs;
+    private final long copyEndUs;
+    private final boolean hasCopy;
+
+    private int phase = -1;
+    private VideoComposer reencoder;
+    private boolean formatRegistered;
+    private boolean reencoded;
+    private boolean inlineSourceConfig;
+    private boolean waitForAudioFormat;
+    // 長いタイムラインの一部として使う場合
+    private boolean segment;
+    private long outputOffsetUs;
+    private boolean isEOS;
+    private long writtenPresentationTimeUs;
+    private CancellationToken cancellationToken;
+
+    SmartCutVideoComposer(@NonNull MediaExtractor mediaExtractor, int trackIndex,
+                          @NonNull MuxRender muxRender, long trimStartMs, long trimEndMs,
+                          EGLContext shareContext, @NonNull Logger logger) {
+        this.mediaExtractor = mediaExtractor;
+        this.trackIndex = trackIndex;
+        this.muxRender = muxRender;
+        this.shareContext = shareContext;
+        this.logger = logger;
+        this.trimStartUs = TimeUnit.MILLISECONDS.toMicros(trimStartMs);
+        this.trimEndUs = trimEndMs == -1 ? trimEndMs : TimeUnit.MILLISECONDS.toMicros(trimEndMs);
+
+        final MediaFormat format = mediaExtractor.getTrackFormat(trackIndex);
+        if (format.containsKey("rotation-degrees")) {
+            // 回転は MediaMuxer#setOrientationHint で書く
+            format.setInteger("rotation-degrees", 0);
+        }
+        sourceFormat = format;
+        frameSize = new Size(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT));
+        encoderFormat = createMatchingEncoderFormat(format, frameSize);
+        sourceCodecConfig = getCodecConfig(format);
+        // 大きすぎるサンプルは readSampleData が例外にするので、最大のサンプルと SPS/PPS の分を確保する
+        int bufferSize;
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufferSize = Math.max(MIN_BUFFER_SIZE, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        } else {
+            bufferSize = Math.max(MIN_BUFFER_SIZE, frameSize.getWidth() * frameSize.getHeight());
+        }
+        if (sourceCodecConfig != null) {
+            bufferSize += sourceCodecConfig.remaining();
+        }
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+
+        // 同期フレームの位置を調べる
+        mediaExtractor.selectTrack(trackIndex);
+        mediaExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long startSyncUs = mediaExtractor.getSampleTime();
+        if (startSyncUs != trimStartUs) {
+            mediaExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            startSyncUs = mediaExtractor.getSampleTime();
+        }
+        long endSyncUs = -1;
+        if (trimEndUs != -1) {
+            mediaExtractor.seekTo(trimEndUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            endSyncUs = mediaExtractor.getSampleTime();
+        }
+        // 範囲が一つのGOPに収まる場合は全部エンコードする
+        hasCopy = startSyncUs >= 0 && (trimEndUs == -1 || (startSyncUs < trimEndUs && endSyncUs > startSyncUs));
+        copyStartUs = startSyncUs;
+        copyEndUs = endSyncUs;
+        logger.debug(TAG, "Smart cut " + trimStartUs + "-" + trimEndUs + " us, copy "
+                + (hasCopy ? copyStartUs + "-" + copyEndUs + " us" : "none"));
+    }
+
+    /**
+     * Pass the token to the {@link VideoComposer}s created here, see
+     * {@link VideoComposer#setCancellationToken(CancellationToken)}.
+     */
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Hold back the muxer start until the audio composer has set its output format. Must be
+     * set when an audio track will be written.
+     */
+    void setWaitForAudioFormat(boolean waitForAudioFormat) {
+        this.waitForAudioFormat = waitForAudioFormat;
+    }
+
+    /**
+     * Use this composer for one clip of a longer timeline: the muxer track is neither registered
+     * nor ended here and the presentation times are shifted by {@code outputOffsetUs}.
+     */
+    void setSegment(long outputOffsetUs) {
+        this.segment = true;
+        this.outputOffsetUs = outputOffsetUs;
+    }
+
+    /**
+     * Write the source csd-0/csd-1 in front of the first copied sync sample even when no piece
+     * of this clip was re-encoded, because the samples before it came from another clip.
+     */
+    void setInlineSourceConfig(boolean inlineSourceConfig) {
+        this.inlineSourceConfig = inlineSourceConfig;
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        if (isEOS) return false;
+        if (!formatRegistered && !segment) {
+            if (waitForAudioFormat && !muxRender.hasOutputFormat(SampleType.AUDIO)) {
+                return false;
+            }
+            muxRender.setOutputFormat(SampleType.VIDEO, sourceFormat);
+            muxRender.onSetOutputFormat();
+            formatRegistered = true;
+        }
+        if (phase < 0) {
+            startPhase(!hasCopy || copyStartUs > trimStartUs ? PHASE_HEAD : PHASE_COPY);
+        }
+        switch (phase) {
+            case PHASE_HEAD:
+            case PHASE_TAIL:
+                boolean busy = reencoder.stepPipeline();
+                writtenPresentationTimeUs = Math.max(writtenPresentationTimeUs, reencoder.getWrittenPresentationTimeUs());
+                if (reencoder.isFinished()) {
+                    reencoder.release();
+                    reencoder = null;
+                    startPhase(phase == PHASE_HEAD && hasCopy ? PHASE_COPY : PHASE_DONE);
+                    return true;
+                }
+                return busy;
+            case PHASE_COPY:
+                return copySample();
+            default:
+                return false;
+        }
+    }
+
+    private void startPhase(int phase) {
+        this.phase = phase;
+        switch (phase) {
+            case PHASE_HEAD:
+                reencoder = createReencoder(trimStartUs, hasCopy ? copyStartUs : trimEndUs);
+                break;
+            case PHASE_COPY:
+                mediaExtractor.seekTo(copyStartUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                // 再エンコードした部分のSPS/PPSがデコーダーに残っている
+                inlineSourceConfig |= reencoded;
+                break;
+            case PHASE_TAIL:
+                reencoder = createReencoder(copyEndUs, trimEndUs);
+                break;
+            case PHASE_DONE:
+                if (!segment) {
+                    buffer.clear();
+                    bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    muxRender.writeSampleData(SampleType.VIDEO, buffer, bufferInfo);
+                }
+                isEOS = true;
+                break;
+        }
+    }
+
+    private boolean copySample() {
+        int trackIndex = mediaExtractor.getSampleTrackIndex();
+        boolean isKeyFrame = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        if (trackIndex < 0 || (copyEndUs != -1 && isKeyFrame && mediaExtractor.getSampleTime() >= copyEndUs)) {
+            startPhase(trimEndUs != -1 && copyEndUs < trimEndUs ? PHASE_TAIL : PHASE_DONE);
+            return true;
+        }
+        if (mediaExtractor.getSampleTime() < copyStartUs) {
+            // 先頭の同期フレームより前に表示されるフレームはエンコードし直した側にある
+            mediaExtractor.advance();
+            return true;
+        }
+        final int configSize = inlineSourceConfig && isKeyFrame && sourceCodecConfig != null ? sourceCodecConfig.remaining() : 0;
+        int sampleSize = readSample(configSize);
+        if (configSize > 0) {
+            inlineSourceConfig = false;
+        }
+        bufferInfo.set(0, configSize + sampleSize, outputOffsetUs + mediaExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxRender.writeSampleData(SampleType.VIDEO, buffer, bufferInfo);
+
+        writtenPresentationTimeUs = Math.max(writtenPresentationTimeUs, bufferInfo.presentationTimeUs);
+        mediaExtractor.advance();
+        return true;
+    }
+
+    /**
+     * Read the current sample behind {@code configSize} bytes of the source codec config.
+     */
+    private int readSample(int configSize) {
+        buffer.clear();
+        if (configSize > 0) {
+            buffer.put(sourceCodecConfig.duplicate());
+        }
+        return mediaExtractor.readSampleData(buffer, configSize);
+    }
+
+    private VideoComposer createReencoder(long startUs, long endUs) {
+        logger.debug(TAG, "Re-encoding " + startUs + "-" + endUs + " us");
+        reencoded = true;
+        VideoComposer videoComposer = new VideoComposer(mediaExtractor, trackIndex, encoderFormat, muxRender,
+                1, 0, -1, 0, false, false, logger);
+        videoComposer.setTrimRangeUs(startUs, endUs);
+        videoComposer.setOutputStartUs(outputOffsetUs);
+        // コピーの後の部分も自分のSPS/PPSをキーフレームの前に書く
+        videoComposer.setInlineCodecConfig(true);
+        videoComposer.setCancellationToken(cancellationToken);
+        videoComposer.setUp(new GlFilter(), Rotation.NORMAL, frameSize, frameSize,
+                FillMode.PRESERVE_ASPECT_FIT, null, false, false, shareContext);
+        return videoComposer;
+    }
+
+    /**
+     * @return csd-0 followed by csd-1 of the format, or null when it has none.
+     */
+    static ByteBuffer getCodecConfig(@NonNull MediaFormat format) {
+        final ByteBuffer csd0 = format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null;
+        final ByteBuffer csd1 = format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null;
+        if (csd0 == null) {
+            return null;
+        }
+        final ByteBuffer config = ByteBuffer.allocateDirect(csd0.remaining() + (csd1 == null ? 0 : csd1.remaining()));
+        config.put(csd0.duplicate());
+        if (csd1 != null) {
+            config.put(csd1.duplicate());
+        }
+        config.flip();
+        return config;
+    }
+
+    @NonNull
+    static MediaFormat createMatchingEncoderFormat(@NonNull MediaFormat sourceFormat, @NonNull Size size) {
+        final MediaFormat format = MediaFormat.createVideoFormat(sourceFormat.getString(MediaFormat.KEY_MIME),
+                size.getWidth(), size.getHeight());
+        if (sourceFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, sourceFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+        } else {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (0.25 * 30 * size.getWidth() * size.getHeight()));
+        }
+        int frameRate = 30;
+        if (sourceFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            try {
+                frameRate = sourceFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+            } catch (ClassCastException e) {
+                frameRate = Math.round(sourceFormat.getFloat(MediaFormat.KEY_FRAME_RATE));
+            }
+        }
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        // 継ぎ目でデコーダーが再初期化しなくて済むようにプロファイルとレベルを合わせる
+        if (sourceFormat.containsKey(MediaFormat.KEY_PROFILE)) {
+            format.setInteger(MediaFormat.KEY_PROFILE, sourceFormat.getInteger(MediaFormat.KEY_PROFILE));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && sourceFormat.containsKey(MediaFormat.KEY_LEVEL)) {
+                format.setInteger(MediaFormat.KEY_LEVEL, sourceFormat.getInteger(MediaFormat.KEY_LEVEL));
+            }
+        }
+        return format;
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return writtenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isEOS;
+    }
+
+    @Override
+    public void release() {
+        if (reencoder != null) {
+            reencoder.release();
+            reencoder = null;
+        }
+    }
+}
@@ -1,11 +1,12 @@
-
 package com.daasuu.mp4compose.composer;
 
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
-import android.util.Log;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Size;
 
 import androidx.annotation.NonNull;
@@ -13,49 +14,55 @@ import androidx.annotation.NonNull;
 import com.daasuu.mp4compose.FillMode;
 import com.daasuu.mp4compose.FillModeCustomItem;
 import com.daasuu.mp4compose.Rotation;
-import com.daasuu.mp4compose.SampleType;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.Stage;
+import com.daasuu.mp4compose.utils.NalUnitUtil;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 // Refer: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/ExtractDecodeEditEncodeMuxTest.java
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/VideoTrackTranscoder.java
-public class VideoComposer {
+public class VideoComposer implements IVideoComposer {
     public static long currentElapsedTimeUs = 0;
     private static final String TAG = "VideoComposer";
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int RECENT_REFERENCE_COUNT = 16;
 
     private final MediaExtractor mediaExtractor;
     private final int trackIndex;
     private final MediaFormat outputFormat;
     private final MuxRender muxRender;
-    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final MetricsRecorder metrics;
+    private final MediaCodec.BufferInfo decoderBufferInfo = new MediaCodec.BufferInfo();
     private MediaCodec decoder;
     private MediaCodec encoder;
-    private MediaFormat actualOutputFormat;
+    private EncoderDrain encoderDrain;
     private DecoderSurface decoderSurface;
     private EncoderSurface encoderSurface;
     private boolean isExtractorEOS;
     private boolean isDecoderEOS;
-    private boolean isEncoderEOS;
     private boolean decoderStarted;
     private boolean encoderStarted;
-    private long writtenPresentationTimeUs;
-    private final int timeScale;
-    private final long trimStartUs;
-    private final long trimEndUs;
+    // 再生速度 (2.0 で倍速、0.5 でスロー)
+    private final float timeScale;
+    private long trimStartUs;
+    private long trimEndUs;
 
     private long decoderElapsedTimeUs;
     private long decoderOutputStartTimeUs;
     private long decoderPreviousTimeUs;
 
-    private long encoderElapsedTimeUs;
     private long encoderOutputStartTimeUs;
-    private long encoderPreviousTimeUs;
 
     // 先頭
     private boolean isFirst;
@@ -64,8 +71,79 @@ public class VideoComposer {
 
     private final Logger logger;
 
+    // コーデックのコールバックでパイプラインを起こす (null の場合はポーリング)
+    private PipelineSignal pipelineSignal;
+    private HandlerThread codecCallbackThread;
+    private AsyncCodecAdapter decoderAdapter;
+    private AsyncCodecAdapter encoderAdapter;
+
+    // エンコーダーとEGLを複数の区間で共有する場合のセッション (null の場合は自前で持つ)
+    private EncoderSession encoderSession;
+
+    // 先読み済みのデコーダーと最初の同期フレーム (null の場合はここで用意する)
+    private MediaCodec preparedDecoder;
+    private ByteBuffer preparedSample;
+    private long preparedSampleTimeUs;
+    private int preparedSampleFlags;
+    // 区切りの空白時間を測るための最初と最後の描画時刻
+    private volatile long firstRenderNs;
+    private volatile long lastRenderNs;
+
+    // SPS/PPSを同期フレームの前に埋め込む (コピーした区間とつなぐ場合)
+    private boolean inlineCodecConfig;
+
+    // キャンセルされたら次のステップか待ちの途中で止める (null の場合は確認しない)
+    private CancellationToken cancellationToken;
+
+    // 出力フレームレートの上限を超えるフレームは描画前に捨てる (null の場合は全て描画)
+    private FrameRateDecimator frameRateDecimator;
+
+    // 区切りより前の参照されないフレームはデコードしない
+    private boolean skipNonReference;
+    private boolean isHevc;
+    private int hevcMaxSubLayers;
+    private int skippedSamples;
+    // 間引かれることが確定したフレームを判定するため、直近に入れた参照フレームの時間
+    private final long[] recentReferenceTimesUs = new long[RECENT_REFERENCE_COUNT];
+    private int recentReferenceCount;
+    // 読み飛ばしの途中で他のトラックのサンプルに当たった時に取っておく入力バッファ
+    private int pendingInputIndex = -1;
+
+    // 3スレッド (抽出/デコード, 描画, エンコード/Mux) で動かす場合の状態
+    private static final long PIPELINE_CODEC_TIMEOUT_US = 5000;
+    private static final long PIPELINE_QUEUE_TIMEOUT_MS = 10;
+    private static final long PIPELINE_JOIN_TIMEOUT_MS = 1000;
+    // これ以上止まらないステージはコーデックを使っている最中とみなして解放しない
+    private static final int PIPELINE_JOIN_ATTEMPTS = 10;
+    private int pipelineQueueDepth;
+    private long codecTimeoutUs;
+    private BlockingQueue<Frame> renderQueue;
+    private BlockingQueue<Frame> framePool;
+    private Thread[] pipelineThreads;
+    // 各ステージのスレッドが書き、呼び出し元のスレッドが読む
+    private final AtomicLongArray stageBusyNs = new AtomicLongArray(PIPELINE_STAGE_COUNT);
+    private long pipelineStartNs;
+    private volatile boolean pipelineStopped;
+    private volatile Throwable pipelineError;
+    private static final int PIPELINE_STAGE_DECODE = 0;
+    private static final int PIPELINE_STAGE_RENDER = 1;
+    private static final int PIPELINE_STAGE_ENCODE = 2;
+    private static final int PIPELINE_STAGE_COUNT = 3;
+    private static final String[] PIPELINE_STAGE_NAMES = {"extract/decode", "render", "encode/mux"};
+
+    /**
+     * A decoded frame handed from the decode stage to the render stage.
+     */
+    private static class Frame {
+        int bufferIndex;
+        long presentationTimeUs;
+        boolean render;
+        int repeatSlots;
+        boolean endOfStream;
+    }
+
     VideoComposer(@NonNull MediaExtractor mediaExtractor, int trackIndex,
-                  @NonNull MediaFormat outputFormat, @NonNull MuxRender muxRender, int timeScale,
+                  @NonNull MediaFormat outputFormat, @NonNull MuxRender muxRender, float timeScale,
                   final long trimStartMs, final long trimEndMs, final long outputStartMs,
                   final boolean isFirst,
                   final boolean sendEOS,
@@ -74,6 +152,7 @@ public class VideoComposer {
         this.trackIndex = trackIndex;
         this.outputFormat = outputFormat;
         this.muxRender = muxRender;
+        this.metrics = muxRender.getMetricsRecorder();
         this.timeScale = timeScale;
         this.trimStartUs = TimeUnit.MILLISECONDS.toMicros(trimStartMs);
         this.trimEndUs = trimEndMs == -1 ? trimEndMs : TimeUnit.MILLISECONDS.toMicros(trimEndMs);
@@ -83,15 +162,97 @@ public class VideoComposer {
 
         // 出力開始時間を設定する
         this.encoderOutputStartTimeUs = TimeUnit.MILLISECONDS.toMicros(outputStartMs);
-        this.encoderPreviousTimeUs = 0;
-        this.encoderElapsedTimeUs = 0;
 
         this.decoderOutputStartTimeUs = TimeUnit.MILLISECONDS.toMicros(outputStartMs);
         this.decoderPreviousTimeUs = 0;
         this.decoderElapsedTimeUs = 0;
 
+        if (timeScale != 1) {
+            // 速度を変える場合は出力のフレームレートに合わせて間引くか繰り返す
+            setFrameRate(0);
+        }
+    }
+
+
+    /**
+     * Switch the codecs to asynchronous mode and raise the given signal whenever they have work
+     * available. Must be called before {@link #setUp}. Ignored below Android 6.0.
+     */
+    void setPipelineSignal(PipelineSignal pipelineSignal) {
+        this.pipelineSignal = pipelineSignal;
+    }
+
+    /**
+     * Run extraction/decoding, rendering and encoding/muxing on three threads, connected by a
+     * queue holding up to {@code queueDepth} decoded frames. Must be called before
+     * {@link #setUp}. 0 keeps everything on the calling thread.
+     */
+    void setPipelined(int queueDepth) {
+        this.pipelineQueueDepth = queueDepth;
     }
 
+    /**
+     * Override the trim range given to the constructor with microsecond precision. Must be
+     * called before {@link #setUp}.
+     *
+     * @param trimEndUs The end of the range (exclusive), -1 for no end.
+     */
+    void setTrimRangeUs(long trimStartUs, long trimEndUs) {
+        this.trimStartUs = trimStartUs;
+        this.trimEndUs = trimEndUs;
+    }
+
+    /**
+     * Stop at the next pipeline step or while waiting for a decoded frame once the token is
+     * cancelled, by throwing {@link java.util.concurrent.CancellationException}.
+     */
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Drop decoded frames before rendering so the output does not exceed the given frame rate.
+     * The kept frames are moved onto an even grid of the output frame interval. When the speed
+     * is changed the frames are always fitted to the output frame rate (30 if not given), and
+     * in slow motion the previous frame is repeated to fill the gaps.
+     *
+     * @param frameRate The largest output frame rate, 0 or less to keep every frame.
+     */
+    void setFrameRate(int frameRate) {
+        if (frameRate <= 0 && timeScale != 1) {
+            frameRate = DEFAULT_FRAME_RATE;
+        }
+        this.frameRateDecimator = frameRate > 0 ? new FrameRateDecimator(frameRate, timeScale < 1) : null;
+    }
+
+    /**
+     * Shift the output presentation times by {@code outputStartUs}, like the
+     * {@code outputStartMs} of the constructor but without rounding to milliseconds.
+     */
+    void setOutputStartUs(long outputStartUs) {
+        this.encoderOutputStartTimeUs = outputStartUs;
+        this.decoderOutputStartTimeUs = outputStartUs;
+    }
+
+    /**
+     * Write the codec config (SPS/PPS) produced by the encoder in front of every key frame
+     * instead of dropping it, so the encoded frames can be spliced into a stream whose sample
+     * description was taken from another encoder.
+     */
+    void setInlineCodecConfig(boolean inlineCodecConfig) {
+        this.inlineCodecConfig = inlineCodecConfig;
+    }
+
+    /**
+     * Use a decoder created ahead of time by {@link VideoTrack#prepare()}, which also seeked the
+     * extractor and read the first sync sample. Must be called before {@link #setUp}.
+     */
+    void setPrepared(@NonNull MediaCodec decoder, ByteBuffer sample, long sampleTimeUs, int sampleFlags) {
+        this.preparedDecoder = decoder;
+        this.preparedSample = sample;
+        this.preparedSampleTimeUs = sampleTimeUs;
+        this.preparedSampleFlags = sampleFlags;
+    }
 
     void setUp(GlFilter filter,
                Rotation rotation,
@@ -103,25 +264,31 @@ public class VideoComposer {
                final boolean flipHorizontal,
                final EGLContext shareContext) {
         mediaExtractor.selectTrack(trackIndex);
+        metrics.begin("video encoder start");
         try {
             encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (pipelineSignal != null && pipelineQueueDepth == 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codecCallbackThread = new HandlerThread(TAG);
+            codecCallbackThread.start();
+            encoderAdapter = new AsyncCodecAdapter(encoder, new Handler(codecCallbackThread.getLooper()), pipelineSignal);
+        }
         encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         encoderSurface = new EncoderSurface(encoder.createInputSurface(), shareContext);
         encoderSurface.makeCurrent();
         encoder.start();
         encoderStarted = true;
-
-        MediaFormat inputFormat = mediaExtractor.getTrackFormat(trackIndex);
-        mediaExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
-        if (inputFormat.containsKey("rotation-degrees")) {
-            // Decoded video is rotated automatically in Android 5.0 lollipop.
-            // Turn off here because we don't want to encode rotated one.
-            // refer: https://android.googlesource.com/platform/frameworks/av/+blame/lollipop-release/media/libstagefright/Utils.cpp
-            inputFormat.setInteger("rotation-degrees", 0);
-        }
+        metrics.end("video encoder start");
+        encoderDrain = new EncoderDrain(new MediaCodecBuffers(encoder, encoderAdapter), muxRender, logger);
+        encoderDrain.setOutputStartUs(encoderOutputStartTimeUs);
+        // 先頭だけフォーマットを登録する
+        encoderDrain.setRegisterFormat(isFirst);
+        encoderDrain.setWriteEndOfStream(sendEOS);
+        encoderDrain.setInlineCodecConfig(inlineCodecConfig);
+
+        MediaFormat inputFormat = seekAndGetInputFormat();
         decoderSurface = new DecoderSurface(filter, logger);
         decoderSurface.setRotation(rotation);
         decoderSurface.setOutputResolution(outputResolution);
@@ -132,18 +299,142 @@ public class VideoComposer {
         decoderSurface.setFlipVertical(flipVertical);
         decoderSurface.completeParams();
 
-        try {
-            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        startDecoder(inputFormat);
+
+        if (pipelineQueueDepth > 0) {
+            startPipelineThreads();
+        }
+    }
+
+    /**
+     * Set up only the decoder of this segment and render into the encoder and the compiled
+     * filter of the given session, which outlives this composer. The session must already be
+     * set up. The pipelined mode is not supported here.
+     */
+    void setUp(@NonNull EncoderSession encoderSession, Rotation rotation, Size inputResolution) {
+        this.encoderSession = encoderSession;
+        mediaExtractor.selectTrack(trackIndex);
+        if (pipelineSignal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codecCallbackThread = new HandlerThread(TAG);
+            codecCallbackThread.start();
+        }
+        MediaFormat inputFormat = seekAndGetInputFormat();
+        decoderSurface = encoderSession.getDecoderSurface();
+        decoderSurface.setRotation(rotation);
+        decoderSurface.setInputResolution(inputResolution);
+        decoderSurface.completeParams();
+
+        startDecoder(inputFormat);
+    }
+
+    private void setUpSampleSkipping(MediaFormat inputFormat) {
+        String mime = inputFormat.getString(MediaFormat.KEY_MIME);
+        isHevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        if (isHevc) {
+            hevcMaxSubLayers = inputFormat.containsKey("csd-0")
+                    ? NalUnitUtil.getHevcMaxSubLayers(inputFormat.getByteBuffer("csd-0").duplicate()) : -1;
+            skipNonReference = hevcMaxSubLayers > 0;
+        } else {
+            skipNonReference = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime);
         }
+    }
+
+    private boolean isSkippableSample(ByteBuffer sample, int size) {
+        if (!skipNonReference || size <= 0) {
+            return false;
+        }
+        long sampleTimeUs = mediaExtractor.getSampleTime();
+        boolean beforeTrim = sampleTimeUs < trimStartUs;
+        if (!beforeTrim && frameRateDecimator == null) {
+            return false;
+        }
+        boolean nonReference = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) == 0
+                && (isHevc
+                ? NalUnitUtil.isNonReferenceHevc(sample, 0, size, hevcMaxSubLayers)
+                : NalUnitUtil.isNonReferenceAvc(sample, 0, size));
+        if (beforeTrim || !nonReference) {
+            if (!nonReference && frameRateDecimator != null) {
+                recentReferenceTimesUs[recentReferenceCount++ % RECENT_REFERENCE_COUNT] = sampleTimeUs;
+            }
+            return beforeTrim && nonReference;
+        }
+        return willBeDropped(sampleTimeUs);
+    }
+
+    /**
+     * @return true when a frame at the given source time is dropped by the frame rate anyway:
+     * its slot is already taken, or an earlier reference frame that will be decoded falls into
+     * the same slot. The slots are in the scaled time the decoder is fed with.
+     */
+    private boolean willBeDropped(long sourceTimeUs) {
+        long presentationTimeUs = ScaledTime.toDecoderUs(sourceTimeUs, timeScale);
+        if (frameRateDecimator.isSlotTaken(presentationTimeUs)) {
+            return true;
+        }
+        int count = Math.min(recentReferenceCount, RECENT_REFERENCE_COUNT);
+        for (int i = 0; i < count; i++) {
+            long referenceTimeUs = recentReferenceTimesUs[i];
+            if (referenceTimeUs < sourceTimeUs && referenceTimeUs >= trimStartUs
+                    && frameRateDecimator.isSameSlot(ScaledTime.toDecoderUs(referenceTimeUs, timeScale), presentationTimeUs)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MediaFormat seekAndGetInputFormat() {
+        MediaFormat inputFormat = mediaExtractor.getTrackFormat(trackIndex);
+        if (preparedDecoder == null) {
+            mediaExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        if (inputFormat.containsKey("rotation-degrees")) {
+            // Decoded video is rotated automatically in Android 5.0 lollipop.
+            // Turn off here because we don't want to encode rotated one.
+            // refer: https://android.googlesource.com/platform/frameworks/av/+blame/lollipop-release/media/libstagefright/Utils.cpp
+            inputFormat.setInteger("rotation-degrees", 0);
+        }
+        return inputFormat;
+    }
+
+    private void startDecoder(MediaFormat inputFormat) {
+        metrics.begin("video decoder start");
+        if (preparedDecoder != null) {
+            decoder = preparedDecoder;
+            preparedDecoder = null;
+        } else {
+            try {
+                decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (codecCallbackThread != null) {
+            decoderAdapter = new AsyncCodecAdapter(decoder, new Handler(codecCallbackThread.getLooper()), pipelineSignal);
+        }
+        setUpSampleSkipping(inputFormat);
         decoder.configure(inputFormat, decoderSurface.getSurface(), null, 0);
         decoder.start();
         decoderStarted = true;
+        metrics.end("video decoder start");
+        if (preparedSample != null && decoderAdapter == null) {
+            // 先読みした同期フレームはすぐに入れておく
+            drainExtractor();
+        }
     }
 
 
-    boolean stepPipeline() {
+    @Override
+    public boolean stepPipeline() {
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+        }
+        if (pipelineThreads != null) {
+            // 各ステージは専用スレッドで動いているので、エラーの確認だけ行う
+            if (pipelineError != null) {
+                throw new RuntimeException("Video pipeline failed.", pipelineError);
+            }
+            return false;
+        }
         boolean busy = false;
 
         int status;
@@ -165,17 +456,42 @@ public class VideoComposer {
     }
 
 
-    long getWrittenPresentationTimeUs() {
-        return writtenPresentationTimeUs;
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        if (encoderSession != null) {
+            return encoderSession.getWrittenPresentationTimeUs();
+        }
+        return encoderDrain != null ? encoderDrain.getWrittenPresentationTimeUs() : 0;
     }
 
 
-    boolean isFinished() {
-        return isEncoderEOS;
+    @Override
+    public boolean isFinished() {
+        if (encoderSession != null) {
+            // 最後の区間だけがエンコーダーの終了を待つ
+            return isDecoderEOS && (!sendEOS || encoderSession.isFinished());
+        }
+        return encoderDrain != null && encoderDrain.isEndOfStream();
     }
 
 
-    void release() {
+    @Override
+    public void release() {
+        if (skippedSamples > 0) {
+            logger.debug(TAG, "Skipped decoding " + skippedSamples + " non-reference samples that would not be rendered");
+        }
+        if (frameRateDecimator != null) {
+            logger.debug(TAG, "Dropped " + frameRateDecimator.getDroppedFrames() + " and repeated "
+                    + frameRateDecimator.getRepeatedFrames() + " frames for the output frame rate");
+        }
+        if (pipelineThreads != null) {
+            stopPipelineThreads();
+        }
+        metrics.begin("video codecs release");
+        if (encoderSession != null) {
+            // サーフェスはセッションが持っている
+            decoderSurface = null;
+        }
         if (decoderSurface != null) {
             decoderSurface.release();
             decoderSurface = null;
@@ -184,6 +500,10 @@ public class VideoComposer {
             encoderSurface.release();
             encoderSurface = null;
         }
+        if (preparedDecoder != null) {
+            preparedDecoder.release();
+            preparedDecoder = null;
+        }
         if (decoder != null) {
             if (decoderStarted) decoder.stop();
             decoder.release();
@@ -194,6 +514,11 @@ public class VideoComposer {
             encoder.release();
             encoder = null;
         }
+        if (codecCallbackThread != null) {
+            codecCallbackThread.quitSafely();
+            codecCallbackThread = null;
+        }
+        metrics.end("video codecs release");
     }
 
     private int drainExtractor() {
@@ -202,150 +527,390 @@ public class VideoComposer {
         if (trackIndex >= 0 && trackIndex != this.trackIndex) {
             return DRAIN_STATE_NONE;
         }
-        int result = decoder.dequeueInputBuffer(0);
+        int result;
+        if (pendingInputIndex >= 0) {
+            result = pendingInputIndex;
+            pendingInputIndex = -1;
+        } else {
+            result = decoderAdapter != null ? decoderAdapter.dequeueInputBuffer() : decoder.dequeueInputBuffer(0);
+        }
         if (result < 0) return DRAIN_STATE_NONE;
+        if (preparedSample != null) {
+            decoder.getInputBuffer(result).put(preparedSample);
+            boolean isKeyFrame = (preparedSampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            decoder.queueInputBuffer(result, 0, preparedSample.limit(), ScaledTime.toDecoderUs(preparedSampleTimeUs, timeScale), isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            preparedSample = null;
+            return DRAIN_STATE_CONSUMED;
+        }
         if (trackIndex < 0) {
             isExtractorEOS = true;
             decoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             return DRAIN_STATE_NONE;
         }
-        int sampleSizeCompat = mediaExtractor.readSampleData(decoder.getInputBuffer(result), 0);
+        ByteBuffer inputBuffer = decoder.getInputBuffer(result);
+        long startNs = metrics.now();
+        int sampleSizeCompat = mediaExtractor.readSampleData(inputBuffer, 0);
+        metrics.record(Stage.EXTRACTOR_READ, startNs);
+        while (isSkippableSample(inputBuffer, sampleSizeCompat)) {
+            // 出力されずに捨てられるだけのフレームなのでデコーダーに入れない
+            skippedSamples++;
+            mediaExtractor.advance();
+            trackIndex = mediaExtractor.getSampleTrackIndex();
+            if (trackIndex != this.trackIndex) {
+                if (trackIndex < 0) {
+                    isExtractorEOS = true;
+                    decoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                } else {
+                    pendingInputIndex = result;
+                }
+                return DRAIN_STATE_NONE;
+            }
+            inputBuffer.clear();
+            startNs = metrics.now();
+            sampleSizeCompat = mediaExtractor.readSampleData(inputBuffer, 0);
+            metrics.record(Stage.EXTRACTOR_READ, startNs);
+        }
         boolean isKeyFrame = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
-        decoder.queueInputBuffer(result, 0, sampleSizeCompat, mediaExtractor.getSampleTime() / timeScale, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        decoder.queueInputBuffer(result, 0, sampleSizeCompat, ScaledTime.toDecoderUs(mediaExtractor.getSampleTime(), timeScale), isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
         mediaExtractor.advance();
         return DRAIN_STATE_CONSUMED;
     }
 
     private int drainDecoder() {
         if (isDecoderEOS) return DRAIN_STATE_NONE;
-        int result = decoder.dequeueOutputBuffer(bufferInfo, 0);
+        long startNs = metrics.now();
+        int result = decoderAdapter != null ? decoderAdapter.dequeueOutputBuffer(decoderBufferInfo) : decoder.dequeueOutputBuffer(decoderBufferInfo, codecTimeoutUs);
+        if (result >= 0) {
+            metrics.record(Stage.DECODER_DEQUEUE, startNs);
+        }
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
-            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
-            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
-        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            encoder.signalEndOfInputStream();
-            isDecoderEOS = true;
-            bufferInfo.size = 0;
+        if (result < 0) {
+            // フォーマット変更などは次を取り直す
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        boolean decoded = decoderBufferInfo.size > 0;
+        if (decoded) {
+            metrics.countDecoded();
         }
+        boolean endOfStream = false;
+        if ((decoderBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            endOfStream = true;
+            decoderBufferInfo.size = 0;
+        }
+        // デコーダーには速度を変えた時間で入れているので、元の時間に戻して範囲と比べる
+        long sourceTimeUs = ScaledTime.toSourceUs(decoderBufferInfo.presentationTimeUs, timeScale);
         // 時間を超えた場合も終了処理する
-        if(trimEndUs != -1 && bufferInfo.presentationTimeUs >= trimEndUs) {
-            encoder.signalEndOfInputStream();
-            isDecoderEOS = true;
-            bufferInfo.size = 0;
+        if(trimEndUs != -1 && sourceTimeUs >= trimEndUs) {
+            endOfStream = true;
+            decoderBufferInfo.size = 0;
+        }
+        isDecoderEOS = endOfStream;
+        boolean doRender = decoderBufferInfo.size > 0 && ScaledTime.isInRange(sourceTimeUs, trimStartUs, trimEndUs);
+        long renderTimeUs = decoderBufferInfo.presentationTimeUs;
+        int repeatSlots = 0;
+        if (doRender && frameRateDecimator != null) {
+            // GLで描画する前に間引く
+            renderTimeUs = frameRateDecimator.accept(renderTimeUs);
+            doRender = renderTimeUs >= 0;
+            if (!doRender) {
+                renderTimeUs = decoderBufferInfo.presentationTimeUs;
+            }
+            repeatSlots = frameRateDecimator.getRepeatSlots();
+        }
+        if (decoded && !doRender) {
+            metrics.countDropped();
         }
-        final boolean doRender = (bufferInfo.size > 0
-                && bufferInfo.presentationTimeUs >= trimStartUs
-                && (bufferInfo.presentationTimeUs < trimEndUs || trimEndUs == -1));
+        if (renderQueue != null) {
+            queueFrame(result, renderTimeUs, doRender, repeatSlots, endOfStream);
+        } else {
+            renderFrame(result, renderTimeUs, doRender, repeatSlots);
+            if (endOfStream) {
+                signalEndOfInputStream();
+            }
+        }
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private void renderFrame(int bufferIndex, long presentationTimeUs, boolean doRender, int repeatSlots) {
         // NOTE: doRender will block if buffer (of encoder) is full.
         // Refer: http://bigflake.com/mediacodec/CameraToMpegTest.java.txt
-        decoder.releaseOutputBuffer(result, doRender);
+        decoder.releaseOutputBuffer(bufferIndex, doRender);
         if (doRender) {
+            // スローの場合は空いた枠に前のフレームをもう一度描画する (テクスチャはまだ前のフレーム)
+            for (int i = repeatSlots; i > 0; i--) {
+                drawImage();
+                swapEncoderBuffers(presentationTimeUs - i * frameRateDecimator.getIntervalUs());
+            }
+
             // 出力時間に調整する
-            long currentTimeUs = bufferInfo.presentationTimeUs;
+            long currentTimeUs = presentationTimeUs;
             // 前回の値との差分を増やす
             long diffTimeUs = currentTimeUs - decoderPreviousTimeUs;
             decoderElapsedTimeUs += diffTimeUs;
 
-            decoderSurface.awaitNewImage();
+            long startNs = metrics.now();
+            decoderSurface.awaitNewImage(cancellationToken);
+            metrics.record(Stage.AWAIT_NEW_IMAGE, startNs);
+            lastRenderNs = System.nanoTime();
+            if (firstRenderNs == 0) {
+                firstRenderNs = lastRenderNs;
+            }
 
             // 時間を記録する
             currentElapsedTimeUs = decoderOutputStartTimeUs + currentTimeUs;
-            decoderSurface.drawImage();
-            //encoderSurface.setPresentationTime(bufferInfo.presentationTimeUs * 1000);
-            encoderSurface.setPresentationTime(bufferInfo.presentationTimeUs * 1000);
-            encoderSurface.swapBuffers();
+            drawImage();
+            swapEncoderBuffers(presentationTimeUs);
 
             decoderPreviousTimeUs = currentTimeUs;
-        } else if (bufferInfo.presentationTimeUs != 0) {
-            //writtenPresentationTimeUs = bufferInfo.presentationTimeUs;
-            writtenPresentationTimeUs = encoderElapsedTimeUs;
         }
-        return DRAIN_STATE_CONSUMED;
+    }
+
+    private void drawImage() {
+        long startNs = metrics.now();
+        decoderSurface.drawImage();
+        metrics.record(Stage.FILTER_DRAW, startNs);
+    }
+
+    private void swapEncoderBuffers(long presentationTimeUs) {
+        if (encoderSession != null) {
+            // セッションには出力の時間軸で渡す
+            encoderSession.swapBuffers(encoderOutputStartTimeUs + presentationTimeUs - ScaledTime.toDecoderUs(trimStartUs, timeScale));
+        } else {
+            encoderSurface.setPresentationTime(presentationTimeUs * 1000);
+            long startNs = metrics.now();
+            encoderSurface.swapBuffers();
+            metrics.record(Stage.SWAP_BUFFERS, startNs);
+            metrics.countRendered();
+        }
+    }
+
+    private void signalEndOfInputStream() {
+        if (encoderSession == null) {
+            encoder.signalEndOfInputStream();
+        } else if (sendEOS) {
+            encoderSession.signalEndOfInputStream();
+        }
     }
 
     private int drainEncoder() {
-        if (isEncoderEOS) return DRAIN_STATE_NONE;
-        int result = encoder.dequeueOutputBuffer(bufferInfo, 0);
-        switch (result) {
-            case MediaCodec.INFO_TRY_AGAIN_LATER:
-                return DRAIN_STATE_NONE;
-            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                if (actualOutputFormat != null) {
-                    throw new RuntimeException("Video output format changed twice.");
+        if (encoderSession != null) return encoderSession.drainEncoder();
+        return encoderDrain.drain(codecTimeoutUs);
+    }
+
+    private void queueFrame(int bufferIndex, long presentationTimeUs, boolean doRender, int repeatSlots, boolean endOfStream) {
+        Frame frame = framePool.poll();
+        if (frame == null) {
+            frame = new Frame();
+        }
+        frame.bufferIndex = bufferIndex;
+        frame.presentationTimeUs = presentationTimeUs;
+        frame.render = doRender;
+        frame.repeatSlots = repeatSlots;
+        frame.endOfStream = endOfStream;
+        try {
+            // キューが一杯の場合は描画が追いつくまで待つ
+            while (!renderQueue.offer(frame, PIPELINE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (pipelineStopped) {
+                    return;
                 }
-                actualOutputFormat = encoder.getOutputFormat();
-                // 先頭だけ処理する
-                if(isFirst) {
-                    muxRender.setOutputFormat(SampleType.VIDEO, actualOutputFormat);
-                    muxRender.onSetOutputFormat();
+            }
+        } catch (InterruptedException e) {
+            pipelineStopped = true;
+        }
+    }
+
+    private void startPipelineThreads() {
+        codecTimeoutUs = PIPELINE_CODEC_TIMEOUT_US;
+        renderQueue = new ArrayBlockingQueue<>(pipelineQueueDepth);
+        // 使い回すフレームは キューの深さ + 処理中の分 だけ用意する
+        framePool = new ArrayBlockingQueue<>(pipelineQueueDepth + 2);
+        for (int i = 0; i < pipelineQueueDepth + 2; i++) {
+            framePool.offer(new Frame());
+        }
+        // EGLコンテキストは描画スレッドで使う
+        encoderSurface.releaseCurrent();
+        pipelineStartNs = System.nanoTime();
+        pipelineThreads = new Thread[]{
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runDecodeStage();
+                    }
+                }, TAG + "-decode"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runRenderStage();
+                    }
+                }, TAG + "-render"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runEncodeStage();
+                    }
+                }, TAG + "-encode")
+        };
+        for (Thread thread : pipelineThreads) {
+            thread.start();
+        }
+    }
+
+    private void runDecodeStage() {
+        try {
+            while (!pipelineStopped && !isDecoderEOS) {
+                long startNs = System.nanoTime();
+                boolean busy = false;
+                while (drainExtractor() != DRAIN_STATE_NONE) {
+                    busy = true;
                 }
-                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
-            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
-        }
-        if (actualOutputFormat == null) {
-            throw new RuntimeException("Could not determine actual output format.");
-        }
-        MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
-
-        /*
-        Log.d(TAG, String.format("出力時間(offset:%d,size:%d,timeUs:%d,flags:%x,KeyFrame:%s,Config:%s,EOS:%s,PFrame:%s)",
-                bufferInfo.offset,
-                bufferInfo.size,
-                bufferInfo.presentationTimeUs,
-                bufferInfo.flags,
-                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 ? "YES" : "NO", // LSB (0x1)
-                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 ? "YES" : "NO", // bit1 (0x2)
-                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 ? "YES" : "NO", // bit2 (0x4)
-                (bufferInfo.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0 ? "YES" : "NO") // bit3 (0x8)
-
-        );
-         */
-        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            isEncoderEOS = true;
-            bufferInfo.set(0, 0, 0, bufferInfo.flags);
-            // 出力用の情報をつくる
-            outputBufferInfo.set(0, 0, 0, bufferInfo.flags);
-        } else {
-            // 出力時間に調整する
-            long currentTimeUs = bufferInfo.presentationTimeUs;
-            // 前回の値との差分を増やす
-            long diffTimeUs = currentTimeUs - encoderPreviousTimeUs;
-            encoderElapsedTimeUs += diffTimeUs;
-            /*
-            Log.d(TAG, String.format("出力時間%d, %d, %d",
-                currentTimeUs, previousTimeUs, elapsedTimeUs));
-             */
+                // 出力待ちはデコーダーのタイムアウトで行う
+                if (drainDecoder() != DRAIN_STATE_NONE) {
+                    busy = true;
+                }
+                if (busy) {
+                    stageBusyNs.addAndGet(PIPELINE_STAGE_DECODE, System.nanoTime() - startNs);
+                }
+            }
+        } catch (Throwable e) {
+            onPipelineError(e);
+        }
+    }
 
-            // bufferInfoを直接上書きするとDecodeが狂う
-            //bufferInfo.presentationTimeUs = elapsedTimeUs;
+    private void runRenderStage() {
+        try {
+            encoderSurface.makeCurrent();
+            while (!pipelineStopped) {
+                Frame frame = renderQueue.poll(PIPELINE_QUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                long startNs = System.nanoTime();
+                renderFrame(frame.bufferIndex, frame.presentationTimeUs, frame.render, frame.repeatSlots);
+                boolean endOfStream = frame.endOfStream;
+                framePool.offer(frame);
+                if (endOfStream) {
+                    signalEndOfInputStream();
+                }
+                stageBusyNs.addAndGet(PIPELINE_STAGE_RENDER, System.nanoTime() - startNs);
+                if (endOfStream) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable e) {
+            onPipelineError(e);
+        } finally {
+            encoderSurface.releaseCurrent();
+        }
+    }
 
-            // 出力用の情報をつくる
-            outputBufferInfo.set(bufferInfo.offset, bufferInfo.size, encoderOutputStartTimeUs + encoderElapsedTimeUs, bufferInfo.flags);
+    private void runEncodeStage() {
+        try {
+            while (!pipelineStopped && !encoderDrain.isEndOfStream()) {
+                long startNs = System.nanoTime();
+                if (drainEncoder() != DRAIN_STATE_NONE) {
+                    stageBusyNs.addAndGet(PIPELINE_STAGE_ENCODE, System.nanoTime() - startNs);
+                }
+            }
+        } catch (Throwable e) {
+            onPipelineError(e);
+        }
+    }
 
-            // 次のフレームのための準備
-            encoderPreviousTimeUs = currentTimeUs;
+    private void onPipelineError(Throwable e) {
+        logger.error(TAG, "Video pipeline stage failed.", e);
+        pipelineError = e;
+        pipelineStopped = true;
+    }
+
+    /**
+     * Stop the stage threads and wait until all of them have exited, so that the codecs and
+     * surfaces are not released under a running stage.
+     *
+     * @throws IllegalStateException If a stage does not exit, the codecs are then left alone.
+     */
+    private void stopPipelineThreads() {
+        pipelineStopped = true;
+        boolean interrupted = false;
+        for (Thread thread : pipelineThreads) {
+            int attempts = 0;
+            while (thread.isAlive()) {
+                if (attempts++ == PIPELINE_JOIN_ATTEMPTS) {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("Video pipeline thread " + thread.getName() + " did not stop.");
+                }
+                if (attempts > 1) {
+                    // 止まらなければ、キューなどで待っているステージを起こす
+                    thread.interrupt();
+                }
+                try {
+                    thread.join(PIPELINE_JOIN_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    // 止まるまでは待ち続けて、割り込みは後で戻す
+                    interrupted = true;
+                }
+            }
         }
-        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            // SPS or PPS, which should be passed by MediaFormat.
-            encoder.releaseOutputBuffer(result, false);
-            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
-        // EOSに到達した時
-        if(isEncoderEOS && !sendEOS) {
-            // 何もしない
-        } else {
-            muxRender.writeSampleData(SampleType.VIDEO, encoder.getOutputBuffer(result), outputBufferInfo);
+        logStageUtilisation();
+        if (pipelineStartNs != 0) {
+            metrics.recordPipelineBusy(stageBusyNs.get(PIPELINE_STAGE_DECODE), stageBusyNs.get(PIPELINE_STAGE_RENDER),
+                    stageBusyNs.get(PIPELINE_STAGE_ENCODE), System.nanoTime() - pipelineStartNs);
         }
-        writtenPresentationTimeUs = encoderElapsedTimeUs;
-        Log.d(TAG, String.format("出力時間 %f s", (double)encoderElapsedTimeUs / 1000000));
-        encoder.releaseOutputBuffer(result, false);
-        return DRAIN_STATE_CONSUMED;
+        pipelineThreads = null;
+        // 後始末のためにEGLコンテキストを戻す
+        encoderSurface.makeCurrent();
+    }
+
+    /**
+     * @return The share of wall time each pipeline stage (extract/decode, render, encode/mux) was
+     * busy, or null when the pipelined mode is not used.
+     */
+    float[] getStageUtilisation() {
+        if (pipelineStartNs == 0) {
+            return null;
+        }
+        long wallNs = Math.max(1, System.nanoTime() - pipelineStartNs);
+        float[] utilisation = new float[PIPELINE_STAGE_COUNT];
+        for (int i = 0; i < PIPELINE_STAGE_COUNT; i++) {
+            utilisation[i] = (float) stageBusyNs.get(i) / wallNs;
+        }
+        return utilisation;
+    }
+
+    private void logStageUtilisation() {
+        float[] utilisation = getStageUtilisation();
+        if (utilisation == null) {
+            return;
+        }
+        StringBuilder builder = new StringBuilder("Pipeline stage utilisation:");
+        for (int i = 0; i < PIPELINE_STAGE_COUNT; i++) {
+            builder.append(' ').append(PIPELINE_STAGE_NAMES[i]).append(' ')
+                    .append(Math.round(utilisation[i] * 100)).append('%');
+        }
+        logger.debug(TAG, builder.toString());
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the first frame of this segment was rendered, or 0.
+     */
+    long getFirstRenderNs() {
+        return firstRenderNs;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the latest frame of this segment was rendered, or 0.
+     */
+    long getLastRenderNs() {
+        return lastRenderNs;
     }
 
     public long getOutputDurationTimeUs() {
@@ -6,7 +6,6 @@ import android.media.MediaMetadataRetriever;
 import android.media.MediaMuxer;
 import android.opengl.EGLContext;
 import android.os.Build;
-import android.util.Log;
 import android.util.Size;
 
 import com.daasuu.mp4compose.FillMode;
@@ -19,8 +18,13 @@ import com.daasuu.mp4compose.source.DataSource;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 // 複数のVideoComposerをシーケンシャルに管理する
-public class VideoComposerSet {
+public class VideoComposerSet implements IVideoComposer {
     private static final String TAG = "VideoComposerSet";
     private VideoComposer[] videoComposers;
     private VideoComposer currentVideoComposer;
@@ -31,15 +35,29 @@ public class VideoComposerSet {
 
     private MuxRender muxRender;
     private MediaFormat actualVideoOutputFormat;
-    private int timeScale;
+    private float timeScale;
     private Size outputResolution;
     private GlFilter filter;
     private EGLContext shareContext;
+    private PipelineSignal pipelineSignal;
+    // 全区間で共有するエンコーダー (null の場合は区間ごとに作り直す)
+    private boolean reuseEncoder;
+    private EncoderSession encoderSession;
+    private Logger logger;
+    private int frameRate;
+    private CancellationToken cancellationToken;
+    // 先読みする区間の数 (0 の場合は切り替え時に用意する)
+    private int prefetchSegments;
+    private ExecutorService prefetchExecutor;
+    private Future<?>[] prefetchFutures;
+    // 区切りごとの空白時間
+    private long[] cutOverGapsUs;
+    private long previousLastRenderNs;
 
     public VideoComposerSet(
         @NonNull MuxRender muxRender,
         @NonNull MediaFormat actualVideoOutputFormat,
-        int timeScale,
+        float timeScale,
         final Size outputResolution,
         final GlFilter filter,
         final EGLContext shareContext) {
@@ -52,16 +70,99 @@ public class VideoComposerSet {
         this.shareContext = shareContext;
     }
 
+    void setPipelineSignal(PipelineSignal pipelineSignal) {
+        this.pipelineSignal = pipelineSignal;
+    }
+
+    void setLogger(@NonNull Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Keep one encoder, EGL context and compiled filter for all the tracks instead of creating
+     * them for every track. Must be called before the first {@link #stepPipeline()}.
+     */
+    void setReuseEncoder(boolean reuseEncoder) {
+        this.reuseEncoder = reuseEncoder;
+    }
+
+    /**
+     * Cap the output frame rate of every track, see {@link VideoComposer#setFrameRate(int)}.
+     */
+    void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Pass the token to the {@link VideoComposer}s created here, see
+     * {@link VideoComposer#setCancellationToken(CancellationToken)}.
+     */
+    void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Prepare the extractor and decoder of up to {@code segments} following tracks on a
+     * background thread while the current one is composing. Must be called before
+     * {@link #setVideoTracks}.
+     */
+    void setPrefetchSegments(int segments) {
+        this.prefetchSegments = segments;
+    }
+
     public void setVideoTracks(VideoTrack[] videoTracks) {
         this.videoTracks = videoTracks;
         this.totalWrittenPresentationTimeUs = 0;
         this.isEOS = false;
+        this.cutOverGapsUs = new long[Math.max(0, videoTracks.length - 1)];
+        if (prefetchSegments > 0) {
+            prefetchFutures = new Future<?>[videoTracks.length];
+            prefetchExecutor = Executors.newSingleThreadExecutor();
+            prefetch(0);
+        }
+    }
+
+    /**
+     * @return The time between the last rendered frame of a track and the first rendered frame
+     * of the next one, per boundary, in microseconds.
+     */
+    long[] getCutOverGapsUs() {
+        return cutOverGapsUs;
     }
 
+    private void prefetch(int fromIndex) {
+        int end = Math.min(videoTracks.length, fromIndex + prefetchSegments + 1);
+        for (int i = fromIndex; i < end; i++) {
+            if (prefetchFutures[i] != null) {
+                continue;
+            }
+            final VideoTrack track = videoTracks[i];
+            prefetchFutures[i] = prefetchExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    track.prepare();
+                }
+            });
+        }
+    }
+
+    private void awaitPrefetch(int index) {
+        try {
+            prefetchFutures[index].get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not prepare video track " + index, e.getCause());
+        }
+    }
+
+    @Override
     public boolean isFinished() {
         return isEOS;
     }
 
+    @Override
     public boolean stepPipeline() {
         VideoComposer vc = getCurrentComposer();
         if(vc == null) {
@@ -69,6 +170,12 @@ public class VideoComposerSet {
         }
         boolean result = vc.stepPipeline();
 
+        if (currentVideoComposerIndex > 0 && cutOverGapsUs[currentVideoComposerIndex - 1] == 0 && vc.getFirstRenderNs() != 0) {
+            long gapUs = (vc.getFirstRenderNs() - previousLastRenderNs) / 1000;
+            cutOverGapsUs[currentVideoComposerIndex - 1] = Math.max(1, gapUs);
+            logger.debug(TAG, "Cut-over gap before track " + currentVideoComposerIndex + " (us): " + gapUs);
+        }
+
         if(vc.isFinished()) {
             // 現在使用中のvideoComposerを停止する
             releaseCurrentVideoComposer();
@@ -77,16 +184,45 @@ public class VideoComposerSet {
         return result;
     }
 
+    @Override
     public void release() {
         releaseCurrentVideoComposer();
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+            // 使われなかった先読み分を解放する
+            for (int i = currentVideoComposerIndex + 1; i < prefetchFutures.length; i++) {
+                if (prefetchFutures[i] == null) {
+                    continue;
+                }
+                try {
+                    prefetchFutures[i].get();
+                } catch (Exception e) {
+                    // 解放するだけなので無視する
+                }
+                videoTracks[i].release();
+            }
+            prefetchExecutor = null;
+        }
+        if (encoderSession != null) {
+            encoderSession.release();
+            encoderSession = null;
+        }
     }
 
+    @Override
     public long getWrittenPresentationTimeUs() {
+        if (encoderSession != null) {
+            // セッションは出力の時間軸で書き込んでいる
+            return encoderSession.getWrittenPresentationTimeUs();
+        }
         long time = totalWrittenPresentationTimeUs;
         if(getCurrentComposer() != null) {
             time += getCurrentComposer().getWrittenPresentationTimeUs();
         }
-        Log.d(TAG, String.format("総出力時間 %f s", (double)time / 1000000));
+        if (logger.isDebugEnabled()) {
+            // 進捗の確認ごとに呼ばれるので、無効な時は文字列をつくらない
+            logger.debug(TAG, String.format("総出力時間 %f s", (double) time / 1000000));
+        }
         return time;
     }
 
@@ -96,8 +232,10 @@ public class VideoComposerSet {
         }
         // 出力トータル時間を更新する
         totalWrittenPresentationTimeUs += currentVideoComposer.getOutputDurationTimeUs();
+        previousLastRenderNs = currentVideoComposer.getLastRenderNs();
         videoTracks[currentVideoComposerIndex].release();
         currentVideoComposer = null;
+        muxRender.getMetricsRecorder().end("segment");
         if(currentVideoComposerIndex + 1 >= videoTracks.length) {
             isEOS = true;
         }
@@ -110,8 +248,31 @@ public class VideoComposerSet {
             if(index >= videoTracks.length) {
                 return null;
             }
-            Log.d("VideoComposer", String.format("VideoComposerを切り替えます %d", index));
+            logger.debug(TAG, "VideoComposerを切り替えます " + index);
             currentVideoComposerIndex = index;
+            muxRender.getMetricsRecorder().instant("segment switch");
+            muxRender.getMetricsRecorder().begin("segment");
+            if (prefetchExecutor != null) {
+                awaitPrefetch(index);
+                prefetch(index + 1);
+            }
+            if (reuseEncoder) {
+                if (encoderSession == null) {
+                    encoderSession = new EncoderSession(this.actualVideoOutputFormat, this.muxRender, logger);
+                    encoderSession.setUp(this.filter, this.outputResolution, FillMode.PRESERVE_ASPECT_FIT, null,
+                            false, false, this.shareContext, this.pipelineSignal);
+                }
+                currentVideoComposer = videoTracks[currentVideoComposerIndex].createVideoComposer(
+                        this.muxRender,
+                        encoderSession,
+                        this.timeScale,
+                        index == 0,
+                        index == videoTracks.length - 1,
+                        this.pipelineSignal);
+                currentVideoComposer.setFrameRate(frameRate);
+                currentVideoComposer.setCancellationToken(cancellationToken);
+                return currentVideoComposer;
+            }
             currentVideoComposer = videoTracks[currentVideoComposerIndex].createVideoComposer(
                     this.muxRender,
                     this.actualVideoOutputFormat,
@@ -124,7 +285,10 @@ public class VideoComposerSet {
                     null,
                     false,
                     false,
-                    this.shareContext);
+                    this.shareContext,
+                    this.pipelineSignal);
+            currentVideoComposer.setFrameRate(frameRate);
+            currentVideoComposer.setCancellationToken(cancellationToken);
         }
         return currentVideoComposer;
     }
@@ -1,6 +1,7 @@
 package com.daasuu.mp4compose.composer;
 
 
+import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
@@ -17,6 +18,10 @@ import com.daasuu.mp4compose.source.DataSource;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
 public class VideoTrack {
     private static final String TAG = "VideoTrack";
     private DataSource srcDataSource;
@@ -38,6 +43,12 @@ public class VideoTrack {
     private int videoRotate;
     private Size inputResolution;
 
+    // 先読みで用意したデコーダーと最初の同期フレーム
+    private MediaCodec preparedDecoder;
+    private ByteBuffer preparedSample;
+    private long preparedSampleTimeUs;
+    private int preparedSampleFlags;
+
     public VideoTrack(
             @NonNull DataSource srcDataSource,
             final long trimStartMs,
@@ -115,10 +126,85 @@ public class VideoTrack {
         return srcDataSource;
     }
 
+    MediaExtractor getMediaExtractor() {
+        return mediaExtractor;
+    }
+
+    int getTrackIndex() {
+        return videoTrackIndex;
+    }
+
+    MediaFormat getTrackFormat() {
+        return mediaExtractor.getTrackFormat(videoTrackIndex);
+    }
+
+    int getRotation() {
+        return Rotation.fromInt(rotation.getRotation() + videoRotate).getRotation();
+    }
+
+    Size getInputResolution() {
+        return inputResolution;
+    }
+
+    long getTrimStartMs() {
+        return trimStartMs;
+    }
+
+    long getTrimEndMs() {
+        return trimEndMs;
+    }
+
+    long getOutputStartMs() {
+        return outputStartMs;
+    }
+
+    /**
+     * Does the work of the segment start that does not need the output surface, so it can run
+     * on a background thread while the previous segment is still composing: selects and seeks
+     * the extractor to the trim start, creates the decoder and reads the first sync sample.
+     * Configuring the decoder is left to {@link #createVideoComposer}, because its output
+     * surface is still owned by the running segment.
+     */
+    void prepare() {
+        mediaExtractor.selectTrack(videoTrackIndex);
+        mediaExtractor.seekTo(TimeUnit.MILLISECONDS.toMicros(trimStartMs), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        MediaFormat inputFormat = mediaExtractor.getTrackFormat(videoTrackIndex);
+        try {
+            preparedDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (mediaExtractor.getSampleTrackIndex() == videoTrackIndex) {
+            int capacity;
+            if (inputFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                capacity = inputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            } else {
+                // 圧縮済みのフレームが輝度面より大きくなることはまずない
+                capacity = inputFormat.getInteger(MediaFormat.KEY_WIDTH) * inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            }
+            preparedSample = ByteBuffer.allocateDirect(capacity);
+            int size = mediaExtractor.readSampleData(preparedSample, 0);
+            preparedSample.position(0);
+            preparedSample.limit(size);
+            preparedSampleTimeUs = mediaExtractor.getSampleTime();
+            preparedSampleFlags = mediaExtractor.getSampleFlags();
+            mediaExtractor.advance();
+        }
+        logger.debug(TAG, "Prepared " + srcDataSource + " from " + trimStartMs + " ms");
+    }
+
+    private void releasePrepared() {
+        if (preparedDecoder != null) {
+            preparedDecoder.release();
+            preparedDecoder = null;
+        }
+        preparedSample = null;
+    }
+
     public VideoComposer createVideoComposer(
             @NonNull MuxRender muxRender,
             @NonNull MediaFormat actualVideoOutputFormat,
-            int timeScale,
+            float timeScale,
             final boolean isFirst,
             final boolean sendEOS,
 
@@ -128,7 +214,8 @@ public class VideoTrack {
             final FillModeCustomItem fillModeCustomItem,
             final boolean flipVertical,
             final boolean flipHorizontal,
-            final EGLContext shareContext) {
+            final EGLContext shareContext,
+            final PipelineSignal pipelineSignal) {
 
         Rotation rotate = Rotation.fromInt(rotation.getRotation() + videoRotate);
 
@@ -136,6 +223,12 @@ public class VideoTrack {
                 timeScale, trimStartMs, trimEndMs, outputStartMs,
                 isFirst, sendEOS,
                 logger);
+        videoComposer.setPipelineSignal(pipelineSignal);
+        if (preparedDecoder != null) {
+            videoComposer.setPrepared(preparedDecoder, preparedSample, preparedSampleTimeUs, preparedSampleFlags);
+            preparedDecoder = null;
+            preparedSample = null;
+        }
         videoComposer.setUp(filter, rotate, outputResolution,
                 inputResolution, fillMode, fillModeCustomItem,
                 flipVertical, flipHorizontal, shareContext);
@@ -144,12 +237,42 @@ public class VideoTrack {
         return videoComposer;
     }
 
+    /**
+     * Creates a composer that only decodes this track and renders into the encoder of the
+     * given session, which is shared with the other tracks of the timeline.
+     */
+    VideoComposer createVideoComposer(
+            @NonNull MuxRender muxRender,
+            @NonNull EncoderSession encoderSession,
+            float timeScale,
+            final boolean isFirst,
+            final boolean sendEOS,
+            final PipelineSignal pipelineSignal) {
+
+        Rotation rotate = Rotation.fromInt(rotation.getRotation() + videoRotate);
+
+        videoComposer = new VideoComposer(mediaExtractor, videoTrackIndex, encoderSession.getOutputFormat(), muxRender,
+                timeScale, trimStartMs, trimEndMs, outputStartMs,
+                isFirst, sendEOS,
+                logger);
+        videoComposer.setPipelineSignal(pipelineSignal);
+        if (preparedDecoder != null) {
+            videoComposer.setPrepared(preparedDecoder, preparedSample, preparedSampleTimeUs, preparedSampleFlags);
+            preparedDecoder = null;
+            preparedSample = null;
+        }
+        videoComposer.setUp(encoderSession, rotate, inputResolution);
+
+        return videoComposer;
+    }
+
     public VideoComposer getVideoComposer() {
         return videoComposer;
     }
 
     public void release() {
         try {
+            releasePrepared();
             if (videoComposer != null) {
                 videoComposer.release();
                 videoComposer = null;
@@ -6,6 +6,10 @@ import android.opengl.GLES20;
 import com.daasuu.mp4compose.gl.GlFramebufferObject;
 import com.daasuu.mp4compose.utils.EglUtil;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 
 import static android.opengl.GLES20.GL_FLOAT;
@@ -161,6 +165,62 @@ public class GlFilter {
         return location;
     }
 
+    /**
+     * Describes everything the output of the filter depends on. A resumable composition only
+     * reuses the fragments of an earlier run when this is unchanged.
+     * <p>
+     * The default covers the shaders, the clear color and the primitive, String and primitive
+     * array fields declared by the subclasses, i.e. the parameters of the built-in filters.
+     * Override it when the output depends on other state, e.g. a bitmap.
+     *
+     * @return A string that is equal for filters producing the same output.
+     */
+    public String getParameterState() {
+        final StringBuilder builder = new StringBuilder(getClass().getName());
+        builder.append('/').append(vertexShaderSource.hashCode())
+                .append('/').append(fragmentShaderSource.hashCode())
+                .append('/').append(Arrays.toString(clearColor));
+        for (Class<?> type = getClass(); type != GlFilter.class; type = type.getSuperclass()) {
+            final Field[] fields = type.getDeclaredFields();
+            // 宣言順は保証されないので名前順にする
+            Arrays.sort(fields, new Comparator<Field>() {
+                @Override
+                public int compare(Field a, Field b) {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            for (Field field : fields) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                final Class<?> fieldType = field.getType();
+                if (!fieldType.isPrimitive() && fieldType != String.class
+                        && !(fieldType.isArray() && fieldType.getComponentType().isPrimitive())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                try {
+                    builder.append('/').append(field.getName()).append('=').append(toString(field.get(this)));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String toString(Object value) {
+        if (value instanceof float[]) return Arrays.toString((float[]) value);
+        if (value instanceof int[]) return Arrays.toString((int[]) value);
+        if (value instanceof double[]) return Arrays.toString((double[]) value);
+        if (value instanceof long[]) return Arrays.toString((long[]) value);
+        if (value instanceof short[]) return Arrays.toString((short[]) value);
+        if (value instanceof byte[]) return Arrays.toString((byte[]) value);
+        if (value instanceof boolean[]) return Arrays.toString((boolean[]) value);
+        if (value instanceof char[]) return Arrays.toString((char[]) value);
+        return String.valueOf(value);
+    }
+
     private float[] clearColor = new float[]{0f, 0f, 0f, 1f};
 
     public float[] getClearColor() {
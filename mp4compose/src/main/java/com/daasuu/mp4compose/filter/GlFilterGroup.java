@@ -76,6 +76,17 @@ public class GlFilterGroup extends GlFilter {
         }
     }
 
+    @Override
+    public String getParameterState() {
+        final StringBuilder builder = new StringBuilder(super.getParameterState());
+        if (filters != null) {
+            for (final GlFilter filter : filters) {
+                builder.append('[').append(filter.getParameterState()).append(']');
+            }
+        }
+        return builder.toString();
+    }
+
     private int prevTexName;
 
     @Override
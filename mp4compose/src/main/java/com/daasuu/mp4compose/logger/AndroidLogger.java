@@ -7,9 +7,29 @@ import android.util.Log;
  */
 public class AndroidLogger implements Logger{
 
+    private final boolean debugEnabled;
+
+    public AndroidLogger() {
+        this(true);
+    }
+
+    /**
+     * @param debugEnabled false to drop the debug messages, warnings and errors are still logged.
+     */
+    public AndroidLogger(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
     @Override
     public void debug(String tag, String message) {
-        Log.d(tag, message);
+        if (debugEnabled) {
+            Log.d(tag, message);
+        }
     }
 
     @Override
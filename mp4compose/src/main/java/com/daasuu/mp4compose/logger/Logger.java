@@ -5,6 +5,14 @@ package com.daasuu.mp4compose.logger;
  */
 public interface Logger {
 
+    /**
+     * Debug messages on the per-frame path are only built when this returns true, so a
+     * disabled logger costs no string building or allocation per frame.
+     *
+     * @return true when {@link #debug} writes the message.
+     */
+    boolean isDebugEnabled();
+
     /**
      * Logs a debug message.
      *
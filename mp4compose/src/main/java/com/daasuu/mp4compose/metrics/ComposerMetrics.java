@@ -0,0 +1,26 @@
+package com.daasuu.mp4compose.metrics;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the timings of a composition, set with {@code Mp4Composer#metrics}.
+ */
+public interface ComposerMetrics {
+
+    /**
+     * Called on the pipeline thread every time a stage ran for a frame or a sample. Keep it
+     * cheap, it directly adds to the time of the pipeline.
+     *
+     * @param stage      The measured stage.
+     * @param durationNs The time the stage took, in nanoseconds.
+     */
+    void onStageTime(@NonNull Stage stage, long durationNs);
+
+    /**
+     * Called once when the composition ended, whether it completed, failed or was cancelled.
+     *
+     * @param report The latency histograms and frame counters of the whole composition.
+     */
+    void onReport(@NonNull MetricsReport report);
+
+}
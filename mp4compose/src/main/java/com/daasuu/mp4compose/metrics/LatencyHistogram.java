@@ -0,0 +1,92 @@
+package com.daasuu.mp4compose.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with power of two buckets, bucket {@code i} counts the durations from
+ * 2^(i-1) up to 2^i - 1 nanoseconds. Recording does not allocate and may happen from several
+ * threads.
+ */
+public class LatencyHistogram {
+
+    // 2^40 ns (約18分) までを数える
+    private static final int BUCKET_COUNT = 41;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNs = new AtomicLong();
+    private final AtomicLong maxNs = new AtomicLong();
+
+    public void record(long durationNs) {
+        if (durationNs < 0) {
+            durationNs = 0;
+        }
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(durationNs));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNs.addAndGet(durationNs);
+        long max = maxNs.get();
+        while (durationNs > max && !maxNs.compareAndSet(max, durationNs)) {
+            max = maxNs.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNs() {
+        return totalNs.get();
+    }
+
+    public long getMaxNs() {
+        return maxNs.get();
+    }
+
+    public long getMeanNs() {
+        long count = this.count.get();
+        return count == 0 ? 0 : totalNs.get() / count;
+    }
+
+    /**
+     * @param percentile The percentile in [0, 100].
+     * @return The upper bound of the bucket holding the percentile, in nanoseconds, so the
+     * value is at most twice the real one. 0 when nothing was recorded.
+     */
+    public long getPercentileNs(double percentile) {
+        long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.max(0, Math.min(100, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(maxNs.get(), (1L << i) - 1);
+            }
+        }
+        return maxNs.get();
+    }
+
+    /**
+     * @return The number of durations in the bucket, see the class description.
+     */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    public int getBucketSize() {
+        return BUCKET_COUNT;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean(us)=" + getMeanNs() / 1000
+                + " p50(us)<=" + getPercentileNs(50) / 1000
+                + " p99(us)<=" + getPercentileNs(99) / 1000
+                + " max(us)=" + getMaxNs() / 1000;
+    }
+}
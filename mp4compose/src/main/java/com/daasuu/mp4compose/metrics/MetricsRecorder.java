@@ -0,0 +1,189 @@
+package com.daasuu.mp4compose.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the timings of one composition for a {@link ComposerMetrics} and a
+ * {@link TraceRecorder}. Used by the composer internals; {@link #DISABLED} does nothing so the
+ * pipeline does not need to check for null.
+ * <pre>
+ * long startNs = metrics.now();
+ * ...
+ * metrics.record(Stage.FILTER_DRAW, startNs);
+ * </pre>
+ */
+public class MetricsRecorder {
+
+    public static final MetricsRecorder DISABLED = new MetricsRecorder(null, null);
+
+    private final ComposerMetrics listener;
+    private final TraceRecorder trace;
+    private final boolean enabled;
+    private final LatencyHistogram[] histograms;
+    private final AtomicLong decodedFrames = new AtomicLong();
+    private final AtomicLong renderedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong encodedFrames = new AtomicLong();
+    private final AtomicLong pendingSamples = new AtomicLong();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong pendingSpilledBytes = new AtomicLong();
+    private final AtomicInteger maxMuxQueueDepth = new AtomicInteger();
+    private final AtomicLong muxQueueDepthSum = new AtomicLong();
+    private final AtomicLong muxQueueSamples = new AtomicLong();
+    private final AtomicLong muxQueueFull = new AtomicLong();
+    private final AtomicLong pipelineDecodeBusyNs = new AtomicLong();
+    private final AtomicLong pipelineRenderBusyNs = new AtomicLong();
+    private final AtomicLong pipelineEncodeBusyNs = new AtomicLong();
+    private final AtomicLong pipelineWallNs = new AtomicLong();
+    private final long startNs;
+
+    public MetricsRecorder(ComposerMetrics listener, TraceRecorder trace) {
+        this.listener = listener;
+        this.trace = trace;
+        this.enabled = listener != null || trace != null;
+        this.histograms = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        this.startNs = System.nanoTime();
+    }
+
+    /**
+     * @return The current time for {@link #record}, 0 when disabled to skip the clock read.
+     */
+    public long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @param startNs The value {@link #now()} returned when the stage started.
+     */
+    public void record(@NonNull Stage stage, long startNs) {
+        if (!enabled) {
+            return;
+        }
+        long endNs = System.nanoTime();
+        histograms[stage.ordinal()].record(endNs - startNs);
+        if (listener != null) {
+            listener.onStageTime(stage, endNs - startNs);
+        }
+        if (trace != null) {
+            trace.span(stage.name(), startNs, endNs);
+        }
+    }
+
+    /**
+     * Start a traced span such as a codec lifecycle call or a segment.
+     *
+     * @param name A constant name, see {@link TraceRecorder}.
+     */
+    public void begin(@NonNull String name) {
+        if (trace != null) {
+            trace.begin(name);
+        }
+    }
+
+    public void end(@NonNull String name) {
+        if (trace != null) {
+            trace.end(name);
+        }
+    }
+
+    public void instant(@NonNull String name) {
+        if (trace != null) {
+            trace.instant(name);
+        }
+    }
+
+    public void countDecoded() {
+        if (enabled) {
+            decodedFrames.incrementAndGet();
+        }
+    }
+
+    public void countRendered() {
+        if (enabled) {
+            renderedFrames.incrementAndGet();
+        }
+    }
+
+    public void countDropped() {
+        if (enabled) {
+            droppedFrames.incrementAndGet();
+        }
+    }
+
+    public void countEncoded() {
+        if (enabled) {
+            encodedFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record the samples buffered until the muxer started.
+     */
+    public void recordPendingSamples(int samples, long bytes, long spilledBytes) {
+        if (!enabled) {
+            return;
+        }
+        pendingSamples.addAndGet(samples);
+        pendingBytes.addAndGet(bytes);
+        pendingSpilledBytes.addAndGet(spilledBytes);
+    }
+
+    /**
+     * Record the depth of the async mux writer queue after a sample was queued.
+     */
+    public void recordMuxQueueDepth(int depth) {
+        if (!enabled) {
+            return;
+        }
+        muxQueueDepthSum.addAndGet(depth);
+        muxQueueSamples.incrementAndGet();
+        int max = maxMuxQueueDepth.get();
+        while (depth > max && !maxMuxQueueDepth.compareAndSet(max, depth)) {
+            max = maxMuxQueueDepth.get();
+        }
+    }
+
+    /**
+     * Count a sample that had to wait because the async mux writer queue was full.
+     */
+    public void countMuxQueueFull() {
+        if (enabled) {
+            muxQueueFull.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record how long each stage of a pipelined video composer was busy while its threads ran.
+     * Called once per composer, the report sums all of them.
+     */
+    public void recordPipelineBusy(long decodeNs, long renderNs, long encodeNs, long wallNs) {
+        if (!enabled) {
+            return;
+        }
+        pipelineDecodeBusyNs.addAndGet(decodeNs);
+        pipelineRenderBusyNs.addAndGet(renderNs);
+        pipelineEncodeBusyNs.addAndGet(encodeNs);
+        pipelineWallNs.addAndGet(wallNs);
+    }
+
+    /**
+     * Hand the report of the whole composition to the listener.
+     */
+    public void finish() {
+        if (listener == null) {
+            return;
+        }
+        listener.onReport(new MetricsReport(histograms, decodedFrames.get(), renderedFrames.get(),
+                droppedFrames.get(), encodedFrames.get(), pendingSamples.get(), pendingBytes.get(),
+                pendingSpilledBytes.get(), maxMuxQueueDepth.get(),
+                muxQueueSamples.get() > 0 ? (double) muxQueueDepthSum.get() / muxQueueSamples.get() : 0,
+                muxQueueFull.get(), pipelineDecodeBusyNs.get(), pipelineRenderBusyNs.get(),
+                pipelineEncodeBusyNs.get(), pipelineWallNs.get(), System.nanoTime() - startNs));
+    }
+}
@@ -0,0 +1,192 @@
+package com.daasuu.mp4compose.metrics;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The timings and frame counters of a whole composition.
+ */
+public class MetricsReport {
+
+    private final LatencyHistogram[] histograms;
+    private final long decodedFrames;
+    private final long renderedFrames;
+    private final long droppedFrames;
+    private final long encodedFrames;
+    private final long pendingSamples;
+    private final long pendingBytes;
+    private final long pendingSpilledBytes;
+    private final int maxMuxQueueDepth;
+    private final double meanMuxQueueDepth;
+    private final long muxQueueFull;
+    private final long pipelineDecodeBusyNs;
+    private final long pipelineRenderBusyNs;
+    private final long pipelineEncodeBusyNs;
+    private final long pipelineWallNs;
+    private final long wallTimeNs;
+
+    MetricsReport(@NonNull LatencyHistogram[] histograms, long decodedFrames, long renderedFrames,
+                  long droppedFrames, long encodedFrames, long pendingSamples, long pendingBytes,
+                  long pendingSpilledBytes, int maxMuxQueueDepth, double meanMuxQueueDepth,
+                  long muxQueueFull, long pipelineDecodeBusyNs, long pipelineRenderBusyNs,
+                  long pipelineEncodeBusyNs, long pipelineWallNs, long wallTimeNs) {
+        this.histograms = histograms;
+        this.decodedFrames = decodedFrames;
+        this.renderedFrames = renderedFrames;
+        this.droppedFrames = droppedFrames;
+        this.encodedFrames = encodedFrames;
+        this.pendingSamples = pendingSamples;
+        this.pendingBytes = pendingBytes;
+        this.pendingSpilledBytes = pendingSpilledBytes;
+        this.maxMuxQueueDepth = maxMuxQueueDepth;
+        this.meanMuxQueueDepth = meanMuxQueueDepth;
+        this.muxQueueFull = muxQueueFull;
+        this.pipelineDecodeBusyNs = pipelineDecodeBusyNs;
+        this.pipelineRenderBusyNs = pipelineRenderBusyNs;
+        this.pipelineEncodeBusyNs = pipelineEncodeBusyNs;
+        this.pipelineWallNs = pipelineWallNs;
+        this.wallTimeNs = wallTimeNs;
+    }
+
+    @NonNull
+    public LatencyHistogram getHistogram(@NonNull Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * @return The number of frames the decoders produced.
+     */
+    public long getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    /**
+     * @return The number of frames drawn and handed to the encoder, including frames repeated
+     * for slow motion.
+     */
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    /**
+     * @return The number of decoded frames that were not rendered, because they were outside
+     * the trim range or above the output frame rate.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return The number of frames the encoders produced.
+     */
+    public long getEncodedFrames() {
+        return encodedFrames;
+    }
+
+    /**
+     * @return The number of samples buffered because they were encoded before the output format
+     * of every track was known and the muxer could start.
+     */
+    public long getPendingSamples() {
+        return pendingSamples;
+    }
+
+    /**
+     * @return The bytes of the samples buffered before the muxer started.
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return The part of {@link #getPendingBytes()} spilled to a temp file because it was over
+     * the memory limit.
+     */
+    public long getPendingSpilledBytes() {
+        return pendingSpilledBytes;
+    }
+
+    /**
+     * @return The most samples waiting in the async mux writer queue, 0 without it.
+     */
+    public int getMaxMuxQueueDepth() {
+        return maxMuxQueueDepth;
+    }
+
+    /**
+     * @return The average number of samples waiting in the async mux writer queue.
+     */
+    public double getMeanMuxQueueDepth() {
+        return meanMuxQueueDepth;
+    }
+
+    /**
+     * @return The number of samples that waited because the async mux writer queue was full,
+     * i.e. how often the storage held the pipeline back.
+     */
+    public long getMuxQueueFull() {
+        return muxQueueFull;
+    }
+
+    /**
+     * @return The share of wall time the extract/decode stage of the pipelined mode was busy,
+     * from 0 to 1, or -1 when the pipelined mode was not used. A stage close to 1 is the one
+     * that limits the speed.
+     */
+    public float getDecodeStageUtilisation() {
+        return utilisation(pipelineDecodeBusyNs);
+    }
+
+    /**
+     * @return The share of wall time the render stage of the pipelined mode was busy, see
+     * {@link #getDecodeStageUtilisation()}.
+     */
+    public float getRenderStageUtilisation() {
+        return utilisation(pipelineRenderBusyNs);
+    }
+
+    /**
+     * @return The share of wall time the encode/mux stage of the pipelined mode was busy, see
+     * {@link #getDecodeStageUtilisation()}.
+     */
+    public float getEncodeStageUtilisation() {
+        return utilisation(pipelineEncodeBusyNs);
+    }
+
+    private float utilisation(long busyNs) {
+        return pipelineWallNs > 0 ? (float) busyNs / pipelineWallNs : -1;
+    }
+
+    public long getWallTimeMs() {
+        return wallTimeNs / 1000000;
+    }
+
+    /**
+     * @return The encoded frames per second of wall time.
+     */
+    public double getAchievedFps() {
+        return wallTimeNs > 0 ? encodedFrames * 1e9 / wallTimeNs : 0;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("decoded=").append(decodedFrames)
+                .append(" rendered=").append(renderedFrames)
+                .append(" dropped=").append(droppedFrames)
+                .append(" encoded=").append(encodedFrames)
+                .append(" pending=").append(pendingSamples).append('/').append(pendingBytes)
+                .append(" spilled=").append(pendingSpilledBytes)
+                .append(" muxQueue(max/mean/full)=").append(maxMuxQueueDepth)
+                .append('/').append(String.format("%.1f", meanMuxQueueDepth))
+                .append('/').append(muxQueueFull)
+                .append(" pipeline(decode/render/encode)=")
+                .append(String.format("%.2f/%.2f/%.2f", getDecodeStageUtilisation(),
+                        getRenderStageUtilisation(), getEncodeStageUtilisation()))
+                .append(" wall(ms)=").append(getWallTimeMs())
+                .append(" fps=").append(String.format("%.1f", getAchievedFps()));
+        for (Stage stage : Stage.values()) {
+            builder.append('\n').append(stage).append(": ").append(getHistogram(stage));
+        }
+        return builder.toString();
+    }
+}
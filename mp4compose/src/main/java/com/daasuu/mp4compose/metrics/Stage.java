@@ -0,0 +1,40 @@
+package com.daasuu.mp4compose.metrics;
+
+/**
+ * The parts of the video pipeline whose time is measured for every frame.
+ */
+public enum Stage {
+    /**
+     * Reading a compressed sample from the MediaExtractor.
+     */
+    EXTRACTOR_READ,
+    /**
+     * Dequeuing a decoded frame from the decoder.
+     */
+    DECODER_DEQUEUE,
+    /**
+     * Waiting for the decoded frame to arrive on the GL texture.
+     */
+    AWAIT_NEW_IMAGE,
+    /**
+     * Drawing the frame with the filter.
+     */
+    FILTER_DRAW,
+    /**
+     * Handing the drawn frame to the encoder.
+     */
+    SWAP_BUFFERS,
+    /**
+     * Dequeuing an encoded frame from the encoder.
+     */
+    ENCODER_DRAIN,
+    /**
+     * Writing a sample of any track to the muxer. With the async mux writer, queuing the sample
+     * for the writer thread, including the wait while the queue is full.
+     */
+    MUX_WRITE,
+    /**
+     * Writing a sample to the muxer on the async mux writer thread.
+     */
+    ASYNC_MUX_WRITE
+}
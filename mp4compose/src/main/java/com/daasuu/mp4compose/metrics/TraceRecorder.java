@@ -0,0 +1,187 @@
+package com.daasuu.mp4compose.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records begin / end events of the pipeline stages, segment switches and codec lifecycle calls
+ * into a ring buffer allocated up front, and exports them as Chrome trace event JSON that can be
+ * opened in Perfetto or about:tracing. When the buffer is full the oldest events are
+ * overwritten, and an end event whose begin event was overwritten is left out of the export.
+ * Recording does not allocate, so it can stay enabled for sampled jobs. Only the id and name of
+ * the recording thread are kept, not the thread itself.
+ * <p>
+ * Event names must be constants (string literals or enum names), they are stored by reference.
+ * Plain Java, it does not depend on Android.
+ */
+public class TraceRecorder {
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final char PHASE_BEGIN = 'B';
+    private static final char PHASE_END = 'E';
+    private static final char PHASE_INSTANT = 'i';
+
+    private final String[] names;
+    private final char[] phases;
+    private final long[] timestampsNs;
+    private final long[] threadIds;
+    private final String[] threadNames;
+    private final long originNs;
+    private long recordedEvents;
+
+    public TraceRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of events kept, older events are overwritten.
+     */
+    public TraceRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        names = new String[capacity];
+        phases = new char[capacity];
+        timestampsNs = new long[capacity];
+        threadIds = new long[capacity];
+        threadNames = new String[capacity];
+        originNs = System.nanoTime();
+    }
+
+    public void begin(String name) {
+        add(PHASE_BEGIN, name, System.nanoTime());
+    }
+
+    public void end(String name) {
+        add(PHASE_END, name, System.nanoTime());
+    }
+
+    public void instant(String name) {
+        add(PHASE_INSTANT, name, System.nanoTime());
+    }
+
+    /**
+     * Record a span that was measured by the caller.
+     *
+     * @param startNs The {@link System#nanoTime()} the span started at.
+     * @param endNs   The {@link System#nanoTime()} the span ended at.
+     */
+    public void span(String name, long startNs, long endNs) {
+        add(PHASE_BEGIN, name, startNs);
+        add(PHASE_END, name, endNs);
+    }
+
+    private synchronized void add(char phase, String name, long timestampNs) {
+        int index = (int) (recordedEvents % names.length);
+        names[index] = name;
+        phases[index] = phase;
+        timestampsNs[index] = timestampNs;
+        Thread thread = Thread.currentThread();
+        threadIds[index] = thread.getId();
+        threadNames[index] = thread.getName();
+        recordedEvents++;
+    }
+
+    /**
+     * @return The number of events in the buffer.
+     */
+    public synchronized int size() {
+        return (int) Math.min(recordedEvents, names.length);
+    }
+
+    /**
+     * @return The number of events overwritten because the buffer was full.
+     */
+    public synchronized long getOverwrittenEvents() {
+        return Math.max(0, recordedEvents - names.length);
+    }
+
+    public synchronized void clear() {
+        recordedEvents = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = null;
+            threadNames[i] = null;
+        }
+    }
+
+    /**
+     * Write the recorded events, oldest first, in the Chrome trace event format.
+     */
+    public synchronized void writeJson(Writer writer) throws IOException {
+        final int count = size();
+        final int first = (int) ((recordedEvents - count) % names.length);
+        final Map<Long, String> seenThreads = new LinkedHashMap<>();
+        // スレッドごとの開いている begin の数
+        final Map<Long, Integer> openSpans = new HashMap<>();
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean separator = false;
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % names.length;
+            Long threadId = threadIds[index];
+            Integer open = openSpans.get(threadId);
+            int depth = open != null ? open : 0;
+            if (phases[index] == PHASE_BEGIN) {
+                openSpans.put(threadId, depth + 1);
+            } else if (phases[index] == PHASE_END) {
+                if (depth == 0) {
+                    // 対応する begin は上書きされている
+                    continue;
+                }
+                openSpans.put(threadId, depth - 1);
+            }
+            if (separator) {
+                writer.write(',');
+            }
+            separator = true;
+            writer.write("\n{\"name\":");
+            writeString(writer, names[index]);
+            writer.write(",\"cat\":\"mp4compose\",\"ph\":\"");
+            writer.write(phases[index]);
+            writer.write("\",\"ts\":");
+            writer.write(String.valueOf((timestampsNs[index] - originNs) / 1000.0));
+            writer.write(",\"pid\":1,\"tid\":");
+            writer.write(String.valueOf(threadIds[index]));
+            if (phases[index] == PHASE_INSTANT) {
+                writer.write(",\"s\":\"t\"");
+            }
+            writer.write('}');
+            if (!seenThreads.containsKey(threadId)) {
+                seenThreads.put(threadId, threadNames[index]);
+            }
+        }
+        // スレッド名はメタデータとして出力する
+        for (Map.Entry<Long, String> thread : seenThreads.entrySet()) {
+            if (separator) {
+                writer.write(',');
+            }
+            separator = true;
+            writer.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+            writer.write(String.valueOf(thread.getKey()));
+            writer.write(",\"args\":{\"name\":");
+            writeString(writer, thread.getValue());
+            writer.write("}}");
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
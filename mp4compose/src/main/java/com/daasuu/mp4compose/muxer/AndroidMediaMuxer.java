@@ -0,0 +1,51 @@
+package com.daasuu.mp4compose.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Muxer} writing through the platform MediaMuxer.
+ */
+public class AndroidMediaMuxer implements Muxer {
+
+    private final MediaMuxer muxer;
+
+    public AndroidMediaMuxer(@NonNull MediaMuxer muxer) {
+        this.muxer = muxer;
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        muxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, @NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+}
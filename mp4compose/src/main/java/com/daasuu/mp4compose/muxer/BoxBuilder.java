@@ -0,0 +1,138 @@
+package com.daasuu.mp4compose.muxer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Builds ISO-BMFF boxes into a growable heap buffer. The size of a box is patched in when the
+ * box is closed, so boxes can be nested without knowing their size up front.
+ */
+class BoxBuilder {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ByteBuffer buffer;
+    private int[] openBoxes = new int[16];
+    private int depth;
+
+    BoxBuilder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    BoxBuilder start(String type) {
+        if (depth == openBoxes.length) {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(openBoxes, 0, grown, 0, depth);
+            openBoxes = grown;
+        }
+        openBoxes[depth++] = position();
+        putInt(0);
+        return putFourCC(type);
+    }
+
+    BoxBuilder startFull(String type, int version, int flags) {
+        start(type);
+        return putInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    BoxBuilder end() {
+        int start = openBoxes[--depth];
+        buffer.putInt(start, position() - start);
+        return this;
+    }
+
+    BoxBuilder putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    BoxBuilder putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    BoxBuilder putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    BoxBuilder putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    /**
+     * Write a duration or time as 32 or 64 bits, depending on the version of the full box.
+     */
+    BoxBuilder putTime(int version, long value) {
+        return version == 1 ? putLong(value) : putInt((int) value);
+    }
+
+    BoxBuilder putFourCC(String type) {
+        return putAscii(type);
+    }
+
+    BoxBuilder putAscii(String text) {
+        return putBytes(text.getBytes(ASCII));
+    }
+
+    BoxBuilder putBytes(byte[] bytes) {
+        return putBytes(bytes, 0, bytes.length);
+    }
+
+    BoxBuilder putBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    BoxBuilder putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * Overwrite a value written before, such as an offset only known once the box is complete.
+     */
+    BoxBuilder setInt(int position, int value) {
+        buffer.putInt(position, value);
+        return this;
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * @return The built boxes, ready to be written. Call {@link #clear()} before building again.
+     */
+    ByteBuffer flip() {
+        if (depth != 0) {
+            throw new IllegalStateException(depth + " boxes are still open");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    void clear() {
+        buffer.clear();
+        depth = 0;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
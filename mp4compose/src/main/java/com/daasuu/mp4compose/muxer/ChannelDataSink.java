@@ -0,0 +1,32 @@
+package com.daasuu.mp4compose.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link DataSink} writing to a channel, such as a SocketChannel or a Pipe. The channel is
+ * closed with the sink.
+ */
+public class ChannelDataSink implements DataSink {
+
+    private final WritableByteChannel channel;
+
+    public ChannelDataSink(@NonNull WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(@NonNull ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
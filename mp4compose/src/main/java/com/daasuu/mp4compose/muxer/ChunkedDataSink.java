@@ -0,0 +1,114 @@
+package com.daasuu.mp4compose.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@link DataSink} handing the output to a callback in blocks of a fixed size taken from a
+ * pool. The callback gives every block back with {@link #recycle} once it is done with it,
+ * which may be later and on another thread, e.g. after the block was uploaded. When no block
+ * is free a new one is allocated, so a slow consumer costs memory instead of stalling the
+ * composition.
+ */
+public class ChunkedDataSink implements DataSink {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    public interface Callback {
+
+        /**
+         * Called on the composing thread with the next bytes of the output.
+         *
+         * @param block The bytes from position to limit. Hand it back with {@link #recycle}.
+         */
+        void onBlock(@NonNull ChunkedDataSink sink, @NonNull ByteBuffer block) throws IOException;
+
+        /**
+         * Called once after the last block, when the output is complete or the composition
+         * failed or was cancelled.
+         */
+        void onEnd(@NonNull ChunkedDataSink sink) throws IOException;
+    }
+
+    private final Callback callback;
+    private final int blockSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private ByteBuffer current;
+    private volatile int allocatedBlocks;
+
+    public ChunkedDataSink(@NonNull Callback callback) {
+        this(callback, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize The size of the blocks, the last one may be shorter.
+     */
+    public ChunkedDataSink(@NonNull Callback callback, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.callback = callback;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void write(@NonNull ByteBuffer data) throws IOException {
+        final int limit = data.limit();
+        while (data.hasRemaining()) {
+            if (current == null) {
+                current = obtain();
+            }
+            data.limit(data.position() + Math.min(current.remaining(), data.remaining()));
+            current.put(data);
+            data.limit(limit);
+            if (!current.hasRemaining()) {
+                emit();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null && current.position() > 0) {
+            emit();
+        }
+        callback.onEnd(this);
+    }
+
+    /**
+     * Give a block handed to {@link Callback#onBlock} back to the pool. May be called from any
+     * thread.
+     */
+    public void recycle(@NonNull ByteBuffer block) {
+        if (block.capacity() == blockSize) {
+            block.clear();
+            pool.offer(block);
+        }
+    }
+
+    /**
+     * @return The number of blocks allocated so far, how far the consumer fell behind.
+     */
+    public int getAllocatedBlocks() {
+        return allocatedBlocks;
+    }
+
+    private ByteBuffer obtain() {
+        ByteBuffer block = pool.poll();
+        if (block == null) {
+            block = ByteBuffer.allocateDirect(blockSize);
+            allocatedBlocks++;
+        }
+        return block;
+    }
+
+    private void emit() throws IOException {
+        final ByteBuffer block = current;
+        current = null;
+        block.flip();
+        callback.onBlock(this, block);
+    }
+}
@@ -0,0 +1,25 @@
+package com.daasuu.mp4compose.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of a streamed output. The writer only appends, it never seeks back, so the
+ * output can go straight to a socket, an upload or a pipe. See {@link ChannelDataSink},
+ * {@link OutputStreamDataSink} and {@link ChunkedDataSink}.
+ */
+public interface DataSink {
+
+    /**
+     * Write all remaining bytes of the buffer. The buffer is reused once this returns.
+     */
+    void write(@NonNull ByteBuffer data) throws IOException;
+
+    /**
+     * Called once when the writer is done, after the last {@link #write} of a complete output
+     * or when the composition failed or was cancelled.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,157 @@
+package com.daasuu.mp4compose.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.annotation.NonNull;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Muxer} writing with {@link Mp4Writer} instead of MediaMuxer. Supports H.264, H.265 and
+ * AAC tracks.
+ */
+public class Mp4Muxer implements Muxer {
+
+    private final Mp4Writer writer;
+
+    public Mp4Muxer(@NonNull String path) throws IOException {
+        this(openFile(path));
+    }
+
+    /**
+     * @param fd A seekable file descriptor opened for writing, it is truncated. The muxer writes
+     *           to a duplicate of it, the caller still owns and closes {@code fd}.
+     */
+    public Mp4Muxer(@NonNull FileDescriptor fd) throws IOException {
+        this(openFileDescriptor(fd));
+    }
+
+    /**
+     * @param sink The output, it cannot seek back so {@link #setFragmentDuration(long)} must be
+     *             called before {@link #start()}.
+     */
+    public Mp4Muxer(@NonNull DataSink sink) {
+        this.writer = new Mp4Writer(sink);
+    }
+
+    private Mp4Muxer(@NonNull FileChannel channel) throws IOException {
+        this.writer = new Mp4Writer(channel);
+    }
+
+    private static FileChannel openFile(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        return file.getChannel();
+    }
+
+    private static FileChannel openFileDescriptor(FileDescriptor fd) throws IOException {
+        FileDescriptor duplicate;
+        try {
+            // チャンネルを閉じると元の fd まで閉じてしまうので複製に書く
+            duplicate = Os.dup(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("Could not duplicate the file descriptor", e);
+        }
+        FileChannel channel = new FileOutputStream(duplicate).getChannel();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Write a fragmented MP4, see {@link Mp4Writer#setFragmentDuration(long)}.
+     */
+    public void setFragmentDuration(long fragmentDurationUs) {
+        writer.setFragmentDuration(fragmentDurationUs);
+    }
+
+    /**
+     * Put the moov box in front of the media data, see {@link Mp4Writer#setFaststart(long)}.
+     */
+    public void setFaststart(long expectedDurationUs) {
+        writer.setFaststart(expectedDurationUs);
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        final List<byte[]> codecConfig = new ArrayList<>();
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            ByteBuffer csd = format.getByteBuffer("csd-" + i);
+            byte[] bytes = new byte[csd.remaining()];
+            csd.duplicate().get(bytes);
+            codecConfig.add(bytes);
+        }
+        final byte[][] csd = codecConfig.toArray(new byte[codecConfig.size()][]);
+        final TrackFormat trackFormat;
+        if (mimeType.startsWith("video/")) {
+            trackFormat = TrackFormat.video(mimeType,
+                    format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT), csd);
+        } else {
+            trackFormat = TrackFormat.audio(mimeType,
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), csd);
+        }
+        return writer.addTrack(trackFormat);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        writer.setRotation(degrees);
+    }
+
+    @Override
+    public void start() {
+        try {
+            writer.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start the output", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, @NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        // MediaMuxer と同じく、コーデック設定は MediaFormat から書くので捨てる
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        try {
+            writer.writeSample(trackIndex, byteBuf, bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write a sample", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not finish the output", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not close the output", e);
+        }
+    }
+}
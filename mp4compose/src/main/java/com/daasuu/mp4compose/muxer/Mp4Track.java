@@ -0,0 +1,469 @@
+package com.daasuu.mp4compose.muxer;
+
+import com.daasuu.mp4compose.utils.NalUnitUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One track of {@link Mp4Writer}: the samples of the chunk being collected and the sample
+ * table of the written chunks.
+ */
+class Mp4Track {
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int INITIAL_CHUNK_SIZE = 256 * 1024;
+    private static final int LANGUAGE_UNDETERMINED = 0x55C4;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    private static final int TRUN_COMPOSITION_OFFSETS = 0x000800;
+    // sample_depends_on = 2 (他のサンプルを参照しない)
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // sample_depends_on = 1, sample_is_non_sync_sample = 1
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final int trackId;
+    private final TrackFormat format;
+    private final int timescale;
+    private final SampleTable samples = new SampleTable();
+    private final byte[] sampleEntry;
+
+    private ByteBuffer chunk = ByteBuffer.allocateDirect(INITIAL_CHUNK_SIZE);
+    private int chunkSampleCount;
+    private long chunkStartUs;
+
+    // finish() で決まる値
+    private long[] decodeDurations;
+    private long[] compositionOffsets;
+    private long mediaDuration;
+    private long reorderDelay;
+    private long startOffsetUs;
+    // 断片の最後のサンプルの長さは次のサンプルが来るまで分からないので、直前の長さを使う
+    private long lastSampleDuration;
+
+    Mp4Track(int trackId, TrackFormat format) {
+        this.trackId = trackId;
+        this.format = format;
+        this.timescale = format.isVideo() ? VIDEO_TIMESCALE : format.getSampleRate();
+        // コーデック設定の誤りはトラック追加の時点で分かるようにする
+        final BoxBuilder b = new BoxBuilder(256);
+        SampleEntries.write(b, format);
+        final ByteBuffer entry = b.flip();
+        this.sampleEntry = new byte[entry.remaining()];
+        entry.get(sampleEntry);
+    }
+
+    int getTrackId() {
+        return trackId;
+    }
+
+    TrackFormat getFormat() {
+        return format;
+    }
+
+    int getTimescale() {
+        return timescale;
+    }
+
+    SampleTable getSamples() {
+        return samples;
+    }
+
+    boolean hasPendingChunk() {
+        return chunkSampleCount > 0;
+    }
+
+    int getPendingChunkSize() {
+        return chunk.position();
+    }
+
+    long getPendingChunkStartUs() {
+        return chunkStartUs;
+    }
+
+    /**
+     * Copy the sample into the pending chunk, converting Annex-B video to length prefixed NAL
+     * units.
+     */
+    void addSample(ByteBuffer data, int offset, int size, long timeUs, boolean sync) {
+        if (chunkSampleCount == 0) {
+            chunkStartUs = timeUs;
+        }
+        // 開始コードを長さに置き換えると、3バイトの開始コードごとに1バイト増える
+        ensureChunkCapacity(format.isVideo() ? size + size / 3 + 4 : size);
+        final int start = chunk.position();
+        final int position = data.position();
+        final int limit = data.limit();
+        if (format.isVideo() && NalUnits.isAnnexB(data, offset, size)) {
+            final int end = offset + size;
+            int nalStart = NalUnitUtil.findStartCode(data, offset, end);
+            while (nalStart >= 0) {
+                final int payload = nalStart + 3;
+                final int next = NalUnitUtil.findStartCode(data, payload, end);
+                final int nalEnd = NalUnits.trimTrailingZeros(data, payload, next < 0 ? end : next);
+                if (nalEnd > payload) {
+                    chunk.putInt(nalEnd - payload);
+                    data.limit(nalEnd);
+                    data.position(payload);
+                    chunk.put(data);
+                    data.limit(limit);
+                }
+                nalStart = next;
+            }
+        } else {
+            data.limit(offset + size);
+            data.position(offset);
+            chunk.put(data);
+            data.limit(limit);
+        }
+        data.position(position);
+        samples.addSample(timeUs, chunk.position() - start, sync || !format.isVideo());
+        chunkSampleCount++;
+    }
+
+    /**
+     * @return The pending chunk, ready to be written. Call {@link #onChunkWritten} afterwards.
+     */
+    ByteBuffer getPendingChunk() {
+        chunk.flip();
+        return chunk;
+    }
+
+    void onChunkWritten(long fileOffset) {
+        samples.addChunk(fileOffset, chunkSampleCount);
+        chunk.clear();
+        chunkSampleCount = 0;
+    }
+
+    /**
+     * Forget the samples of the written fragment, so a fragmented output keeps no per-sample
+     * state across fragments.
+     */
+    void onFragmentWritten() {
+        samples.clear();
+        chunk.clear();
+        chunkSampleCount = 0;
+    }
+
+    /**
+     * Write the traf box of the pending samples for a fragmented output. The decode times are
+     * the sorted presentation times of the fragment and the composition offsets are signed
+     * (trun version 1), so B-frames need no edit list.
+     *
+     * @param movieStartUs The presentation time the output starts at.
+     * @return The position of the data_offset field of the trun box, for the caller to patch.
+     */
+    int writeTraf(BoxBuilder b, long movieStartUs) {
+        final int count = samples.getSampleCount();
+        final long[] presentationTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            presentationTimes[i] = toTimescale(samples.getTimeUs(i) - movieStartUs, timescale);
+        }
+        final long[] decodeTimes = presentationTimes.clone();
+        Arrays.sort(decodeTimes);
+        boolean hasOffsets = false;
+        for (int i = 0; i < count && !hasOffsets; i++) {
+            hasOffsets = presentationTimes[i] != decodeTimes[i];
+        }
+        if (count > 1) {
+            lastSampleDuration = decodeTimes[count - 1] - decodeTimes[count - 2];
+        }
+
+        b.start("traf");
+        b.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(trackId).end();
+        b.startFull("tfdt", 1, 0).putLong(Math.max(0, decodeTimes[0])).end();
+        b.startFull("trun", 1, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS
+                | (hasOffsets ? TRUN_COMPOSITION_OFFSETS : 0))
+                .putInt(count);
+        final int dataOffsetPosition = b.position();
+        b.putInt(0);
+        for (int i = 0; i < count; i++) {
+            b.putInt((int) (i + 1 < count ? decodeTimes[i + 1] - decodeTimes[i] : lastSampleDuration))
+                    .putInt(samples.getSize(i))
+                    .putInt(samples.isSync(i) ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            if (hasOffsets) {
+                b.putInt((int) (presentationTimes[i] - decodeTimes[i]));
+            }
+        }
+        b.end(); // trun
+        b.end(); // traf
+        return dataOffsetPosition;
+    }
+
+    /**
+     * The defaults of the track fragments, all given in each trun box.
+     */
+    void writeTrex(BoxBuilder b) {
+        b.startFull("trex", 0, 0)
+                .putInt(trackId)
+                .putInt(1) // default_sample_description_index
+                .putInt(0)
+                .putInt(0)
+                .putInt(0)
+                .end();
+    }
+
+    private void ensureChunkCapacity(int bytes) {
+        if (chunk.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(chunk.capacity() * 2, chunk.position() + bytes));
+        chunk.flip();
+        grown.put(chunk);
+        chunk = grown;
+    }
+
+    /**
+     * Derive the decode times from the presentation times, which arrive in decode order.
+     * With B-frames the presentation times are out of order: the decode times are the sorted
+     * presentation times, moved back by the reorder delay so no frame is presented before it
+     * is decoded.
+     *
+     * @param movieStartUs The earliest presentation time of all tracks.
+     */
+    void finish(long movieStartUs) {
+        final int count = samples.getSampleCount();
+        final long[] presentationTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            presentationTimes[i] = toTimescale(samples.getTimeUs(i) - movieStartUs, timescale);
+        }
+        final long[] sortedTimes = presentationTimes.clone();
+        Arrays.sort(sortedTimes);
+        reorderDelay = 0;
+        for (int i = 0; i < count; i++) {
+            reorderDelay = Math.max(reorderDelay, sortedTimes[i] - presentationTimes[i]);
+        }
+        decodeDurations = new long[count];
+        // 表示時刻の配列をそのまま使い回す
+        compositionOffsets = presentationTimes;
+        for (int i = 0; i < count; i++) {
+            decodeDurations[i] = i + 1 < count ? sortedTimes[i + 1] - sortedTimes[i] : (i > 0 ? decodeDurations[i - 1] : 0);
+            compositionOffsets[i] = presentationTimes[i] - sortedTimes[i] + reorderDelay;
+        }
+        mediaDuration = count == 0 ? 0 : sortedTimes[count - 1] - sortedTimes[0] + decodeDurations[count - 1];
+        startOffsetUs = count == 0 ? 0 : samples.getMinTimeUs() - movieStartUs;
+    }
+
+    /**
+     * @return The duration of the track in the movie timescale, including the delay before
+     * its first sample. Valid after {@link #finish}.
+     */
+    long getMovieDuration(int movieTimescale) {
+        return toTimescale(startOffsetUs, movieTimescale) + mediaDuration * movieTimescale / timescale;
+    }
+
+    /**
+     * @param chunkOffsetShift Added to the chunk offsets, when the media data was moved after
+     *                         it was written.
+     */
+    void writeTrak(BoxBuilder b, int movieTimescale, int rotation, long chunkOffsetShift) {
+        final long duration = getMovieDuration(movieTimescale);
+        b.start("trak");
+
+        int version = duration > 0xFFFFFFFFL ? 1 : 0;
+        b.startFull("tkhd", version, 0x03) // enabled, in movie
+                .putTime(version, 0)
+                .putTime(version, 0)
+                .putInt(trackId)
+                .putInt(0)
+                .putTime(version, duration)
+                .putZeros(8)
+                .putShort(0) // layer
+                .putShort(0) // alternate_group
+                .putShort(format.isVideo() ? 0 : 0x0100) // volume
+                .putShort(0);
+        writeMatrix(b, format.isVideo() ? rotation : 0);
+        b.putInt(format.getWidth() << 16)
+                .putInt(format.getHeight() << 16)
+                .end();
+
+        writeEditList(b, movieTimescale);
+
+        b.start("mdia");
+        version = mediaDuration > 0xFFFFFFFFL ? 1 : 0;
+        b.startFull("mdhd", version, 0)
+                .putTime(version, 0)
+                .putTime(version, 0)
+                .putInt(timescale)
+                .putTime(version, mediaDuration)
+                .putShort(LANGUAGE_UNDETERMINED)
+                .putShort(0)
+                .end();
+        b.startFull("hdlr", 0, 0)
+                .putInt(0)
+                .putFourCC(format.isVideo() ? "vide" : "soun")
+                .putZeros(12)
+                .putAscii(format.isVideo() ? "VideoHandler" : "SoundHandler")
+                .putByte(0)
+                .end();
+
+        b.start("minf");
+        if (format.isVideo()) {
+            b.startFull("vmhd", 0, 1).putZeros(8).end();
+        } else {
+            b.startFull("smhd", 0, 0).putInt(0).end();
+        }
+        b.start("dinf")
+                .startFull("dref", 0, 0)
+                .putInt(1)
+                .startFull("url ", 0, 1).end() // 同じファイル内
+                .end()
+                .end();
+        writeStbl(b, chunkOffsetShift);
+        b.end(); // minf
+        b.end(); // mdia
+        b.end(); // trak
+    }
+
+    private void writeEditList(BoxBuilder b, int movieTimescale) {
+        final long emptyDuration = toTimescale(startOffsetUs, movieTimescale);
+        if (emptyDuration == 0 && reorderDelay == 0) {
+            return;
+        }
+        b.start("edts").startFull("elst", 0, 0).putInt(emptyDuration > 0 ? 2 : 1);
+        if (emptyDuration > 0) {
+            // 最初のサンプルまでの空白
+            b.putInt((int) emptyDuration).putInt(-1).putInt(0x00010000);
+        }
+        b.putInt((int) (mediaDuration * movieTimescale / timescale))
+                .putInt((int) reorderDelay)
+                .putInt(0x00010000)
+                .end()
+                .end();
+    }
+
+    private void writeStbl(BoxBuilder b, long chunkOffsetShift) {
+        final int count = samples.getSampleCount();
+        b.start("stbl");
+
+        b.startFull("stsd", 0, 0).putInt(1).putBytes(sampleEntry).end();
+
+        writeRuns(b, "stts", decodeDurations, count);
+
+        boolean hasOffsets = false;
+        for (int i = 0; i < count && !hasOffsets; i++) {
+            hasOffsets = compositionOffsets[i] != 0;
+        }
+        if (hasOffsets) {
+            writeRuns(b, "ctts", compositionOffsets, count);
+        }
+
+        int syncCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (samples.isSync(i)) {
+                syncCount++;
+            }
+        }
+        if (syncCount < count) {
+            b.startFull("stss", 0, 0).putInt(syncCount);
+            for (int i = 0; i < count; i++) {
+                if (samples.isSync(i)) {
+                    b.putInt(i + 1);
+                }
+            }
+            b.end();
+        }
+
+        boolean sameSize = count > 0;
+        for (int i = 1; i < count && sameSize; i++) {
+            sameSize = samples.getSize(i) == samples.getSize(0);
+        }
+        b.startFull("stsz", 0, 0);
+        if (sameSize) {
+            b.putInt(samples.getSize(0)).putInt(count);
+        } else {
+            b.putInt(0).putInt(count);
+            for (int i = 0; i < count; i++) {
+                b.putInt(samples.getSize(i));
+            }
+        }
+        b.end();
+
+        final int chunkCount = samples.getChunkCount();
+        int entries = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            if (i == 0 || samples.getChunkSampleCount(i) != samples.getChunkSampleCount(i - 1)) {
+                entries++;
+            }
+        }
+        b.startFull("stsc", 0, 0).putInt(entries);
+        for (int i = 0; i < chunkCount; i++) {
+            if (i == 0 || samples.getChunkSampleCount(i) != samples.getChunkSampleCount(i - 1)) {
+                b.putInt(i + 1).putInt(samples.getChunkSampleCount(i)).putInt(1);
+            }
+        }
+        b.end();
+
+        final boolean largeOffsets = chunkCount > 0
+                && samples.getChunkOffset(chunkCount - 1) + chunkOffsetShift > 0xFFFFFFFFL;
+        b.startFull(largeOffsets ? "co64" : "stco", 0, 0).putInt(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            if (largeOffsets) {
+                b.putLong(samples.getChunkOffset(i) + chunkOffsetShift);
+            } else {
+                b.putInt((int) (samples.getChunkOffset(i) + chunkOffsetShift));
+            }
+        }
+        b.end();
+
+        b.end(); // stbl
+    }
+
+    /**
+     * Write a run length coded table of (count, value) entries, as stts and ctts are.
+     */
+    private static void writeRuns(BoxBuilder b, String type, long[] values, int count) {
+        int entries = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                entries++;
+            }
+        }
+        b.startFull(type, 0, 0).putInt(entries);
+        int runStart = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i == count || values[i] != values[runStart]) {
+                b.putInt(i - runStart).putInt((int) values[runStart]);
+                runStart = i;
+            }
+        }
+        b.end();
+    }
+
+    static void writeMatrix(BoxBuilder box, int rotation) {
+        int a = 0x00010000;
+        int b = 0;
+        int c = 0;
+        int d = 0x00010000;
+        switch (rotation) {
+            case 90:
+                a = 0;
+                b = 0x00010000;
+                c = -0x00010000;
+                d = 0;
+                break;
+            case 180:
+                a = -0x00010000;
+                d = -0x00010000;
+                break;
+            case 270:
+                a = 0;
+                b = -0x00010000;
+                c = 0x00010000;
+                d = 0;
+                break;
+            default:
+                break;
+        }
+        box.putInt(a).putInt(b).putInt(0)
+                .putInt(c).putInt(d).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    static long toTimescale(long timeUs, int timescale) {
+        return (timeUs * timescale + 500000) / 1000000;
+    }
+}
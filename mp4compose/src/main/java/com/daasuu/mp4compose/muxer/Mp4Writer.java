@@ -0,0 +1,509 @@
+package com.daasuu.mp4compose.muxer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming ISO-BMFF (MP4) writer in plain Java, so it also runs on the JVM.
+ * <p>
+ * The samples of each track are collected into chunks of about one second, which are written
+ * in the order they complete, so the tracks end up interleaved. Chunks are batched through one
+ * large write buffer, so the file sees few large writes. The sample tables are kept in
+ * primitive arrays and written as the moov box after the media data in {@link #finish()}.
+ * H.264 and H.265 samples may be given in Annex-B form, they are stored length prefixed.
+ * <p>
+ * With {@link #setFaststart(long)} the moov box is put in front of the media data, in space
+ * reserved by a free box when writing starts, so the chunk offsets stay valid and no media data
+ * is moved. Only when the moov box does not fit is the media data moved back and the chunk
+ * offsets recomputed.
+ * <p>
+ * With {@link #setFragmentDuration(long)} the output is a fragmented MP4 instead: the moov box
+ * is written first, followed by moof / mdat fragments that start at video key frames. Every
+ * written fragment is playable, and no sample state is kept beyond the current fragment.
+ * <p>
+ * Written to a {@link DataSink} instead of a file the output never seeks back, so it must be
+ * fragmented: the bytes can be streamed to a socket or uploaded while composing.
+ * <pre>
+ * Mp4Writer writer = new Mp4Writer(channel);
+ * int video = writer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1280, 720, sps, pps));
+ * writer.start();
+ * writer.writeSample(video, data, 0, size, timeUs, isKeyFrame);
+ * ...
+ * writer.finish();
+ * writer.close();
+ * </pre>
+ */
+public class Mp4Writer implements Closeable {
+
+    static final int MOVIE_TIMESCALE = 1000;
+    private static final long CHUNK_DURATION_US = 1000000;
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int MDAT_HEADER_SIZE = 16;
+    private static final long NOT_FRAGMENTED = -1;
+    // moov の大きさの見積もり、60 fps の映像と音声で 1 秒あたり 1.8 KB ほど
+    private static final long MOOV_RESERVE_BASE = 16 * 1024;
+    private static final long MOOV_RESERVE_PER_SECOND = 2048;
+    private static final long MOOV_RESERVE_UNKNOWN_DURATION = 1024 * 1024;
+    private static final int FREE_HEADER_SIZE = 8;
+
+    private final DataSink sink;
+    // mdat のサイズを書き戻すため、ファイルの時だけ
+    private final FileChannel channel;
+    private final List<Mp4Track> tracks = new ArrayList<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private int rotation;
+    private boolean started;
+    private boolean finished;
+    private long mdatStart;
+    private long moovReserve;
+    private long moovReserveStart;
+    private long faststartMovedBytes;
+    private long fragmentDurationUs = NOT_FRAGMENTED;
+    private int fragmentSequence;
+    private long movieStartUs = Long.MIN_VALUE;
+    // 断片の区切りを決めるトラック、映像があれば映像
+    private Mp4Track cutTrack;
+    // バッファ中のものも含めて書き込んだ位置
+    private long position;
+
+    /**
+     * @param channel The output, written from its current position. Closed by {@link #close()}.
+     */
+    public Mp4Writer(FileChannel channel) throws IOException {
+        this(new ChannelDataSink(channel), channel, channel.position());
+    }
+
+    /**
+     * @param sink The output, which cannot seek: {@link #setFragmentDuration(long)} must be set.
+     *             Closed by {@link #close()}.
+     */
+    public Mp4Writer(DataSink sink) {
+        this(sink, null, 0);
+    }
+
+    private Mp4Writer(DataSink sink, FileChannel channel, long position) {
+        this.sink = sink;
+        this.channel = channel;
+        this.position = position;
+    }
+
+    /**
+     * @return The index of the track for {@link #writeSample}.
+     */
+    public int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        tracks.add(new Mp4Track(tracks.size() + 1, format));
+        return tracks.size() - 1;
+    }
+
+    /**
+     * @param degrees The clockwise rotation the video is to be displayed with: 0, 90, 180 or 270.
+     */
+    public void setRotation(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+        }
+        this.rotation = degrees;
+    }
+
+    /**
+     * Write a fragmented MP4. A new fragment starts at the first key frame of the video track
+     * (any sample without video) once the current fragment is at least this long. Must be
+     * called before {@link #start()}.
+     *
+     * @param fragmentDurationUs The shortest fragment duration, 0 to start a fragment at every
+     *                           key frame.
+     */
+    public void setFragmentDuration(long fragmentDurationUs) {
+        if (started) {
+            throw new IllegalStateException("Must be set before start()");
+        }
+        if (fragmentDurationUs < 0) {
+            throw new IllegalArgumentException("fragmentDurationUs must not be negative: " + fragmentDurationUs);
+        }
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Put the moov box in front of the media data. Space for it is reserved when writing
+     * starts, estimated from the expected duration; if the moov box turns out larger, the media
+     * data is moved back once in {@link #finish()}, which needs a readable channel; a
+     * write-only one gets the moov box at the end. Ignored for a fragmented MP4, whose moov
+     * box always comes first. Must be called before {@link #start()}.
+     *
+     * @param expectedDurationUs The expected duration of the output, 0 or less if unknown.
+     */
+    public void setFaststart(long expectedDurationUs) {
+        if (started) {
+            throw new IllegalStateException("Must be set before start()");
+        }
+        if (expectedDurationUs > 0) {
+            moovReserve = MOOV_RESERVE_BASE + (expectedDurationUs + 999999) / 1000000 * MOOV_RESERVE_PER_SECOND;
+        } else {
+            moovReserve = MOOV_RESERVE_UNKNOWN_DURATION;
+        }
+    }
+
+    /**
+     * @return The bytes of media data moved in {@link #finish()} because the moov box did not
+     * fit into the space reserved for faststart, 0 when it fit.
+     */
+    public long getFaststartMovedBytes() {
+        return faststartMovedBytes;
+    }
+
+    public boolean isFragmented() {
+        return fragmentDurationUs != NOT_FRAGMENTED;
+    }
+
+    public void start() throws IOException {
+        if (started) {
+            throw new IllegalStateException("Already started");
+        }
+        if (tracks.isEmpty()) {
+            throw new IllegalStateException("No track added");
+        }
+        if (channel == null && !isFragmented()) {
+            throw new IllegalStateException("A DataSink output must be fragmented");
+        }
+        started = true;
+        final BoxBuilder b = new BoxBuilder(64);
+        b.start("ftyp")
+                .putFourCC("isom")
+                .putInt(0x200)
+                .putFourCC("isom")
+                .putFourCC("iso2")
+                .putFourCC("mp41");
+        if (isFragmented()) {
+            b.putFourCC("iso6");
+        }
+        b.end();
+        write(b.flip());
+        if (isFragmented()) {
+            for (Mp4Track track : tracks) {
+                if (cutTrack == null || (track.getFormat().isVideo() && !cutTrack.getFormat().isVideo())) {
+                    cutTrack = track;
+                }
+            }
+            // サンプルのない moov を先に書く
+            write(buildMoov(0, 0));
+            flushWriteBuffer();
+            return;
+        }
+        if (moovReserve > 0) {
+            // moov の場所を free box で空けておく
+            moovReserveStart = position;
+            final ByteBuffer free = ByteBuffer.allocate((int) Math.min(moovReserve, WRITE_BUFFER_SIZE));
+            free.putInt((int) moovReserve).put(new byte[]{'f', 'r', 'e', 'e'});
+            for (long remaining = moovReserve; remaining > 0; remaining -= free.limit()) {
+                free.limit((int) Math.min(free.capacity(), remaining)).position(0);
+                write(free);
+                free.putInt(0, 0).putInt(4, 0);
+            }
+        }
+        // サイズは最後に書き込む
+        mdatStart = position;
+        final ByteBuffer mdatHeader = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+        mdatHeader.putInt(1).put(new byte[]{'m', 'd', 'a', 't'}).putLong(0).flip();
+        write(mdatHeader);
+    }
+
+    /**
+     * Write one sample. The data is copied, the buffer can be reused once this returns.
+     *
+     * @param data   The sample, its position and limit are left unchanged.
+     * @param timeUs The presentation time, samples must be given in decode order.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, int offset, int size, long timeUs, boolean sync) throws IOException {
+        if (!started || finished) {
+            throw new IllegalStateException("Not started");
+        }
+        final Mp4Track track = tracks.get(trackIndex);
+        if (isFragmented()) {
+            if (track == cutTrack && (sync || !track.getFormat().isVideo()) && track.hasPendingChunk()
+                    && timeUs - track.getPendingChunkStartUs() >= fragmentDurationUs) {
+                writeFragment();
+            }
+        } else if (track.hasPendingChunk()
+                && (timeUs - track.getPendingChunkStartUs() >= CHUNK_DURATION_US
+                || track.getPendingChunkSize() + size > MAX_CHUNK_SIZE)) {
+            writeChunk(track);
+        }
+        track.addSample(data, offset, size, timeUs, sync);
+    }
+
+    /**
+     * Write the remaining chunks and the moov box. The output stays open.
+     */
+    public void finish() throws IOException {
+        if (!started || finished) {
+            throw new IllegalStateException("Not started");
+        }
+        finished = true;
+        if (isFragmented()) {
+            writeFragment();
+            flushWriteBuffer();
+            return;
+        }
+        // 残りのチャンクを時刻順に書き出す
+        while (true) {
+            Mp4Track next = null;
+            for (Mp4Track track : tracks) {
+                if (track.hasPendingChunk()
+                        && (next == null || track.getPendingChunkStartUs() < next.getPendingChunkStartUs())) {
+                    next = track;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            writeChunk(next);
+        }
+        final long mdatSize = position - mdatStart;
+
+        long movieStartUs = Long.MAX_VALUE;
+        for (Mp4Track track : tracks) {
+            movieStartUs = Math.min(movieStartUs, track.getSamples().getMinTimeUs());
+        }
+        if (movieStartUs == Long.MAX_VALUE) {
+            movieStartUs = 0;
+        }
+        if (moovReserve > 0) {
+            finishFaststart(movieStartUs, mdatSize);
+            return;
+        }
+        write(buildMoov(movieStartUs, 0));
+        flushWriteBuffer();
+
+        final ByteBuffer size = ByteBuffer.allocate(8);
+        size.putLong(mdatSize).flip();
+        writeFully(size, mdatStart + 8);
+    }
+
+    /**
+     * Write the moov box into the reserved space, followed by a free box for the rest. If it
+     * does not fit, move the media data back first, the chunk offsets shifting with it.
+     */
+    private void finishFaststart(long movieStartUs, long mdatSize) throws IOException {
+        flushWriteBuffer();
+        long shift = 0;
+        ByteBuffer moov;
+        while (true) {
+            moov = buildMoov(movieStartUs, shift);
+            final long free = moovReserve + shift - moov.remaining();
+            if (free == 0 || free >= FREE_HEADER_SIZE) {
+                break;
+            }
+            // ずらすと co64 になって moov が大きくなることがあるので作り直す
+            shift += free < 0 ? -free : FREE_HEADER_SIZE - free;
+        }
+        if (shift > 0 && !isReadable()) {
+            // 読めない出力では動かせないので、普通に後ろに書く
+            final ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(mdatSize).flip();
+            writeFully(size, mdatStart + 8);
+            write(buildMoov(movieStartUs, 0));
+            flushWriteBuffer();
+            return;
+        }
+        if (shift > 0) {
+            moveBack(mdatStart, position - mdatStart, shift);
+            mdatStart += shift;
+            position += shift;
+            faststartMovedBytes = mdatSize;
+        }
+
+        final ByteBuffer size = ByteBuffer.allocate(8);
+        size.putLong(mdatSize).flip();
+        writeFully(size, mdatStart + 8);
+
+        final long moovSize = moov.remaining();
+        writeFully(moov, moovReserveStart);
+        final long free = moovReserve + shift - moovSize;
+        if (free > 0) {
+            final ByteBuffer freeHeader = ByteBuffer.allocate(FREE_HEADER_SIZE);
+            freeHeader.putInt((int) free).put(new byte[]{'f', 'r', 'e', 'e'}).flip();
+            writeFully(freeHeader, moovReserveStart + moovSize);
+        }
+    }
+
+    private boolean isReadable() {
+        try {
+            channel.read(ByteBuffer.allocate(1), 0);
+            return true;
+        } catch (NonReadableChannelException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Move a range of the file towards its end, from the back so the data is not overwritten
+     * before it was read.
+     */
+    private void moveBack(long start, long length, long shift) throws IOException {
+        long end = start + length;
+        while (end > start) {
+            final int blockSize = (int) Math.min(writeBuffer.capacity(), end - start);
+            writeBuffer.clear();
+            writeBuffer.limit(blockSize);
+            final long from = end - blockSize;
+            while (writeBuffer.hasRemaining()) {
+                if (channel.read(writeBuffer, from + writeBuffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + (from + writeBuffer.position()));
+                }
+            }
+            writeBuffer.flip();
+            writeFully(writeBuffer, from + shift);
+            end = from;
+        }
+        writeBuffer.clear();
+    }
+
+    private ByteBuffer buildMoov(long movieStartUs, long chunkOffsetShift) {
+        long duration = 0;
+        for (Mp4Track track : tracks) {
+            track.finish(movieStartUs);
+            duration = Math.max(duration, track.getMovieDuration(MOVIE_TIMESCALE));
+        }
+        final BoxBuilder b = new BoxBuilder(64 * 1024);
+        b.start("moov");
+        final int version = duration > 0xFFFFFFFFL ? 1 : 0;
+        b.startFull("mvhd", version, 0)
+                .putTime(version, 0)
+                .putTime(version, 0)
+                .putInt(MOVIE_TIMESCALE)
+                .putTime(version, duration)
+                .putInt(0x00010000) // rate
+                .putShort(0x0100) // volume
+                .putZeros(10);
+        Mp4Track.writeMatrix(b, 0);
+        b.putZeros(24)
+                .putInt(tracks.size() + 1) // next_track_ID
+                .end();
+        for (Mp4Track track : tracks) {
+            track.writeTrak(b, MOVIE_TIMESCALE, rotation, chunkOffsetShift);
+        }
+        if (isFragmented()) {
+            b.start("mvex");
+            for (Mp4Track track : tracks) {
+                track.writeTrex(b);
+            }
+            b.end();
+        }
+        b.end();
+        return b.flip();
+    }
+
+    /**
+     * Write the pending samples of all tracks as one moof / mdat pair, and flush it so the
+     * file is playable up to here.
+     */
+    private void writeFragment() throws IOException {
+        boolean hasSamples = false;
+        long minTimeUs = Long.MAX_VALUE;
+        for (Mp4Track track : tracks) {
+            if (track.hasPendingChunk()) {
+                hasSamples = true;
+                minTimeUs = Math.min(minTimeUs, track.getSamples().getMinTimeUs());
+            }
+        }
+        if (!hasSamples) {
+            return;
+        }
+        if (movieStartUs == Long.MIN_VALUE) {
+            movieStartUs = minTimeUs;
+        }
+
+        final BoxBuilder b = new BoxBuilder(16 * 1024);
+        b.start("moof");
+        b.startFull("mfhd", 0, 0).putInt(++fragmentSequence).end();
+        final int[] dataOffsetPositions = new int[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).hasPendingChunk()) {
+                dataOffsetPositions[i] = tracks.get(i).writeTraf(b, movieStartUs);
+            }
+        }
+        b.end();
+        // 各トラックのデータは mdat の中に順に並べる
+        final int moofSize = b.position();
+        long mdatSize = 8;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).hasPendingChunk()) {
+                b.setInt(dataOffsetPositions[i], (int) (moofSize + mdatSize));
+                mdatSize += tracks.get(i).getPendingChunkSize();
+            }
+        }
+        if (mdatSize > 0xFFFFFFFFL) {
+            throw new IllegalStateException("Fragment too large: " + mdatSize);
+        }
+        // mdat のヘッダまで一緒に書く
+        b.putInt((int) mdatSize).putFourCC("mdat");
+        write(b.flip());
+        for (Mp4Track track : tracks) {
+            if (track.hasPendingChunk()) {
+                write(track.getPendingChunk());
+                track.onFragmentWritten();
+            }
+        }
+        flushWriteBuffer();
+    }
+
+    private void writeChunk(Mp4Track track) throws IOException {
+        final long offset = position;
+        write(track.getPendingChunk());
+        track.onChunkWritten(offset);
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        position += data.remaining();
+        if (data.remaining() > writeBuffer.remaining()) {
+            flushWriteBuffer();
+            if (data.remaining() >= writeBuffer.capacity()) {
+                // 大きなチャンクはバッファを通さずに書く
+                writeFully(data);
+                return;
+            }
+        }
+        writeBuffer.put(data);
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        writeFully(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        sink.write(data);
+    }
+
+    private void writeFully(ByteBuffer data, long filePosition) throws IOException {
+        while (data.hasRemaining()) {
+            filePosition += channel.write(data, filePosition);
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far, including the buffered ones.
+     */
+    public long getWrittenBytes() {
+        return position;
+    }
+
+    /**
+     * Close the output. Without {@link #finish()} a file has no moov box and is not playable, a
+     * fragmented one is playable up to the last written fragment.
+     */
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
@@ -0,0 +1,34 @@
+package com.daasuu.mp4compose.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The calls the composers make on a muxer, so the output can be written by
+ * {@link AndroidMediaMuxer} (MediaMuxer) or {@link Mp4Muxer}. Follows the MediaMuxer contract:
+ * tracks are added before {@link #start()}, failures are thrown as unchecked exceptions.
+ */
+public interface Muxer {
+
+    /**
+     * @return The index of the track for {@link #writeSampleData}.
+     */
+    int addTrack(@NonNull MediaFormat format);
+
+    /**
+     * @param degrees The clockwise rotation the video is to be displayed with: 0, 90, 180 or 270.
+     */
+    void setOrientationHint(int degrees);
+
+    void start();
+
+    void writeSampleData(int trackIndex, @NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,89 @@
+package com.daasuu.mp4compose.muxer;
+
+import com.daasuu.mp4compose.utils.NalUnitUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264 / H.265 NAL unit helpers. The codecs and MediaExtractor hand out Annex-B streams
+ * (start code prefixed), MP4 stores the NAL units length prefixed.
+ */
+class NalUnits {
+
+    private NalUnits() {
+    }
+
+    /**
+     * @return true when the data starts with a 3 or 4 byte start code.
+     */
+    static boolean isAnnexB(ByteBuffer data, int offset, int size) {
+        if (size < 4 || data.get(offset) != 0 || data.get(offset + 1) != 0) {
+            return false;
+        }
+        return data.get(offset + 2) == 1 || (data.get(offset + 2) == 0 && data.get(offset + 3) == 1);
+    }
+
+    /**
+     * Split the codec specific data into NAL units. Data without start codes is taken as a
+     * single NAL unit.
+     */
+    static List<byte[]> split(byte[] annexB) {
+        final List<byte[]> nalUnits = new ArrayList<>();
+        final ByteBuffer data = ByteBuffer.wrap(annexB);
+        int start = NalUnitUtil.findStartCode(data, 0, annexB.length);
+        if (start < 0) {
+            nalUnits.add(annexB);
+            return nalUnits;
+        }
+        while (start >= 0) {
+            int payload = start + 3;
+            int next = NalUnitUtil.findStartCode(data, payload, annexB.length);
+            int end = trimTrailingZeros(data, payload, next < 0 ? annexB.length : next);
+            if (end > payload) {
+                byte[] nalUnit = new byte[end - payload];
+                System.arraycopy(annexB, payload, nalUnit, 0, nalUnit.length);
+                nalUnits.add(nalUnit);
+            }
+            start = next;
+        }
+        return nalUnits;
+    }
+
+    /**
+     * A NAL unit never ends with a zero byte, trailing zeros belong to the next start code.
+     */
+    static int trimTrailingZeros(ByteBuffer data, int start, int end) {
+        while (end > start && data.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return The NAL unit without the emulation prevention bytes ({@code 00 00 03}).
+     */
+    static byte[] unescape(byte[] nalUnit) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(nalUnit.length);
+        int zeros = 0;
+        for (byte b : nalUnit) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            out.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return out.toByteArray();
+    }
+
+    static int avcType(byte[] nalUnit) {
+        return nalUnit[0] & 0x1F;
+    }
+
+    static int hevcType(byte[] nalUnit) {
+        return (nalUnit[0] >> 1) & 0x3F;
+    }
+}
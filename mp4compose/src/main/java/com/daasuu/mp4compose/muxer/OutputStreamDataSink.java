@@ -0,0 +1,50 @@
+package com.daasuu.mp4compose.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataSink} writing to an OutputStream, such as the body of an HTTP upload. The stream
+ * is flushed and closed with the sink.
+ */
+public class OutputStreamDataSink implements DataSink {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream outputStream;
+    private byte[] copyBuffer;
+
+    public OutputStreamDataSink(@NonNull OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public void write(@NonNull ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            outputStream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        // ダイレクトバッファは配列を経由して書く
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+        while (data.hasRemaining()) {
+            int length = Math.min(copyBuffer.length, data.remaining());
+            data.get(copyBuffer, 0, length);
+            outputStream.write(copyBuffer, 0, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
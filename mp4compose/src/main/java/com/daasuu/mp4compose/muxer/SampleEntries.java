@@ -0,0 +1,263 @@
+package com.daasuu.mp4compose.muxer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the sample description (avc1 / hvc1 / mp4a) of a track from the codec specific data.
+ */
+class SampleEntries {
+
+    private static final int AVC_SPS = 7;
+    private static final int AVC_PPS = 8;
+    private static final int HEVC_VPS = 32;
+    private static final int HEVC_SPS = 33;
+    private static final int HEVC_PPS = 34;
+
+    private SampleEntries() {
+    }
+
+    static void write(BoxBuilder b, TrackFormat format) {
+        switch (format.getMimeType()) {
+            case TrackFormat.MIME_AVC:
+                startVisual(b, "avc1", format);
+                writeAvcC(b, format.getCodecConfig());
+                b.end();
+                break;
+            case TrackFormat.MIME_HEVC:
+                startVisual(b, "hvc1", format);
+                writeHvcC(b, format.getCodecConfig());
+                b.end();
+                break;
+            case TrackFormat.MIME_AAC:
+                writeMp4a(b, format);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported mime type: " + format.getMimeType());
+        }
+    }
+
+    private static void startVisual(BoxBuilder b, String type, TrackFormat format) {
+        b.start(type)
+                .putZeros(6)
+                .putShort(1) // data_reference_index
+                .putZeros(16)
+                .putShort(format.getWidth())
+                .putShort(format.getHeight())
+                .putInt(0x00480000) // 72 dpi
+                .putInt(0x00480000)
+                .putInt(0)
+                .putShort(1) // frame_count
+                .putZeros(32) // compressorname
+                .putShort(0x0018) // depth
+                .putShort(-1);
+    }
+
+    private static void writeAvcC(BoxBuilder b, byte[][] codecConfig) {
+        final List<byte[]> sps = new ArrayList<>();
+        final List<byte[]> pps = new ArrayList<>();
+        for (byte[] csd : codecConfig) {
+            for (byte[] nalUnit : NalUnits.split(csd)) {
+                int type = NalUnits.avcType(nalUnit);
+                if (type == AVC_SPS) {
+                    sps.add(nalUnit);
+                } else if (type == AVC_PPS) {
+                    pps.add(nalUnit);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty() || sps.get(0).length < 4) {
+            throw new IllegalArgumentException("H.264 needs the SPS and PPS");
+        }
+        final byte[] first = sps.get(0);
+        b.start("avcC")
+                .putByte(1)
+                .putByte(first[1]) // profile_idc
+                .putByte(first[2]) // constraint flags
+                .putByte(first[3]) // level_idc
+                .putByte(0xFF) // NAL unit length of 4 bytes
+                .putByte(0xE0 | sps.size());
+        for (byte[] nalUnit : sps) {
+            b.putShort(nalUnit.length).putBytes(nalUnit);
+        }
+        b.putByte(pps.size());
+        for (byte[] nalUnit : pps) {
+            b.putShort(nalUnit.length).putBytes(nalUnit);
+        }
+        b.end();
+    }
+
+    private static void writeHvcC(BoxBuilder b, byte[][] codecConfig) {
+        final List<byte[]> vps = new ArrayList<>();
+        final List<byte[]> sps = new ArrayList<>();
+        final List<byte[]> pps = new ArrayList<>();
+        for (byte[] csd : codecConfig) {
+            for (byte[] nalUnit : NalUnits.split(csd)) {
+                switch (NalUnits.hevcType(nalUnit)) {
+                    case HEVC_VPS:
+                        vps.add(nalUnit);
+                        break;
+                    case HEVC_SPS:
+                        sps.add(nalUnit);
+                        break;
+                    case HEVC_PPS:
+                        pps.add(nalUnit);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        if (vps.isEmpty() || sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("H.265 needs the VPS, SPS and PPS");
+        }
+        final HevcSps info = new HevcSps(NalUnits.unescape(sps.get(0)));
+        b.start("hvcC")
+                .putByte(1)
+                .putBytes(info.profileTierLevel)
+                .putShort(0xF000) // min_spatial_segmentation_idc
+                .putByte(0xFC) // parallelismType
+                .putByte(0xFC | info.chromaFormat)
+                .putByte(0xF8 | info.bitDepthLumaMinus8)
+                .putByte(0xF8 | info.bitDepthChromaMinus8)
+                .putShort(0) // avgFrameRate
+                .putByte((info.maxSubLayers << 3) | (info.temporalIdNested << 2) | 3)
+                .putByte(3);
+        writeNalArray(b, HEVC_VPS, vps);
+        writeNalArray(b, HEVC_SPS, sps);
+        writeNalArray(b, HEVC_PPS, pps);
+        b.end();
+    }
+
+    private static void writeNalArray(BoxBuilder b, int type, List<byte[]> nalUnits) {
+        b.putByte(0x80 | type).putShort(nalUnits.size());
+        for (byte[] nalUnit : nalUnits) {
+            b.putShort(nalUnit.length).putBytes(nalUnit);
+        }
+    }
+
+    private static void writeMp4a(BoxBuilder b, TrackFormat format) {
+        final byte[] asc = format.getCodecConfig()[0];
+        b.start("mp4a")
+                .putZeros(6)
+                .putShort(1) // data_reference_index
+                .putZeros(8)
+                .putShort(format.getChannelCount())
+                .putShort(16) // samplesize
+                .putZeros(4)
+                .putInt(format.getSampleRate() << 16);
+        b.startFull("esds", 0, 0)
+                // ES_Descriptor
+                .putByte(0x03).putByte(23 + asc.length)
+                .putShort(0) // ES_ID
+                .putByte(0)
+                // DecoderConfigDescriptor
+                .putByte(0x04).putByte(15 + asc.length)
+                .putByte(0x40) // MPEG-4 Audio
+                .putByte(0x15) // AudioStream
+                .putByte(0).putShort(0) // bufferSizeDB
+                .putInt(0) // maxBitrate
+                .putInt(0) // avgBitrate
+                // DecoderSpecificInfo
+                .putByte(0x05).putByte(asc.length)
+                .putBytes(asc)
+                // SLConfigDescriptor
+                .putByte(0x06).putByte(1)
+                .putByte(0x02)
+                .end();
+        b.end();
+    }
+
+    /**
+     * The fields of the H.265 SPS the hvcC box repeats.
+     */
+    private static class HevcSps {
+        final byte[] profileTierLevel = new byte[12];
+        final int maxSubLayers;
+        final int temporalIdNested;
+        int chromaFormat = 1;
+        int bitDepthLumaMinus8;
+        int bitDepthChromaMinus8;
+
+        HevcSps(byte[] rbsp) {
+            if (rbsp.length < 15) {
+                throw new IllegalArgumentException("H.265 SPS too short");
+            }
+            // 2バイトのNALヘッダの次から
+            maxSubLayers = ((rbsp[2] >> 1) & 0x07) + 1;
+            temporalIdNested = rbsp[2] & 0x01;
+            System.arraycopy(rbsp, 3, profileTierLevel, 0, profileTierLevel.length);
+
+            final BitReader reader = new BitReader(rbsp, 15);
+            final int subLayers = maxSubLayers - 1;
+            if (subLayers > 0) {
+                final boolean[] profilePresent = new boolean[subLayers];
+                final boolean[] levelPresent = new boolean[subLayers];
+                for (int i = 0; i < subLayers; i++) {
+                    profilePresent[i] = reader.readBit() == 1;
+                    levelPresent[i] = reader.readBit() == 1;
+                }
+                reader.skip(2 * (8 - subLayers));
+                for (int i = 0; i < subLayers; i++) {
+                    if (profilePresent[i]) {
+                        reader.skip(88);
+                    }
+                    if (levelPresent[i]) {
+                        reader.skip(8);
+                    }
+                }
+            }
+            reader.readUe(); // sps_seq_parameter_set_id
+            chromaFormat = reader.readUe();
+            if (chromaFormat == 3) {
+                reader.skip(1); // separate_colour_plane_flag
+            }
+            reader.readUe(); // pic_width_in_luma_samples
+            reader.readUe(); // pic_height_in_luma_samples
+            if (reader.readBit() == 1) {
+                // conformance_window
+                reader.readUe();
+                reader.readUe();
+                reader.readUe();
+                reader.readUe();
+            }
+            bitDepthLumaMinus8 = reader.readUe();
+            bitDepthChromaMinus8 = reader.readUe();
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private int bitPosition;
+
+        BitReader(byte[] data, int bytePosition) {
+            this.data = data;
+            this.bitPosition = bytePosition * 8;
+        }
+
+        int readBit() {
+            if (bitPosition >= data.length * 8) {
+                throw new IllegalArgumentException("Read past the end of the SPS");
+            }
+            int bit = (data[bitPosition / 8] >> (7 - bitPosition % 8)) & 1;
+            bitPosition++;
+            return bit;
+        }
+
+        void skip(int bits) {
+            bitPosition += bits;
+        }
+
+        int readUe() {
+            int leadingZeros = 0;
+            while (readBit() == 0) {
+                leadingZeros++;
+            }
+            int value = 0;
+            for (int i = 0; i < leadingZeros; i++) {
+                value = (value << 1) | readBit();
+            }
+            return (1 << leadingZeros) - 1 + value;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.daasuu.mp4compose.muxer;
+
+import java.util.Arrays;
+
+/**
+ * The samples and chunks of one track, kept in primitive arrays that grow by doubling, so a
+ * multi-hour track costs about 13 bytes per sample and no object per sample.
+ */
+class SampleTable {
+
+    private static final int INITIAL_SAMPLES = 1024;
+    private static final int INITIAL_CHUNKS = 64;
+
+    private long[] timesUs = new long[INITIAL_SAMPLES];
+    private int[] sizes = new int[INITIAL_SAMPLES];
+    private boolean[] syncs = new boolean[INITIAL_SAMPLES];
+    private int sampleCount;
+    private long minTimeUs = Long.MAX_VALUE;
+
+    private long[] chunkOffsets = new long[INITIAL_CHUNKS];
+    private int[] chunkSampleCounts = new int[INITIAL_CHUNKS];
+    private int chunkCount;
+
+    void addSample(long timeUs, int size, boolean sync) {
+        if (sampleCount == timesUs.length) {
+            int capacity = sampleCount * 2;
+            timesUs = Arrays.copyOf(timesUs, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            syncs = Arrays.copyOf(syncs, capacity);
+        }
+        timesUs[sampleCount] = timeUs;
+        sizes[sampleCount] = size;
+        syncs[sampleCount] = sync;
+        sampleCount++;
+        minTimeUs = Math.min(minTimeUs, timeUs);
+    }
+
+    void addChunk(long offset, int samples) {
+        if (chunkCount == chunkOffsets.length) {
+            int capacity = chunkCount * 2;
+            chunkOffsets = Arrays.copyOf(chunkOffsets, capacity);
+            chunkSampleCounts = Arrays.copyOf(chunkSampleCounts, capacity);
+        }
+        chunkOffsets[chunkCount] = offset;
+        chunkSampleCounts[chunkCount] = samples;
+        chunkCount++;
+    }
+
+    /**
+     * Forget the samples and chunks, the arrays are kept for the next fragment.
+     */
+    void clear() {
+        sampleCount = 0;
+        chunkCount = 0;
+        minTimeUs = Long.MAX_VALUE;
+    }
+
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    long getTimeUs(int index) {
+        return timesUs[index];
+    }
+
+    int getSize(int index) {
+        return sizes[index];
+    }
+
+    boolean isSync(int index) {
+        return syncs[index];
+    }
+
+    /**
+     * @return The earliest presentation time, Long.MAX_VALUE when there is no sample.
+     */
+    long getMinTimeUs() {
+        return minTimeUs;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    long getChunkOffset(int index) {
+        return chunkOffsets[index];
+    }
+
+    int getChunkSampleCount(int index) {
+        return chunkSampleCounts[index];
+    }
+}
@@ -0,0 +1,85 @@
+package com.daasuu.mp4compose.muxer;
+
+/**
+ * The format of a track written by {@link Mp4Writer}, the plain Java counterpart of the
+ * MediaFormat given to a muxer. H.264, H.265 and AAC are supported.
+ */
+public class TrackFormat {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    private final String mimeType;
+    private final int width;
+    private final int height;
+    private final int sampleRate;
+    private final int channelCount;
+    private final byte[][] codecConfig;
+
+    private TrackFormat(String mimeType, int width, int height, int sampleRate, int channelCount, byte[][] codecConfig) {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.codecConfig = codecConfig;
+    }
+
+    /**
+     * @param codecConfig The codec specific data (csd-0, csd-1) as handed out by the encoder:
+     *                    the SPS / PPS (and VPS) with start codes.
+     */
+    public static TrackFormat video(String mimeType, int width, int height, byte[]... codecConfig) {
+        if (!MIME_AVC.equals(mimeType) && !MIME_HEVC.equals(mimeType)) {
+            throw new IllegalArgumentException("Unsupported video mime type: " + mimeType);
+        }
+        return new TrackFormat(mimeType, width, height, 0, 0, codecConfig);
+    }
+
+    /**
+     * @param codecConfig The codec specific data (csd-0): the AudioSpecificConfig.
+     */
+    public static TrackFormat audio(String mimeType, int sampleRate, int channelCount, byte[]... codecConfig) {
+        if (!MIME_AAC.equals(mimeType)) {
+            throw new IllegalArgumentException("Unsupported audio mime type: " + mimeType);
+        }
+        if (codecConfig.length == 0) {
+            throw new IllegalArgumentException("AAC needs the AudioSpecificConfig");
+        }
+        return new TrackFormat(mimeType, 0, 0, sampleRate, channelCount, codecConfig);
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public boolean isVideo() {
+        return mimeType.startsWith("video/");
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    byte[][] getCodecConfig() {
+        return codecConfig;
+    }
+
+    @Override
+    public String toString() {
+        return mimeType + (isVideo() ? " " + width + "x" + height : " " + sampleRate + "Hz " + channelCount + "ch");
+    }
+}
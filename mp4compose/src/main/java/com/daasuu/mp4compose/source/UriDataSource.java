@@ -15,9 +15,11 @@ public class UriDataSource implements DataSource {
 
     private final static String TAG = UriDataSource.class.getSimpleName();
 
+    private final Uri uri;
     private FileDescriptor fileDescriptor;
 
     public UriDataSource(@NonNull Uri uri, @NonNull Context context, @NonNull Logger logger, @NonNull Listener listener) {
+        this.uri = uri;
         ParcelFileDescriptor parcelFileDescriptor = null;
         try {
             parcelFileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
@@ -40,4 +42,9 @@ public class UriDataSource implements DataSource {
         return null;
     }
 
+    @NonNull
+    public Uri getUri() {
+        return uri;
+    }
+
 }
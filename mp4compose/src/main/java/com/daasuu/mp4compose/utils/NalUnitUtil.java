@@ -0,0 +1,103 @@
+package com.daasuu.mp4compose.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the NAL unit headers of H.264 and H.265 samples in Annex B format (start code
+ * prefixed), which is how {@link android.media.MediaExtractor} returns them. Plain Java so it
+ * can be used off the device.
+ */
+public class NalUnitUtil {
+
+    private static final int AVC_NAL_TYPE_SLICE = 1;
+    private static final int AVC_NAL_TYPE_IDR = 5;
+    private static final int HEVC_NAL_TYPE_VCL_MAX = 31;
+    private static final int HEVC_NAL_TYPE_SUB_LAYER_NON_REFERENCE_MAX = 14;
+    private static final int HEVC_NAL_TYPE_SPS = 33;
+
+    private NalUnitUtil() {
+    }
+
+    /**
+     * @return true when the H.264 sample is a picture no other picture refers to
+     * (nal_ref_idc == 0), false when it is a reference picture or has no slice.
+     */
+    public static boolean isNonReferenceAvc(ByteBuffer sample, int offset, int size) {
+        int end = offset + size;
+        int position = findNalUnit(sample, offset, end);
+        while (position >= 0) {
+            int header = sample.get(position) & 0xff;
+            int nalType = header & 0x1f;
+            if (nalType >= AVC_NAL_TYPE_SLICE && nalType <= AVC_NAL_TYPE_IDR) {
+                // 同じピクチャのスライスは nal_ref_idc が揃っているので最初のスライスだけ見る
+                return nalType != AVC_NAL_TYPE_IDR && (header >> 5) == 0;
+            }
+            position = findNalUnit(sample, position + 1, end);
+        }
+        return false;
+    }
+
+    /**
+     * @param maxSubLayers The sps_max_sub_layers of the stream, see {@link #getHevcMaxSubLayers}.
+     * @return true when the H.265 sample is a sub-layer non-reference picture of the highest
+     * temporal sub-layer, which no other picture can refer to.
+     */
+    public static boolean isNonReferenceHevc(ByteBuffer sample, int offset, int size, int maxSubLayers) {
+        int end = offset + size;
+        int position = findNalUnit(sample, offset, end);
+        while (position >= 0 && position + 1 < end) {
+            int nalType = (sample.get(position) >> 1) & 0x3f;
+            if (nalType <= HEVC_NAL_TYPE_VCL_MAX) {
+                // 下位レイヤーの _N ピクチャは上位レイヤーから参照されることがある
+                int temporalId = (sample.get(position + 1) & 0x07) - 1;
+                return nalType <= HEVC_NAL_TYPE_SUB_LAYER_NON_REFERENCE_MAX
+                        && nalType % 2 == 0
+                        && temporalId == maxSubLayers - 1;
+            }
+            position = findNalUnit(sample, position + 1, end);
+        }
+        return false;
+    }
+
+    /**
+     * @param codecConfig The csd-0 of an H.265 track, containing the VPS, SPS and PPS.
+     * @return sps_max_sub_layers_minus1 + 1 of the first SPS, or -1 when there is no SPS.
+     */
+    public static int getHevcMaxSubLayers(ByteBuffer codecConfig) {
+        int end = codecConfig.limit();
+        int position = findNalUnit(codecConfig, codecConfig.position(), end);
+        while (position >= 0) {
+            int nalType = (codecConfig.get(position) >> 1) & 0x3f;
+            if (nalType == HEVC_NAL_TYPE_SPS && position + 2 < end) {
+                // sps_video_parameter_set_id(4) sps_max_sub_layers_minus1(3)
+                return ((codecConfig.get(position + 2) >> 1) & 0x07) + 1;
+            }
+            position = findNalUnit(codecConfig, position + 1, end);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the first byte of the next {@code 00 00 01} in [from, limit), or -1.
+     */
+    public static int findStartCode(ByteBuffer data, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((data.get(i + 2) & 0xFF) > 1) {
+                // 3バイト目が0でも1でもなければ、ここから3バイトの間に開始コードは始まらない
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The position of the header of the next NAL unit after a start code, searching
+     * from {@code from}, or -1 when there is none before {@code end}.
+     */
+    static int findNalUnit(ByteBuffer buffer, int from, int end) {
+        int start = findStartCode(buffer, from, end);
+        return start >= 0 && start + 3 < end ? start + 3 : -1;
+    }
+}
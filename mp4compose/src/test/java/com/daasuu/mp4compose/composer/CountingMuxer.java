@@ -0,0 +1,44 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.daasuu.mp4compose.muxer.Muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Muxer} that only counts the samples written to it.
+ */
+class CountingMuxer implements Muxer {
+
+    int samples;
+    long lastPresentationTimeUs;
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return 0;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        samples++;
+        lastPresentationTimeUs = bufferInfo.presentationTimeUs;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,64 @@
+package com.daasuu.mp4compose.composer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderDrainTest {
+
+    private static final int FRAMES = 100;
+
+    @Test
+    public void disabledLoggerGetsNoPerFrameMessages() {
+        final RecordingLogger logger = new RecordingLogger(false);
+        final CountingMuxer muxer = drain(logger);
+
+        assertEquals(FRAMES, muxer.samples);
+        // 毎フレーム確認するが、メッセージはつくられない
+        assertTrue(logger.debugChecks >= FRAMES);
+        assertEquals(0, logger.debugMessages);
+    }
+
+    @Test
+    public void enabledLoggerGetsOneMessagePerFrame() {
+        final RecordingLogger logger = new RecordingLogger(true);
+        final CountingMuxer muxer = drain(logger);
+
+        assertEquals(FRAMES, muxer.samples);
+        assertEquals(FRAMES, logger.debugMessages);
+    }
+
+    @Test
+    public void outputTimesAreShiftedByTheOutputStart() {
+        final FakeCodec encoder = new FakeCodec();
+        final CountingMuxer muxer = new CountingMuxer();
+        final RecordingLogger logger = new RecordingLogger(false);
+        final EncoderDrain drain = new EncoderDrain(encoder, new MuxRender(muxer, logger), logger);
+        drain.setOutputStartUs(5000000);
+        encoder.addOutput();
+        encoder.addOutput();
+        while (drain.drain(0) != EncoderDrain.DRAIN_STATE_NONE) {
+            // 出力がなくなるまで回す
+        }
+
+        assertEquals(2, muxer.samples);
+        assertEquals(5000000 + FakeCodec.FRAME_US, muxer.lastPresentationTimeUs);
+        // 書いた時間はずらす前のエンコーダーの時間
+        assertEquals(FakeCodec.FRAME_US, drain.getWrittenPresentationTimeUs());
+    }
+
+    private static CountingMuxer drain(RecordingLogger logger) {
+        final FakeCodec encoder = new FakeCodec();
+        final CountingMuxer muxer = new CountingMuxer();
+        // 出力フォーマットが決まった時のメッセージは数えない
+        final EncoderDrain drain = new EncoderDrain(encoder, new MuxRender(muxer, new RecordingLogger(false)), logger);
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.addOutput();
+            while (drain.drain(0) != EncoderDrain.DRAIN_STATE_NONE) {
+                // 出力がなくなるまで回す
+            }
+        }
+        return muxer;
+    }
+}
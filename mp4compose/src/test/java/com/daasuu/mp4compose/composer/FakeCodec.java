@@ -0,0 +1,116 @@
+package com.daasuu.mp4compose.composer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link CodecBuffers} handing out preallocated buffers in turn. As an encoder it outputs one
+ * frame per {@link #addOutput()} after reporting its output format once.
+ */
+class FakeCodec implements CodecBuffers {
+
+    static final long FRAME_US = 33333;
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int KEY_FRAME_INTERVAL = 30;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+    private final MediaFormat outputFormat = new MediaFormat();
+    private boolean formatPending = true;
+    private boolean codecConfigPending;
+    private int pendingOutputs;
+    private int nextIndex;
+    private long presentationTimeUs;
+    private int frames;
+    int queuedInputs;
+    int releasedOutputs;
+
+    FakeCodec() {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    void addCodecConfig() {
+        codecConfigPending = true;
+    }
+
+    void addOutput() {
+        pendingOutputs++;
+    }
+
+    int nextOutputIndex() {
+        final int index = nextIndex;
+        nextIndex = (nextIndex + 1) % buffers.length;
+        return index;
+    }
+
+    long nextPresentationTimeUs() {
+        final long timeUs = presentationTimeUs;
+        presentationTimeUs += FRAME_US;
+        return timeUs;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return nextOutputIndex();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        buffers[index].clear();
+        return buffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        queuedInputs++;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (formatPending) {
+            formatPending = false;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        // BufferInfo.set() はスタブでは何もしないのでフィールドに入れる
+        info.offset = 0;
+        if (codecConfigPending) {
+            codecConfigPending = false;
+            info.size = 16;
+            info.presentationTimeUs = 0;
+            info.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            return nextOutputIndex();
+        }
+        if (pendingOutputs == 0) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        pendingOutputs--;
+        info.size = 1000 + frames % 7 * 100;
+        info.presentationTimeUs = nextPresentationTimeUs();
+        info.flags = frames % KEY_FRAME_INTERVAL == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        frames++;
+        return nextOutputIndex();
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        // MediaCodec と同じく中身の範囲に合わせて返す
+        buffers[index].clear();
+        buffers[index].limit(BUFFER_SIZE / 2);
+        return buffers[index];
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        releasedOutputs++;
+    }
+}
@@ -0,0 +1,63 @@
+package com.daasuu.mp4compose.composer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentJoinerTest {
+
+    private static final long FRAME_US = 33333;
+
+    @Test
+    public void fragmentOffsetIsTheRangeStartInTheSource() {
+        assertEquals(1000000, FragmentJoiner.getFragmentOffsetUs(1000000, 0));
+        assertEquals(3000000, FragmentJoiner.getFragmentOffsetUs(3000000, 0));
+        // 先頭のサンプルが0から始まらない断片
+        assertEquals(2900000, FragmentJoiner.getFragmentOffsetUs(3000000, 100000));
+        // 空の断片ではサンプル時刻が-1になる
+        assertEquals(3000000, FragmentJoiner.getFragmentOffsetUs(3000000, -1));
+    }
+
+    @Test
+    public void joinedTimestampsOnlyIncrease() {
+        final List<Long> boundaries = Arrays.asList(1000000L, 2999990L, 5000000L, 6500000L, 8000000L);
+        final List<Long> output = join(boundaries, new long[]{0, 0, 66666, 0});
+        for (int i = 1; i < output.size(); i++) {
+            assertTrue("Timestamp " + i + " went back: " + output.get(i - 1) + " -> " + output.get(i),
+                    output.get(i) > output.get(i - 1));
+        }
+        assertTrue(output.get(output.size() - 1) < boundaries.get(boundaries.size() - 1));
+    }
+
+    @Test
+    public void trimmedStartStaysInSourceTimeLikeTheAudio() {
+        final long trimStartUs = 2500000;
+        final List<Long> boundaries = Arrays.asList(trimStartUs, 5000000L, 7000000L);
+        final List<Long> output = join(boundaries, new long[]{0, 0});
+        // AudioComposer は trimStart 以降のサンプルを元の時刻のまま書く
+        final long firstAudioUs = trimStartUs;
+        assertEquals(firstAudioUs, (long) output.get(0));
+        // 2つ目の断片も元の動画での位置に置かれる
+        assertTrue(output.contains(5000000L));
+    }
+
+    /**
+     * @return The output times of fragments of frames starting at their first sample.
+     */
+    private static List<Long> join(List<Long> boundaries, long[] firstSampleUs) {
+        final List<Long> output = new ArrayList<>();
+        for (int i = 0; i + 1 < boundaries.size(); i++) {
+            final long offsetUs = FragmentJoiner.getFragmentOffsetUs(boundaries.get(i), firstSampleUs[i]);
+            // 断片の中の時刻は先頭のサンプルから始まる
+            for (long t = firstSampleUs[i]; t - firstSampleUs[i] < boundaries.get(i + 1) - boundaries.get(i); t += FRAME_US) {
+                output.add(offsetUs + t);
+            }
+        }
+        return output;
+    }
+}
@@ -0,0 +1,116 @@
+package com.daasuu.mp4compose.composer;
+
+import com.daasuu.mp4compose.metrics.MetricsRecorder;
+import com.daasuu.mp4compose.metrics.TraceRecorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the per-frame loops over fake codecs and checks with the allocation counter of the
+ * thread that the steady state does not allocate.
+ */
+public class FrameLoopAllocationTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int WARM_UP_FRAMES = 200;
+    private static final int FRAMES = 2000;
+    private static final int ROUNDS = 5;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void encoderDrainDoesNotAllocatePerFrame() {
+        final FakeCodec encoder = new FakeCodec();
+        final CountingMuxer muxer = new CountingMuxer();
+        final MuxRender muxRender = new MuxRender(muxer, new RecordingLogger(false));
+        // 計測も有効にして、記録の経路でも確保しないことを確かめる
+        muxRender.setMetricsRecorder(new MetricsRecorder(null, new TraceRecorder(1024)));
+        final EncoderDrain drain = new EncoderDrain(encoder, muxRender, new RecordingLogger(false));
+        drain.setInlineCodecConfig(true);
+        encoder.addCodecConfig();
+
+        runEncoder(encoder, drain, WARM_UP_FRAMES);
+        final long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                runEncoder(encoder, drain, FRAMES);
+            }
+        });
+
+        final int frames = muxer.samples;
+        assertEquals((frames - 1) * FakeCodec.FRAME_US, muxer.lastPresentationTimeUs);
+        assertEquals("Bytes allocated over " + FRAMES + " frames", 0, allocated);
+    }
+
+    @Test
+    public void audioChannelDoesNotAllocatePerFrame() {
+        final FakeCodec decoder = new FakeCodec();
+        final FakeCodec encoder = new FakeCodec();
+        final AudioChannel channel = new AudioChannel(decoder, encoder, SAMPLE_RATE, 2);
+        channel.setActualDecodedFormat(SAMPLE_RATE, 2);
+
+        runAudio(decoder, channel, WARM_UP_FRAMES);
+        final long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                runAudio(decoder, channel, FRAMES);
+            }
+        });
+
+        assertEquals(decoder.releasedOutputs, encoder.queuedInputs);
+        assertEquals("Bytes allocated over " + FRAMES + " frames", 0, allocated);
+    }
+
+    private static void runEncoder(FakeCodec encoder, EncoderDrain drain, int frames) {
+        for (int i = 0; i < frames; i++) {
+            encoder.addOutput();
+            while (drain.drain(0) != EncoderDrain.DRAIN_STATE_NONE) {
+                // 出力がなくなるまで回す
+            }
+        }
+    }
+
+    private static void runAudio(FakeCodec decoder, AudioChannel channel, int frames) {
+        for (int i = 0; i < frames; i++) {
+            final int index = decoder.nextOutputIndex();
+            channel.drainDecoderBufferAndQueue(index, decoder.nextPresentationTimeUs());
+            while (channel.feedEncoder(0)) {
+                // 溜まった分をエンコーダーに入れる
+            }
+        }
+    }
+
+    /**
+     * @return The fewest bytes allocated by this thread in a few runs of the task, without the
+     * cost of the measurement itself. A run during which the JIT replaces compiled code can
+     * allocate once, an allocation per frame shows up in every run.
+     */
+    private long measure(Runnable task) {
+        final long id = Thread.currentThread().getId();
+        long fewest = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS && fewest > 0; i++) {
+            long start = threads.getThreadAllocatedBytes(id);
+            final long overhead = threads.getThreadAllocatedBytes(id) - start;
+            start = threads.getThreadAllocatedBytes(id);
+            task.run();
+            fewest = Math.min(fewest, threads.getThreadAllocatedBytes(id) - start - overhead);
+        }
+        return fewest;
+    }
+}
@@ -0,0 +1,38 @@
+package com.daasuu.mp4compose.composer;
+
+import com.daasuu.mp4compose.logger.Logger;
+
+/**
+ * A {@link Logger} that counts the messages handed to it instead of printing them.
+ */
+class RecordingLogger implements Logger {
+
+    private final boolean debugEnabled;
+    int debugChecks;
+    int debugMessages;
+    int warnings;
+
+    RecordingLogger(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        debugChecks++;
+        return debugEnabled;
+    }
+
+    @Override
+    public void debug(String tag, String message) {
+        debugMessages++;
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+    }
+
+    @Override
+    public void warning(String tag, String message) {
+        warnings++;
+    }
+}
@@ -0,0 +1,299 @@
+package com.daasuu.mp4compose.composer;
+
+import com.daasuu.mp4compose.logger.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumeCheckpointTest {
+
+    private static final String FINGERPRINT = "source/video/avc/1280x720/30/0--1";
+    private static final List<Long> BOUNDARIES = Arrays.asList(0L, 10000000L, 20000000L, 25000000L);
+    // 30fps の元動画で 300 フレームごとのキーフレームで区切る
+    private static final long FRAME_US = 33333;
+    private static final long SOURCE_END_US = 900 * FRAME_US;
+    private static final List<Long> KEY_FRAME_BOUNDARIES = Arrays.asList(0L, 300 * FRAME_US, 600 * FRAME_US, 800 * FRAME_US);
+    private static final int ALL_SAMPLES = Integer.MAX_VALUE;
+
+    private static final Logger LOGGER = new Logger() {
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void debug(String tag, String message) {
+        }
+
+        @Override
+        public void error(String tag, String message, Throwable error) {
+        }
+
+        @Override
+        public void warning(String tag, String message) {
+        }
+    };
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        final File output = File.createTempFile("resume", ".mp4");
+        output.delete();
+        directory = ResumeCheckpoint.getDirectory(output.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        new ResumeCheckpoint(directory, LOGGER).clear();
+    }
+
+    @Test
+    public void resumesAfterTheLastCompletedFragment() throws IOException {
+        ResumeCheckpoint checkpoint = new ResumeCheckpoint(directory, LOGGER);
+        assertFalse(checkpoint.load(FINGERPRINT));
+        checkpoint.setBoundaries(BOUNDARIES);
+        writeFragment(checkpoint.getFragment(0));
+        checkpoint.markCompleted(0);
+        writeFragment(checkpoint.getFragment(1));
+        checkpoint.markCompleted(1);
+        // 3つ目の断片を書いている途中でプロセスが落ちた
+        writeFragment(checkpoint.getFragment(2));
+
+        ResumeCheckpoint resumed = new ResumeCheckpoint(directory, LOGGER);
+        assertTrue(resumed.load(FINGERPRINT));
+        assertEquals(BOUNDARIES, resumed.getBoundaries());
+        assertEquals(3, resumed.getFragmentCount());
+        assertEquals(2, resumed.getCompletedFragments());
+        assertTrue(resumed.getFragment(0).exists());
+        assertTrue(resumed.getFragment(1).exists());
+    }
+
+    @Test
+    public void killedBeforeTheFirstFragmentStartsAtTheFirstFragment() throws IOException {
+        ResumeCheckpoint checkpoint = new ResumeCheckpoint(directory, LOGGER);
+        assertFalse(checkpoint.load(FINGERPRINT));
+        checkpoint.setBoundaries(BOUNDARIES);
+
+        ResumeCheckpoint resumed = new ResumeCheckpoint(directory, LOGGER);
+        assertTrue(resumed.load(FINGERPRINT));
+        assertEquals(0, resumed.getCompletedFragments());
+        assertEquals(BOUNDARIES, resumed.getBoundaries());
+    }
+
+    @Test
+    public void otherFingerprintStartsOver() throws IOException {
+        ResumeCheckpoint checkpoint = new ResumeCheckpoint(directory, LOGGER);
+        checkpoint.load(FINGERPRINT);
+        checkpoint.setBoundaries(BOUNDARIES);
+        writeFragment(checkpoint.getFragment(0));
+        checkpoint.markCompleted(0);
+
+        ResumeCheckpoint resumed = new ResumeCheckpoint(directory, LOGGER);
+        assertFalse(resumed.load(FINGERPRINT + "/other filter"));
+        assertEquals(0, resumed.getCompletedFragments());
+        assertFalse(resumed.getFragment(0).exists());
+    }
+
+    @Test
+    public void killedWhileSavingKeepsThePreviousCheckpoint() throws IOException {
+        ResumeCheckpoint checkpoint = new ResumeCheckpoint(directory, LOGGER);
+        checkpoint.load(FINGERPRINT);
+        checkpoint.setBoundaries(BOUNDARIES);
+        checkpoint.markCompleted(0);
+        // 書きかけの一時ファイルが残っている
+        final FileOutputStream out = new FileOutputStream(new File(directory, "checkpoint.tmp"));
+        out.write("fingerprint=".getBytes("ISO-8859-1"));
+        out.close();
+
+        ResumeCheckpoint resumed = new ResumeCheckpoint(directory, LOGGER);
+        assertTrue(resumed.load(FINGERPRINT));
+        assertEquals(1, resumed.getCompletedFragments());
+    }
+
+    @Test
+    public void corruptCheckpointStartsOver() throws IOException {
+        assertTrue(directory.mkdirs());
+        final FileOutputStream out = new FileOutputStream(new File(directory, "checkpoint"));
+        out.write(("fingerprint=" + FINGERPRINT + "\nboundaries=0,1x\ncompleted=1\n").getBytes("ISO-8859-1"));
+        out.close();
+
+        ResumeCheckpoint resumed = new ResumeCheckpoint(directory, LOGGER);
+        assertFalse(resumed.load(FINGERPRINT));
+        assertEquals(0, resumed.getCompletedFragments());
+    }
+
+    @Test
+    public void fileIdentityChangesWhenTheSourceIsEdited() throws IOException {
+        final File source = File.createTempFile("source", ".mp4");
+        try {
+            writeFragment(source);
+            final String identity = ResumeCheckpoint.getFileIdentity(source);
+            assertEquals(identity, ResumeCheckpoint.getFileIdentity(source));
+
+            final FileOutputStream out = new FileOutputStream(source, true);
+            out.write(1);
+            out.close();
+            assertNotEquals(identity, ResumeCheckpoint.getFileIdentity(source));
+
+            final String appended = ResumeCheckpoint.getFileIdentity(source);
+            assertTrue(source.setLastModified(source.lastModified() - 60000));
+            assertNotEquals(appended, ResumeCheckpoint.getFileIdentity(source));
+        } finally {
+            source.delete();
+        }
+    }
+
+    @Test
+    public void resumedOutputMatchesAnUninterruptedRun() throws IOException {
+        final List<Long> expected = transcode(new FakeTranscoder(-1, 0));
+        assertEquals(900, expected.size());
+
+        // 断片の先頭、途中、書き終えて記録する前、最後の断片の途中で落とす
+        final int[][] kills = {{0, 0}, {1, 150}, {1, ALL_SAMPLES}, {2, 1}, {2, 299}};
+        for (int[] kill : kills) {
+            final String name = "killed in fragment " + kill[0] + " after " + kill[1] + " samples";
+            new ResumeCheckpoint(directory, LOGGER).clear();
+            ResumeCheckpoint checkpoint = new ResumeCheckpoint(directory, LOGGER);
+            checkpoint.load(FINGERPRINT);
+            checkpoint.setBoundaries(KEY_FRAME_BOUNDARIES);
+            try {
+                checkpoint.transcodeRemaining(true, new FakeTranscoder(kill[0], kill[1]));
+                fail(name + ": not killed");
+            } catch (Killed e) {
+                // プロセスが落ちた
+            }
+            if (kill[1] > 0) {
+                assertTrue(name + ": no partial fragment", checkpoint.getFragment(kill[0]).length() > 0);
+            }
+
+            final FakeTranscoder resumedTranscoder = new FakeTranscoder(-1, 0);
+            final ResumeCheckpoint resumed = new ResumeCheckpoint(directory, LOGGER);
+            assertTrue(name, resumed.load(FINGERPRINT));
+            assertEquals(name, kill[0], resumed.getCompletedFragments());
+            final File[] fragments = resumed.transcodeRemaining(true, resumedTranscoder);
+
+            assertEquals(name, KEY_FRAME_BOUNDARIES.size() - 1 - kill[0], resumedTranscoder.transcodedFragments);
+            final List<Long> joined = join(fragments);
+            assertEquals(name + ": samples", expected.size(), joined.size());
+            assertEquals(name, expected, joined);
+        }
+    }
+
+    /**
+     * @return The joined output times of a run that is not interrupted.
+     */
+    private List<Long> transcode(FakeTranscoder transcoder) throws IOException {
+        final ResumeCheckpoint checkpoint = new ResumeCheckpoint(directory, LOGGER);
+        checkpoint.load(FINGERPRINT);
+        checkpoint.setBoundaries(KEY_FRAME_BOUNDARIES);
+        return join(checkpoint.transcodeRemaining(true, transcoder));
+    }
+
+    /**
+     * @return The output times of the fragments placed like {@link FragmentJoiner} does.
+     */
+    private static List<Long> join(File[] fragments) throws IOException {
+        final List<Long> output = new ArrayList<>();
+        for (int i = 0; i < fragments.length; i++) {
+            final List<Long> samples = readSamples(fragments[i]);
+            final long offsetUs = FragmentJoiner.getFragmentOffsetUs(KEY_FRAME_BOUNDARIES.get(i),
+                    samples.isEmpty() ? -1 : samples.get(0));
+            for (long sampleUs : samples) {
+                output.add(offsetUs + sampleUs);
+            }
+        }
+        return output;
+    }
+
+    private static List<Long> readSamples(File fragment) throws IOException {
+        final List<Long> samples = new ArrayList<>();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fragment)));
+        try {
+            while (true) {
+                samples.add(in.readLong());
+            }
+        } catch (EOFException e) {
+            return samples;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Thrown by the {@link FakeTranscoder} in place of the process dying.
+     */
+    private static class Killed extends RuntimeException {
+    }
+
+    /**
+     * Writes the times of the source frames in the range, relative to the range start like
+     * {@link ChunkTranscoder}, and can die part way through a fragment. It appends to the
+     * fragment file, so a partial fragment that is not deleted before the retry shows up in
+     * the joined output.
+     */
+    private static class FakeTranscoder implements ResumeCheckpoint.FragmentTranscoder {
+        private final int killFragment;
+        private final int killAfterSamples;
+        int transcodedFragments;
+
+        /**
+         * @param killFragment     The fragment to die in, -1 to never die.
+         * @param killAfterSamples The samples written before dying, {@link #ALL_SAMPLES} to die
+         *                         after the fragment is complete.
+         */
+        FakeTranscoder(int killFragment, int killAfterSamples) {
+            this.killFragment = killFragment;
+            this.killAfterSamples = killAfterSamples;
+        }
+
+        @Override
+        public void transcode(long startUs, long endUs, File output) throws IOException {
+            final int fragment = KEY_FRAME_BOUNDARIES.indexOf(startUs);
+            final long stopUs = endUs == -1 ? SOURCE_END_US : endUs;
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output, true)));
+            try {
+                int written = 0;
+                for (long timeUs = startUs; timeUs < stopUs; timeUs += FRAME_US) {
+                    if (fragment == killFragment && written == killAfterSamples) {
+                        throw new Killed();
+                    }
+                    out.writeLong(timeUs - startUs);
+                    written++;
+                }
+            } finally {
+                out.close();
+            }
+            if (fragment == killFragment) {
+                throw new Killed();
+            }
+            transcodedFragments++;
+        }
+    }
+
+    private static void writeFragment(File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[1024]);
+        out.close();
+    }
+}
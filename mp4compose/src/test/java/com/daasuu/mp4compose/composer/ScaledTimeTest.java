@@ -0,0 +1,68 @@
+package com.daasuu.mp4compose.composer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScaledTimeTest {
+
+    private static final float[] TIME_SCALES = {0.25f, 0.5f, 1, 1.5f, 2, 3, 4};
+
+    @Test
+    public void sourceTimeSurvivesTheDecoder() {
+        for (float timeScale : TIME_SCALES) {
+            for (long sourceUs = 0; sourceUs < 10000000; sourceUs += 33367) {
+                long decoderUs = ScaledTime.toDecoderUs(sourceUs, timeScale);
+                long backUs = ScaledTime.toSourceUs(decoderUs, timeScale);
+                assertEquals("timeScale " + timeScale, decoderUs, ScaledTime.toDecoderUs(backUs, timeScale));
+                // 同じ時刻に丸められる元の時間のうち最後のもの
+                assertTrue("timeScale " + timeScale + ", " + sourceUs + " -> " + backUs,
+                        backUs >= sourceUs && backUs - sourceUs < Math.max(1, Math.ceil(timeScale)));
+            }
+        }
+    }
+
+    @Test
+    public void trimWithSpeedChangeKeepsTheSourceRange() {
+        final long startUs = 1001000;
+        final long endUs = 3003000;
+        final long frameUs = 1001000 / 30;
+        for (float timeScale : TIME_SCALES) {
+            int kept = 0;
+            int expected = 0;
+            for (long sourceUs = 0; sourceUs < 5000000; sourceUs += frameUs) {
+                long decodedUs = ScaledTime.toDecoderUs(sourceUs, timeScale);
+                boolean inRange = ScaledTime.isInRange(ScaledTime.toSourceUs(decodedUs, timeScale), startUs, endUs);
+                assertEquals("timeScale " + timeScale + ", frame at " + sourceUs,
+                        sourceUs >= startUs && sourceUs < endUs, inRange);
+                if (inRange) {
+                    kept++;
+                }
+                if (sourceUs >= startUs && sourceUs < endUs) {
+                    expected++;
+                }
+            }
+            // 速度を変えても残るフレームの数は変わらない
+            assertEquals(60, expected);
+            assertEquals(expected, kept);
+        }
+    }
+
+    @Test
+    public void frameAtTrimStartIsKept() {
+        for (float timeScale : TIME_SCALES) {
+            long decodedUs = ScaledTime.toDecoderUs(1000000, timeScale);
+            assertTrue(ScaledTime.isInRange(ScaledTime.toSourceUs(decodedUs, timeScale), 1000000, 2000000));
+            decodedUs = ScaledTime.toDecoderUs(2000000, timeScale);
+            assertFalse(ScaledTime.isInRange(ScaledTime.toSourceUs(decodedUs, timeScale), 1000000, 2000000));
+        }
+    }
+
+    @Test
+    public void noEndKeepsEverythingAfterTheStart() {
+        assertTrue(ScaledTime.isInRange(Long.MAX_VALUE / 2, 0, -1));
+        assertFalse(ScaledTime.isInRange(999, 1000, -1));
+    }
+}
@@ -0,0 +1,46 @@
+package com.daasuu.mp4compose.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class GlFilterTest {
+
+    @Test
+    public void sameParametersGiveTheSameState() {
+        final GlBrightnessFilter a = new GlBrightnessFilter();
+        final GlBrightnessFilter b = new GlBrightnessFilter();
+        a.setBrightness(0.25f);
+        b.setBrightness(0.25f);
+        assertEquals(a.getParameterState(), b.getParameterState());
+    }
+
+    @Test
+    public void changedParameterChangesTheState() {
+        final GlBrightnessFilter a = new GlBrightnessFilter();
+        final GlBrightnessFilter b = new GlBrightnessFilter();
+        a.setBrightness(0.25f);
+        b.setBrightness(0.5f);
+        assertNotEquals(a.getParameterState(), b.getParameterState());
+
+        final GlFilter filter = new GlFilter();
+        final String state = filter.getParameterState();
+        filter.setClearColor(1f, 1f, 1f, 1f);
+        assertNotEquals(state, filter.getParameterState());
+    }
+
+    @Test
+    public void filterClassIsPartOfTheState() {
+        assertNotEquals(new GlFilter().getParameterState(), new GlGrayScaleFilter().getParameterState());
+    }
+
+    @Test
+    public void groupStateCoversItsFilters() {
+        final GlBrightnessFilter brightness = new GlBrightnessFilter();
+        final GlFilterGroup group = new GlFilterGroup(new GlSepiaFilter(), brightness);
+        final String state = group.getParameterState();
+        brightness.setBrightness(0.1f);
+        assertNotEquals(state, group.getParameterState());
+    }
+}
@@ -0,0 +1,20 @@
+package com.daasuu.mp4compose.logger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AndroidLoggerTest {
+
+    @Test
+    public void debugIsEnabledByDefault() {
+        assertTrue(new AndroidLogger().isDebugEnabled());
+        assertTrue(new AndroidLogger(true).isDebugEnabled());
+    }
+
+    @Test
+    public void debugCanBeDisabled() {
+        assertFalse(new AndroidLogger(false).isDebugEnabled());
+    }
+}
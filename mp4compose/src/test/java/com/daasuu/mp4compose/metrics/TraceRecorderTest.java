@@ -0,0 +1,87 @@
+package com.daasuu.mp4compose.metrics;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceRecorderTest {
+
+    @Test
+    public void exportsEventsWithTheirThreads() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder(16);
+        recorder.begin("decode");
+        recorder.instant("segment");
+        recorder.end("decode");
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recorder.span("render", System.nanoTime() - 1000, System.nanoTime());
+            }
+        }, "trace-test-render");
+        thread.start();
+        thread.join();
+
+        final String json = export(recorder);
+        assertEquals(5, recorder.size());
+        assertEquals(2, count(json, "\"ph\":\"B\""));
+        assertEquals(2, count(json, "\"ph\":\"E\""));
+        assertEquals(1, count(json, "\"ph\":\"i\""));
+        // 終わったスレッドの名前も残っている
+        assertTrue(json.contains("\"tid\":" + thread.getId() + ",\"args\":{\"name\":\"trace-test-render\"}"));
+        assertTrue(json.contains("\"tid\":" + Thread.currentThread().getId() + ",\"args\":{\"name\":"));
+        assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json.endsWith("\n]}\n"));
+    }
+
+    @Test
+    public void wrapAroundDropsEndsWithoutBegin() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder(3);
+        recorder.begin("outer");
+        recorder.begin("inner");
+        recorder.end("inner");
+        recorder.end("outer");
+
+        final String json = export(recorder);
+        assertEquals(3, recorder.size());
+        assertEquals(1, recorder.getOverwrittenEvents());
+        // outer の begin は上書きされたので end も出さない
+        assertEquals(0, count(json, "\"name\":\"outer\""));
+        assertEquals(2, count(json, "\"name\":\"inner\""));
+        assertTrue(json.indexOf("\"ph\":\"B\"") < json.indexOf("\"ph\":\"E\""));
+        assertTrue(!json.contains("[,") && !json.contains(",,"));
+    }
+
+    @Test
+    public void clearEmptiesTheBuffer() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder(2);
+        recorder.begin("a");
+        recorder.end("a");
+        recorder.instant("b");
+        recorder.clear();
+
+        assertEquals(0, recorder.size());
+        assertEquals(0, recorder.getOverwrittenEvents());
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n]}\n", export(recorder));
+    }
+
+    private static String export(TraceRecorder recorder) throws IOException {
+        final StringWriter writer = new StringWriter();
+        recorder.writeJson(writer);
+        return writer.toString();
+    }
+
+    private static int count(String text, String part) {
+        final Matcher matcher = Pattern.compile(Pattern.quote(part)).matcher(text);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,197 @@
+package com.daasuu.mp4compose.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DataSinkTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AAC_CONFIG = {0x12, 0x10};
+    private static final int SAMPLE_RATE = 44100;
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final int FRAME_COUNT = 300;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final long FRAGMENT_DURATION_US = 2000000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("datasink", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void pipeGetsTheBytesOfTheFile() throws Exception {
+        final PipedInputStream input = new PipedInputStream(64 * 1024);
+        // 読み始める前につないでおく (つながる前の read() は例外で終わる)
+        final PipedOutputStream output = new PipedOutputStream(input);
+        final StreamReader reader = new StreamReader(input);
+        reader.start();
+        write(new Mp4Writer(new OutputStreamDataSink(output)));
+
+        assertArrayEquals(writeFile(), reader.getBytes());
+    }
+
+    @Test
+    public void socketGetsTheBytesOfTheFile() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            final Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            final Socket accepted = server.accept();
+            final StreamReader reader = new StreamReader(accepted.getInputStream());
+            reader.start();
+            // ソケットはシンクと一緒に閉じられる
+            write(new Mp4Writer(new OutputStreamDataSink(client.getOutputStream())));
+
+            assertArrayEquals(writeFile(), reader.getBytes());
+            assertTrue(client.isClosed());
+            accepted.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void chunkedSinkGetsTheBytesOfTheFile() throws Exception {
+        final int blockSize = 4096;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final int[] ends = new int[1];
+        final ChunkedDataSink sink = new ChunkedDataSink(new ChunkedDataSink.Callback() {
+            @Override
+            public void onBlock(ChunkedDataSink sink, ByteBuffer block) {
+                final byte[] bytes = new byte[block.remaining()];
+                block.get(bytes);
+                output.write(bytes, 0, bytes.length);
+                sink.recycle(block);
+            }
+
+            @Override
+            public void onEnd(ChunkedDataSink sink) {
+                ends[0]++;
+            }
+        }, blockSize);
+        write(new Mp4Writer(sink));
+
+        assertArrayEquals(writeFile(), output.toByteArray());
+        assertEquals(1, ends[0]);
+        // すぐに返されたブロックは使い回される
+        assertEquals(1, sink.getAllocatedBlocks());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unfragmentedSinkIsRejected() throws IOException {
+        final Mp4Writer writer = new Mp4Writer(new OutputStreamDataSink(new ByteArrayOutputStream()));
+        writer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        writer.start();
+    }
+
+    /**
+     * @return The same output written to a file through its channel.
+     */
+    private byte[] writeFile() throws IOException {
+        write(new Mp4Writer(new RandomAccessFile(file, "rw").getChannel()));
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write a fragmented AVC + AAC stream and close the writer.
+     */
+    private static void write(Mp4Writer writer) throws IOException {
+        final int video = writer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480, SPS, PPS));
+        final int audio = writer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        writer.setFragmentDuration(FRAGMENT_DURATION_US);
+        writer.start();
+        // 直接バッファは OutputStreamDataSink で配列を経由する
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        long audioUs = 0;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            final boolean sync = i % KEY_FRAME_INTERVAL == 0;
+            buffer.clear();
+            buffer.put(new byte[]{0, 0, 0, 1, (byte) (sync ? 0x65 : 0x41)});
+            for (int k = 0; k < 200 + i % 13 * 50; k++) {
+                buffer.put((byte) (k % 250 + 1));
+            }
+            buffer.flip();
+            writer.writeSample(video, buffer, 0, buffer.limit(), i * FRAME_US, sync);
+            while (audioUs <= i * FRAME_US) {
+                buffer.clear();
+                for (int k = 0; k < 300; k++) {
+                    buffer.put((byte) (audioUs + k));
+                }
+                buffer.flip();
+                writer.writeSample(audio, buffer, 0, buffer.limit(), audioUs, true);
+                audioUs += AUDIO_FRAME_US;
+            }
+        }
+        writer.finish();
+        writer.close();
+    }
+
+    /**
+     * Reads a stream to its end on another thread, as the receiving end of a pipe or socket.
+     */
+    private static class StreamReader extends Thread {
+
+        private final InputStream input;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private IOException error;
+
+        StreamReader(InputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[8192];
+            try {
+                int length;
+                while ((length = input.read(buffer)) >= 0) {
+                    bytes.write(buffer, 0, length);
+                }
+                input.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        byte[] getBytes() throws Exception {
+            join(10000);
+            if (error != null) {
+                throw error;
+            }
+            assertTrue("The stream did not end", !isAlive());
+            return bytes.toByteArray();
+        }
+    }
+}
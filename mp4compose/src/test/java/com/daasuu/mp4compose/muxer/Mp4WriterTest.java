@@ -0,0 +1,461 @@
+package com.daasuu.mp4compose.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4WriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AAC_CONFIG = {0x12, 0x10};
+    private static final byte[] SEI = {0, 0, 1, 0x06, 0x05, 0x01};
+    private static final int AVC_IDR = 0x65;
+    private static final int AVC_SLICE = 0x41;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int SAMPLE_RATE = 44100;
+    private static final long START_US = 1000000;
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final int AUDIO_FRAME_SIZE = 50;
+    // B フレームのある GOP のデコード順
+    private static final int[] GOP_ORDER = {0, 3, 1, 2};
+    private static final int FRAME_COUNT = 120;
+    private static final int KEY_FRAME_INTERVAL = 30;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("mp4writer", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void sampleTablesSurviveTheRoundTrip() throws IOException {
+        final List<Integer> videoSizes = new ArrayList<>();
+        final List<Long> videoTimes = new ArrayList<>();
+        final List<Integer> syncSamples = new ArrayList<>();
+        int audioFrames = 0;
+
+        final Mp4Writer writer = new Mp4Writer(new RandomAccessFile(file, "rw").getChannel());
+        final int video = writer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480, SPS, PPS));
+        final int audio = writer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        writer.start();
+        long audioUs = 0;
+        for (int gop = 0; gop < FRAME_COUNT; gop += GOP_ORDER.length) {
+            for (int order : GOP_ORDER) {
+                final int frame = gop + order;
+                final boolean sync = order == 0;
+                final byte[] sample = avcSample(frame, sync);
+                final long timeUs = START_US + frame * FRAME_US;
+                writer.writeSample(video, ByteBuffer.wrap(sample), 0, sample.length, timeUs, sync);
+                // 3バイトの開始コードも4バイトの長さになる
+                videoSizes.add(sample.length + 1);
+                videoTimes.add(timeUs);
+                if (sync) {
+                    syncSamples.add(videoSizes.size());
+                }
+                while (audioUs <= frame * FRAME_US) {
+                    final byte[] frameData = audioFrame(audioFrames++);
+                    writer.writeSample(audio, ByteBuffer.wrap(frameData), 0, frameData.length, START_US + audioUs, true);
+                    audioUs += AUDIO_FRAME_US;
+                }
+            }
+        }
+        writer.finish();
+        writer.close();
+
+        final ByteBuffer mp4 = readFile();
+        final List<ByteBuffer> traks = findAll(findBox(mp4, "moov"), "trak");
+        assertEquals(2, traks.size());
+
+        // 映像
+        final ByteBuffer videoStbl = findBox(traks.get(0), "mdia", "minf", "stbl");
+        assertEquals(videoSizes, readSampleSizes(videoStbl));
+        final long[] offsets = readSampleOffsets(videoStbl, videoSizes.size());
+        for (int i = 0; i < offsets.length; i++) {
+            // 長さ付きの NAL ユニットが2つ: スライスと SEI
+            final int position = (int) offsets[i];
+            final int sliceLength = mp4.getInt(position);
+            assertEquals(videoSizes.get(i) - 4 - 4 - (SEI.length - 3), sliceLength);
+            assertEquals(syncSamples.contains(i + 1) ? AVC_IDR : AVC_SLICE, mp4.get(position + 4));
+            assertEquals(SEI.length - 3, mp4.getInt(position + 4 + sliceLength));
+            assertEquals(SEI[3], mp4.get(position + 4 + sliceLength + 4));
+        }
+
+        final long[] decodeTimes = readDecodeTimes(videoStbl, videoSizes.size());
+        final long[] compositionOffsets = readRuns(findBox(videoStbl, "ctts"), videoSizes.size());
+        final long[] edit = readEditList(traks.get(0));
+        assertEquals(1, edit.length / 2);
+        // 0, 3, 1, 2 の順では1フレーム遅らせればデコードが間に合う
+        final long mediaTime = edit[1];
+        assertEquals(Mp4Track.toTimescale(FRAME_US, VIDEO_TIMESCALE), mediaTime);
+        for (int i = 0; i < decodeTimes.length; i++) {
+            final long presentation = decodeTimes[i] + compositionOffsets[i] - mediaTime;
+            assertEquals(Mp4Track.toTimescale(videoTimes.get(i) - START_US, VIDEO_TIMESCALE), presentation);
+            // 表示より先にデコードされている
+            assertTrue(compositionOffsets[i] >= 0);
+        }
+        assertEquals(syncSamples, readSyncSamples(videoStbl));
+
+        // 音声: 同じ大きさ、全部同期サンプル、並べ替えなし
+        final ByteBuffer audioStbl = findBox(traks.get(1), "mdia", "minf", "stbl");
+        final ByteBuffer stsz = findBox(audioStbl, "stsz");
+        assertEquals(AUDIO_FRAME_SIZE, stsz.getInt(4));
+        assertEquals(audioFrames, stsz.getInt(8));
+        final long[] audioOffsets = readSampleOffsets(audioStbl, audioFrames);
+        for (int i = 0; i < audioFrames; i++) {
+            final byte[] frameData = new byte[AUDIO_FRAME_SIZE];
+            mp4.position((int) audioOffsets[i]);
+            mp4.get(frameData);
+            assertArrayEquals(audioFrame(i), frameData);
+        }
+        final long[] audioDecodeTimes = readDecodeTimes(audioStbl, audioFrames);
+        for (int i = 0; i < audioFrames; i++) {
+            assertEquals(Mp4Track.toTimescale(i * AUDIO_FRAME_US, SAMPLE_RATE), audioDecodeTimes[i]);
+        }
+        assertNull(findBox(audioStbl, "ctts"));
+        assertNull(findBox(audioStbl, "stss"));
+        assertNull(findBox(traks.get(1), "edts"));
+    }
+
+    @Test
+    public void offsetsPastFourGigabytesUseCo64() {
+        final Mp4Track track = new Mp4Track(1, TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        addAudioChunk(track, 0, 3);
+        track.onChunkWritten(100);
+        addAudioChunk(track, 3, 2);
+        track.onChunkWritten(0x100000000L + 300);
+        track.finish(0);
+
+        final ByteBuffer stbl = writeStbl(track, 0);
+        assertNull(findBox(stbl, "stco"));
+        assertArrayEquals(new long[]{100, 0x100000000L + 300}, readChunkOffsets(stbl));
+        // チャンクごとのサンプル数が変わったところだけ
+        final ByteBuffer stsc = findBox(stbl, "stsc");
+        assertEquals(2, stsc.getInt(4));
+        assertEquals(1, stsc.getInt(8));
+        assertEquals(3, stsc.getInt(12));
+        assertEquals(2, stsc.getInt(20));
+        assertEquals(2, stsc.getInt(24));
+    }
+
+    @Test
+    public void shiftedOffsetsSwitchToCo64() {
+        final Mp4Track track = new Mp4Track(1, TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        addAudioChunk(track, 0, 4);
+        track.onChunkWritten(1000);
+        track.finish(0);
+
+        assertNull(findBox(writeStbl(track, 0), "co64"));
+        assertArrayEquals(new long[]{1000 + 4096}, readChunkOffsets(writeStbl(track, 4096)));
+        // faststart で moov の分だけずらすと 4 GB を超える
+        final ByteBuffer stbl = writeStbl(track, 5L << 30);
+        assertNotNull(findBox(stbl, "co64"));
+        assertArrayEquals(new long[]{1000 + (5L << 30)}, readChunkOffsets(stbl));
+    }
+
+    @Test
+    public void lateTrackStartsWithAnEmptyEdit() {
+        final Mp4Track track = new Mp4Track(1, TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        for (int i = 0; i < 10; i++) {
+            final byte[] frameData = audioFrame(i);
+            track.addSample(ByteBuffer.wrap(frameData), 0, frameData.length, 500000 + i * AUDIO_FRAME_US, true);
+        }
+        track.onChunkWritten(0);
+        track.finish(0);
+
+        final BoxBuilder b = new BoxBuilder(1024);
+        track.writeTrak(b, Mp4Writer.MOVIE_TIMESCALE, 0, 0);
+        final long[] edit = readEditList(findBox(b.flip(), "trak"));
+        // 最初のサンプルまでの空白と、メディア全体
+        assertArrayEquals(new long[]{500, -1, track.getMovieDuration(Mp4Writer.MOVIE_TIMESCALE) - 500, 0}, edit);
+    }
+
+    @Test
+    public void faststartPutsTheMoovBoxInFront() throws IOException {
+        final Mp4Writer writer = new Mp4Writer(new RandomAccessFile(file, "rw").getChannel());
+        writer.setFaststart(FRAME_COUNT * FRAME_US);
+        writeStream(writer);
+
+        final ByteBuffer mp4 = readFile();
+        assertEquals(0, writer.getFaststartMovedBytes());
+        assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), readBoxTypes(mp4));
+        // チャンクの位置は mdat の中の最初のフレームを指す
+        final ByteBuffer videoStbl = findBox(findAll(findBox(mp4, "moov"), "trak").get(0), "mdia", "minf", "stbl");
+        final long firstChunk = readChunkOffsets(videoStbl)[0];
+        assertEquals(AVC_IDR, mp4.get((int) firstChunk + 4));
+    }
+
+    @Test
+    public void fragmentsCarryTheSamplesInTruns() throws IOException {
+        final Mp4Writer writer = new Mp4Writer(new RandomAccessFile(file, "rw").getChannel());
+        writer.setFragmentDuration(KEY_FRAME_INTERVAL * FRAME_US);
+        writeStream(writer);
+
+        final ByteBuffer mp4 = readFile();
+        final List<String> types = readBoxTypes(mp4);
+        assertEquals(Arrays.asList("ftyp", "moov"), types.subList(0, 2));
+        assertNotNull(findBox(mp4, "moov", "mvex"));
+        final List<ByteBuffer> moofs = findAll(mp4, "moof");
+        assertTrue(moofs.size() > 1);
+        // moof のあとには必ずその mdat が続く
+        for (int i = 2; i < types.size(); i += 2) {
+            assertEquals("moof", types.get(i));
+            assertEquals("mdat", types.get(i + 1));
+        }
+        int videoSamples = 0;
+        for (ByteBuffer moof : moofs) {
+            for (ByteBuffer traf : findAll(moof, "traf")) {
+                final ByteBuffer trun = findBox(traf, "trun");
+                assertNotNull(trun);
+                if (findBox(traf, "tfhd").getInt(4) == 1) {
+                    videoSamples += trun.getInt(4);
+                }
+            }
+        }
+        assertEquals(FRAME_COUNT, videoSamples);
+    }
+
+    /**
+     * Write {@link #FRAME_COUNT} AVC frames in display order with AAC between them, and close
+     * the writer.
+     */
+    private static void writeStream(Mp4Writer writer) throws IOException {
+        final int video = writer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480, SPS, PPS));
+        final int audio = writer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, SAMPLE_RATE, 2, AAC_CONFIG));
+        writer.start();
+        long audioUs = 0;
+        int audioFrames = 0;
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            final boolean sync = frame % KEY_FRAME_INTERVAL == 0;
+            final byte[] sample = avcSample(frame, sync);
+            writer.writeSample(video, ByteBuffer.wrap(sample), 0, sample.length, frame * FRAME_US, sync);
+            while (audioUs <= frame * FRAME_US) {
+                final byte[] frameData = audioFrame(audioFrames++);
+                writer.writeSample(audio, ByteBuffer.wrap(frameData), 0, frameData.length, audioUs, true);
+                audioUs += AUDIO_FRAME_US;
+            }
+        }
+        writer.finish();
+        writer.close();
+    }
+
+    private static List<String> readBoxTypes(ByteBuffer file) {
+        final List<String> types = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= file.limit()) {
+            long size = file.getInt(position) & 0xFFFFFFFFL;
+            if (size == 1) {
+                size = file.getLong(position + 8);
+            } else if (size == 0) {
+                size = file.limit() - position;
+            }
+            types.add(new String(new char[]{
+                    (char) file.get(position + 4), (char) file.get(position + 5),
+                    (char) file.get(position + 6), (char) file.get(position + 7)}));
+            position += size;
+        }
+        return types;
+    }
+
+    private static byte[] avcSample(int frame, boolean sync) {
+        final int payloadSize = 100 + (frame % 7) * 10;
+        final byte[] sample = new byte[4 + 1 + payloadSize + SEI.length];
+        sample[3] = 1;
+        sample[4] = (byte) (sync ? AVC_IDR : AVC_SLICE);
+        for (int i = 0; i < payloadSize; i++) {
+            sample[5 + i] = (byte) (i % 250 + 1);
+        }
+        System.arraycopy(SEI, 0, sample, 5 + payloadSize, SEI.length);
+        return sample;
+    }
+
+    private static byte[] audioFrame(int index) {
+        final byte[] frameData = new byte[AUDIO_FRAME_SIZE];
+        for (int i = 0; i < frameData.length; i++) {
+            frameData[i] = (byte) (index + i);
+        }
+        return frameData;
+    }
+
+    private static void addAudioChunk(Mp4Track track, int firstFrame, int frames) {
+        for (int i = firstFrame; i < firstFrame + frames; i++) {
+            final byte[] frameData = audioFrame(i);
+            track.addSample(ByteBuffer.wrap(frameData), 0, frameData.length, i * AUDIO_FRAME_US, true);
+        }
+        track.getPendingChunk();
+    }
+
+    private static ByteBuffer writeStbl(Mp4Track track, long chunkOffsetShift) {
+        final BoxBuilder b = new BoxBuilder(1024);
+        track.writeTrak(b, Mp4Writer.MOVIE_TIMESCALE, 0, chunkOffsetShift);
+        return findBox(b.flip(), "trak", "mdia", "minf", "stbl");
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return The payload of the box at the given path, indexed from 0, or null.
+     */
+    static ByteBuffer findBox(ByteBuffer parent, String... path) {
+        ByteBuffer box = parent;
+        for (String type : path) {
+            final List<ByteBuffer> found = findAll(box, type);
+            if (found.isEmpty()) {
+                return null;
+            }
+            box = found.get(0);
+        }
+        return box;
+    }
+
+    static List<ByteBuffer> findAll(ByteBuffer parent, String type) {
+        final List<ByteBuffer> boxes = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= parent.limit()) {
+            long size = parent.getInt(position) & 0xFFFFFFFFL;
+            int header = 8;
+            if (size == 1) {
+                size = parent.getLong(position + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = parent.limit() - position;
+            }
+            final String boxType = new String(new char[]{
+                    (char) parent.get(position + 4), (char) parent.get(position + 5),
+                    (char) parent.get(position + 6), (char) parent.get(position + 7)});
+            if (boxType.equals(type)) {
+                final ByteBuffer payload = parent.duplicate();
+                payload.limit((int) (position + size));
+                payload.position(position + header);
+                boxes.add(payload.slice());
+            }
+            position += size;
+        }
+        return boxes;
+    }
+
+    private static List<Integer> readSampleSizes(ByteBuffer stbl) {
+        final ByteBuffer stsz = findBox(stbl, "stsz");
+        final int fixedSize = stsz.getInt(4);
+        final int count = stsz.getInt(8);
+        final List<Integer> sizes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            sizes.add(fixedSize != 0 ? fixedSize : stsz.getInt(12 + i * 4));
+        }
+        return sizes;
+    }
+
+    private static long[] readChunkOffsets(ByteBuffer stbl) {
+        final ByteBuffer co64 = findBox(stbl, "co64");
+        final ByteBuffer table = co64 != null ? co64 : findBox(stbl, "stco");
+        final long[] offsets = new long[table.getInt(4)];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = co64 != null ? co64.getLong(8 + i * 8) : table.getInt(8 + i * 4) & 0xFFFFFFFFL;
+        }
+        return offsets;
+    }
+
+    /**
+     * @return The file offset of every sample, from stco/co64, stsc and stsz.
+     */
+    private static long[] readSampleOffsets(ByteBuffer stbl, int sampleCount) {
+        final long[] chunkOffsets = readChunkOffsets(stbl);
+        final List<Integer> sizes = readSampleSizes(stbl);
+        final ByteBuffer stsc = findBox(stbl, "stsc");
+        final int entries = stsc.getInt(4);
+        final long[] offsets = new long[sampleCount];
+        int sample = 0;
+        for (int chunk = 0; chunk < chunkOffsets.length; chunk++) {
+            int samplesPerChunk = 0;
+            for (int e = 0; e < entries; e++) {
+                if (stsc.getInt(8 + e * 12) <= chunk + 1) {
+                    samplesPerChunk = stsc.getInt(8 + e * 12 + 4);
+                }
+            }
+            long offset = chunkOffsets[chunk];
+            for (int i = 0; i < samplesPerChunk; i++) {
+                offsets[sample] = offset;
+                offset += sizes.get(sample);
+                sample++;
+            }
+        }
+        assertEquals(sampleCount, sample);
+        return offsets;
+    }
+
+    private static long[] readRuns(ByteBuffer box, int sampleCount) {
+        final long[] values = new long[sampleCount];
+        final int entries = box.getInt(4);
+        int sample = 0;
+        for (int e = 0; e < entries; e++) {
+            final int count = box.getInt(8 + e * 8);
+            final int value = box.getInt(8 + e * 8 + 4);
+            for (int i = 0; i < count; i++) {
+                values[sample++] = value;
+            }
+        }
+        assertEquals(sampleCount, sample);
+        return values;
+    }
+
+    private static long[] readDecodeTimes(ByteBuffer stbl, int sampleCount) {
+        final long[] durations = readRuns(findBox(stbl, "stts"), sampleCount);
+        final long[] times = new long[sampleCount];
+        for (int i = 1; i < sampleCount; i++) {
+            times[i] = times[i - 1] + durations[i - 1];
+        }
+        return times;
+    }
+
+    private static List<Integer> readSyncSamples(ByteBuffer stbl) {
+        final ByteBuffer stss = findBox(stbl, "stss");
+        final List<Integer> samples = new ArrayList<>();
+        for (int i = 0; i < stss.getInt(4); i++) {
+            samples.add(stss.getInt(8 + i * 4));
+        }
+        return samples;
+    }
+
+    /**
+     * @return The (segment_duration, media_time) pairs of the elst box.
+     */
+    private static long[] readEditList(ByteBuffer trak) {
+        final ByteBuffer elst = findBox(trak, "edts", "elst");
+        final long[] edits = new long[elst.getInt(4) * 2];
+        for (int i = 0; i < edits.length / 2; i++) {
+            edits[i * 2] = elst.getInt(8 + i * 12) & 0xFFFFFFFFL;
+            edits[i * 2 + 1] = elst.getInt(8 + i * 12 + 4);
+        }
+        return edits;
+    }
+}
@@ -0,0 +1,120 @@
+package com.daasuu.mp4compose.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NalUnitUtilTest {
+
+    private static final int AVC_NON_REFERENCE_SLICE = 0x01;
+    private static final int AVC_REFERENCE_SLICE = 0x41;
+    private static final int AVC_IDR = 0x65;
+    private static final int AVC_SEI = 0x06;
+    private static final int AVC_AUD = 0x09;
+
+    private static final int HEVC_TRAIL_N = 0;
+    private static final int HEVC_TRAIL_R = 1;
+    private static final int HEVC_RASL_N = 8;
+    private static final int HEVC_IDR_W_RADL = 19;
+    private static final int HEVC_VPS = 32;
+    private static final int HEVC_SPS = 33;
+    private static final int HEVC_AUD = 35;
+
+    @Test
+    public void avcNonReferenceSlice() {
+        assertTrue(isNonReferenceAvc(avc(AVC_NON_REFERENCE_SLICE)));
+        // nal_ref_idc が0でなければ参照される
+        assertFalse(isNonReferenceAvc(avc(AVC_REFERENCE_SLICE)));
+        assertFalse(isNonReferenceAvc(avc(0x21)));
+        assertFalse(isNonReferenceAvc(avc(AVC_IDR)));
+    }
+
+    @Test
+    public void avcLooksAtTheFirstSlice() {
+        assertTrue(isNonReferenceAvc(avc(AVC_AUD, AVC_SEI, AVC_NON_REFERENCE_SLICE)));
+        assertFalse(isNonReferenceAvc(avc(AVC_AUD, AVC_SEI, AVC_REFERENCE_SLICE)));
+        // スライスがなければ捨てない
+        assertFalse(isNonReferenceAvc(avc(AVC_AUD, AVC_SEI)));
+        assertFalse(isNonReferenceAvc(new byte[]{1, 2, 3, 4}));
+    }
+
+    @Test
+    public void avcWithOffsetAndFourByteStartCode() {
+        final byte[] sample = {(byte) 0xff, (byte) 0xff, 0, 0, 0, 1, AVC_NON_REFERENCE_SLICE, (byte) 0x9a, 0x12};
+        assertTrue(NalUnitUtil.isNonReferenceAvc(ByteBuffer.wrap(sample), 2, sample.length - 2));
+        // 範囲の外のスライスは見ない
+        assertFalse(NalUnitUtil.isNonReferenceAvc(ByteBuffer.wrap(sample), 0, 6));
+    }
+
+    @Test
+    public void hevcSubLayerNonReferenceOfTheHighestLayer() {
+        final int maxSubLayers = 3;
+        assertTrue(isNonReferenceHevc(hevc(HEVC_TRAIL_N, 2), maxSubLayers));
+        assertTrue(isNonReferenceHevc(hevc(HEVC_RASL_N, 2), maxSubLayers));
+        // 下位レイヤーの _N ピクチャは上位レイヤーから参照されうる
+        assertFalse(isNonReferenceHevc(hevc(HEVC_TRAIL_N, 1), maxSubLayers));
+        assertFalse(isNonReferenceHevc(hevc(HEVC_TRAIL_N, 0), maxSubLayers));
+        assertFalse(isNonReferenceHevc(hevc(HEVC_TRAIL_R, 2), maxSubLayers));
+        assertFalse(isNonReferenceHevc(hevc(HEVC_IDR_W_RADL, 0), maxSubLayers));
+    }
+
+    @Test
+    public void hevcSkipsNonVclUnits() {
+        final byte[] sample = concat(hevc(HEVC_AUD, 0), hevc(HEVC_TRAIL_N, 0));
+        assertTrue(isNonReferenceHevc(sample, 1));
+        assertFalse(isNonReferenceHevc(hevc(HEVC_AUD, 0), 1));
+    }
+
+    @Test
+    public void hevcMaxSubLayersFromTheSps() {
+        // sps_video_parameter_set_id = 0, sps_max_sub_layers_minus1 = 2, temporal_id_nesting = 1
+        final byte[] csd = concat(hevc(HEVC_VPS, 0), new byte[]{0, 0, 0, 1, (byte) (HEVC_SPS << 1), 1, 0x05, 0x01});
+        assertEquals(3, NalUnitUtil.getHevcMaxSubLayers(ByteBuffer.wrap(csd)));
+        assertEquals(-1, NalUnitUtil.getHevcMaxSubLayers(ByteBuffer.wrap(hevc(HEVC_VPS, 0))));
+    }
+
+    @Test
+    public void findStartCode() {
+        final ByteBuffer data = ByteBuffer.wrap(new byte[]{5, 0, 0, 1, 7, 9, 9, 0, 0, 0, 1, 3, 0, 0});
+        assertEquals(1, NalUnitUtil.findStartCode(data, 0, data.limit()));
+        assertEquals(8, NalUnitUtil.findStartCode(data, 2, data.limit()));
+        assertEquals(-1, NalUnitUtil.findStartCode(data, 9, data.limit()));
+        // 上限をまたぐ開始コードは見つけない
+        assertEquals(-1, NalUnitUtil.findStartCode(data, 2, 10));
+        assertEquals(-1, NalUnitUtil.findStartCode(ByteBuffer.wrap(new byte[]{0, 0}), 0, 2));
+    }
+
+    private static boolean isNonReferenceAvc(byte[] sample) {
+        return NalUnitUtil.isNonReferenceAvc(ByteBuffer.wrap(sample), 0, sample.length);
+    }
+
+    private static boolean isNonReferenceHevc(byte[] sample, int maxSubLayers) {
+        return NalUnitUtil.isNonReferenceHevc(ByteBuffer.wrap(sample), 0, sample.length, maxSubLayers);
+    }
+
+    /**
+     * @return NAL units with the given headers and a short payload, each after a start code.
+     */
+    private static byte[] avc(int... headers) {
+        byte[] sample = new byte[0];
+        for (int header : headers) {
+            sample = concat(sample, new byte[]{0, 0, 1, (byte) header, (byte) 0x88, (byte) 0x84});
+        }
+        return sample;
+    }
+
+    private static byte[] hevc(int nalType, int temporalId) {
+        return new byte[]{0, 0, 0, 1, (byte) (nalType << 1), (byte) (temporalId + 1), (byte) 0xaf, 0x09};
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}